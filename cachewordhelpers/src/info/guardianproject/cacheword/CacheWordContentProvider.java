@@ -0,0 +1,199 @@
+
+package info.guardianproject.cacheword;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Looper;
+import android.util.Log;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+/**
+ * A {@link ContentProvider} backed by a SQLCipher database keyed by
+ * CacheWord. The provider keeps a headless connection to
+ * {@link CacheWordService} (see {@link CacheWordHandler#createHeadless}), so it
+ * does not keep CacheWord unlocked by itself.
+ * <p>
+ * Subclasses supply the {@link SQLCipherOpenHelper} and implement the data
+ * access methods, which receive an open database. The database connection is
+ * opened on first use and reused by every call until CacheWord locks, when
+ * it is closed. {@link #bulkInsert(Uri, ContentValues[])} runs in a single
+ * transaction.
+ * <p>
+ * While CacheWord is locked every call fails with a
+ * {@link CacheWordLockedException}, without trying to open the database. Calls
+ * made before the connection to {@link CacheWordService} has completed, for
+ * example right after the process started, first wait up to
+ * {@link #CONNECT_TIMEOUT_MILLIS} for it. Calls on the main thread can't wait,
+ * since the connection completes there.
+ */
+public abstract class CacheWordContentProvider extends ContentProvider implements
+        ICacheWordSubscriber, ICacheWordLockListener {
+    private static final String TAG = "CacheWordContentProvider";
+
+    public static final long CONNECT_TIMEOUT_MILLIS = 2000;
+
+    private CacheWordHandler mHandler;
+    private SQLCipherOpenHelper mHelper;
+    private SQLiteDatabase mDatabase; // guarded by this
+
+    @Override
+    public boolean onCreate() {
+        mHandler = CacheWordHandler.createHeadless(getContext(), this);
+        mHelper = createOpenHelper(mHandler);
+        CacheWordService.addLockListener(this);
+        mHandler.connectToService();
+        return true;
+    }
+
+    /**
+     * Create the helper for the provider's database. Called once from
+     * {@link #onCreate()}.
+     *
+     * @param cacheWord the provider's headless handler, to pass to the
+     *            {@link SQLCipherOpenHelper} constructor
+     */
+    protected abstract SQLCipherOpenHelper createOpenHelper(CacheWordHandler cacheWord);
+
+    protected abstract Cursor query(SQLiteDatabase db, Uri uri, String[] projection,
+            String selection, String[] selectionArgs, String sortOrder);
+
+    /**
+     * @return the URI of the inserted row, or null if it wasn't inserted
+     */
+    protected abstract Uri insert(SQLiteDatabase db, Uri uri, ContentValues values);
+
+    protected abstract int update(SQLiteDatabase db, Uri uri, ContentValues values,
+            String selection, String[] selectionArgs);
+
+    protected abstract int delete(SQLiteDatabase db, Uri uri, String selection,
+            String[] selectionArgs);
+
+    /**
+     * @throws CacheWordLockedException if CacheWord is locked
+     */
+    @Override
+    public final Cursor query(Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) {
+        return query(getDatabase(), uri, projection, selection, selectionArgs, sortOrder);
+    }
+
+    /**
+     * @throws CacheWordLockedException if CacheWord is locked
+     */
+    @Override
+    public final Uri insert(Uri uri, ContentValues values) {
+        return insert(getDatabase(), uri, values);
+    }
+
+    /**
+     * Inserts all values in one transaction, either all rows are inserted or
+     * none are.
+     *
+     * @throws CacheWordLockedException if CacheWord is locked
+     */
+    @Override
+    public final int bulkInsert(Uri uri, ContentValues[] values) {
+        SQLiteDatabase db = getDatabase();
+        int count = 0;
+        db.beginTransaction();
+        try {
+            for (ContentValues v : values) {
+                if (insert(db, uri, v) != null)
+                    count++;
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return count;
+    }
+
+    /**
+     * @throws CacheWordLockedException if CacheWord is locked
+     */
+    @Override
+    public final int update(Uri uri, ContentValues values, String selection,
+            String[] selectionArgs) {
+        return update(getDatabase(), uri, values, selection, selectionArgs);
+    }
+
+    /**
+     * @throws CacheWordLockedException if CacheWord is locked
+     */
+    @Override
+    public final int delete(Uri uri, String selection, String[] selectionArgs) {
+        return delete(getDatabase(), uri, selection, selectionArgs);
+    }
+
+    /**
+     * @return true if the provider can currently serve requests
+     */
+    public boolean isUnlocked() {
+        return !mHandler.isLocked();
+    }
+
+    /**
+     * Returns the provider's open database, opening it on first use.
+     *
+     * @throws CacheWordLockedException if CacheWord is locked
+     */
+    protected SQLiteDatabase getDatabase() {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            try {
+                // outside the provider's lock, so the callbacks aren't blocked
+                mHandler.awaitConnection(CONNECT_TIMEOUT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return openDatabase();
+    }
+
+    @Override
+    public void onCacheWordLocking() {
+        closeDatabase();
+    }
+
+    @Override
+    public void onCacheWordUninitialized() {
+        closeDatabase();
+    }
+
+    @Override
+    public void onCacheWordLocked() {
+        closeDatabase();
+    }
+
+    @Override
+    public void onCacheWordOpened() {
+        // the database is opened lazily by the next request
+    }
+
+    @Override
+    public void shutdown() {
+        CacheWordService.removeLockListener(this);
+        closeDatabase();
+        mHandler.disconnectFromService();
+    }
+
+    private synchronized SQLiteDatabase openDatabase() {
+        if (mHandler.isLocked()) {
+            closeDatabase();
+            throw new CacheWordLockedException();
+        }
+        if (mDatabase == null || !mDatabase.isOpen())
+            mDatabase = mHelper.getWritableDatabase();
+        return mDatabase;
+    }
+
+    private synchronized void closeDatabase() {
+        if (mDatabase == null)
+            return;
+        Log.d(TAG, "closing database");
+        mDatabase = null;
+        mHelper.close();
+    }
+}
@@ -0,0 +1,478 @@
+
+package info.guardianproject.cacheword;
+
+import android.content.ComponentCallbacks2;
+import android.os.Process;
+import android.util.Log;
+
+import info.guardianproject.iocipher.File;
+import info.guardianproject.iocipher.RandomAccessFile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded cache of decrypted blocks read from files in an IOCipher virtual
+ * file system, such as one mounted with {@link IOCipherMountHelper}. Reading
+ * through the cache avoids paying the decryption cost twice for the same
+ * block, and sequential readers get the following blocks decrypted ahead of
+ * time on a background thread.
+ * <p>
+ * Decrypted blocks are held in direct (off-heap) buffers. The cache is wiped
+ * when CacheWord locks, and its memory budget shrinks in response to
+ * {@link #onTrimMemory(int)}. Use {@link #open(String)} to read a file through
+ * the cache.
+ * <p>
+ * Writes through {@link #openForWrite(String, boolean)} drop the blocks they
+ * change. Code that changes a file in the VFS any other way, including
+ * deleting or renaming it, must call {@link #invalidate(String)} afterwards,
+ * or readers may be served the old contents.
+ */
+public class IOCipherBlockCache implements ICacheWordLockParticipant {
+    private static final String TAG = "IOCipherBlockCache";
+
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+    public static final int DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+    // the read-ahead window doubles for every sequential read up to this many blocks
+    private static final int MAX_READ_AHEAD_BLOCKS = 8;
+    // pending read-ahead requests beyond this are dropped, they are only hints
+    private static final int MAX_PENDING_READ_AHEAD = 4;
+
+    private final CacheWordHandler mHandler;
+    private final int mBlockSize;
+    private final int mMaxBytes;
+    private final ExecutorService mReadAheadExecutor;
+
+    // all of the following are guarded by this
+    private final LinkedHashMap<BlockKey, Block> mBlocks =
+            new LinkedHashMap<BlockKey, Block>(16, 0.75f, true);
+    private final ArrayDeque<ByteBuffer> mFreeBuffers = new ArrayDeque<ByteBuffer>();
+    private final Set<BlockKey> mLoading = new HashSet<BlockKey>();
+    private int mBudgetBytes;
+    private int mCachedBytes = 0;
+    private int mGeneration = 0;
+    private boolean mClosed = false;
+    private long mHits = 0;
+    private long mMisses = 0;
+
+    /**
+     * Creates a cache with {@link #DEFAULT_BLOCK_SIZE} blocks and a budget of
+     * {@link #DEFAULT_MAX_BYTES}.
+     */
+    public IOCipherBlockCache(CacheWordHandler cacheWord) {
+        this(cacheWord, DEFAULT_BLOCK_SIZE, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param cacheWord used to check the lock state before serving reads
+     * @param blockSize the size in bytes of a cached block
+     * @param maxBytes the maximum amount of decrypted data to hold in memory
+     */
+    public IOCipherBlockCache(CacheWordHandler cacheWord, int blockSize, int maxBytes) {
+        if (cacheWord == null)
+            throw new IllegalArgumentException("CacheWordHandler is null");
+        if (blockSize <= 0 || maxBytes < 0)
+            throw new IllegalArgumentException("invalid block size or memory budget");
+        mHandler = cacheWord;
+        mBlockSize = blockSize;
+        mMaxBytes = maxBytes;
+        mBudgetBytes = maxBytes;
+        mReadAheadExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(MAX_PENDING_READ_AHEAD),
+                new ReadAheadThreadFactory(), new ThreadPoolExecutor.DiscardPolicy());
+        CacheWordService.addLockListener(this);
+    }
+
+    /**
+     * Open a file in the mounted VFS for reading through this cache.
+     *
+     * @param path the path of the file inside the VFS
+     * @throws IOException when CacheWord is locked or the file can't be opened
+     */
+    public IOCipherCachedInputStream open(String path) throws IOException {
+        checkUnlocked();
+        return new IOCipherCachedInputStream(this, path);
+    }
+
+    /**
+     * Open a file in the mounted VFS for writing. Every write drops the
+     * cached blocks it changes.
+     *
+     * @param path the path of the file inside the VFS
+     * @param append true to start writing at the end of the file, false to
+     *            truncate it
+     * @throws IOException when CacheWord is locked or the file can't be opened
+     */
+    public IOCipherCachedOutputStream openForWrite(String path, boolean append)
+            throws IOException {
+        checkUnlocked();
+        return new IOCipherCachedOutputStream(this, path, append);
+    }
+
+    /**
+     * Drop the cached blocks of a file, after it was changed outside of this
+     * cache.
+     */
+    public void invalidate(String path) {
+        invalidate(path, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Drop the cached blocks of a file that overlap the given range, after it
+     * was changed outside of this cache. Read-ahead in progress is discarded,
+     * so it can't cache data read before the change.
+     */
+    public synchronized void invalidate(String path, long offset, long length) {
+        if (length <= 0)
+            return;
+        mGeneration++;
+        long first = offset / mBlockSize;
+        long last = (length > Long.MAX_VALUE - offset ? Long.MAX_VALUE : offset + length - 1)
+                / mBlockSize;
+        Iterator<Map.Entry<BlockKey, Block>> it = mBlocks.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<BlockKey, Block> entry = it.next();
+            BlockKey key = entry.getKey();
+            if (key.path.equals(path) && key.index >= first && key.index <= last) {
+                it.remove();
+                mCachedBytes -= mBlockSize;
+                Wiper.wipe(entry.getValue().data);
+            }
+        }
+    }
+
+    public int getBlockSize() {
+        return mBlockSize;
+    }
+
+    /**
+     * @return the number of bytes of decrypted data currently cached
+     */
+    public synchronized int getCachedBytes() {
+        return mCachedBytes;
+    }
+
+    /**
+     * @return the current memory budget, as reduced by {@link #onTrimMemory(int)}
+     */
+    public synchronized int getMemoryBudget() {
+        return mBudgetBytes;
+    }
+
+    /**
+     * @return the fraction of block lookups served from the cache
+     */
+    public synchronized float getHitRate() {
+        long total = mHits + mMisses;
+        return total == 0 ? 0f : (float) mHits / total;
+    }
+
+    /**
+     * Shrink the memory budget in response to memory pressure. Call this from
+     * your {@code Application} or {@code Activity}'s {@code onTrimMemory()}.
+     * The budget follows the most recent level, so a milder level raises it
+     * again.
+     *
+     * @param level one of the {@link ComponentCallbacks2} TRIM_MEMORY_ levels
+     */
+    public synchronized void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            mBudgetBytes = 0;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            mBudgetBytes = mMaxBytes / 4;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            mBudgetBytes = mMaxBytes / 2;
+        } else {
+            mBudgetBytes = mMaxBytes / 4 * 3;
+        }
+        Log.d(TAG, "onTrimMemory(" + level + ") budget=" + mBudgetBytes);
+        evictToBudget();
+        if (mBudgetBytes == 0)
+            releaseFreeBuffers();
+    }
+
+    /**
+     * Restore the memory budget to the size given at construction.
+     */
+    public synchronized void resetMemoryBudget() {
+        mBudgetBytes = mMaxBytes;
+    }
+
+    @Override
+    public void onCacheWordLocking() {
+        wipe();
+    }
+
+    @Override
+    public String getName() {
+        return TAG;
+    }
+
+    @Override
+    public void forceWipe() {
+        wipe();
+    }
+
+    /**
+     * Wipe and drop all cached blocks. Read-ahead in progress is discarded.
+     */
+    public synchronized void wipe() {
+        mGeneration++;
+        for (Block block : mBlocks.values())
+            Wiper.wipe(block.data);
+        mBlocks.clear();
+        mCachedBytes = 0;
+        releaseFreeBuffers();
+    }
+
+    /**
+     * Wipe the cache and stop the read-ahead thread. The cache can't be used
+     * after it is closed.
+     */
+    public void close() {
+        CacheWordService.removeLockListener(this);
+        synchronized (this) {
+            mClosed = true;
+        }
+        mReadAheadExecutor.shutdownNow();
+        wipe();
+    }
+
+    // / package private API for IOCipherCachedInputStream
+    // ////////////////////////////////////
+
+    void checkUnlocked() throws IOException {
+        synchronized (this) {
+            if (mClosed)
+                throw new IOException("IOCipherBlockCache is closed");
+        }
+        if (mHandler.isLocked()) {
+            wipe();
+            throw new IOException("Database locked. Decryption key unavailable.");
+        }
+    }
+
+    /**
+     * Copy cached data for a block into dst.
+     *
+     * @return the number of bytes copied, or -1 if the block isn't cached
+     */
+    synchronized int copyFromCache(String path, long index, int offset, ByteBuffer dst) {
+        Block block = mBlocks.get(new BlockKey(path, index));
+        if (block == null) {
+            mMisses++;
+            return -1;
+        }
+        mHits++;
+        return block.copyTo(offset, dst);
+    }
+
+    /**
+     * Read and decrypt a block from file into scratch, and keep a copy in the
+     * cache if the budget allows.
+     *
+     * @return the number of bytes in the block, 0 at end of file
+     */
+    int load(RandomAccessFile file, String path, long index, byte[] scratch) throws IOException {
+        int generation;
+        synchronized (this) {
+            generation = mGeneration;
+        }
+        int length = readBlock(file, index, scratch);
+        if (length > 0)
+            insert(new BlockKey(path, index), scratch, length, generation);
+        return length;
+    }
+
+    /**
+     * Schedule the decryption of the count blocks following index on the
+     * read-ahead thread.
+     */
+    void readAhead(final String path, final long index, final int count, final long size) {
+        final int generation;
+        synchronized (this) {
+            if (mClosed || mBudgetBytes < mBlockSize)
+                return;
+            generation = mGeneration;
+        }
+        mReadAheadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                readAheadBlocks(path, index, count, size, generation);
+            }
+        });
+    }
+
+    static int readAheadWindow(int sequentialReads) {
+        if (sequentialReads <= 0)
+            return 0;
+        if (sequentialReads >= 4)
+            return MAX_READ_AHEAD_BLOCKS;
+        return Math.min(1 << (sequentialReads - 1), MAX_READ_AHEAD_BLOCKS);
+    }
+
+    // / private methods
+    // ////////////////////////////////////
+
+    private void readAheadBlocks(String path, long first, int count, long size, int generation) {
+        byte[] scratch = null;
+        RandomAccessFile file = null;
+        try {
+            for (long index = first; index < first + count; index++) {
+                if (index * mBlockSize >= size)
+                    break;
+                BlockKey key = new BlockKey(path, index);
+                synchronized (this) {
+                    if (generation != mGeneration || mClosed)
+                        break;
+                    if (mBlocks.containsKey(key) || !mLoading.add(key))
+                        continue;
+                }
+                try {
+                    if (file == null) {
+                        file = new RandomAccessFile(new File(path), "r");
+                        scratch = new byte[mBlockSize];
+                    }
+                    int length = readBlock(file, index, scratch);
+                    if (length > 0)
+                        insert(key, scratch, length, generation);
+                } finally {
+                    synchronized (this) {
+                        mLoading.remove(key);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "read-ahead failed for " + path + ": " + e.getMessage());
+        } finally {
+            Wiper.wipe(scratch);
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private int readBlock(RandomAccessFile file, long index, byte[] scratch) throws IOException {
+        file.seek(index * mBlockSize);
+        int length = 0;
+        while (length < mBlockSize) {
+            int read = file.read(scratch, length, mBlockSize - length);
+            if (read < 0)
+                break;
+            length += read;
+        }
+        return length;
+    }
+
+    private synchronized void insert(BlockKey key, byte[] data, int length, int generation) {
+        if (generation != mGeneration || mClosed || mBudgetBytes < mBlockSize)
+            return;
+        if (mBlocks.containsKey(key))
+            return;
+        mCachedBytes += mBlockSize;
+        evictToBudget();
+        ByteBuffer buffer = mFreeBuffers.poll();
+        if (buffer == null)
+            buffer = ByteBuffer.allocateDirect(mBlockSize);
+        buffer.clear();
+        buffer.put(data, 0, length);
+        mBlocks.put(key, new Block(buffer, length));
+    }
+
+    /**
+     * Evicts least recently used blocks until the cached bytes fit the budget.
+     * Evicted buffers are wiped and kept for reuse.
+     */
+    private void evictToBudget() {
+        Iterator<Map.Entry<BlockKey, Block>> it = mBlocks.entrySet().iterator();
+        while (mCachedBytes > mBudgetBytes && it.hasNext()) {
+            Block block = it.next().getValue();
+            it.remove();
+            mCachedBytes -= mBlockSize;
+            Wiper.wipe(block.data);
+            if ((mFreeBuffers.size() + mBlocks.size()) * mBlockSize < mBudgetBytes)
+                mFreeBuffers.add(block.data);
+        }
+    }
+
+    private void releaseFreeBuffers() {
+        for (ByteBuffer buffer : mFreeBuffers)
+            Wiper.wipe(buffer);
+        mFreeBuffers.clear();
+    }
+
+    private static final class BlockKey {
+        final String path;
+        final long index;
+
+        BlockKey(String path, long index) {
+            this.path = path;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof BlockKey))
+                return false;
+            BlockKey other = (BlockKey) o;
+            return index == other.index && path.equals(other.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * path.hashCode() + (int) (index ^ (index >>> 32));
+        }
+    }
+
+    private static final class Block {
+        final ByteBuffer data;
+        final int length;
+
+        Block(ByteBuffer data, int length) {
+            this.data = data;
+            this.length = length;
+        }
+
+        int copyTo(int offset, ByteBuffer dst) {
+            if (offset >= length)
+                return 0;
+            ByteBuffer src = data.duplicate();
+            src.limit(Math.min(length, offset + dst.remaining()));
+            src.position(offset);
+            int count = src.remaining();
+            dst.put(src);
+            return count;
+        }
+    }
+
+    private static class ReadAheadThreadFactory implements ThreadFactory {
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, TAG);
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
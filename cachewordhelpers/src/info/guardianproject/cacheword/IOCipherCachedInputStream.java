@@ -0,0 +1,203 @@
+
+package info.guardianproject.cacheword;
+
+import info.guardianproject.iocipher.File;
+import info.guardianproject.iocipher.RandomAccessFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An {@link InputStream} over a file in an IOCipher virtual file system that
+ * reads through an {@link IOCipherBlockCache}. Besides the stream interface
+ * it offers {@code FileChannel} style positional reads, so the stream can be
+ * used for seeking in large media files.
+ * <p>
+ * Instances are obtained from {@link IOCipherBlockCache#open(String)}. Like
+ * other streams, an instance must not be shared between threads without
+ * external synchronization.
+ */
+public class IOCipherCachedInputStream extends InputStream {
+
+    private final IOCipherBlockCache mCache;
+    private final String mPath;
+    private final RandomAccessFile mFile;
+    private final long mSize;
+    private final int mBlockSize;
+    private byte[] mScratch;
+    private final byte[] mSingleByte = new byte[1];
+
+    private long mPosition = 0;
+    private long mMark = 0;
+    private long mLastBlock = -1;
+    private int mSequentialReads = 0;
+    private boolean mClosed = false;
+
+    IOCipherCachedInputStream(IOCipherBlockCache cache, String path) throws IOException {
+        mCache = cache;
+        mPath = path;
+        mFile = new RandomAccessFile(new File(path), "r");
+        mSize = mFile.length();
+        mBlockSize = cache.getBlockSize();
+        mScratch = new byte[mBlockSize];
+    }
+
+    /**
+     * @return the size of the file in bytes
+     */
+    public long size() {
+        return mSize;
+    }
+
+    /**
+     * @return the current read position in bytes
+     */
+    public synchronized long position() {
+        return mPosition;
+    }
+
+    /**
+     * Move the read position. Positions beyond the end of the file are
+     * allowed, reads from there return end of stream.
+     */
+    public synchronized IOCipherCachedInputStream position(long newPosition) {
+        if (newPosition < 0)
+            throw new IllegalArgumentException("negative position");
+        mPosition = newPosition;
+        return this;
+    }
+
+    /**
+     * Read into dst from the current position, advancing the position.
+     *
+     * @return the number of bytes read, or -1 at end of stream
+     */
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        int n = read(dst, mPosition);
+        if (n > 0)
+            mPosition += n;
+        return n;
+    }
+
+    /**
+     * Read into dst starting at position. The stream position is not changed.
+     *
+     * @return the number of bytes read, or -1 if position is at or beyond the
+     *         end of the file
+     */
+    public synchronized int read(ByteBuffer dst, long position) throws IOException {
+        ensureOpen();
+        mCache.checkUnlocked();
+        if (position >= mSize)
+            return -1;
+        int total = 0;
+        while (dst.hasRemaining() && position < mSize) {
+            long index = position / mBlockSize;
+            int offset = (int) (position % mBlockSize);
+            int n = readFromBlock(index, offset, dst);
+            if (n <= 0)
+                break;
+            total += n;
+            position += n;
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        int n = read(mSingleByte, 0, 1);
+        return n <= 0 ? -1 : mSingleByte[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        return read(ByteBuffer.wrap(b, off, len));
+    }
+
+    @Override
+    public synchronized long skip(long n) throws IOException {
+        if (n <= 0)
+            return 0;
+        long skipped = Math.min(n, Math.max(0, mSize - mPosition));
+        mPosition += skipped;
+        return skipped;
+    }
+
+    @Override
+    public synchronized int available() throws IOException {
+        ensureOpen();
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(0, mSize - mPosition));
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+        mMark = mPosition;
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        mPosition = mMark;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (mClosed)
+            return;
+        mClosed = true;
+        Wiper.wipe(mScratch);
+        mScratch = null;
+        mFile.close();
+    }
+
+    // / private methods
+    // ////////////////////////////////////
+
+    private int readFromBlock(long index, int offset, ByteBuffer dst) throws IOException {
+        trackSequentialAccess(index);
+        int n = mCache.copyFromCache(mPath, index, offset, dst);
+        if (n >= 0)
+            return n;
+
+        try {
+            int length = mCache.load(mFile, mPath, index, mScratch);
+            if (offset >= length)
+                return 0;
+            n = Math.min(length - offset, dst.remaining());
+            dst.put(mScratch, offset, n);
+            return n;
+        } finally {
+            Wiper.wipe(mScratch);
+        }
+    }
+
+    /**
+     * Detects sequential access and asks the cache to decrypt the following
+     * blocks ahead of time. The window grows with every sequential block.
+     */
+    private void trackSequentialAccess(long index) {
+        if (index == mLastBlock)
+            return;
+        if (index == mLastBlock + 1)
+            mSequentialReads++;
+        else
+            mSequentialReads = 0;
+        mLastBlock = index;
+
+        int window = IOCipherBlockCache.readAheadWindow(mSequentialReads);
+        if (window > 0)
+            mCache.readAhead(mPath, index + 1, window, mSize);
+    }
+
+    private void ensureOpen() throws IOException {
+        if (mClosed)
+            throw new IOException("Stream closed");
+    }
+}
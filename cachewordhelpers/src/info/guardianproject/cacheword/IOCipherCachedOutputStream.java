@@ -0,0 +1,105 @@
+
+package info.guardianproject.cacheword;
+
+import info.guardianproject.iocipher.File;
+import info.guardianproject.iocipher.RandomAccessFile;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An {@link OutputStream} to a file in an IOCipher virtual file system that
+ * drops the blocks of an {@link IOCipherBlockCache} it changes, so readers
+ * through the cache see the new data. Besides the stream interface it offers
+ * positional writes.
+ * <p>
+ * Instances are obtained from
+ * {@link IOCipherBlockCache#openForWrite(String, boolean)}. Streams opened
+ * with {@link IOCipherBlockCache#open(String)} before the write keep the
+ * size the file had when they were opened.
+ */
+public class IOCipherCachedOutputStream extends OutputStream {
+
+    private final IOCipherBlockCache mCache;
+    private final String mPath;
+    private final RandomAccessFile mFile;
+    private final byte[] mSingleByte = new byte[1];
+
+    private long mPosition;
+    private boolean mClosed = false;
+
+    IOCipherCachedOutputStream(IOCipherBlockCache cache, String path, boolean append)
+            throws IOException {
+        mCache = cache;
+        mPath = path;
+        mFile = new RandomAccessFile(new File(path), "rw");
+        if (append) {
+            mPosition = mFile.length();
+        } else {
+            mFile.setLength(0);
+            mPosition = 0;
+            cache.invalidate(path);
+        }
+    }
+
+    /**
+     * @return the current write position in bytes
+     */
+    public synchronized long position() {
+        return mPosition;
+    }
+
+    /**
+     * Move the write position. Writing beyond the end of the file extends it.
+     */
+    public synchronized IOCipherCachedOutputStream position(long newPosition) {
+        if (newPosition < 0)
+            throw new IllegalArgumentException("negative position");
+        mPosition = newPosition;
+        return this;
+    }
+
+    /**
+     * Write len bytes of b starting at position. The stream position is not
+     * changed.
+     */
+    public synchronized void write(byte[] b, int off, int len, long position)
+            throws IOException {
+        ensureOpen();
+        mCache.checkUnlocked();
+        if (len == 0)
+            return;
+        mFile.seek(position);
+        try {
+            mFile.write(b, off, len);
+        } finally {
+            // a failed write may have changed part of the range
+            mCache.invalidate(mPath, position, len);
+        }
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        mSingleByte[0] = (byte) b;
+        write(mSingleByte, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        write(b, off, len, mPosition);
+        mPosition += len;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (mClosed)
+            return;
+        mClosed = true;
+        mFile.close();
+    }
+
+    private void ensureOpen() throws IOException {
+        if (mClosed)
+            throw new IOException("Stream closed");
+    }
+}
@@ -9,9 +9,11 @@ import java.io.IOException;
 
 /**
  * A helper class that mounts an IOCipher virtual file system using the
- * encryption key managed by CacheWord.
+ * encryption key managed by CacheWord. Register the helper with
+ * {@link CacheWordService#addLockListener} to have the VFS unmounted when
+ * CacheWord locks.
  */
-public class IOCipherMountHelper {
+public class IOCipherMountHelper implements ICacheWordLockListener {
     private static String TAG = "IOCipherMountHelper";
     private CacheWordHandler mHandler;
     private static VirtualFileSystem mVFS;
@@ -47,4 +49,16 @@ public class IOCipherMountHelper {
         }
         return mVFS;
     }
+
+    /**
+     * Unmounts the VFS if it is mounted.
+     */
+    @Override
+    public void onCacheWordLocking() {
+        VirtualFileSystem vfs = mVFS;
+        if (vfs != null && vfs.isMounted()) {
+            Log.d(TAG, "unmounting " + vfs.getContainerPath());
+            vfs.unmount();
+        }
+    }
 }
@@ -9,6 +9,7 @@ import net.sqlcipher.database.SQLiteDatabase.CursorFactory;
 import net.sqlcipher.database.SQLiteException;
 import net.sqlcipher.database.SQLiteOpenHelper;
 
+import java.io.File;
 import java.lang.reflect.Method;
 import java.nio.CharBuffer;
 
@@ -23,13 +24,24 @@ import java.nio.CharBuffer;
  * For an example, see the NotePadProvider class in the NotePad sample
  * application, in the <em>samples/</em> directory of the SDK.
  * </p>
+ * <p>
+ * Register the helper with {@link CacheWordService#addLockListener} to have
+ * the database closed when CacheWord locks.
+ * </p>
  */
-public abstract class SQLCipherOpenHelper extends SQLiteOpenHelper {
+public abstract class SQLCipherOpenHelper extends SQLiteOpenHelper implements
+        ICacheWordLockListener {
 
     private static final String TAG = "SQLCipherOpenHelper";
 
     protected Context mContext; // shame we have to duplicate this here
     private CacheWordHandler mHandler;
+    private final String mName;
+
+    // incremented whenever the database is opened for writing
+    private volatile long mWriteGeneration = 0;
+    // the database last handed out for writing, guarded by this
+    private SQLiteDatabase mWritable;
 
     public SQLCipherOpenHelper(CacheWordHandler cacheWord, Context context, String name,
             CursorFactory factory, int version) {
@@ -37,6 +49,44 @@ public abstract class SQLCipherOpenHelper extends SQLiteOpenHelper {
         if (cacheWord == null)
             throw new IllegalArgumentException("CacheWordHandler is null");
         mHandler = cacheWord;
+        mContext = context;
+        mName = name;
+    }
+
+    /**
+     * @return the database file, or null for an in-memory database
+     */
+    public File getDatabaseFile() {
+        if (mName == null)
+            return null;
+        return mContext.getDatabasePath(mName);
+    }
+
+    /**
+     * A counter that changes every time the database is handed out for
+     * writing, used to detect writes made while the database is being copied.
+     */
+    long getWriteGeneration() {
+        return mWriteGeneration;
+    }
+
+    boolean isLocked() {
+        return mHandler.isLocked();
+    }
+
+    /**
+     * The database last returned by {@link #getWritableDatabase()}, if it is
+     * still open. Used to write out pending data while CacheWord is locking,
+     * when the key can no longer be fetched but the database is not yet
+     * closed.
+     *
+     * @return the open database, or null
+     */
+    synchronized SQLiteDatabase getOpenWritableDatabase() {
+        if (mWritable == null || !mWritable.isOpen() || mWritable.isReadOnly())
+            return null;
+        mWriteGeneration++;
+        return mWritable;
     }
 
     /**
@@ -56,7 +106,11 @@ public abstract class SQLCipherOpenHelper extends SQLiteOpenHelper {
         if (mHandler.isLocked())
             throw new SQLiteException("Database locked. Decryption key unavailable.");
 
-        return super.getWritableDatabase(encodeRawKey(mHandler.getEncryptionKey()));
+        // the key is read with the monitor held: SQLCipherRekeyEngine holds
+        // it while it swaps the files and the key
+        mWriteGeneration++;
+        mWritable = super.getWritableDatabase(encodeRawKey(mHandler.getEncryptionKey()));
+        return mWritable;
     }
 
     /**
@@ -79,6 +133,14 @@ public abstract class SQLCipherOpenHelper extends SQLiteOpenHelper {
         return super.getReadableDatabase(encodeRawKey(mHandler.getEncryptionKey()));
     }
 
+    /**
+     * Closes the database while the key is still available.
+     */
+    @Override
+    public void onCacheWordLocking() {
+        close();
+    }
+
     /**
      * Formats a byte sequence into the literal string format expected by
      * SQLCipher: hex'HEX ENCODED BYTES' The key data must be 256 bits (32
@@ -149,6 +211,14 @@ public abstract class SQLCipherOpenHelper extends SQLiteOpenHelper {
             '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
     };
 
+    /**
+     * @return raw_key as a lower case hex string, as used in a SQLCipher
+     *         {@code x'...'} key literal
+     */
+    static char[] encodeHex(final byte[] raw_key) {
+        return encodeHex(raw_key, HEX_DIGITS_LOWER);
+    }
+
     private static char[] encodeHex(final byte[] data, final char[] toDigits) {
         final int l = data.length;
         final char[] out = new char[l << 1];
@@ -0,0 +1,533 @@
+
+package info.guardianproject.cacheword;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Base64;
+import android.util.Log;
+
+import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteException;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Rotates the master key managed by {@link PassphraseSecrets}, re-keying the
+ * SQLCipher databases encrypted with it. Changing the passphrase only
+ * re-wraps the existing key; rotation replaces the key itself.
+ * <p>
+ * Rotation runs on a background thread in two phases:
+ * <ol>
+ * <li>Copy: each registered database is exported with
+ * {@code sqlcipher_export()} into a shadow database encrypted with the new
+ * key, using a separate connection so the application's queries keep running.
+ * Progress is saved after every database. If a database is written to while it
+ * is copied, the copy is repeated.</li>
+ * <li>Commit: once every database has a current shadow copy, the helpers are
+ * closed, the shadow files replace the originals, and the new secrets bundle
+ * replaces the old one. Only then does CacheWord hand out the new key, unless
+ * it was locked meanwhile, in which case the next unlock yields it.</li>
+ * </ol>
+ * A rotation interrupted by locking or by the process dying is continued by
+ * calling {@link #resume(Listener)} after the next unlock. Call it before
+ * opening any of the databases, since an interrupted commit can leave some of
+ * them already converted to the new key. If the process died after the new
+ * secrets were saved, the next unlock already yields the new key and resuming
+ * only clears the finished rotation.
+ * <p>
+ * Writes are detected through {@link SQLCipherOpenHelper#getWritableDatabase()},
+ * so code that keeps a database object open for writing across the whole
+ * rotation must re-fetch it from the helper for each write. The helpers'
+ * monitors are held from closing the databases until CacheWord hands out the
+ * new key, and the helpers read the key with their monitor held, so a thread
+ * waiting to open a database opens it with the new key.
+ */
+public class SQLCipherRekeyEngine implements ICacheWordLockParticipant {
+    private static final String TAG = "SQLCipherRekeyEngine";
+
+    private static final String SHADOW_SUFFIX = "-rekey";
+    private static final String PREFS_PENDING_SECRETS = "pending_secrets";
+    private static final String PREFS_PENDING_KEY = "pending_key";
+    private static final String PREFS_COMMITTING = "committing";
+    private static final String PREFS_DONE_PREFIX = "done:";
+
+    // how many times a database that keeps being written is copied again
+    private static final int MAX_COPY_ATTEMPTS = 3;
+
+    // the durable steps of a rotation, see checkpoint(int)
+    static final int STEP_COPIED = 1;
+    static final int STEP_COMMITTING = 2;
+    static final int STEP_RENAMED = 3;
+    static final int STEP_SECRETS_SAVED = 4;
+
+    /**
+     * Receives the progress of a rotation, on the rotation thread.
+     */
+    public interface Listener {
+        public void onProgress(int databasesDone, int databasesTotal);
+
+        public void onComplete();
+
+        public void onError(Exception e);
+    }
+
+    private final Context mContext;
+    private final CacheWordHandler mHandler;
+    private final List<SQLCipherOpenHelper> mHelpers = new ArrayList<SQLCipherOpenHelper>();
+    private final ExecutorService mExecutor;
+
+    private volatile boolean mCancelled = false;
+    private Future<?> mRunning;
+
+    public SQLCipherRekeyEngine(Context context, CacheWordHandler cacheWord) {
+        if (cacheWord == null)
+            throw new IllegalArgumentException("CacheWordHandler is null");
+        mContext = context.getApplicationContext();
+        mHandler = cacheWord;
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, TAG);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Add a database encrypted with the CacheWord key to be re-keyed. Every
+     * database using the key must be registered, the ones left out become
+     * unreadable after the rotation.
+     */
+    public synchronized void register(SQLCipherOpenHelper helper) {
+        if (helper.getDatabaseFile() == null)
+            throw new IllegalArgumentException("in-memory databases can't be re-keyed");
+        if (!mHelpers.contains(helper))
+            mHelpers.add(helper);
+    }
+
+    /**
+     * @return true if a rotation was started and has not completed yet
+     */
+    public boolean isRotationPending() {
+        return getPrefs().contains(PREFS_PENDING_KEY);
+    }
+
+    /**
+     * Start rotating the master key. CacheWord must be unlocked.
+     *
+     * @param x_passphrase the current passphrase, used to wrap the new key.
+     *            WIPED
+     * @param listener receives progress, may be null
+     * @throws GeneralSecurityException if the passphrase doesn't open the
+     *             saved secrets or they hold another key than the unlocked
+     *             one, or if the new key can't be prepared
+     * @throws IllegalStateException if CacheWord is locked or a rotation is
+     *             already pending
+     */
+    public synchronized void start(char[] x_passphrase, Listener listener)
+            throws GeneralSecurityException {
+        byte[] x_newKey = null;
+        try {
+            PassphraseSecrets current = getCurrentSecrets();
+            if (isRotationPending())
+                throw new IllegalStateException("a key rotation is already pending");
+            if (isRunning())
+                throw new IllegalStateException("a key rotation is already running");
+
+            // the new key is wrapped with this passphrase, so a typo would
+            // lock the user out of their data for good
+            checkPassphrase(current, x_passphrase);
+
+            PassphraseSecretsImpl crypto = new PassphraseSecretsImpl();
+            SecretKey newKey = crypto.generateSecretKey();
+            if (newKey == null)
+                throw new GeneralSecurityException("could not generate a new key");
+            x_newKey = newKey.getEncoded();
+
+            // the new bundle is what will be saved once all databases are
+            // converted, the new key wrapped with the old one is what lets us
+            // resume after a restart without asking for the passphrase again
+            byte[] pendingSecrets = PassphraseSecrets.prepareSecrets(mContext, x_passphrase,
+                    x_newKey);
+            byte[] iv = crypto.generateIv(Constants.GCM_IV_LEN_BYTES);
+            byte[] wrapped = crypto.encryptSecretKey(current.getSecretKey(), iv, x_newKey);
+            byte[] pendingKey = ByteBuffer.allocate(iv.length + wrapped.length).put(iv)
+                    .put(wrapped).array();
+
+            boolean saved = getPrefs().edit()
+                    .putString(PREFS_PENDING_SECRETS, encode(pendingSecrets))
+                    .putString(PREFS_PENDING_KEY, encode(pendingKey))
+                    .commit();
+            if (!saved)
+                throw new GeneralSecurityException("could not save the pending key rotation");
+
+            launch(x_newKey, listener);
+            x_newKey = null;
+        } finally {
+            Wiper.wipe(x_passphrase);
+            Wiper.wipe(x_newKey);
+        }
+    }
+
+    /**
+     * Continue a pending rotation. CacheWord must be unlocked with the old key.
+     * Does nothing if no rotation is pending.
+     *
+     * @param listener receives progress, may be null
+     * @throws GeneralSecurityException if the pending key can't be unwrapped
+     */
+    public synchronized void resume(Listener listener) throws GeneralSecurityException {
+        if (!isRotationPending() || isRunning())
+            return;
+        PassphraseSecrets current = getCurrentSecrets();
+        if (isSecretsCommitted()) {
+            // the process died after saving the new secrets, so CacheWord
+            // was unlocked with the new key and only the journal is left
+            getPrefs().edit().clear().commit();
+            Log.d(TAG, "key rotation had completed, cleared its journal");
+            if (listener != null)
+                listener.onComplete();
+            return;
+        }
+        byte[] pendingKey = decode(getPrefs().getString(PREFS_PENDING_KEY, null));
+        byte[] iv = new byte[Constants.GCM_IV_LEN_BYTES];
+        byte[] wrapped = new byte[pendingKey.length - iv.length];
+        ByteBuffer.wrap(pendingKey).get(iv).get(wrapped);
+        byte[] x_newKey = new PassphraseSecretsImpl().decryptWithKey(current.getSecretKey(), iv,
+                wrapped);
+        launch(x_newKey, listener);
+    }
+
+    /**
+     * Abandon a pending rotation. The shadow databases are deleted and the
+     * current key stays in use. Must not be called while committing.
+     */
+    public synchronized void abort() {
+        if (getPrefs().getBoolean(PREFS_COMMITTING, false))
+            throw new IllegalStateException("rotation is committing, use resume()");
+        mCancelled = true;
+        waitForWorker();
+        for (SQLCipherOpenHelper helper : mHelpers)
+            deleteDatabaseFiles(getShadowFile(helper));
+        getPrefs().edit().clear().commit();
+    }
+
+    @Override
+    public void onCacheWordLocking() {
+        mCancelled = true;
+        waitForWorker();
+    }
+
+    @Override
+    public String getName() {
+        return TAG;
+    }
+
+    /**
+     * Cancels the rotation. The new key is not wiped here: the rotation thread
+     * may still be using it, and wipes it when it stops.
+     */
+    @Override
+    public void forceWipe() {
+        mCancelled = true;
+    }
+
+    // / package private API
+    // ////////////////////////////////////
+
+    /**
+     * Called after each durable step of a rotation, on the rotation thread.
+     * Tests override it to interrupt a rotation at every step.
+     *
+     * @param step one of the STEP_ constants
+     */
+    void checkpoint(int step) {
+    }
+
+    // / private methods
+    // ////////////////////////////////////
+
+    private void checkPassphrase(PassphraseSecrets current, char[] x_passphrase)
+            throws GeneralSecurityException {
+        // fetchSecrets() wipes its passphrase
+        PassphraseSecrets saved = PassphraseSecrets.fetchSecrets(mContext, x_passphrase.clone());
+        byte[] x_saved = saved.getSecretKey().getEncoded();
+        byte[] x_current = current.getSecretKey().getEncoded();
+        try {
+            if (!MessageDigest.isEqual(x_saved, x_current))
+                throw new GeneralSecurityException(
+                        "the saved secrets hold another key than the unlocked one");
+        } finally {
+            Wiper.wipe(x_saved);
+            Wiper.wipe(x_current);
+            saved.destroy();
+        }
+    }
+
+    /**
+     * @return true if the pending secrets are already the saved ones
+     */
+    private boolean isSecretsCommitted() {
+        if (!getPrefs().getBoolean(PREFS_COMMITTING, false))
+            return false;
+        byte[] pending = decode(getPrefs().getString(PREFS_PENDING_SECRETS, null));
+        return Arrays.equals(pending, SecretsManager.getBytes(mContext,
+                Constants.SHARED_PREFS_SECRETS));
+    }
+
+    private void launch(final byte[] x_newKey, final Listener listener) {
+        mCancelled = false;
+        LockOrchestrator.getInstance().register(this, LockOrchestrator.STAGE_FLUSH);
+        final List<SQLCipherOpenHelper> helpers = new ArrayList<SQLCipherOpenHelper>(mHelpers);
+        mRunning = mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    rotate(helpers, x_newKey, listener);
+                } catch (Exception e) {
+                    Log.e(TAG, "key rotation stopped: " + e.getMessage());
+                    if (listener != null)
+                        listener.onError(e);
+                } finally {
+                    Wiper.wipe(x_newKey);
+                    LockOrchestrator.getInstance().unregister(SQLCipherRekeyEngine.this);
+                }
+            }
+        });
+    }
+
+    private void rotate(List<SQLCipherOpenHelper> helpers, byte[] x_newKey, Listener listener)
+            throws GeneralSecurityException {
+        int total = helpers.size();
+        if (!getPrefs().getBoolean(PREFS_COMMITTING, false)) {
+            for (int i = 0; i < total; i++) {
+                checkCancelled();
+                copy(helpers.get(i), x_newKey);
+                if (listener != null)
+                    listener.onProgress(i + 1, total);
+            }
+            // the copies may have gone stale while we copied the others
+            for (SQLCipherOpenHelper helper : helpers) {
+                checkCancelled();
+                if (!isCopyCurrent(helper))
+                    copy(helper, x_newKey);
+            }
+        }
+        checkCancelled();
+        commit(helpers, x_newKey);
+        if (listener != null)
+            listener.onComplete();
+    }
+
+    /**
+     * Exports the database into its shadow file encrypted with the new key,
+     * unless a current copy already exists from an earlier run.
+     */
+    private void copy(SQLCipherOpenHelper helper, byte[] x_newKey) {
+        File db = helper.getDatabaseFile();
+        if (isCopyCurrent(helper))
+            return;
+        for (int attempt = 0; attempt < MAX_COPY_ATTEMPTS; attempt++) {
+            checkCancelled();
+            String stamp = getCopyStamp(helper);
+            exportDatabase(db, getShadowFile(helper), x_newKey);
+            if (stamp.equals(getCopyStamp(helper))) {
+                getPrefs().edit().putString(PREFS_DONE_PREFIX + db.getAbsolutePath(), stamp)
+                        .commit();
+                Log.d(TAG, "copied " + db.getName());
+                checkpoint(STEP_COPIED);
+                return;
+            }
+            Log.d(TAG, db.getName() + " was written while copying, copying again");
+        }
+        // a busy database gets its final copy at commit time instead
+    }
+
+    private void exportDatabase(File db, File shadow, byte[] x_newKey) {
+        deleteDatabaseFiles(shadow);
+        byte[] x_oldKey = mHandler.getEncryptionKey();
+        if (x_oldKey == null)
+            throw new SQLiteException("Database locked. Decryption key unavailable.");
+        char[] x_newHex = null;
+        SQLiteDatabase conn = null;
+        try {
+            conn = SQLiteDatabase.openDatabase(db.getAbsolutePath(),
+                    SQLCipherOpenHelper.encodeRawKey(x_oldKey), null,
+                    SQLiteDatabase.OPEN_READWRITE);
+            x_newHex = SQLCipherOpenHelper.encodeHex(x_newKey);
+            conn.rawExecSQL("ATTACH DATABASE '" + shadow.getAbsolutePath().replace("'", "''")
+                    + "' AS rekey KEY \"x'" + new String(x_newHex) + "'\";");
+            conn.rawExecSQL("SELECT sqlcipher_export('rekey');");
+            conn.rawExecSQL("PRAGMA rekey.user_version = " + conn.getVersion() + ";");
+            conn.rawExecSQL("DETACH DATABASE rekey;");
+        } finally {
+            if (conn != null)
+                conn.close();
+            Wiper.wipe(x_oldKey);
+            Wiper.wipe(x_newHex);
+        }
+    }
+
+    /**
+     * Replaces the databases with their shadow copies and the secrets with the
+     * new secrets. Every helper is held closed while this happens so nothing
+     * opens a database with the wrong key.
+     */
+    private void commit(List<SQLCipherOpenHelper> helpers, byte[] x_newKey)
+            throws GeneralSecurityException {
+        commitLocked(helpers, 0, x_newKey);
+    }
+
+    private void commitLocked(List<SQLCipherOpenHelper> helpers, int index, byte[] x_newKey)
+            throws GeneralSecurityException {
+        if (index < helpers.size()) {
+            SQLCipherOpenHelper helper = helpers.get(index);
+            synchronized (helper) {
+                helper.close();
+                commitLocked(helpers, index + 1, x_newKey);
+            }
+            return;
+        }
+
+        PassphraseSecrets old = getCurrentSecrets();
+        boolean committing = getPrefs().getBoolean(PREFS_COMMITTING, false);
+        if (!committing) {
+            // writes may have slipped in after the copy phase; with the
+            // helpers held closed, this is the last chance to catch them
+            for (SQLCipherOpenHelper helper : helpers) {
+                if (!isCopyCurrent(helper))
+                    exportDatabase(helper.getDatabaseFile(), getShadowFile(helper), x_newKey);
+            }
+            getPrefs().edit().putBoolean(PREFS_COMMITTING, true).commit();
+            checkpoint(STEP_COMMITTING);
+        }
+
+        for (SQLCipherOpenHelper helper : helpers) {
+            File db = helper.getDatabaseFile();
+            File shadow = getShadowFile(helper);
+            if (!shadow.exists())
+                continue; // renamed before an interruption
+            deleteJournalFiles(db);
+            if (!shadow.renameTo(db))
+                throw new SQLiteException("could not replace " + db.getName());
+            checkpoint(STEP_RENAMED);
+        }
+
+        // resume() recognizes a rotation that died after this by comparing
+        // the saved secrets with the pending ones
+        byte[] pendingSecrets = decode(getPrefs().getString(PREFS_PENDING_SECRETS, null));
+        byte[] x_oldKey = old.getSecretKey().getEncoded();
+        PassphraseSecrets rotated;
+        try {
+            rotated = PassphraseSecrets.commitPreparedSecrets(mContext, pendingSecrets, x_oldKey,
+                    x_newKey);
+        } finally {
+            Wiper.wipe(x_oldKey);
+        }
+        if (rotated == null)
+            throw new GeneralSecurityException("could not save the new secrets");
+        checkpoint(STEP_SECRETS_SAVED);
+        getPrefs().edit().clear().commit();
+        // with the helpers still held: a lock since the rotation started must
+        // not be undone by handing out the new key, which the next unlock
+        // yields anyway
+        if (mCancelled || !mHandler.replaceCachedSecrets(old, rotated)) {
+            rotated.destroy();
+            Log.d(TAG, "key rotation complete, CacheWord was locked meanwhile");
+            return;
+        }
+        old.destroy();
+        Log.d(TAG, "key rotation complete");
+    }
+
+    private boolean isCopyCurrent(SQLCipherOpenHelper helper) {
+        File db = helper.getDatabaseFile();
+        String stamp = getPrefs().getString(PREFS_DONE_PREFIX + db.getAbsolutePath(), null);
+        return stamp != null && getShadowFile(helper).exists()
+                && stamp.equals(getCopyStamp(helper));
+    }
+
+    private PassphraseSecrets getCurrentSecrets() {
+        ICachedSecrets secrets = mHandler.getCachedSecrets();
+        if (!(secrets instanceof PassphraseSecrets))
+            throw new IllegalStateException("CacheWord is locked or not using PassphraseSecrets");
+        return (PassphraseSecrets) secrets;
+    }
+
+    private void checkCancelled() {
+        if (mCancelled)
+            throw new CancellationException("key rotation cancelled");
+    }
+
+    private boolean isRunning() {
+        return mRunning != null && !mRunning.isDone();
+    }
+
+    private void waitForWorker() {
+        Future<?> running;
+        synchronized (this) {
+            running = mRunning;
+        }
+        if (running == null)
+            return;
+        try {
+            running.get();
+        } catch (Exception e) {
+            // reported to the listener
+        }
+    }
+
+    private static File getShadowFile(SQLCipherOpenHelper helper) {
+        return new File(helper.getDatabaseFile().getAbsolutePath() + SHADOW_SUFFIX);
+    }
+
+    /**
+     * Page rewrites keep the file length and the modification time has a
+     * one second resolution, so the stamp includes the helper's write
+     * generation. That resets with the process, which only costs a copy.
+     */
+    private static String getCopyStamp(SQLCipherOpenHelper helper) {
+        File f = helper.getDatabaseFile();
+        return f.length() + ":" + f.lastModified() + ":" + helper.getWriteGeneration();
+    }
+
+    private static void deleteJournalFiles(File db) {
+        new File(db.getAbsolutePath() + "-journal").delete();
+        new File(db.getAbsolutePath() + "-wal").delete();
+        new File(db.getAbsolutePath() + "-shm").delete();
+    }
+
+    private static void deleteDatabaseFiles(File db) {
+        db.delete();
+        deleteJournalFiles(db);
+    }
+
+    private SharedPreferences getPrefs() {
+        return mContext.getSharedPreferences(Constants.SHARED_PREFS_REKEY,
+                Constants.SHARED_PREFS_PRIVATE_MODE);
+    }
+
+    private static String encode(byte[] bytes) {
+        return Base64.encodeToString(bytes, Base64.DEFAULT);
+    }
+
+    private static byte[] decode(String s) {
+        if (s == null)
+            throw new IllegalStateException("no key rotation pending");
+        return Base64.decode(s, Base64.DEFAULT);
+    }
+}
@@ -0,0 +1,403 @@
+
+package info.guardianproject.cacheword;
+
+import android.content.ContentValues;
+import android.os.SystemClock;
+import android.util.Log;
+
+import net.sqlcipher.SQLException;
+import net.sqlcipher.database.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A write-behind queue for a {@link SQLCipherOpenHelper}. Inserts and updates
+ * from any number of threads are collected and written in a single
+ * transaction once {@code maxBatchSize} writes are pending or the oldest
+ * pending write is {@code maxDelayMillis} old, whichever comes first. This
+ * turns many small encrypted page writes and journal syncs into one.
+ * <p>
+ * The queue is flushed when CacheWord is about to lock, so queued writes are
+ * not lost with the key. Writes that can't be written then, or that miss the
+ * {@link LockOrchestrator} deadline, are dropped, so no plaintext stays queued
+ * while CacheWord is locked. Writes are rejected while CacheWord is locked.
+ * Writes are applied in the order they were queued, but are not visible to
+ * readers until flushed; call {@link #flush()} before reading data you just
+ * wrote.
+ * <p>
+ * A failed batch is rolled back and retried with a growing delay. A write
+ * that fails {@link #MAX_ATTEMPTS} times is dropped and reported to the
+ * {@link OnWriteDroppedListener}, so it doesn't hold up the writes queued
+ * after it.
+ */
+public class SQLCipherWriteQueue implements ICacheWordLockParticipant {
+    private static final String TAG = "SQLCipherWriteQueue";
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 100;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 500;
+    public static final int MAX_ATTEMPTS = 3;
+
+    // the retry delay doubles with every failed flush up to this
+    static final long MAX_RETRY_DELAY_MILLIS = 30 * 1000;
+
+    /**
+     * Notified, on the flushing thread, of writes dropped after failing
+     * {@link SQLCipherWriteQueue#MAX_ATTEMPTS} times.
+     */
+    public interface OnWriteDroppedListener {
+        /**
+         * @param table the table of the dropped insert or update
+         * @param values the values of the dropped write
+         * @param e the error of the last attempt
+         */
+        public void onWriteDropped(String table, ContentValues values, SQLException e);
+    }
+
+    private final SQLCipherOpenHelper mHelper;
+    private final int mMaxBatchSize;
+    private final long mMaxDelayMillis;
+    private final ScheduledExecutorService mExecutor;
+
+    // serializes flushes so batches are applied in order
+    private final Object mFlushLock = new Object();
+
+    // guarded by this
+    private List<PendingWrite> mPending = new ArrayList<PendingWrite>();
+    private boolean mFlushScheduled = false;
+    private boolean mClosed = false;
+    private int mFailedFlushes = 0;
+    private long mDroppedCount = 0;
+    private OnWriteDroppedListener mListener;
+
+    // guarded by mFlushLock
+    private long mFlushCount = 0;
+    private long mTotalFlushMillis = 0;
+    private long mLastFlushMillis = 0;
+
+    public SQLCipherWriteQueue(SQLCipherOpenHelper helper) {
+        this(helper, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_DELAY_MILLIS);
+    }
+
+    /**
+     * @param helper the database to write to
+     * @param maxBatchSize flush when this many writes are pending
+     * @param maxDelayMillis flush at the latest this long after a write is
+     *            queued
+     */
+    public SQLCipherWriteQueue(SQLCipherOpenHelper helper, int maxBatchSize,
+            long maxDelayMillis) {
+        if (helper == null)
+            throw new IllegalArgumentException("SQLCipherOpenHelper is null");
+        if (maxBatchSize < 1 || maxDelayMillis < 0)
+            throw new IllegalArgumentException("invalid batch size or delay");
+        mHelper = helper;
+        mMaxBatchSize = maxBatchSize;
+        mMaxDelayMillis = maxDelayMillis;
+        mExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, TAG);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        // flush before the helper itself closes the database
+        LockOrchestrator.getInstance().register(this, LockOrchestrator.STAGE_FLUSH);
+    }
+
+    /**
+     * Queue an insert. The values are copied, so the caller may reuse them.
+     *
+     * @throws CacheWordLockedException if CacheWord is locked
+     * @see SQLiteDatabase#insert(String, String, ContentValues)
+     */
+    public void insert(String table, String nullColumnHack, ContentValues values) {
+        enqueue(new PendingWrite(false, table, nullColumnHack, new ContentValues(values), null,
+                null));
+    }
+
+    /**
+     * Queue an update. The values are copied, so the caller may reuse them.
+     *
+     * @throws CacheWordLockedException if CacheWord is locked
+     * @see SQLiteDatabase#update(String, ContentValues, String, String[])
+     */
+    public void update(String table, ContentValues values, String whereClause,
+            String[] whereArgs) {
+        enqueue(new PendingWrite(true, table, null, new ContentValues(values), whereClause,
+                whereArgs == null ? null : whereArgs.clone()));
+    }
+
+    public synchronized void setOnWriteDroppedListener(OnWriteDroppedListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Write all pending inserts and updates in a single transaction on the
+     * calling thread. If the database can't be opened, the writes stay
+     * queued. If a write fails, the batch is rolled back and queued again,
+     * without the failed write if it has used up its attempts.
+     *
+     * @throws SQLException if the batch could not be written
+     */
+    public void flush() {
+        flush(false);
+    }
+
+    /**
+     * @return the number of writes waiting to be flushed
+     */
+    public synchronized int getQueueDepth() {
+        return mPending.size();
+    }
+
+    /**
+     * @return the number of writes dropped after failing
+     *         {@link #MAX_ATTEMPTS} times
+     */
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * @return the number of batches written so far
+     */
+    public long getFlushCount() {
+        synchronized (mFlushLock) {
+            return mFlushCount;
+        }
+    }
+
+    /**
+     * @return how long the most recent batch took to write, in milliseconds
+     */
+    public long getLastFlushLatencyMillis() {
+        synchronized (mFlushLock) {
+            return mLastFlushMillis;
+        }
+    }
+
+    /**
+     * @return the average time taken to write a batch, in milliseconds
+     */
+    public long getAverageFlushLatencyMillis() {
+        synchronized (mFlushLock) {
+            return mFlushCount == 0 ? 0 : mTotalFlushMillis / mFlushCount;
+        }
+    }
+
+    @Override
+    public void onCacheWordLocking() {
+        try {
+            flush(true);
+        } catch (SQLException e) {
+            Log.e(TAG, "flush before lock failed, " + getQueueDepth() + " writes pending: "
+                    + e.getMessage());
+        }
+        // what couldn't be written must not stay queued while locked
+        forceWipe();
+    }
+
+    @Override
+    public String getName() {
+        return TAG;
+    }
+
+    /**
+     * Drops all pending writes without writing them, clearing their values.
+     */
+    @Override
+    public void forceWipe() {
+        List<PendingWrite> dropped;
+        synchronized (this) {
+            dropped = mPending;
+            mPending = new ArrayList<PendingWrite>();
+        }
+        for (PendingWrite write : dropped)
+            write.values.clear();
+        if (!dropped.isEmpty())
+            Log.w(TAG, "forceWipe dropped " + dropped.size() + " pending writes");
+    }
+
+    /**
+     * Flush pending writes and stop the background flusher. Further writes are
+     * rejected with an {@link IllegalStateException}.
+     */
+    public void close() {
+        synchronized (this) {
+            mClosed = true;
+        }
+        LockOrchestrator.getInstance().unregister(this);
+        mExecutor.shutdown();
+        flush();
+    }
+
+    // / private methods
+    // ////////////////////////////////////
+
+    private void enqueue(PendingWrite write) {
+        boolean flushNow = false;
+        boolean scheduleFlush = false;
+        synchronized (this) {
+            if (mClosed)
+                throw new IllegalStateException("SQLCipherWriteQueue is closed");
+            // checked under the monitor, so a lock that has begun either
+            // rejects this write or wipes it in onCacheWordLocking
+            if (mHelper.isLocked())
+                throw new CacheWordLockedException();
+            mPending.add(write);
+            if (mPending.size() >= mMaxBatchSize) {
+                flushNow = true;
+            } else if (!mFlushScheduled) {
+                mFlushScheduled = true;
+                scheduleFlush = true;
+            }
+        }
+        if (flushNow)
+            mExecutor.execute(mBackgroundFlush);
+        else if (scheduleFlush)
+            mExecutor.schedule(mBackgroundFlush, mMaxDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param locking CacheWord is locking, write through the database that is
+     *            already open because the key can't be fetched anymore
+     */
+    private void flush(boolean locking) {
+        synchronized (mFlushLock) {
+            List<PendingWrite> batch;
+            synchronized (this) {
+                batch = mPending;
+                mPending = new ArrayList<PendingWrite>();
+            }
+            if (batch.isEmpty())
+                return;
+
+            long start = SystemClock.elapsedRealtime();
+            SQLiteDatabase db;
+            try {
+                db = locking ? mHelper.getOpenWritableDatabase() : mHelper
+                        .getWritableDatabase();
+            } catch (SQLException e) {
+                requeue(batch);
+                throw e;
+            }
+            if (db == null) {
+                requeue(batch);
+                throw new SQLException("the database is not open");
+            }
+            PendingWrite current = null;
+            try {
+                db.beginTransaction();
+                try {
+                    for (PendingWrite write : batch) {
+                        current = write;
+                        write.apply(db);
+                    }
+                    current = null;
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            } catch (SQLException e) {
+                if (current != null && ++current.attempts >= MAX_ATTEMPTS) {
+                    batch.remove(current);
+                    dropped(current, e);
+                }
+                requeue(batch);
+                throw e;
+            }
+            synchronized (this) {
+                mFailedFlushes = 0;
+            }
+            mLastFlushMillis = SystemClock.elapsedRealtime() - start;
+            mTotalFlushMillis += mLastFlushMillis;
+            mFlushCount++;
+            Log.d(TAG, "flushed " + batch.size() + " writes in " + mLastFlushMillis + "ms");
+        }
+    }
+
+    private synchronized void requeue(List<PendingWrite> batch) {
+        batch.addAll(mPending);
+        mPending = batch;
+    }
+
+    private void dropped(PendingWrite write, SQLException e) {
+        OnWriteDroppedListener listener;
+        synchronized (this) {
+            mDroppedCount++;
+            listener = mListener;
+        }
+        Log.e(TAG, "dropped a write to " + write.table + " after " + write.attempts
+                + " attempts: " + e.getMessage());
+        if (listener != null)
+            listener.onWriteDropped(write.table, write.values, e);
+    }
+
+    /**
+     * Retry a failed background flush, waiting longer after every failure.
+     */
+    private void scheduleRetry() {
+        long delay;
+        synchronized (this) {
+            if (mClosed || mFlushScheduled || mPending.isEmpty())
+                return;
+            mFlushScheduled = true;
+            mFailedFlushes++;
+            delay = Math.max(mMaxDelayMillis, 1);
+            for (int i = 1; i < mFailedFlushes && delay < MAX_RETRY_DELAY_MILLIS; i++)
+                delay *= 2;
+            delay = Math.min(delay, MAX_RETRY_DELAY_MILLIS);
+        }
+        mExecutor.schedule(mBackgroundFlush, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private final Runnable mBackgroundFlush = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (SQLCipherWriteQueue.this) {
+                mFlushScheduled = false;
+            }
+            try {
+                flush();
+            } catch (SQLException e) {
+                Log.e(TAG, "background flush failed, " + getQueueDepth()
+                        + " writes pending: " + e.getMessage());
+                scheduleRetry();
+            }
+        }
+    };
+
+    private static final class PendingWrite {
+        final boolean isUpdate;
+        final String table;
+        final String nullColumnHack;
+        final ContentValues values;
+        final String whereClause;
+        final String[] whereArgs;
+        // guarded by mFlushLock
+        int attempts = 0;
+
+        PendingWrite(boolean isUpdate, String table, String nullColumnHack, ContentValues values,
+                String whereClause, String[] whereArgs) {
+            this.isUpdate = isUpdate;
+            this.table = table;
+            this.nullColumnHack = nullColumnHack;
+            this.values = values;
+            this.whereClause = whereClause;
+            this.whereArgs = whereArgs;
+        }
+
+        void apply(SQLiteDatabase db) {
+            if (isUpdate)
+                db.update(table, values, whereClause, whereArgs);
+            else
+                db.insertOrThrow(table, nullColumnHack, values);
+        }
+    }
+}
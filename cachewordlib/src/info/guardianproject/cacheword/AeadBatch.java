@@ -0,0 +1,405 @@
+
+package info.guardianproject.cacheword;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Encrypts and decrypts many small records (messages, contacts, rows) with
+ * one key. Every thread gets its own {@link AeadCipher}, created once and
+ * reused for every record it handles, instead of a cipher lookup and key
+ * setup per record. Large batches can be split across cores.
+ * <p>
+ * Each record is stored as
+ *
+ * <pre>
+ * nonce (12) | ciphertext | tag (16)
+ * </pre>
+ *
+ * so a record grows by {@link #RECORD_OVERHEAD} bytes. Nonces come from a
+ * {@link GcmNonceSequence} if one is given. Otherwise every thread draws a
+ * random 64 bit prefix and counts up from it, which keeps random generation
+ * out of the per record cost.
+ * <p>
+ * The slab methods take the records packed one after the other in a
+ * {@link ByteBuffer}, with their lengths, and write the results packed into a
+ * caller-provided buffer. Apart from a small scratch buffer per thread for
+ * direct buffers, they don't allocate per record.
+ * <p>
+ * Instances are thread safe. Call {@link #wipe()} when done.
+ */
+public final class AeadBatch {
+
+    public static final int RECORD_OVERHEAD = AeadCipher.NONCE_LEN_BYTES
+            + AeadCipher.TAG_LEN_BYTES;
+
+    /** Batches with fewer records than this are not split across cores */
+    public static final int MIN_PARALLEL_RECORDS = 256;
+
+    private final int mCipherId;
+    private final GcmNonceSequence mNonces;
+    private final List<Worker> mWorkers = new ArrayList<Worker>();
+    private final ThreadLocal<Worker> mWorker = new ThreadLocal<Worker>();
+    private byte[] mKey;
+
+    /**
+     * Use CacheWord's current key and the preferred cipher.
+     *
+     * @throws CacheWordLockedException if CacheWord is locked
+     */
+    public AeadBatch(CacheWordHandler cacheWord) throws GeneralSecurityException {
+        byte[] x_key = cacheWord.getEncryptionKey();
+        if (x_key == null)
+            throw new CacheWordLockedException();
+        try {
+            mCipherId = CryptoProviders.getPreferredAead();
+            mNonces = null;
+            mKey = checkKey(x_key, mCipherId);
+        } finally {
+            Wiper.wipe(x_key);
+        }
+    }
+
+    /**
+     * @param x_key a 256 bit key NOT WIPED
+     * @param cipherId one of the {@code Constants.CIPHER_*} ids
+     * @param nonces the source of nonces, null for random nonces
+     */
+    public AeadBatch(byte[] x_key, int cipherId, GcmNonceSequence nonces)
+            throws GeneralSecurityException {
+        mCipherId = cipherId;
+        mNonces = nonces;
+        mKey = checkKey(x_key, cipherId);
+    }
+
+    public int getCipherId() {
+        return mCipherId;
+    }
+
+    /**
+     * @return the size of the output of {@link #encryptAll(ByteBuffer, int[],
+     *         ByteBuffer, boolean)} for records of the given lengths
+     */
+    public static int getEncryptedSize(int[] lengths) {
+        int total = 0;
+        for (int length : lengths)
+            total += length + RECORD_OVERHEAD;
+        return total;
+    }
+
+    /**
+     * @return the size of the output of {@link #decryptAll(ByteBuffer, int[],
+     *         ByteBuffer, boolean)} for records of the given encrypted lengths
+     */
+    public static int getDecryptedSize(int[] lengths) {
+        int total = 0;
+        for (int length : lengths)
+            total += length - RECORD_OVERHEAD;
+        return total;
+    }
+
+    /**
+     * Encrypt the records packed in in from its position, lengths[i] bytes
+     * each, into out from its position. Both positions are advanced. in and
+     * out must not overlap.
+     *
+     * @param parallel split the batch across cores if it is large enough
+     * @throws BufferOverflowException if out is too small, see
+     *             {@link #getEncryptedSize(int[])}
+     */
+    public void encryptAll(ByteBuffer in, int[] lengths, ByteBuffer out, boolean parallel)
+            throws GeneralSecurityException {
+        run(true, in, lengths, out, parallel);
+    }
+
+    /**
+     * Verify and decrypt the records packed in in from its position,
+     * lengths[i] bytes each, into out from its position. in and out must not
+     * overlap. Both positions are advanced, unless a record fails, in which
+     * case out may hold the output of some of the other records.
+     *
+     * @throws GeneralSecurityException if a record fails authentication
+     * @throws BufferOverflowException if out is too small, see
+     *             {@link #getDecryptedSize(int[])}
+     */
+    public void decryptAll(ByteBuffer in, int[] lengths, ByteBuffer out, boolean parallel)
+            throws GeneralSecurityException {
+        run(false, in, lengths, out, parallel);
+    }
+
+    /**
+     * @return the encrypted records, in order
+     */
+    public List<byte[]> encryptAll(List<byte[]> records, boolean parallel)
+            throws GeneralSecurityException {
+        return run(true, records, parallel);
+    }
+
+    /**
+     * @return the decrypted records, in order
+     * @throws GeneralSecurityException if a record fails authentication
+     */
+    public List<byte[]> decryptAll(List<byte[]> records, boolean parallel)
+            throws GeneralSecurityException {
+        return run(false, records, parallel);
+    }
+
+    /**
+     * Wipe the key and every thread's cipher. The batch can't be used
+     * afterwards.
+     */
+    public void wipe() {
+        synchronized (mWorkers) {
+            for (Worker worker : mWorkers)
+                worker.wipe();
+            mWorkers.clear();
+            Wiper.wipe(mKey);
+            mKey = null;
+        }
+    }
+
+    // / private methods
+    // ////////////////////////////////////
+
+    private static byte[] checkKey(byte[] x_key, int cipherId) throws GeneralSecurityException {
+        // fail now rather than on the first record
+        AeadCipher.getInstance(cipherId, x_key).wipe();
+        return x_key.clone();
+    }
+
+    private Worker getWorker() throws GeneralSecurityException {
+        Worker worker = mWorker.get();
+        if (worker == null || worker.wiped) {
+            synchronized (mWorkers) {
+                if (mKey == null)
+                    throw new IllegalStateException("AeadBatch has been wiped");
+                worker = new Worker(AeadCipher.getInstance(mCipherId, mKey));
+                mWorkers.add(worker);
+            }
+            mWorker.set(worker);
+        }
+        return worker;
+    }
+
+    private void run(final boolean encrypt, ByteBuffer in, final int[] lengths, ByteBuffer out,
+            boolean parallel) throws GeneralSecurityException {
+        final int delta = encrypt ? RECORD_OVERHEAD : -RECORD_OVERHEAD;
+        final int[] inOffsets = new int[lengths.length + 1];
+        final int[] outOffsets = new int[lengths.length + 1];
+        for (int i = 0; i < lengths.length; i++) {
+            if (lengths[i] < 0 || (!encrypt && lengths[i] < RECORD_OVERHEAD))
+                throw new GeneralSecurityException("record " + i + " has an invalid length");
+            inOffsets[i + 1] = inOffsets[i] + lengths[i];
+            outOffsets[i + 1] = outOffsets[i] + lengths[i] + delta;
+        }
+        if (in.remaining() < inOffsets[lengths.length])
+            throw new BufferUnderflowException();
+        if (out.remaining() < outOffsets[lengths.length])
+            throw new BufferOverflowException();
+
+        final ByteBuffer src = in.duplicate();
+        final ByteBuffer dst = out.duplicate();
+        final int srcBase = in.position();
+        final int dstBase = out.position();
+        parallelFor(lengths.length, parallel, new Range() {
+            @Override
+            public void run(int from, int to) throws GeneralSecurityException {
+                Worker worker = getWorker();
+                for (int i = from; i < to; i++) {
+                    int srcOff = srcBase + inOffsets[i];
+                    int dstOff = dstBase + outOffsets[i];
+                    if (src.hasArray() && dst.hasArray() && !dst.isReadOnly()) {
+                        process(worker, encrypt, i, src.array(), src.arrayOffset() + srcOff,
+                                lengths[i], dst.array(), dst.arrayOffset() + dstOff);
+                    } else {
+                        // direct buffers go through the thread's scratch
+                        // buffer, where the record is processed in place
+                        byte[] scratch = worker.scratch(lengths[i] + RECORD_OVERHEAD);
+                        int plainOff = AeadCipher.NONCE_LEN_BYTES;
+                        ByteBuffer s = src.duplicate();
+                        s.limit(srcOff + lengths[i]);
+                        s.position(srcOff);
+                        s.get(scratch, encrypt ? plainOff : 0, lengths[i]);
+                        int n = encrypt
+                                ? process(worker, true, i, scratch, plainOff, lengths[i],
+                                        scratch, 0)
+                                : process(worker, false, i, scratch, 0, lengths[i], scratch,
+                                        plainOff);
+                        ByteBuffer d = dst.duplicate();
+                        d.position(dstOff);
+                        d.put(scratch, encrypt ? 0 : plainOff, n);
+                    }
+                }
+            }
+        });
+        in.position(srcBase + inOffsets[lengths.length]);
+        out.position(dstBase + outOffsets[lengths.length]);
+    }
+
+    private List<byte[]> run(final boolean encrypt, final List<byte[]> records,
+            boolean parallel) throws GeneralSecurityException {
+        final byte[][] results = new byte[records.size()][];
+        parallelFor(records.size(), parallel, new Range() {
+            @Override
+            public void run(int from, int to) throws GeneralSecurityException {
+                Worker worker = getWorker();
+                for (int i = from; i < to; i++) {
+                    byte[] in = records.get(i);
+                    if (!encrypt && in.length < RECORD_OVERHEAD)
+                        throw new GeneralSecurityException("record " + i + " is too short");
+                    byte[] out = new byte[in.length
+                            + (encrypt ? RECORD_OVERHEAD : -RECORD_OVERHEAD)];
+                    process(worker, encrypt, i, in, 0, in.length, out, 0);
+                    results[i] = out;
+                }
+            }
+        });
+        List<byte[]> list = new ArrayList<byte[]>(results.length);
+        for (byte[] result : results)
+            list.add(result);
+        return list;
+    }
+
+    /**
+     * Encrypt or decrypt one record. When encrypting in place the plaintext
+     * must be at outOff + nonce length, and when decrypting in place the
+     * output goes there.
+     *
+     * @return the number of bytes written
+     */
+    private int process(Worker worker, boolean encrypt, int index, byte[] in, int inOff,
+            int length, byte[] out, int outOff) throws GeneralSecurityException {
+        if (encrypt) {
+            byte[] nonce = worker.nonce;
+            if (mNonces != null)
+                mNonces.next(nonce, 0);
+            else
+                worker.nextNonce();
+            // the nonce goes in front, so shift when encrypting in place
+            int n = worker.cipher.encrypt(nonce, null, in, inOff, length, out, outOff
+                    + nonce.length);
+            System.arraycopy(nonce, 0, out, outOff, nonce.length);
+            return nonce.length + n;
+        }
+        // not worker.nonce, which holds the prefix of this thread's encrypts
+        byte[] nonce = worker.decryptNonce;
+        System.arraycopy(in, inOff, nonce, 0, nonce.length);
+        try {
+            return worker.cipher.decrypt(nonce, null, in, inOff + nonce.length, length
+                    - nonce.length, out, outOff);
+        } catch (GeneralSecurityException e) {
+            throw new GeneralSecurityException("record " + index + " failed authentication", e);
+        }
+    }
+
+    private interface Range {
+        void run(int from, int to) throws GeneralSecurityException;
+    }
+
+    private static void parallelFor(int count, boolean parallel, final Range range)
+            throws GeneralSecurityException {
+        int tasks = parallel ? Math.min(ChunkPipeline.getParallelism(),
+                count / MIN_PARALLEL_RECORDS) : 1;
+        if (tasks <= 1) {
+            range.run(0, count);
+            return;
+        }
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(tasks);
+        // the calling thread takes the first range itself
+        for (int t = 1; t < tasks; t++) {
+            final int from = (int) ((long) count * t / tasks);
+            final int to = (int) ((long) count * (t + 1) / tasks);
+            futures.add(ChunkPipeline.getExecutor().submit(new Callable<Void>() {
+                @Override
+                public Void call() throws GeneralSecurityException {
+                    range.run(from, to);
+                    return null;
+                }
+            }));
+        }
+        GeneralSecurityException failure = null;
+        try {
+            range.run(0, count / tasks);
+        } catch (GeneralSecurityException e) {
+            failure = e;
+        }
+        boolean interrupted = false;
+        for (Future<Void> f : futures) {
+            try {
+                while (true) {
+                    try {
+                        f.get();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                if (failure == null && cause instanceof GeneralSecurityException)
+                    failure = (GeneralSecurityException) cause;
+                else if (failure == null)
+                    failure = new GeneralSecurityException(cause);
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * A thread's cipher and scratch space.
+     */
+    private static final class Worker {
+        final AeadCipher cipher;
+        final byte[] nonce = new byte[AeadCipher.NONCE_LEN_BYTES];
+        final byte[] decryptNonce = new byte[AeadCipher.NONCE_LEN_BYTES];
+        final SecureRandom random = new SecureRandom();
+        byte[] scratch = new byte[0];
+        // 0 forces a new prefix, so a counter value is never used twice
+        int counter = 0;
+        volatile boolean wiped = false;
+
+        Worker(AeadCipher cipher) {
+            this.cipher = cipher;
+        }
+
+        /**
+         * nonce = random prefix (8) | counter (4)
+         */
+        void nextNonce() {
+            if (counter == 0)
+                random.nextBytes(nonce);
+            nonce[8] = (byte) (counter >>> 24);
+            nonce[9] = (byte) (counter >>> 16);
+            nonce[10] = (byte) (counter >>> 8);
+            nonce[11] = (byte) counter;
+            counter++;
+        }
+
+        byte[] scratch(int size) {
+            if (scratch.length < size) {
+                Wiper.wipe(scratch);
+                scratch = new byte[Math.max(size, 2 * scratch.length)];
+            }
+            return scratch;
+        }
+
+        void wipe() {
+            wiped = true;
+            cipher.wipe();
+            Wiper.wipe(scratch);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+
+package info.guardianproject.cacheword;
+
+import android.os.Build;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Authenticated encryption with a 256 bit key, a 96 bit nonce and a 128 bit
+ * tag. The algorithm is named by one of the {@code Constants.CIPHER_*} ids,
+ * which is what serialized formats record.
+ * <p>
+ * Instances hold a copy of the key until {@link #wipe()} and are not thread
+ * safe. A nonce must never be used twice with the same key; see
+ * {@link GcmNonceSequence}.
+ */
+public abstract class AeadCipher {
+
+    public static final int KEY_LEN_BYTES = 32;
+    public static final int NONCE_LEN_BYTES = 12;
+    public static final int TAG_LEN_BYTES = 16;
+
+    private final int mCipherId;
+
+    AeadCipher(int cipherId) {
+        mCipherId = cipherId;
+    }
+
+    /**
+     * @param cipherId {@link Constants#CIPHER_AES_GCM} or
+     *            {@link Constants#CIPHER_CHACHA20_POLY1305}
+     * @param x_key the 256 bit key NOT WIPED
+     */
+    public static AeadCipher getInstance(int cipherId, byte[] x_key)
+            throws GeneralSecurityException {
+        switch (cipherId) {
+            case Constants.CIPHER_AES_GCM:
+                return new AesGcm(x_key);
+            case Constants.CIPHER_CHACHA20_POLY1305:
+                return new ChaCha20Poly1305(x_key);
+            default:
+                throw new GeneralSecurityException("unknown cipher id " + cipherId);
+        }
+    }
+
+    /**
+     * @return a cipher using the algorithm {@link CryptoProviders} found to be
+     *         fastest on this device
+     */
+    public static AeadCipher getPreferred(byte[] x_key) throws GeneralSecurityException {
+        return getInstance(CryptoProviders.getPreferredAead(), x_key);
+    }
+
+    public int getCipherId() {
+        return mCipherId;
+    }
+
+    /**
+     * Encrypt in[inOff..inOff+length) into out at outOff, appending the tag.
+     * in and out may be the same array at the same offset.
+     *
+     * @param aad associated data, may be null. With AES-GCM it requires API
+     *            19.
+     * @return the number of bytes written, length + {@link #TAG_LEN_BYTES}
+     */
+    public abstract int encrypt(byte[] nonce, byte[] aad, byte[] in, int inOff, int length,
+            byte[] out, int outOff) throws GeneralSecurityException;
+
+    /**
+     * Verify and decrypt in[inOff..inOff+length), which ends with the tag,
+     * into out at outOff. in and out may be the same array at the same
+     * offset.
+     *
+     * @return the number of bytes written, length - {@link #TAG_LEN_BYTES}
+     * @throws GeneralSecurityException if the tag doesn't verify
+     */
+    public abstract int decrypt(byte[] nonce, byte[] aad, byte[] in, int inOff, int length,
+            byte[] out, int outOff) throws GeneralSecurityException;
+
+    public byte[] encrypt(byte[] nonce, byte[] aad, byte[] plaintext)
+            throws GeneralSecurityException {
+        byte[] out = new byte[plaintext.length + TAG_LEN_BYTES];
+        encrypt(nonce, aad, plaintext, 0, plaintext.length, out, 0);
+        return out;
+    }
+
+    public byte[] decrypt(byte[] nonce, byte[] aad, byte[] ciphertext)
+            throws GeneralSecurityException {
+        if (ciphertext.length < TAG_LEN_BYTES)
+            throw new GeneralSecurityException("ciphertext too short");
+        byte[] out = new byte[ciphertext.length - TAG_LEN_BYTES];
+        decrypt(nonce, aad, ciphertext, 0, ciphertext.length, out, 0);
+        return out;
+    }
+
+    /**
+     * Zero the key. The instance can't be used afterwards.
+     */
+    public abstract void wipe();
+
+    static void checkNonce(byte[] nonce) throws GeneralSecurityException {
+        if (nonce == null || nonce.length != NONCE_LEN_BYTES)
+            throw new GeneralSecurityException("nonce must be " + NONCE_LEN_BYTES + " bytes");
+    }
+
+    /**
+     * AES-GCM through the JCE provider chosen by {@link CryptoProviders}.
+     */
+    private static final class AesGcm extends AeadCipher {
+        private static final int VERSION_CODE_KITKAT = 19;
+
+        private SecretKeySpec mKey;
+        private final Cipher mCipher;
+
+        AesGcm(byte[] x_key) throws GeneralSecurityException {
+            super(Constants.CIPHER_AES_GCM);
+            if (x_key.length != KEY_LEN_BYTES)
+                throw new GeneralSecurityException("key must be " + KEY_LEN_BYTES + " bytes");
+            mKey = new SecretKeySpec(x_key, "AES");
+            mCipher = CryptoProviders.getCipher(CryptoProviders.AES_GCM);
+        }
+
+        @Override
+        public int encrypt(byte[] nonce, byte[] aad, byte[] in, int inOff, int length,
+                byte[] out, int outOff) throws GeneralSecurityException {
+            init(Cipher.ENCRYPT_MODE, nonce, aad);
+            return mCipher.doFinal(in, inOff, length, out, outOff);
+        }
+
+        @Override
+        public int decrypt(byte[] nonce, byte[] aad, byte[] in, int inOff, int length,
+                byte[] out, int outOff) throws GeneralSecurityException {
+            init(Cipher.DECRYPT_MODE, nonce, aad);
+            return mCipher.doFinal(in, inOff, length, out, outOff);
+        }
+
+        @Override
+        public void wipe() {
+            Wiper.wipe(mKey);
+            mKey = null;
+        }
+
+        private void init(int mode, byte[] nonce, byte[] aad) throws GeneralSecurityException {
+            if (mKey == null)
+                throw new IllegalStateException("cipher has been wiped");
+            checkNonce(nonce);
+            mCipher.init(mode, mKey, new IvParameterSpec(nonce));
+            if (aad != null && aad.length > 0) {
+                if (Build.VERSION.SDK_INT < VERSION_CODE_KITKAT)
+                    throw new GeneralSecurityException("AES-GCM AAD requires API 19");
+                mCipher.updateAAD(aad);
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+
+package info.guardianproject.cacheword;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A small process-wide pool of byte arrays for the streaming and block
+ * ciphers, so that opening many short lived streams doesn't churn the heap
+ * with large buffers. Buffers are wiped when they are returned.
+ */
+final class BufferPool {
+
+    /** Buffers kept per size */
+    private static final int MAX_POOLED_PER_SIZE = 4;
+
+    // guarded by sPool
+    private static final Map<Integer, ArrayDeque<byte[]>> sPool =
+            new HashMap<Integer, ArrayDeque<byte[]>>();
+
+    private BufferPool() {
+    }
+
+    /**
+     * @return a zeroed array of exactly size bytes
+     */
+    static byte[] acquire(int size) {
+        synchronized (sPool) {
+            ArrayDeque<byte[]> free = sPool.get(size);
+            if (free != null && !free.isEmpty())
+                return free.pop();
+        }
+        return new byte[size];
+    }
+
+    /**
+     * Wipe buf and keep it for reuse. buf must not be used afterwards.
+     */
+    static void release(byte[] buf) {
+        if (buf == null)
+            return;
+        Wiper.wipe(buf);
+        synchronized (sPool) {
+            ArrayDeque<byte[]> free = sPool.get(buf.length);
+            if (free == null) {
+                free = new ArrayDeque<byte[]>();
+                sPool.put(buf.length, free);
+            }
+            if (free.size() < MAX_POOLED_PER_SIZE)
+                free.push(buf);
+        }
+    }
+
+    /**
+     * Drop all pooled buffers, e.g., when memory is low.
+     */
+    static void clear() {
+        synchronized (sPool) {
+            sPool.clear();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+
+package info.guardianproject.cacheword;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+
+/**
+ * One-time library setup.
+ * <p>
+ * {@link #bootstrap(Context)} does everything CacheWord needs before the
+ * first unlock on a background thread: it applies {@link PRNGFixes}, picks
+ * the JCE providers (see {@link CryptoProviders}) and resolves the primitives
+ * CacheWord uses, and reads the stored secrets bundle so the unlock doesn't
+ * wait for disk. Call it as early as possible, e.g. in
+ * {@code Application.onCreate()}:
+ *
+ * <pre>
+ * CacheWord.bootstrap(this);
+ * </pre>
+ *
+ * Calling it is optional: {@link CacheWordHandler#connectToService()} starts
+ * the bootstrap if it hasn't run yet, and unlocking, initializing or changing
+ * the passphrase waits for it to finish.
+ */
+public final class CacheWord {
+    private static final String TAG = "CacheWord";
+
+    /**
+     * How long an unlock waits for the bootstrap. The first run benchmarks
+     * the providers, which takes a few hundred milliseconds on a slow device.
+     */
+    static final long BOOTSTRAP_TIMEOUT_MILLIS = 30 * 1000;
+
+    // guarded by CacheWord.class
+    private static FutureTask<Void> sBootstrap;
+
+    private CacheWord() {
+    }
+
+    /**
+     * Start the bootstrap on a background thread, if it isn't running or done
+     * already. Safe to call from any thread, any number of times.
+     *
+     * @return a future that completes when CacheWord is ready to unlock. If
+     *         the PRNG fixes could not be applied, {@code get()} throws an
+     *         ExecutionException caused by a SecurityException.
+     */
+    public static synchronized Future<Void> bootstrap(Context ctx) {
+        if (sBootstrap == null) {
+            final Context appContext = ctx.getApplicationContext();
+            sBootstrap = new FutureTask<Void>(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    runBootstrap(appContext);
+                    return null;
+                }
+            });
+            Thread t = new Thread(sBootstrap, TAG + "-bootstrap");
+            t.setDaemon(true);
+            t.start();
+        }
+        return sBootstrap;
+    }
+
+    /**
+     * @return true if the bootstrap has completed successfully
+     */
+    public static synchronized boolean isReady() {
+        if (sBootstrap == null || !sBootstrap.isDone())
+            return false;
+        try {
+            sBootstrap.get();
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    // / package private API
+    // ////////////////////////////////////
+
+    /**
+     * Start the bootstrap if needed and block until it is done, for at most
+     * {@link #BOOTSTRAP_TIMEOUT_MILLIS}. Used by the unlock paths.
+     *
+     * @throws SecurityException if the bootstrap failed or didn't finish in
+     *             time, or the thread was interrupted while waiting (the
+     *             interrupt status is kept)
+     */
+    static void awaitBootstrap(Context ctx) {
+        awaitBootstrap(bootstrap(ctx), BOOTSTRAP_TIMEOUT_MILLIS);
+    }
+
+    static void awaitBootstrap(Future<Void> bootstrap, long timeoutMillis) {
+        try {
+            bootstrap.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SecurityException("interrupted waiting for the CacheWord bootstrap");
+        } catch (TimeoutException e) {
+            throw new SecurityException("CacheWord bootstrap took over " + timeoutMillis
+                    + "ms");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SecurityException)
+                throw (SecurityException) cause;
+            throw new SecurityException("CacheWord bootstrap failed", cause);
+        }
+    }
+
+    // / private methods
+    // ////////////////////////////////////
+
+    private static void runBootstrap(Context ctx) {
+        long start = System.currentTimeMillis();
+
+        // must come before any other use of the JCA
+        PRNGFixes.apply();
+
+        // seeds this thread's generator
+        new SecureRandom().nextBytes(new byte[Constants.GCM_IV_LEN_BYTES]);
+
+        // picks (benchmarking on first run) and resolves the providers
+        CryptoProviders.select(ctx);
+        try {
+            KeyGenerator.getInstance("AES");
+            Mac.getInstance("HmacSHA256");
+        } catch (GeneralSecurityException e) {
+            // not fatal, the unlock will report the same problem
+            Log.w(TAG, "pre-resolving crypto primitives failed: " + e.getClass().getName()
+                    + " : " + e.getMessage());
+        }
+
+        // the first access to SharedPreferences reads the file from disk
+        if (SecretsManager.isInitialized(ctx))
+            SecretsManager.getBytes(ctx, Constants.SHARED_PREFS_SECRETS);
+
+        Log.d(TAG, "bootstrap done in " + (System.currentTimeMillis() - start) + "ms");
+    }
+}
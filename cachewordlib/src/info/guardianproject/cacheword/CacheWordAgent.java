@@ -0,0 +1,663 @@
+
+package info.guardianproject.cacheword;
+
+import android.content.Context;
+import android.net.Credentials;
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An ssh-agent style daemon that holds an unlocked master key and serves
+ * operations with it to other processes over a local (Unix domain) socket, so
+ * that short lived processes don't each run the passphrase key derivation,
+ * and the master key never leaves the agent.
+ * <p>
+ * Clients, see {@link CacheWordAgentClient}, open a key handle for a context
+ * string. The agent derives a key for that context from the master key and
+ * keeps it in a {@link KeySlab}; the client can then encrypt, decrypt and
+ * derive further keys with the handle. Opening the same context again on a
+ * connection returns the same handle, and a connection may hold at most
+ * {@link #MAX_SESSION_HANDLES}, so no client can fill the slab for the
+ * others. Handles are closed with their connection and are invalidated when
+ * the agent locks.
+ * <p>
+ * Connections are accepted only from the uids allowed with
+ * {@link #allowUid(int)}, by default only the agent's own uid, checked with
+ * the socket's peer credentials.
+ * <p>
+ * The timeout works as in {@link CacheWordService}, with open connections
+ * counting as subscribers: once the last connection closes, the agent locks
+ * after the timeout. A timeout of 0 disables it, a negative one means the
+ * default. The agent also locks with CacheWord.
+ * <p>
+ * Requests and replies are frames of a one byte op code or status, a four
+ * byte length and the payload. A connection may carry any number of
+ * requests, one at a time, so a client that keeps its connection open pays no
+ * setup costs per request.
+ * <p>
+ * The agent only runs on Android: it listens on a {@link LocalServerSocket}
+ * and authenticates clients by the uid in the socket's peer credentials, which
+ * plain Java has no equivalent for. Only the protocol,
+ * {@link #serve(InputStream, OutputStream)}, is independent of the transport.
+ */
+public class CacheWordAgent implements ICacheWordLockParticipant {
+    private static final String TAG = "CacheWordAgent";
+
+    // requests
+    static final int OP_STATUS = 0;
+    static final int OP_OPEN = 1;
+    static final int OP_ENCRYPT = 2;
+    static final int OP_DECRYPT = 3;
+    static final int OP_DERIVE = 4;
+    static final int OP_CLOSE = 5;
+    static final int OP_LOCK = 6;
+
+    // replies
+    static final int STATUS_OK = 0;
+    static final int STATUS_LOCKED = 1;
+    static final int STATUS_BAD_REQUEST = 2;
+    static final int STATUS_BAD_HANDLE = 3;
+    static final int STATUS_FAILED = 4;
+
+    static final int MAX_FRAME_LEN = 1 << 20;
+    static final int MAX_HANDLES = 1024;
+    static final int MAX_SESSION_HANDLES = 64;
+    static final int HEADER_LEN = 1 + AeadCipher.NONCE_LEN_BYTES;
+
+    private static final byte[] HKDF_SALT = {
+            'c', 'a', 'c', 'h', 'e', 'w', 'o', 'r', 'd', ' ', 'a', 'g', 'e', 'n', 't'
+    };
+    private static final byte[] KEY_INFO = {
+            'k', 'e', 'y'
+    };
+    private static final byte[] DERIVE_INFO = {
+            'd', 'e', 'r', 'i', 'v', 'e'
+    };
+
+    private static final SecureRandom sRandom = new SecureRandom();
+
+    private final String mSocketName;
+    private final int mCipherId;
+    // the master key and the keys of the open handles
+    private final KeySlab mSlab = new KeySlab(MAX_HANDLES + 1);
+    private final Set<Integer> mAllowedUids = new HashSet<Integer>();
+    private final ScheduledThreadPoolExecutor mTimer;
+
+    // the following are guarded by this
+    private int mMasterHandle = KeySlab.NO_HANDLE;
+    private int mTimeout = CacheWordHandler.DEFAULT_TIMEOUT_SECONDS;
+    private int mConnections = 0;
+    private ScheduledFuture<?> mTimeoutTask;
+    private LocalServerSocket mServer;
+    private final Set<LocalSocket> mSockets = new HashSet<LocalSocket>();
+    private boolean mClosed = false;
+
+    /**
+     * @param socketName the name of the socket in the abstract namespace
+     */
+    public CacheWordAgent(String socketName) {
+        this(socketName, -1);
+    }
+
+    /**
+     * @param socketName the name of the socket in the abstract namespace
+     * @param cipherId the cipher to encrypt with, one of the
+     *            {@code Constants.CIPHER_*} ids, or -1 for the preferred one
+     */
+    public CacheWordAgent(String socketName, int cipherId) {
+        mSocketName = socketName;
+        mCipherId = cipherId;
+        mAllowedUids.add(Process.myUid());
+        mTimer = new ScheduledThreadPoolExecutor(1, new AgentThreadFactory("timeout"));
+    }
+
+    /**
+     * Unlock with the master key.
+     *
+     * @param x_key the 32 byte master key NOT WIPED
+     */
+    public void unlock(byte[] x_key) {
+        synchronized (this) {
+            if (mMasterHandle != KeySlab.NO_HANDLE)
+                mSlab.wipeAll();
+            mMasterHandle = mSlab.allocate(x_key);
+        }
+        resetTimeout();
+    }
+
+    /**
+     * Unlock with the secrets CacheWord saved for the namespace. This runs the
+     * passphrase key derivation, once for all the agent's clients.
+     *
+     * @param x_passphrase WIPED
+     * @throws GeneralSecurityException on an invalid passphrase
+     */
+    public void unlock(Context ctx, String namespace, char[] x_passphrase)
+            throws GeneralSecurityException {
+        PassphraseSecrets ps = PassphraseSecrets.fetchSecrets(ctx, namespace, x_passphrase);
+        byte[] x_key = ps.getSecretKey().getEncoded();
+        try {
+            unlock(x_key);
+        } finally {
+            Wiper.wipe(x_key);
+            ps.destroy();
+        }
+    }
+
+    /**
+     * Wipe the master key and every handle's key.
+     */
+    public void lock() {
+        synchronized (this) {
+            if (mMasterHandle == KeySlab.NO_HANDLE)
+                return;
+            mSlab.wipeAll();
+            mMasterHandle = KeySlab.NO_HANDLE;
+            if (mTimeoutTask != null)
+                mTimeoutTask.cancel(false);
+        }
+        Log.d(TAG, "locked");
+    }
+
+    public synchronized boolean isLocked() {
+        return mMasterHandle == KeySlab.NO_HANDLE;
+    }
+
+    /**
+     * @param seconds time to wait after the last connection closes before
+     *            locking, 0 disables the timeout
+     */
+    public void setTimeout(int seconds) {
+        synchronized (this) {
+            mTimeout = seconds;
+        }
+        resetTimeout();
+    }
+
+    public synchronized int getTimeout() {
+        return mTimeout;
+    }
+
+    /**
+     * Accept connections from processes running as uid.
+     */
+    public synchronized void allowUid(int uid) {
+        mAllowedUids.add(uid);
+    }
+
+    /**
+     * Refuse new connections from processes running as uid. Connections
+     * already open stay open.
+     */
+    public synchronized void disallowUid(int uid) {
+        mAllowedUids.remove(uid);
+    }
+
+    /**
+     * Listen on the socket.
+     *
+     * @throws IOException if the socket is in use
+     */
+    public synchronized void start() throws IOException {
+        if (mServer != null || mClosed)
+            return;
+        mServer = new LocalServerSocket(mSocketName);
+        new AgentThreadFactory("accept").newThread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }).start();
+        // stop serving keys when the app's CacheWord locks
+        LockOrchestrator.getInstance().register(this, LockOrchestrator.STAGE_FLUSH);
+    }
+
+    /**
+     * Lock, stop listening and close every connection.
+     */
+    public void close() {
+        LocalServerSocket server;
+        Set<LocalSocket> sockets;
+        synchronized (this) {
+            if (mClosed)
+                return;
+            mClosed = true;
+            server = mServer;
+            sockets = new HashSet<LocalSocket>(mSockets);
+        }
+        lock();
+        mTimer.shutdownNow();
+        LockOrchestrator.getInstance().unregister(this);
+        if (server != null) {
+            try {
+                server.close();
+                // closing the server socket doesn't wake up accept()
+                LocalSocket wakeup = new LocalSocket();
+                wakeup.connect(new LocalSocketAddress(mSocketName));
+                wakeup.close();
+            } catch (IOException e) {
+                // the accept thread exits either way
+            }
+        }
+        for (LocalSocket socket : sockets) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+    }
+
+    @Override
+    public void onCacheWordLocking() {
+        lock();
+    }
+
+    @Override
+    public String getName() {
+        return TAG;
+    }
+
+    @Override
+    public void forceWipe() {
+        lock();
+    }
+
+    // / package private API
+    // ////////////////////////////////////
+
+    /**
+     * Serve the requests of one connection until it closes.
+     */
+    void serve(InputStream in, OutputStream out) throws IOException {
+        Session session = new Session();
+        connected();
+        try {
+            session.serve(in, out);
+        } finally {
+            session.close();
+            disconnected();
+        }
+    }
+
+    // / private methods
+    // ////////////////////////////////////
+
+    private void acceptLoop() {
+        while (true) {
+            LocalServerSocket server;
+            synchronized (this) {
+                if (mClosed)
+                    return;
+                server = mServer;
+            }
+            try {
+                final LocalSocket socket = server.accept();
+                Credentials peer = socket.getPeerCredentials();
+                if (peer == null || !isAllowed(peer.getUid())) {
+                    Log.w(TAG, "refused connection from uid "
+                            + (peer == null ? "unknown" : peer.getUid()));
+                    socket.close();
+                    continue;
+                }
+                synchronized (this) {
+                    if (mClosed) {
+                        socket.close();
+                        return;
+                    }
+                    mSockets.add(socket);
+                }
+                new AgentThreadFactory("client").newThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            serve(socket.getInputStream(), socket.getOutputStream());
+                        } catch (IOException e) {
+                            Log.d(TAG, "connection closed: " + e.getClass().getName() + " : "
+                                    + e.getMessage());
+                        } finally {
+                            synchronized (CacheWordAgent.this) {
+                                mSockets.remove(socket);
+                            }
+                            try {
+                                socket.close();
+                            } catch (IOException e) {
+                                // closing anyway
+                            }
+                        }
+                    }
+                }).start();
+            } catch (IOException e) {
+                synchronized (this) {
+                    if (mClosed)
+                        return;
+                }
+                Log.e(TAG, "accept failed: " + e.getClass().getName() + " : " + e.getMessage());
+            }
+        }
+    }
+
+    private synchronized boolean isAllowed(int uid) {
+        return mAllowedUids.contains(uid);
+    }
+
+    private void connected() {
+        synchronized (this) {
+            mConnections++;
+        }
+        resetTimeout();
+    }
+
+    private void disconnected() {
+        synchronized (this) {
+            mConnections--;
+        }
+        resetTimeout();
+    }
+
+    private synchronized void resetTimeout() {
+        if (mTimeout < 0)
+            mTimeout = CacheWordHandler.DEFAULT_TIMEOUT_SECONDS;
+        if (mTimeoutTask != null) {
+            mTimeoutTask.cancel(false);
+            mTimeoutTask = null;
+        }
+        if (mTimeout > 0 && mConnections == 0 && mMasterHandle != KeySlab.NO_HANDLE
+                && !mClosed) {
+            mTimeoutTask = mTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    Log.d(TAG, "timed out");
+                    lock();
+                }
+            }, mTimeout, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Derive the key of a context and add it to the slab.
+     *
+     * @return the key's handle
+     */
+    private synchronized int openHandle(byte[] context) throws GeneralSecurityException,
+            StatusException {
+        if (mMasterHandle == KeySlab.NO_HANDLE)
+            throw new StatusException(STATUS_LOCKED);
+        byte[] x_master = mSlab.get(mMasterHandle);
+        byte[] x_key = null;
+        try {
+            x_key = SegmentedAead.hkdf(x_master, HKDF_SALT, KEY_INFO, context);
+            int handle = mSlab.allocate(x_key);
+            if (handle == KeySlab.NO_HANDLE)
+                throw new StatusException(STATUS_FAILED);
+            return handle;
+        } finally {
+            Wiper.wipe(x_master);
+            Wiper.wipe(x_key);
+        }
+    }
+
+    private synchronized void closeHandle(int handle) {
+        if (mSlab.isValid(handle))
+            mSlab.free(handle);
+    }
+
+    private boolean isOpen(int handle) {
+        return mSlab.isValid(handle);
+    }
+
+    /**
+     * @return a copy of the handle's key, which the caller must wipe
+     */
+    private byte[] getKey(int handle) throws StatusException {
+        try {
+            return mSlab.get(handle);
+        } catch (IllegalArgumentException e) {
+            throw new StatusException(isLocked() ? STATUS_LOCKED : STATUS_BAD_HANDLE);
+        }
+    }
+
+    private byte[] encrypt(byte[] x_key, byte[] x_plaintext, int off)
+            throws GeneralSecurityException {
+        int cipherId = mCipherId < 0 ? CryptoProviders.getPreferredAead() : mCipherId;
+        byte[] sealed = new byte[HEADER_LEN + x_plaintext.length - off
+                + AeadCipher.TAG_LEN_BYTES];
+        sealed[0] = (byte) cipherId;
+        byte[] nonce = new byte[AeadCipher.NONCE_LEN_BYTES];
+        sRandom.nextBytes(nonce);
+        System.arraycopy(nonce, 0, sealed, 1, nonce.length);
+        AeadCipher cipher = AeadCipher.getInstance(cipherId, x_key);
+        try {
+            cipher.encrypt(nonce, Arrays.copyOf(sealed, 1), x_plaintext, off,
+                    x_plaintext.length - off, sealed, HEADER_LEN);
+        } finally {
+            cipher.wipe();
+        }
+        return sealed;
+    }
+
+    private static byte[] decrypt(byte[] x_key, byte[] sealed, int off)
+            throws GeneralSecurityException {
+        if (sealed.length - off < HEADER_LEN + AeadCipher.TAG_LEN_BYTES)
+            throw new GeneralSecurityException("ciphertext too short");
+        int cipherId = sealed[off] & 0xff;
+        byte[] nonce = Arrays.copyOfRange(sealed, off + 1, off + HEADER_LEN);
+        byte[] x_plaintext = new byte[sealed.length - off - HEADER_LEN
+                - AeadCipher.TAG_LEN_BYTES];
+        AeadCipher cipher = AeadCipher.getInstance(cipherId, x_key);
+        try {
+            cipher.decrypt(nonce, new byte[] {
+                (byte) cipherId
+            }, sealed, off + HEADER_LEN, sealed.length - off - HEADER_LEN, x_plaintext, 0);
+        } finally {
+            cipher.wipe();
+        }
+        return x_plaintext;
+    }
+
+    /**
+     * @return a map key for a context, one char per byte
+     */
+    private static String toKey(byte[] context) {
+        try {
+            return new String(context, "ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static int readInt(byte[] payload) throws StatusException {
+        if (payload.length < 4)
+            throw new StatusException(STATUS_BAD_REQUEST);
+        return ((payload[0] & 0xff) << 24) | ((payload[1] & 0xff) << 16)
+                | ((payload[2] & 0xff) << 8) | (payload[3] & 0xff);
+    }
+
+    /**
+     * A failed request, answered with its status.
+     */
+    private static final class StatusException extends Exception {
+        private static final long serialVersionUID = 1L;
+        final int status;
+
+        StatusException(int status) {
+            this.status = status;
+        }
+    }
+
+    /**
+     * The handles opened by one connection.
+     */
+    private final class Session {
+        // handle -> the context its key was derived for
+        private final Map<Integer, String> mHandles = new HashMap<Integer, String>();
+        private final Map<String, Integer> mContexts = new HashMap<String, Integer>();
+
+        void serve(InputStream in, OutputStream out) throws IOException {
+            DataInputStream din = new DataInputStream(new BufferedInputStream(in));
+            DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(out));
+            while (true) {
+                int op = din.read();
+                if (op < 0)
+                    return;
+                int length = din.readInt();
+                if (length < 0 || length > MAX_FRAME_LEN)
+                    throw new IOException("invalid frame length " + length);
+                byte[] x_payload = new byte[length];
+                byte[] x_reply = null;
+                int status = STATUS_OK;
+                try {
+                    din.readFully(x_payload);
+                    try {
+                        x_reply = dispatch(op, x_payload);
+                    } catch (StatusException e) {
+                        status = e.status;
+                    } catch (GeneralSecurityException e) {
+                        status = STATUS_FAILED;
+                    }
+                    dout.writeByte(status);
+                    dout.writeInt(x_reply == null ? 0 : x_reply.length);
+                    if (x_reply != null)
+                        dout.write(x_reply);
+                    dout.flush();
+                } catch (EOFException e) {
+                    return;
+                } finally {
+                    Wiper.wipe(x_payload);
+                    Wiper.wipe(x_reply);
+                }
+            }
+        }
+
+        void close() {
+            for (int handle : mHandles.keySet())
+                closeHandle(handle);
+            mHandles.clear();
+            mContexts.clear();
+        }
+
+        private byte[] dispatch(int op, byte[] x_payload) throws StatusException,
+                GeneralSecurityException {
+            switch (op) {
+                case OP_STATUS:
+                    return new byte[] {
+                        (byte) (isLocked() ? 1 : 0)
+                    };
+                case OP_LOCK:
+                    lock();
+                    return null;
+                case OP_OPEN: {
+                    int handle = open(x_payload);
+                    return new byte[] {
+                            (byte) (handle >>> 24), (byte) (handle >>> 16),
+                            (byte) (handle >>> 8), (byte) handle
+                    };
+                }
+                case OP_CLOSE: {
+                    int handle = readInt(x_payload);
+                    String context = mHandles.remove(handle);
+                    if (context != null) {
+                        mContexts.remove(context);
+                        closeHandle(handle);
+                    }
+                    return null;
+                }
+                case OP_ENCRYPT:
+                case OP_DECRYPT:
+                case OP_DERIVE:
+                    return useKey(op, x_payload);
+                default:
+                    throw new StatusException(STATUS_BAD_REQUEST);
+            }
+        }
+
+        /**
+         * @return the connection's handle for the context, opened unless it
+         *         is already
+         */
+        private int open(byte[] context) throws StatusException, GeneralSecurityException {
+            String key = toKey(context);
+            Integer open = mContexts.get(key);
+            if (open != null && isOpen(open))
+                return open;
+            if (mHandles.size() >= MAX_SESSION_HANDLES) {
+                // handles from before the last lock don't count
+                Iterator<Map.Entry<Integer, String>> it = mHandles.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<Integer, String> e = it.next();
+                    if (!isOpen(e.getKey())) {
+                        mContexts.remove(e.getValue());
+                        it.remove();
+                    }
+                }
+                if (mHandles.size() >= MAX_SESSION_HANDLES)
+                    throw new StatusException(STATUS_FAILED);
+            }
+            int handle = openHandle(context);
+            if (open != null)
+                mHandles.remove(open);
+            mHandles.put(handle, key);
+            mContexts.put(key, handle);
+            return handle;
+        }
+
+        private byte[] useKey(int op, byte[] x_payload) throws StatusException,
+                GeneralSecurityException {
+            int handle = readInt(x_payload);
+            // another connection's handles are not this one's to use
+            if (!mHandles.containsKey(handle))
+                throw new StatusException(STATUS_BAD_HANDLE);
+            byte[] x_key = getKey(handle);
+            try {
+                if (op == OP_ENCRYPT)
+                    return encrypt(x_key, x_payload, 4);
+                if (op == OP_DECRYPT)
+                    return decrypt(x_key, x_payload, 4);
+                return SegmentedAead.hkdf(x_key, HKDF_SALT, DERIVE_INFO,
+                        Arrays.copyOfRange(x_payload, 4, x_payload.length));
+            } finally {
+                Wiper.wipe(x_key);
+            }
+        }
+    }
+
+    private static class AgentThreadFactory implements ThreadFactory {
+        private final String mName;
+
+        AgentThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, TAG + "-" + mName);
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+
+package info.guardianproject.cacheword;
+
+import android.net.Credentials;
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+import android.os.Process;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+
+/**
+ * A connection to a {@link CacheWordAgent}. Keep it open while it is in use:
+ * requests on an open connection cost a round trip over the local socket,
+ * and closing it closes the key handles opened on it.
+ * <p>
+ * Requests throw {@link CacheWordLockedException} while the agent is locked,
+ * and {@link IllegalArgumentException} for a handle that is not open on this
+ * connection, including handles opened before the agent last locked.
+ * <p>
+ * Socket names in the abstract namespace are first come, first served, so
+ * the client checks that the process listening on the socket runs as the
+ * expected uid before sending it anything.
+ */
+public class CacheWordAgentClient implements Closeable {
+
+    private final LocalSocket mSocket;
+    private final DataInputStream mIn;
+    private final DataOutputStream mOut;
+
+    /**
+     * Connect to the agent listening on socketName, which must run as this
+     * process's uid.
+     *
+     * @throws IOException if there is no such agent, or it refused the
+     *             connection
+     */
+    public CacheWordAgentClient(String socketName) throws IOException {
+        this(socketName, Process.myUid());
+    }
+
+    /**
+     * Connect to the agent listening on socketName, which must run as
+     * agentUid.
+     *
+     * @throws IOException if there is no such agent, it runs as another uid,
+     *             or it refused the connection
+     */
+    public CacheWordAgentClient(String socketName, int agentUid) throws IOException {
+        LocalSocket socket = new LocalSocket();
+        socket.connect(new LocalSocketAddress(socketName));
+        Credentials peer = socket.getPeerCredentials();
+        if (peer == null || peer.getUid() != agentUid) {
+            socket.close();
+            throw new IOException("refusing to talk to " + socketName + " running as uid "
+                    + (peer == null ? "unknown" : peer.getUid()));
+        }
+        mSocket = socket;
+        mIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        mOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    CacheWordAgentClient(InputStream in, OutputStream out) {
+        mSocket = null;
+        mIn = new DataInputStream(new BufferedInputStream(in));
+        mOut = new DataOutputStream(new BufferedOutputStream(out));
+    }
+
+    public synchronized boolean isLocked() throws IOException {
+        return call(CacheWordAgent.OP_STATUS, null, 0, null)[0] != 0;
+    }
+
+    /**
+     * Open a handle to the key the agent derives for the context. The same
+     * context always gives the same key, for as long as the master key is the
+     * same.
+     *
+     * @return the key's handle
+     */
+    public synchronized int openKey(byte[] context) throws IOException {
+        byte[] reply = call(CacheWordAgent.OP_OPEN, context, 0, null);
+        return ((reply[0] & 0xff) << 24) | ((reply[1] & 0xff) << 16)
+                | ((reply[2] & 0xff) << 8) | (reply[3] & 0xff);
+    }
+
+    public synchronized void closeKey(int handle) throws IOException {
+        call(CacheWordAgent.OP_CLOSE, null, handle, null);
+    }
+
+    /**
+     * @param x_plaintext NOT WIPED
+     * @return the ciphertext, which {@link #decrypt(int, byte[])} opens with
+     *         a handle for the same context
+     */
+    public synchronized byte[] encrypt(int handle, byte[] x_plaintext) throws IOException {
+        return call(CacheWordAgent.OP_ENCRYPT, x_plaintext, handle, null);
+    }
+
+    /**
+     * @return the plaintext
+     * @throws GeneralSecurityException if the ciphertext was modified or
+     *             belongs to another key
+     */
+    public synchronized byte[] decrypt(int handle, byte[] ciphertext) throws IOException,
+            GeneralSecurityException {
+        int[] status = new int[1];
+        byte[] reply = call(CacheWordAgent.OP_DECRYPT, ciphertext, handle, status);
+        if (status[0] == CacheWordAgent.STATUS_FAILED)
+            throw new GeneralSecurityException("decryption failed");
+        return reply;
+    }
+
+    /**
+     * Derive a 32 byte key from the handle's key, for the given info. The
+     * derived key leaves the agent, the handle's key does not.
+     *
+     * @return the derived key, which the caller must wipe
+     */
+    public synchronized byte[] derive(int handle, byte[] info) throws IOException {
+        return call(CacheWordAgent.OP_DERIVE, info, handle, null);
+    }
+
+    /**
+     * Ask the agent to lock.
+     */
+    public synchronized void lock() throws IOException {
+        call(CacheWordAgent.OP_LOCK, null, 0, null);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mSocket != null)
+            mSocket.close();
+        else
+            mOut.close();
+    }
+
+    // / private methods
+    // ////////////////////////////////////
+
+    /**
+     * Send a request and read its reply.
+     *
+     * @param handle sent before the payload by the requests that take one
+     * @param failed if not null, receives {@link CacheWordAgent#STATUS_FAILED}
+     *            instead of it being thrown
+     */
+    private byte[] call(int op, byte[] payload, int handle, int[] failed)
+            throws IOException {
+        boolean withHandle = op == CacheWordAgent.OP_ENCRYPT
+                || op == CacheWordAgent.OP_DECRYPT || op == CacheWordAgent.OP_DERIVE
+                || op == CacheWordAgent.OP_CLOSE;
+        int length = (payload == null ? 0 : payload.length) + (withHandle ? 4 : 0);
+        mOut.writeByte(op);
+        mOut.writeInt(length);
+        if (withHandle)
+            mOut.writeInt(handle);
+        if (payload != null)
+            mOut.write(payload);
+        mOut.flush();
+
+        int status = mIn.readUnsignedByte();
+        int replyLength = mIn.readInt();
+        if (replyLength < 0 || replyLength > CacheWordAgent.MAX_FRAME_LEN)
+            throw new IOException("invalid reply length " + replyLength);
+        byte[] reply = new byte[replyLength];
+        mIn.readFully(reply);
+
+        switch (status) {
+            case CacheWordAgent.STATUS_OK:
+                return reply;
+            case CacheWordAgent.STATUS_LOCKED:
+                throw new CacheWordLockedException("CacheWord agent is locked");
+            case CacheWordAgent.STATUS_BAD_HANDLE:
+                throw new IllegalArgumentException("key handle " + handle + " is not open");
+            case CacheWordAgent.STATUS_FAILED:
+                if (failed != null) {
+                    failed[0] = status;
+                    return null;
+                }
+                throw new IOException("CacheWord agent request failed");
+            default:
+                throw new IOException("CacheWord agent rejected request " + op
+                        + " with status " + status);
+        }
+    }
+}
@@ -0,0 +1,381 @@
+
+package info.guardianproject.cacheword;
+
+import android.content.ComponentCallbacks2;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded cache for decrypted objects that is emptied when CacheWord locks,
+ * so plaintext that is expensive to decrypt can be kept around safely while
+ * the app is unlocked.
+ * <p>
+ * Entries are evicted least recently used first once their total weight
+ * exceeds the budget. Each entry weighs 1 unless {@link #sizeOf(Object, Object)}
+ * is overridden, for example to return a value's length in bytes. Values
+ * leaving the cache, by eviction, replacement, removal or locking, are passed
+ * to {@link #wipe(Object, Object)}, which wipes byte and char arrays and
+ * buffers and can be overridden for other types. A value returned by
+ * {@link #get(Object)} is shared with the cache, so it must not be used after
+ * the cache may have wiped it; copy it if it has to outlive the next lock.
+ * <p>
+ * Once CacheWord starts locking, the cache refuses new entries until it is
+ * unlocked again.
+ * <p>
+ * The budget shrinks in response to {@link #onTrimMemory(int)}.
+ *
+ * @param <K> the key type, must implement equals and hashCode
+ * @param <V> the value type
+ */
+public class CacheWordCache<K, V> implements ICacheWordLockParticipant {
+    private static final String TAG = "CacheWordCache";
+
+    private final CacheWordHandler mHandler;
+    private final int mMaxWeight;
+
+    // all of the following are guarded by this
+    private final LinkedHashMap<K, V> mEntries = new LinkedHashMap<K, V>(16, 0.75f, true);
+    private int mBudget;
+    private int mWeight = 0;
+    private boolean mClosed = false;
+    // CacheWordService.getUnlockCount() when CacheWord last locked, -1 if
+    // unlocked since
+    private long mLockedAt = -1;
+    private long mHits = 0;
+    private long mMisses = 0;
+    private long mEvictions = 0;
+
+    /**
+     * Creates a cache that is emptied when CacheWord locks, and refuses
+     * entries from then on until CacheWord is unlocked in this process.
+     *
+     * @param maxWeight the maximum total weight of the entries
+     */
+    public CacheWordCache(int maxWeight) {
+        this(null, maxWeight);
+    }
+
+    /**
+     * Creates a cache that is emptied when CacheWord locks, and that also
+     * checks the lock state on every access, so nothing is served if the lock
+     * happens in another process.
+     *
+     * @param cacheWord used to check the lock state, may be null
+     * @param maxWeight the maximum total weight of the entries
+     */
+    public CacheWordCache(CacheWordHandler cacheWord, int maxWeight) {
+        if (maxWeight < 0)
+            throw new IllegalArgumentException("invalid maximum weight " + maxWeight);
+        mHandler = cacheWord;
+        mMaxWeight = maxWeight;
+        mBudget = maxWeight;
+        CacheWordService.addLockListener(this);
+    }
+
+    /**
+     * @return the cached value, or null if it isn't cached or CacheWord is
+     *         locked
+     */
+    public V get(K key) {
+        if (key == null)
+            throw new NullPointerException("key == null");
+        if (isLocked())
+            return null;
+        synchronized (this) {
+            V value = mEntries.get(key);
+            if (value == null)
+                mMisses++;
+            else
+                mHits++;
+            return value;
+        }
+    }
+
+    /**
+     * Cache a value, replacing and wiping any previous value for the key. The
+     * value is dropped, but not wiped, if CacheWord is locked or it weighs
+     * more than the budget.
+     *
+     * @param value the value, owned by the cache from now on
+     * @return whether the value was cached
+     */
+    public boolean put(K key, V value) {
+        if (key == null || value == null)
+            throw new NullPointerException("key == null || value == null");
+        if (isLocked())
+            return false;
+        int weight = weigh(key, value);
+        List<Map.Entry<K, V>> removed = new ArrayList<Map.Entry<K, V>>();
+        synchronized (this) {
+            // locking may have started since the check above
+            if (mClosed || weight > mBudget || isMarkedLocked())
+                return false;
+            V previous = mEntries.put(key, value);
+            mWeight += weight;
+            if (previous != null) {
+                mWeight -= weigh(key, previous);
+                if (previous != value)
+                    removed.add(new Entry<K, V>(key, previous));
+            }
+            evictToBudget(removed);
+        }
+        wipeAll(removed);
+        return true;
+    }
+
+    /**
+     * Remove and wipe the value for a key.
+     */
+    public void remove(K key) {
+        V value;
+        synchronized (this) {
+            value = mEntries.remove(key);
+            if (value == null)
+                return;
+            mWeight -= weigh(key, value);
+        }
+        wipe(key, value);
+    }
+
+    /**
+     * Remove and wipe all entries. The statistics are kept.
+     */
+    public void clear() {
+        List<Map.Entry<K, V>> removed;
+        synchronized (this) {
+            removed = new ArrayList<Map.Entry<K, V>>(mEntries.size());
+            for (Map.Entry<K, V> e : mEntries.entrySet())
+                removed.add(new Entry<K, V>(e.getKey(), e.getValue()));
+            mEntries.clear();
+            mWeight = 0;
+        }
+        wipeAll(removed);
+    }
+
+    /**
+     * @return the number of cached entries
+     */
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * @return the total weight of the cached entries
+     */
+    public synchronized int getWeight() {
+        return mWeight;
+    }
+
+    /**
+     * @return the current budget, as reduced by {@link #onTrimMemory(int)}
+     */
+    public synchronized int getMemoryBudget() {
+        return mBudget;
+    }
+
+    /**
+     * @return the fraction of lookups served from the cache
+     */
+    public synchronized float getHitRate() {
+        long total = mHits + mMisses;
+        return total == 0 ? 0f : (float) mHits / total;
+    }
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    /**
+     * @return the number of entries evicted to stay within the budget
+     */
+    public synchronized long getEvictionCount() {
+        return mEvictions;
+    }
+
+    /**
+     * Shrink the budget in response to memory pressure. Call this from your
+     * {@code Application} or {@code Activity}'s {@code onTrimMemory()}. The
+     * budget follows the most recent level, so a milder level raises it again.
+     *
+     * @param level one of the {@link ComponentCallbacks2} TRIM_MEMORY_ levels
+     */
+    public void onTrimMemory(int level) {
+        List<Map.Entry<K, V>> removed = new ArrayList<Map.Entry<K, V>>();
+        synchronized (this) {
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+                mBudget = 0;
+            } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+                mBudget = mMaxWeight / 4;
+            } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+                mBudget = mMaxWeight / 2;
+            } else {
+                mBudget = mMaxWeight / 4 * 3;
+            }
+            evictToBudget(removed);
+        }
+        wipeAll(removed);
+    }
+
+    /**
+     * Restore the budget to the maximum given at construction.
+     */
+    public synchronized void resetMemoryBudget() {
+        mBudget = mMaxWeight;
+    }
+
+    @Override
+    public void onCacheWordLocking() {
+        markLocked();
+        clear();
+    }
+
+    @Override
+    public String getName() {
+        return TAG;
+    }
+
+    @Override
+    public void forceWipe() {
+        markLocked();
+        clear();
+    }
+
+    /**
+     * Empty the cache and stop listening for locks. The cache can't be used
+     * after it is closed.
+     */
+    public void close() {
+        CacheWordService.removeLockListener(this);
+        synchronized (this) {
+            mClosed = true;
+        }
+        clear();
+    }
+
+    /**
+     * Override to weigh entries, for example by their size in bytes. The
+     * weight of an entry must not change while it is cached.
+     *
+     * @return the weight of the entry, 1 by default
+     */
+    protected int sizeOf(K key, V value) {
+        return 1;
+    }
+
+    /**
+     * Called, outside of the cache's lock, for each value leaving the cache.
+     * Override to wipe value types other than byte and char arrays and
+     * buffers.
+     */
+    protected void wipe(K key, V value) {
+        if (value instanceof byte[])
+            Wiper.wipe((byte[]) value);
+        else if (value instanceof char[])
+            Wiper.wipe((char[]) value);
+        else if (value instanceof ByteBuffer)
+            Wiper.wipe((ByteBuffer) value);
+        else if (value instanceof CharBuffer)
+            Wiper.wipe((CharBuffer) value);
+    }
+
+    // / private methods
+    // ////////////////////////////////////
+
+    private synchronized void markLocked() {
+        mLockedAt = CacheWordService.getUnlockCount();
+    }
+
+    /**
+     * @return whether CacheWord locked and hasn't been unlocked since. Called
+     *         with the monitor held.
+     */
+    private boolean isMarkedLocked() {
+        if (mLockedAt < 0)
+            return false;
+        if (mLockedAt == CacheWordService.getUnlockCount())
+            return true;
+        mLockedAt = -1;
+        return false;
+    }
+
+    private boolean isLocked() {
+        synchronized (this) {
+            if (isMarkedLocked())
+                return true;
+        }
+        if (mHandler == null || !mHandler.isLocked())
+            return false;
+        clear();
+        return true;
+    }
+
+    private int weigh(K key, V value) {
+        int weight = sizeOf(key, value);
+        if (weight < 0)
+            throw new IllegalStateException("negative weight " + weight + " for " + key);
+        return weight;
+    }
+
+    /**
+     * Evicts least recently used entries until the weight fits the budget.
+     * The evicted entries are added to removed, to be wiped once the lock is
+     * released.
+     */
+    private void evictToBudget(List<Map.Entry<K, V>> removed) {
+        Iterator<Map.Entry<K, V>> it = mEntries.entrySet().iterator();
+        while (mWeight > mBudget && it.hasNext()) {
+            Map.Entry<K, V> e = it.next();
+            removed.add(new Entry<K, V>(e.getKey(), e.getValue()));
+            mWeight -= weigh(e.getKey(), e.getValue());
+            it.remove();
+            mEvictions++;
+        }
+    }
+
+    private void wipeAll(List<Map.Entry<K, V>> removed) {
+        for (Map.Entry<K, V> e : removed) {
+            try {
+                wipe(e.getKey(), e.getValue());
+            } catch (RuntimeException ex) {
+                Log.e(TAG, "wiping a cached value failed: " + ex.getClass().getName() + " : "
+                        + ex.getMessage());
+            }
+        }
+    }
+
+    private static final class Entry<K, V> implements Map.Entry<K, V> {
+        private final K mKey;
+        private final V mValue;
+
+        Entry(K key, V value) {
+            mKey = key;
+            mValue = value;
+        }
+
+        @Override
+        public K getKey() {
+            return mKey;
+        }
+
+        @Override
+        public V getValue() {
+            return mValue;
+        }
+
+        @Override
+        public V setValue(V value) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+
+package info.guardianproject.cacheword;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+
+/**
+ * Decrypts data written by {@link CacheWordEncryptingOutputStream}. Each
+ * segment is authenticated before any of its plaintext is returned, and a
+ * stream that ends before the final segment, or has been reordered or
+ * modified, fails with an IOException at the first bad segment instead of
+ * returning partial data as if it were complete.
+ * <p>
+ * Memory use is one segment, whatever the size of the data, and the segment
+ * buffer comes from a shared pool.
+ */
+public class CacheWordDecryptingInputStream extends InputStream {
+
+    private final InputStream mIn;
+    private final int mSegmentSize;
+    private final int mCiphertextSegmentSize;
+    private final byte[] mNonce = new byte[AeadCipher.NONCE_LEN_BYTES];
+    private final byte[] mSingleByte = new byte[1];
+    private AeadCipher mCipher;
+    // a ciphertext segment plus one byte of look ahead to detect the end
+    private byte[] mBuffer;
+    private boolean mHasLookahead = false;
+    private int mPosition = 0;
+    private int mLimit = 0;
+    private long mSegmentIndex = 0;
+    private boolean mLastSegmentRead = false;
+    private boolean mClosed = false;
+
+    /**
+     * Decrypt with CacheWord's current key.
+     *
+     * @throws CacheWordLockedException if CacheWord is locked
+     */
+    public CacheWordDecryptingInputStream(CacheWordHandler cacheWord, InputStream in)
+            throws IOException {
+        this(getKey(cacheWord), true, in);
+    }
+
+    /**
+     * @param x_key the 256 bit key the data was encrypted with NOT WIPED
+     */
+    public CacheWordDecryptingInputStream(byte[] x_key, InputStream in) throws IOException {
+        this(x_key, false, in);
+    }
+
+    private CacheWordDecryptingInputStream(byte[] x_key, boolean wipeKey, InputStream in)
+            throws IOException {
+        try {
+            byte[] header = new byte[SegmentedAead.HEADER_LEN];
+            if (readFully(in, header, 0, header.length) < header.length)
+                throw new IOException("truncated header");
+            SegmentedAead.checkHeader(header);
+            mCipher = SegmentedAead.newCipher(x_key, header);
+            mIn = in;
+            mSegmentSize = SegmentedAead.getSegmentSize(header);
+            mCiphertextSegmentSize = mSegmentSize + AeadCipher.TAG_LEN_BYTES;
+            mBuffer = BufferPool.acquire(mCiphertextSegmentSize + 1);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("could not set up decryption: " + e.getMessage(), e);
+        } finally {
+            if (wipeKey)
+                Wiper.wipe(x_key);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        int n = read(mSingleByte, 0, 1);
+        return n <= 0 ? -1 : mSingleByte[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (off < 0 || len < 0 || off + len > b.length)
+            throw new IndexOutOfBoundsException();
+        if (len == 0)
+            return 0;
+        while (mPosition == mLimit) {
+            if (mLastSegmentRead)
+                return -1;
+            readSegment();
+        }
+        int n = Math.min(len, mLimit - mPosition);
+        System.arraycopy(mBuffer, mPosition, b, off, n);
+        mPosition += n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        ensureOpen();
+        return mLimit - mPosition;
+    }
+
+    /**
+     * Wipe the key and the buffered plaintext and close the underlying
+     * stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed)
+            return;
+        mClosed = true;
+        if (mCipher != null)
+            mCipher.wipe();
+        mCipher = null;
+        BufferPool.release(mBuffer);
+        mBuffer = null;
+        mIn.close();
+    }
+
+    // / private methods
+    // ////////////////////////////////////
+
+    private static byte[] getKey(CacheWordHandler cacheWord) {
+        byte[] key = cacheWord.getEncryptionKey();
+        if (key == null)
+            throw new CacheWordLockedException();
+        return key;
+    }
+
+    private void readSegment() throws IOException {
+        int have = 0;
+        if (mHasLookahead) {
+            mBuffer[0] = mBuffer[mCiphertextSegmentSize];
+            have = 1;
+        }
+        have += readFully(mIn, mBuffer, have, mCiphertextSegmentSize + 1 - have);
+
+        // the segment is the last one iff nothing follows it
+        boolean last = have <= mCiphertextSegmentSize;
+        mHasLookahead = !last;
+        int length = last ? have : mCiphertextSegmentSize;
+        if (length < AeadCipher.TAG_LEN_BYTES)
+            throw new IOException("stream truncated in segment " + mSegmentIndex);
+
+        SegmentedAead.segmentNonce(mNonce, mSegmentIndex, last);
+        try {
+            mLimit = mCipher.decrypt(mNonce, null, mBuffer, 0, length, mBuffer, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("segment " + mSegmentIndex
+                    + " failed authentication, the stream is truncated or modified", e);
+        }
+        mPosition = 0;
+        mSegmentIndex++;
+        mLastSegmentRead = last;
+    }
+
+    private static int readFully(InputStream in, byte[] b, int off, int len) throws IOException {
+        int total = 0;
+        while (total < len) {
+            int n = in.read(b, off + total, len - total);
+            if (n < 0)
+                break;
+            total += n;
+        }
+        return total;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (mClosed)
+            throw new IOException("Stream closed");
+    }
+}
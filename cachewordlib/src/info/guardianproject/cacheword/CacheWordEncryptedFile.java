@@ -0,0 +1,729 @@
+
+package info.guardianproject.cacheword;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An encrypted file with random access, for large attachments that are read
+ * out of order (seeking in a video, for example) or modified in place. The
+ * file is stored as independently authenticated blocks, so reading or writing
+ * at a position only decrypts the blocks it touches:
+ *
+ * <pre>
+ * file  = header | block 0 | block 1 | ...
+ * block = nonce (12) | AEAD(file key, nonce, index | final flag (8) | data)
+ * </pre>
+ *
+ * The header is the {@link CacheWordEncryptingOutputStream} header with its
+ * own magic, and the file key is derived from the master key the same way.
+ * Every block write uses a fresh random nonce. The stored index stops blocks
+ * from being moved around, and the final flag on the last block makes a file
+ * cut short at a block boundary fail to open.
+ * <p>
+ * The file is mapped with {@link MappedByteBuffer}s a few megabytes at a time,
+ * and a handful of decrypted blocks are kept in pooled buffers, with writes
+ * buffered in them until they are evicted or {@link #force(boolean)} is
+ * called. Like {@link FileChannel}, positional reads and writes are safe to
+ * use from several threads.
+ * <p>
+ * When CacheWord locks, pending writes are flushed, the buffers are wiped and
+ * the mappings and file are closed; further use throws
+ * {@link ClosedChannelException}. A file that was not closed cleanly may have
+ * an unflagged last block and fail to open.
+ */
+public class CacheWordEncryptedFile implements ByteChannel, ICacheWordLockParticipant {
+    private static final String TAG = "CacheWordEncryptedFile";
+
+    public static final int DEFAULT_BLOCK_SIZE = 32 * 1024;
+
+    private static final int PREFIX_LEN = 8;
+    private static final int DATA_OFFSET = AeadCipher.NONCE_LEN_BYTES + PREFIX_LEN;
+    private static final int BLOCK_OVERHEAD = DATA_OFFSET + AeadCipher.TAG_LEN_BYTES;
+    private static final long FINAL_FLAG = 1L << 63;
+
+    private static final int MAX_CACHED_BLOCKS = 4;
+    private static final int MAX_MAPPED_REGIONS = 4;
+    private static final int REGION_TARGET_BYTES = 4 * 1024 * 1024;
+
+    private static final Comparator<Block> BY_INDEX = new Comparator<Block>() {
+        @Override
+        public int compare(Block a, Block b) {
+            return a.index < b.index ? -1 : (a.index == b.index ? 0 : 1);
+        }
+    };
+
+    private final String mName;
+    private final boolean mWritable;
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final int mBlockSize;
+    private final int mPhysicalBlockSize;
+    private final int mBlocksPerRegion;
+    private final SecureRandom mRandom = new SecureRandom();
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    // all of the following are guarded by mLock
+    private final LinkedHashMap<Long, Block> mBlocks =
+            new LinkedHashMap<Long, Block>(16, 0.75f, true);
+    private final LinkedHashMap<Long, MappedByteBuffer> mRegions =
+            new LinkedHashMap<Long, MappedByteBuffer>(16, 0.75f, true);
+    private final byte[] mNonce = new byte[AeadCipher.NONCE_LEN_BYTES];
+    private AeadCipher mCipher;
+    private byte[] mScratch;
+    private long mSize;
+    private long mPhysicalLength;
+    private long mPosition = 0;
+
+    private volatile boolean mClosed = false;
+    private volatile boolean mWiped = false;
+
+    /**
+     * Open file with CacheWord's current key, creating it with the preferred
+     * cipher and {@link #DEFAULT_BLOCK_SIZE} if it is empty.
+     *
+     * @param mode "r" or "rw", as for {@link RandomAccessFile}
+     * @throws CacheWordLockedException if CacheWord is locked
+     */
+    public CacheWordEncryptedFile(CacheWordHandler cacheWord, File file, String mode)
+            throws IOException {
+        this(getKey(cacheWord), true, file, mode, CryptoProviders.getPreferredAead(),
+                DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @param x_key a 256 bit key NOT WIPED
+     * @param mode "r" or "rw", as for {@link RandomAccessFile}
+     */
+    public CacheWordEncryptedFile(byte[] x_key, File file, String mode) throws IOException {
+        this(x_key, false, file, mode, CryptoProviders.getPreferredAead(), DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @param x_key a 256 bit key NOT WIPED
+     * @param mode "r" or "rw", as for {@link RandomAccessFile}
+     * @param cipherId the {@code Constants.CIPHER_*} id used if the file is
+     *            created, otherwise ignored
+     * @param blockSize the block size used if the file is created, otherwise
+     *            ignored
+     */
+    public CacheWordEncryptedFile(byte[] x_key, File file, String mode, int cipherId,
+            int blockSize) throws IOException {
+        this(x_key, false, file, mode, cipherId, blockSize);
+    }
+
+    private CacheWordEncryptedFile(byte[] x_key, boolean wipeKey, File file, String mode,
+            int cipherId, int blockSize) throws IOException {
+        if (!"r".equals(mode) && !"rw".equals(mode)) {
+            if (wipeKey)
+                Wiper.wipe(x_key);
+            throw new IllegalArgumentException("mode must be \"r\" or \"rw\"");
+        }
+        mName = file.getName();
+        mWritable = "rw".equals(mode);
+        RandomAccessFile raf = null;
+        boolean opened = false;
+        try {
+            raf = new RandomAccessFile(file, mode);
+            long length = raf.length();
+            byte[] header;
+            if (length == 0 && mWritable) {
+                header = SegmentedAead.newHeader(SegmentedAead.FILE_MAGIC, cipherId, blockSize);
+                raf.write(header);
+                length = header.length;
+            } else {
+                header = new byte[SegmentedAead.HEADER_LEN];
+                if (length < header.length)
+                    throw new IOException(mName + " is truncated");
+                raf.readFully(header);
+                SegmentedAead.checkHeader(header, SegmentedAead.FILE_MAGIC);
+            }
+            mCipher = SegmentedAead.newCipher(x_key, header);
+            mFile = raf;
+            mChannel = raf.getChannel();
+            mBlockSize = SegmentedAead.getSegmentSize(header);
+            mPhysicalBlockSize = mBlockSize + BLOCK_OVERHEAD;
+            mBlocksPerRegion = Math.max(1, REGION_TARGET_BYTES / mPhysicalBlockSize);
+            mScratch = BufferPool.acquire(mPhysicalBlockSize);
+            mPhysicalLength = length;
+            mSize = toLogicalLength(length);
+            if (mSize > 0)
+                checkLastBlock();
+            opened = true;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("could not set up encryption: " + e.getMessage(), e);
+        } finally {
+            if (wipeKey)
+                Wiper.wipe(x_key);
+            if (!opened) {
+                if (mCipher != null)
+                    mCipher.wipe();
+                releaseBlocks();
+                BufferPool.release(mScratch);
+                if (raf != null)
+                    raf.close();
+            }
+        }
+        CacheWordService.addLockListener(this);
+    }
+
+    public int getBlockSize() {
+        return mBlockSize;
+    }
+
+    /**
+     * Read from the file at position without changing the channel position.
+     *
+     * @return the number of bytes read, or -1 if position is at or beyond the
+     *         end of the file
+     * @throws IOException if a block fails authentication
+     */
+    public int read(ByteBuffer dst, long position) throws IOException {
+        if (position < 0)
+            throw new IllegalArgumentException("negative position");
+        lockOpen();
+        try {
+            if (position >= mSize)
+                return -1;
+            int total = 0;
+            while (dst.hasRemaining() && position < mSize) {
+                Block block = getBlock(position / mBlockSize);
+                int offset = (int) (position % mBlockSize);
+                int n = Math.min(dst.remaining(), block.length - offset);
+                dst.put(block.buf, DATA_OFFSET + offset, n);
+                position += n;
+                total += n;
+            }
+            return total;
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Write to the file at position without changing the channel position. A
+     * write beyond the end of the file fills the gap with zeros.
+     *
+     * @return the number of bytes written
+     */
+    public int write(ByteBuffer src, long position) throws IOException {
+        if (position < 0)
+            throw new IllegalArgumentException("negative position");
+        lockOpen();
+        try {
+            checkWritable();
+            if (position > mSize)
+                fill(mSize, position);
+            return writeBlocks(src, position);
+        } finally {
+            unlock();
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        lockOpen();
+        try {
+            int n = read(dst, mPosition);
+            if (n > 0)
+                mPosition += n;
+            return n;
+        } finally {
+            unlock();
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        lockOpen();
+        try {
+            int n = write(src, mPosition);
+            mPosition += n;
+            return n;
+        } finally {
+            unlock();
+        }
+    }
+
+    public long position() throws IOException {
+        lockOpen();
+        try {
+            return mPosition;
+        } finally {
+            unlock();
+        }
+    }
+
+    public CacheWordEncryptedFile position(long newPosition) throws IOException {
+        if (newPosition < 0)
+            throw new IllegalArgumentException("negative position");
+        lockOpen();
+        try {
+            mPosition = newPosition;
+            return this;
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * @return the size of the decrypted data
+     */
+    public long size() throws IOException {
+        lockOpen();
+        try {
+            return mSize;
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Cut the file down to size bytes. Does nothing if the file is not larger.
+     */
+    public CacheWordEncryptedFile truncate(long size) throws IOException {
+        if (size < 0)
+            throw new IllegalArgumentException("negative size");
+        lockOpen();
+        try {
+            checkWritable();
+            if (size < mSize) {
+                long last = size == 0 ? -1 : (size - 1) / mBlockSize;
+                Iterator<Block> it = mBlocks.values().iterator();
+                while (it.hasNext()) {
+                    Block block = it.next();
+                    if (block.index > last) {
+                        it.remove();
+                        BufferPool.release(block.buf);
+                    }
+                }
+                if (last >= 0) {
+                    // read before mSize changes, it determines the stored length
+                    Block block = getBlock(last);
+                    block.length = (int) (size - last * mBlockSize);
+                    block.dirty = true;
+                }
+                mSize = size;
+                flushBlocks();
+                // accessing a mapping beyond the end of the file is fatal
+                releaseRegions();
+                mPhysicalLength = toPhysicalLength(size);
+                mFile.setLength(mPhysicalLength);
+            }
+            if (mPosition > size)
+                mPosition = size;
+            return this;
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Write all buffered blocks to the file and then force it to storage, as
+     * {@link FileChannel#force(boolean)}.
+     */
+    public void force(boolean metaData) throws IOException {
+        lockOpen();
+        try {
+            flushBlocks();
+            if (mWritable) {
+                for (MappedByteBuffer region : mRegions.values())
+                    region.force();
+                mChannel.force(metaData);
+            }
+        } finally {
+            unlock();
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !mClosed && !mWiped;
+    }
+
+    /**
+     * Write buffered blocks, wipe the decrypted data and the key, and close
+     * the file.
+     */
+    @Override
+    public void close() throws IOException {
+        CacheWordService.removeLockListener(this);
+        mLock.lock();
+        try {
+            if (mClosed)
+                return;
+            try {
+                if (!mWiped)
+                    flushBlocks();
+            } finally {
+                release();
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public void onCacheWordLocking() {
+        try {
+            close();
+        } catch (IOException e) {
+            Log.e(TAG, "writing " + mName + " before lock failed: " + e.getClass().getName()
+                    + " : " + e.getMessage());
+        }
+    }
+
+    @Override
+    public String getName() {
+        return TAG + " " + mName;
+    }
+
+    /**
+     * Drops buffered writes. If another thread is using the file, it releases
+     * everything when its call returns.
+     */
+    @Override
+    public void forceWipe() {
+        mWiped = true;
+        if (mLock.tryLock()) {
+            try {
+                if (!mClosed)
+                    release();
+            } finally {
+                mLock.unlock();
+            }
+        }
+    }
+
+    // / private methods
+    // ////////////////////////////////////
+
+    private static byte[] getKey(CacheWordHandler cacheWord) {
+        byte[] key = cacheWord.getEncryptionKey();
+        if (key == null)
+            throw new CacheWordLockedException();
+        return key;
+    }
+
+    private void lockOpen() throws ClosedChannelException {
+        mLock.lock();
+        if (mClosed || mWiped) {
+            unlock();
+            throw new ClosedChannelException();
+        }
+    }
+
+    private void unlock() {
+        try {
+            if (mWiped && !mClosed && mLock.getHoldCount() == 1)
+                release();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void checkWritable() {
+        if (!mWritable)
+            throw new NonWritableChannelException();
+    }
+
+    private long lastIndex() {
+        return mSize == 0 ? -1 : (mSize - 1) / mBlockSize;
+    }
+
+    private long toLogicalLength(long physicalLength) throws IOException {
+        long data = physicalLength - SegmentedAead.HEADER_LEN;
+        if (data == 0)
+            return 0;
+        long before = (data - 1) / mPhysicalBlockSize;
+        long last = data - before * mPhysicalBlockSize;
+        if (last <= BLOCK_OVERHEAD)
+            throw new IOException(mName + " has an invalid length");
+        return before * mBlockSize + last - BLOCK_OVERHEAD;
+    }
+
+    private long toPhysicalLength(long size) {
+        if (size == 0)
+            return SegmentedAead.HEADER_LEN;
+        long before = (size - 1) / mBlockSize;
+        return SegmentedAead.HEADER_LEN + before * mPhysicalBlockSize + BLOCK_OVERHEAD + size
+                - before * mBlockSize;
+    }
+
+    private void checkLastBlock() throws IOException {
+        Block block = new Block(lastIndex(), BufferPool.acquire(mPhysicalBlockSize));
+        try {
+            block.length = (int) (mSize - block.index * mBlockSize);
+            if (!readBlock(block))
+                throw new IOException(mName + " is truncated");
+            mBlocks.put(block.index, block);
+        } catch (IOException e) {
+            BufferPool.release(block.buf);
+            throw e;
+        }
+    }
+
+    private int writeBlocks(ByteBuffer src, long position) throws IOException {
+        int total = 0;
+        while (src.hasRemaining()) {
+            long index = position / mBlockSize;
+            int offset = (int) (position % mBlockSize);
+            long last = lastIndex();
+            // the old last block loses its final flag
+            if (index > last && last >= 0)
+                getBlock(last).dirty = true;
+            Block block = getBlock(index);
+            int n = Math.min(src.remaining(), mBlockSize - offset);
+            src.get(block.buf, DATA_OFFSET + offset, n);
+            block.length = Math.max(block.length, offset + n);
+            block.dirty = true;
+            position += n;
+            total += n;
+            if (position > mSize)
+                mSize = position;
+        }
+        return total;
+    }
+
+    private void fill(long from, long to) throws IOException {
+        ByteBuffer zeros = ByteBuffer.wrap(new byte[(int) Math.min(mBlockSize, to - from)]);
+        while (from < to) {
+            zeros.clear();
+            zeros.limit((int) Math.min(zeros.capacity(), to - from));
+            from += writeBlocks(zeros, from);
+        }
+    }
+
+    private Block getBlock(long index) throws IOException {
+        Block block = mBlocks.get(index);
+        if (block != null)
+            return block;
+        if (mBlocks.size() >= MAX_CACHED_BLOCKS)
+            evictBlock();
+        block = new Block(index, BufferPool.acquire(mPhysicalBlockSize));
+        long start = index * mBlockSize;
+        if (start < mSize) {
+            block.length = (int) Math.min(mBlockSize, mSize - start);
+            try {
+                readBlock(block);
+            } catch (IOException e) {
+                BufferPool.release(block.buf);
+                throw e;
+            }
+        }
+        mBlocks.put(index, block);
+        return block;
+    }
+
+    private void evictBlock() throws IOException {
+        Iterator<Block> it = mBlocks.values().iterator();
+        Block eldest = it.next();
+        if (eldest.dirty)
+            writeBlock(eldest);
+        it.remove();
+        BufferPool.release(eldest.buf);
+    }
+
+    /**
+     * Decrypt block from the file into its buffer.
+     *
+     * @return whether the block has the final flag
+     */
+    private boolean readBlock(Block block) throws IOException {
+        int length = block.length + BLOCK_OVERHEAD;
+        ByteBuffer src = getMapping(block.index, length);
+        if (src == null)
+            throw new IOException(mName + " was truncated while open");
+        src.get(block.buf, 0, length);
+        System.arraycopy(block.buf, 0, mNonce, 0, mNonce.length);
+        try {
+            mCipher.decrypt(mNonce, null, block.buf, mNonce.length, length - mNonce.length,
+                    block.buf, mNonce.length);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("block " + block.index + " of " + mName
+                    + " failed authentication", e);
+        }
+        long prefix = getLong(block.buf, mNonce.length);
+        if ((prefix & ~FINAL_FLAG) != block.index)
+            throw new IOException("block " + block.index + " of " + mName + " is out of place");
+        return (prefix & FINAL_FLAG) != 0;
+    }
+
+    /**
+     * Encrypt block into the scratch buffer and write it to the file.
+     */
+    private void writeBlock(Block block) throws IOException {
+        long prefix = block.index;
+        if (block.index == lastIndex())
+            prefix |= FINAL_FLAG;
+        putLong(block.buf, mNonce.length, prefix);
+        mRandom.nextBytes(mNonce);
+        System.arraycopy(mNonce, 0, mScratch, 0, mNonce.length);
+        int length;
+        try {
+            length = mNonce.length + mCipher.encrypt(mNonce, null, block.buf, mNonce.length,
+                    PREFIX_LEN + block.length, mScratch, mNonce.length);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("encrypting block " + block.index + " of " + mName
+                    + " failed: " + e.getMessage(), e);
+        }
+
+        ByteBuffer dst = getMapping(block.index, length);
+        if (dst != null) {
+            dst.put(mScratch, 0, length);
+        } else {
+            // beyond the end of the file, which a mapping can't extend
+            long offset = SegmentedAead.HEADER_LEN + block.index * mPhysicalBlockSize;
+            ByteBuffer src = ByteBuffer.wrap(mScratch, 0, length);
+            while (src.hasRemaining())
+                mChannel.write(src, offset + src.position());
+            mPhysicalLength = Math.max(mPhysicalLength, offset + length);
+        }
+        block.dirty = false;
+    }
+
+    private void flushBlocks() throws IOException {
+        List<Block> dirty = new ArrayList<Block>();
+        for (Block block : mBlocks.values()) {
+            if (block.dirty)
+                dirty.add(block);
+        }
+        Collections.sort(dirty, BY_INDEX);
+        for (Block block : dirty)
+            writeBlock(block);
+    }
+
+    /**
+     * @return a buffer over the length bytes of the block at index, or null if
+     *         they extend beyond the end of the file
+     */
+    private ByteBuffer getMapping(long index, int length) throws IOException {
+        long offset = SegmentedAead.HEADER_LEN + index * mPhysicalBlockSize;
+        if (offset + length > mPhysicalLength)
+            return null;
+        long region = index / mBlocksPerRegion;
+        long regionStart = SegmentedAead.HEADER_LEN + region * mBlocksPerRegion
+                * (long) mPhysicalBlockSize;
+        MappedByteBuffer mapping = mRegions.get(region);
+        if (mapping == null || regionStart + mapping.capacity() < offset + length) {
+            if (mapping != null)
+                unmap(mRegions.remove(region));
+            long size = Math.min((long) mBlocksPerRegion * mPhysicalBlockSize, mPhysicalLength
+                    - regionStart);
+            mapping = mChannel.map(mWritable ? FileChannel.MapMode.READ_WRITE
+                    : FileChannel.MapMode.READ_ONLY, regionStart, size);
+            mRegions.put(region, mapping);
+            if (mRegions.size() > MAX_MAPPED_REGIONS) {
+                Iterator<MappedByteBuffer> it = mRegions.values().iterator();
+                unmap(it.next());
+                it.remove();
+            }
+        }
+        ByteBuffer buffer = mapping.duplicate();
+        int position = (int) (offset - regionStart);
+        buffer.limit(position + length);
+        buffer.position(position);
+        return buffer;
+    }
+
+    /**
+     * Unmap now rather than when the buffer is collected, where the runtime
+     * allows it. The buffer must not be used afterwards.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Method cleaner = buffer.getClass().getMethod("cleaner");
+            cleaner.setAccessible(true);
+            Object c = cleaner.invoke(buffer);
+            if (c != null)
+                c.getClass().getMethod("clean").invoke(c);
+            return;
+        } catch (Exception e) {
+            // try the older Android API
+        }
+        try {
+            Method free = buffer.getClass().getMethod("free");
+            free.setAccessible(true);
+            free.invoke(buffer);
+        } catch (Exception e) {
+            // left to the garbage collector
+        }
+    }
+
+    private void releaseRegions() {
+        for (MappedByteBuffer region : mRegions.values())
+            unmap(region);
+        mRegions.clear();
+    }
+
+    private void releaseBlocks() {
+        for (Block block : mBlocks.values())
+            BufferPool.release(block.buf);
+        mBlocks.clear();
+    }
+
+    private void release() {
+        mClosed = true;
+        CacheWordService.removeLockListener(this);
+        mCipher.wipe();
+        releaseBlocks();
+        BufferPool.release(mScratch);
+        mScratch = null;
+        releaseRegions();
+        try {
+            mFile.close();
+        } catch (IOException e) {
+            Log.e(TAG, "closing " + mName + " failed: " + e.getClass().getName() + " : "
+                    + e.getMessage());
+        }
+    }
+
+    private static long getLong(byte[] b, int off) {
+        long v = 0;
+        for (int i = 0; i < 8; i++)
+            v = (v << 8) | (b[off + i] & 0xff);
+        return v;
+    }
+
+    private static void putLong(byte[] b, int off, long v) {
+        for (int i = 7; i >= 0; i--) {
+            b[off + i] = (byte) v;
+            v >>>= 8;
+        }
+    }
+
+    /**
+     * A decrypted block, its data at {@link #DATA_OFFSET} in buf. buf is
+     * large enough to decrypt the stored block in place.
+     */
+    private static final class Block {
+        final long index;
+        final byte[] buf;
+        int length = 0;
+        boolean dirty = false;
+
+        Block(long index, byte[] buf) {
+            this.index = index;
+            this.buf = buf;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+
+package info.guardianproject.cacheword;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+
+/**
+ * Encrypts everything written to it with a key from CacheWord, in fixed size
+ * authenticated segments (see {@link CacheWordDecryptingInputStream} for
+ * reading it back). Memory use is one segment, whatever the size of the data,
+ * and the segment buffer comes from a shared pool.
+ * <p>
+ * {@link #close()} writes the final segment, which marks the end of the data;
+ * a stream that isn't closed can't be decrypted completely. {@link #flush()}
+ * only flushes what complete segments have been written.
+ */
+public class CacheWordEncryptingOutputStream extends OutputStream {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+
+    private final OutputStream mOut;
+    private final int mSegmentSize;
+    private final byte[] mNonce = new byte[AeadCipher.NONCE_LEN_BYTES];
+    private AeadCipher mCipher;
+    private byte[] mBuffer;
+    private int mBuffered = 0;
+    private long mSegmentIndex = 0;
+    private boolean mClosed = false;
+
+    /**
+     * Encrypt with CacheWord's current key, using the preferred cipher.
+     *
+     * @throws CacheWordLockedException if CacheWord is locked
+     */
+    public CacheWordEncryptingOutputStream(CacheWordHandler cacheWord, OutputStream out)
+            throws IOException {
+        this(getKey(cacheWord), true, out, CryptoProviders.getPreferredAead(),
+                DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param x_key a 256 bit key NOT WIPED
+     */
+    public CacheWordEncryptingOutputStream(byte[] x_key, OutputStream out) throws IOException {
+        this(x_key, false, out, CryptoProviders.getPreferredAead(), DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param x_key a 256 bit key NOT WIPED
+     * @param cipherId one of the {@code Constants.CIPHER_*} ids
+     * @param segmentSize plaintext bytes per segment
+     */
+    public CacheWordEncryptingOutputStream(byte[] x_key, OutputStream out, int cipherId,
+            int segmentSize) throws IOException {
+        this(x_key, false, out, cipherId, segmentSize);
+    }
+
+    private CacheWordEncryptingOutputStream(byte[] x_key, boolean wipeKey, OutputStream out,
+            int cipherId, int segmentSize) throws IOException {
+        try {
+            byte[] header = SegmentedAead.newHeader(cipherId, segmentSize);
+            mCipher = SegmentedAead.newCipher(x_key, header);
+            mOut = out;
+            mSegmentSize = segmentSize;
+            mBuffer = BufferPool.acquire(segmentSize + AeadCipher.TAG_LEN_BYTES);
+            mOut.write(header);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("could not set up encryption: " + e.getMessage(), e);
+        } finally {
+            if (wipeKey)
+                Wiper.wipe(x_key);
+        }
+    }
+
+    /**
+     * @return the ciphertext size for plaintextLength bytes written with the
+     *         given segment size, including the header
+     */
+    public static long getCiphertextLength(long plaintextLength, int segmentSize) {
+        // a full last segment carries the final flag itself, only an empty
+        // stream needs an empty segment
+        long segments = Math.max(1, (plaintextLength + segmentSize - 1) / segmentSize);
+        return SegmentedAead.HEADER_LEN + plaintextLength + segments * AeadCipher.TAG_LEN_BYTES;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (mBuffered == mSegmentSize)
+            writeSegment(false);
+        mBuffer[mBuffered++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (off < 0 || len < 0 || off + len > b.length)
+            throw new IndexOutOfBoundsException();
+        while (len > 0) {
+            // a full segment is only written once more data follows, the
+            // last one must carry the final flag
+            if (mBuffered == mSegmentSize)
+                writeSegment(false);
+            int n = Math.min(len, mSegmentSize - mBuffered);
+            System.arraycopy(b, off, mBuffer, mBuffered, n);
+            mBuffered += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        mOut.flush();
+    }
+
+    /**
+     * Write the final segment, wipe the key and close the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed)
+            return;
+        try {
+            writeSegment(true);
+            mOut.flush();
+        } finally {
+            mClosed = true;
+            release();
+            mOut.close();
+        }
+    }
+
+    // / private methods
+    // ////////////////////////////////////
+
+    private static byte[] getKey(CacheWordHandler cacheWord) {
+        byte[] key = cacheWord.getEncryptionKey();
+        if (key == null)
+            throw new CacheWordLockedException();
+        return key;
+    }
+
+    private void writeSegment(boolean last) throws IOException {
+        SegmentedAead.segmentNonce(mNonce, mSegmentIndex, last);
+        int n;
+        try {
+            n = mCipher.encrypt(mNonce, null, mBuffer, 0, mBuffered, mBuffer, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("encrypting segment " + mSegmentIndex + " failed: "
+                    + e.getMessage(), e);
+        }
+        mOut.write(mBuffer, 0, n);
+        mSegmentIndex++;
+        mBuffered = 0;
+    }
+
+    private void release() {
+        if (mCipher != null)
+            mCipher.wipe();
+        mCipher = null;
+        BufferPool.release(mBuffer);
+        mBuffer = null;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (mClosed)
+            throw new IOException("Stream closed");
+    }
+}
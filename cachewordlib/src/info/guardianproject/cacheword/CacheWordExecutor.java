@@ -0,0 +1,461 @@
+
+package info.guardianproject.cacheword;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An executor for background work on encrypted data, which only runs tasks
+ * while CacheWord is unlocked.
+ * <p>
+ * Tasks are queued by priority, highest first, and in submission order within
+ * a priority. When CacheWord locks, tasks still running are cancelled, which
+ * interrupts them, and the lock waits for them to return before databases
+ * are closed; tasks should check {@link Thread#isInterrupted()} in long
+ * loops. Queued tasks are kept and run once {@link #resume()} is called after
+ * the next unlock, for example from
+ * {@link ICacheWordSubscriber#onCacheWordOpened()}.
+ * <p>
+ * {@link #shutdown()} lets the queued tasks run at the next unlock; use
+ * {@link #shutdownNow()} to drop them.
+ */
+public class CacheWordExecutor extends AbstractExecutorService implements
+        ICacheWordLockParticipant {
+    private static final String TAG = "CacheWordExecutor";
+
+    public static final int PRIORITY_LOW = -10;
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_HIGH = 10;
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    // signalled when a task is queued, CacheWord unlocks or the executor shuts down
+    private final Condition mWork = mLock.newCondition();
+    // signalled when a task finishes or a worker exits
+    private final Condition mIdle = mLock.newCondition();
+    private final AtomicLong mSequence = new AtomicLong();
+
+    // the following are guarded by mLock
+    private final PriorityQueue<Task<?>> mQueue = new PriorityQueue<Task<?>>();
+    private final Set<Task<?>> mRunning = new HashSet<Task<?>>();
+    private boolean mUnlocked;
+    private boolean mShutdown = false;
+    private int mLiveWorkers;
+    private long mStarted = 0;
+    private long mTotalWaitNanos = 0;
+    private long mMaxWaitNanos = 0;
+    private long mCancelledOnLock = 0;
+
+    /**
+     * Creates an executor that is paused until {@link #resume()} is called.
+     *
+     * @param threads the number of worker threads
+     */
+    public CacheWordExecutor(int threads) {
+        this(threads, false);
+    }
+
+    /**
+     * Creates an executor that runs tasks right away if CacheWord is unlocked.
+     *
+     * @param threads the number of worker threads
+     */
+    public CacheWordExecutor(CacheWordHandler cacheWord, int threads) {
+        this(threads, !cacheWord.isLocked());
+    }
+
+    private CacheWordExecutor(int threads, boolean unlocked) {
+        if (threads < 1)
+            throw new IllegalArgumentException("invalid number of threads " + threads);
+        mUnlocked = unlocked;
+        mLiveWorkers = threads;
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(new Worker(), TAG + "-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        // stop tasks before the databases and file systems they use close
+        LockOrchestrator.getInstance().register(this, LockOrchestrator.STAGE_FLUSH);
+    }
+
+    /**
+     * Queue a task with {@link #PRIORITY_NORMAL}.
+     */
+    @Override
+    public void execute(Runnable command) {
+        // submit() and invokeAll() pass tasks made by newTaskFor
+        if (command instanceof Task)
+            enqueue((Task<?>) command);
+        else
+            enqueue(newTaskFor(command, null, PRIORITY_NORMAL));
+    }
+
+    /**
+     * @param priority higher priorities run first
+     */
+    public Future<?> submit(Runnable task, int priority) {
+        return enqueue(newTaskFor(task, null, priority));
+    }
+
+    /**
+     * @param priority higher priorities run first
+     */
+    public <T> Future<T> submit(Callable<T> task, int priority) {
+        return enqueue(new Task<T>(task, priority, mSequence.getAndIncrement()));
+    }
+
+    /**
+     * Start or continue running queued tasks. Call this once CacheWord is
+     * unlocked.
+     */
+    public void resume() {
+        mLock.lock();
+        try {
+            mUnlocked = true;
+            mWork.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Stop taking tasks from the queue, as on lock, but let running tasks
+     * finish.
+     */
+    public void pause() {
+        mLock.lock();
+        try {
+            mUnlocked = false;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public boolean isPaused() {
+        mLock.lock();
+        try {
+            return !mUnlocked;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of tasks waiting to run
+     */
+    public int getQueueLength() {
+        mLock.lock();
+        try {
+            return mQueue.size();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public int getRunningCount() {
+        mLock.lock();
+        try {
+            return mRunning.size();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return the mean time tasks waited in the queue before running, in
+     *         milliseconds
+     */
+    public long getAverageWaitMillis() {
+        mLock.lock();
+        try {
+            return mStarted == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(mTotalWaitNanos / mStarted);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public long getMaxWaitMillis() {
+        mLock.lock();
+        try {
+            return TimeUnit.NANOSECONDS.toMillis(mMaxWaitNanos);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return how long the oldest queued task has been waiting, in
+     *         milliseconds
+     */
+    public long getOldestWaitMillis() {
+        mLock.lock();
+        try {
+            long oldest = Long.MAX_VALUE;
+            for (Task<?> t : mQueue)
+                oldest = Math.min(oldest, t.queuedNanos);
+            return mQueue.isEmpty() ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+                    - oldest);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of running tasks cancelled because CacheWord locked
+     */
+    public long getCancelledOnLockCount() {
+        mLock.lock();
+        try {
+            return mCancelledOnLock;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Park the queue and cancel running tasks, then wait for them to return.
+     */
+    @Override
+    public void onCacheWordLocking() {
+        mLock.lock();
+        try {
+            cancelRunning();
+            while (!mRunning.isEmpty())
+                mIdle.await();
+        } catch (InterruptedException e) {
+            // past the deadline, forceWipe follows
+            Thread.currentThread().interrupt();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public String getName() {
+        return TAG;
+    }
+
+    /**
+     * Park the queue and cancel running tasks without waiting for them.
+     */
+    @Override
+    public void forceWipe() {
+        // the lock is only held briefly, never while a task runs
+        mLock.lock();
+        try {
+            cancelRunning();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        mLock.lock();
+        try {
+            mShutdown = true;
+            mWork.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        List<Runnable> dropped = new ArrayList<Runnable>();
+        mLock.lock();
+        try {
+            mShutdown = true;
+            dropped.addAll(mQueue);
+            mQueue.clear();
+            for (Task<?> t : mRunning)
+                t.cancel(true);
+            mWork.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+        return dropped;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        mLock.lock();
+        try {
+            return mShutdown;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isTerminated() {
+        mLock.lock();
+        try {
+            return mShutdown && mLiveWorkers == 0;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        mLock.lock();
+        try {
+            while (!(mShutdown && mLiveWorkers == 0)) {
+                if (nanos <= 0)
+                    return false;
+                nanos = mIdle.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+        return newTaskFor(runnable, value, PRIORITY_NORMAL);
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+        return new Task<T>(callable, PRIORITY_NORMAL, mSequence.getAndIncrement());
+    }
+
+    // / private methods
+    // ////////////////////////////////////
+
+    private <T> Task<T> newTaskFor(Runnable runnable, T value, int priority) {
+        return new Task<T>(runnable, value, priority, mSequence.getAndIncrement());
+    }
+
+    private <T> Task<T> enqueue(Task<T> task) {
+        mLock.lock();
+        try {
+            if (mShutdown)
+                throw new RejectedExecutionException("CacheWordExecutor is shut down");
+            task.queuedNanos = System.nanoTime();
+            mQueue.add(task);
+            mWork.signal();
+        } finally {
+            mLock.unlock();
+        }
+        return task;
+    }
+
+    // call with mLock held
+    private void cancelRunning() {
+        mUnlocked = false;
+        for (Task<?> t : mRunning) {
+            if (t.cancel(true))
+                mCancelledOnLock++;
+        }
+        if (!mRunning.isEmpty())
+            Log.d(TAG, "cancelled " + mRunning.size() + " running tasks, "
+                    + mQueue.size() + " queued");
+    }
+
+    private Task<?> take() throws InterruptedException {
+        mLock.lock();
+        try {
+            while (true) {
+                if (mUnlocked && !mQueue.isEmpty()) {
+                    Task<?> task = mQueue.poll();
+                    long wait = System.nanoTime() - task.queuedNanos;
+                    mStarted++;
+                    mTotalWaitNanos += wait;
+                    mMaxWaitNanos = Math.max(mMaxWaitNanos, wait);
+                    mRunning.add(task);
+                    return task;
+                }
+                if (mShutdown && mQueue.isEmpty())
+                    return null;
+                mWork.await();
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void finished(Task<?> task) {
+        mLock.lock();
+        try {
+            mRunning.remove(task);
+            mIdle.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+        // clear an interrupt from a cancel that raced with the task's end
+        Thread.interrupted();
+    }
+
+    private final class Worker implements Runnable {
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            try {
+                Task<?> task;
+                while ((task = take()) != null) {
+                    try {
+                        task.run();
+                    } finally {
+                        finished(task);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // exit
+            } finally {
+                mLock.lock();
+                try {
+                    mLiveWorkers--;
+                    mIdle.signalAll();
+                    if (mLiveWorkers == 0)
+                        LockOrchestrator.getInstance().unregister(CacheWordExecutor.this);
+                } finally {
+                    mLock.unlock();
+                }
+            }
+        }
+    }
+
+    private static final class Task<T> extends FutureTask<T> implements Comparable<Task<?>> {
+        final int priority;
+        final long sequence;
+        long queuedNanos;
+
+        Task(Callable<T> callable, int priority, long sequence) {
+            super(callable);
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        Task(Runnable runnable, T value, int priority, long sequence) {
+            super(runnable, value);
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Task<?> other) {
+            if (priority != other.priority)
+                return priority > other.priority ? -1 : 1;
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+}
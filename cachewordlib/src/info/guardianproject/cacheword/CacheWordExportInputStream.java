@@ -0,0 +1,240 @@
+
+package info.guardianproject.cacheword;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Reads an export written by {@link CacheWordExportOutputStream}. Chunks are
+ * read from the underlying stream on the calling thread and decrypted and
+ * inflated in parallel ahead of the reader, at most two per core at a time.
+ * <p>
+ * Every chunk is authenticated before any of its data is returned. An export
+ * that ends early, or has been reordered or modified, fails with an
+ * IOException at the first bad chunk.
+ */
+public class CacheWordExportInputStream extends InputStream {
+
+    private final InputStream mIn;
+    private final ExecutorService mExecutor;
+    private final int mCipherId;
+    private final int mChunkSize;
+    private final int mMaxInFlight;
+    private final ArrayDeque<ChunkPipeline.Task> mInFlight = new ArrayDeque<ChunkPipeline.Task>();
+    private final byte[] mLength = new byte[Constants.INT_LENGTH];
+    private final byte[] mSingleByte = new byte[1];
+    private byte[] mKey;
+    private byte[] mChunk;
+    private int mPosition = 0;
+    // length of the next chunk in the input, -1 at the end
+    private int mNextLength;
+    private long mChunkIndex = 0;
+    private boolean mClosed = false;
+
+    /**
+     * Read with CacheWord's current key.
+     *
+     * @throws CacheWordLockedException if CacheWord is locked
+     */
+    public CacheWordExportInputStream(CacheWordHandler cacheWord, InputStream in)
+            throws IOException {
+        this(getKey(cacheWord), true, in, ChunkPipeline.getExecutor());
+    }
+
+    /**
+     * @param x_key the 256 bit key the export was written with NOT WIPED
+     */
+    public CacheWordExportInputStream(byte[] x_key, InputStream in) throws IOException {
+        this(x_key, false, in, ChunkPipeline.getExecutor());
+    }
+
+    /**
+     * @param x_key the 256 bit key the export was written with NOT WIPED
+     * @param executor runs the decryption and decompression, null for the
+     *            shared pool
+     */
+    public CacheWordExportInputStream(byte[] x_key, InputStream in, ExecutorService executor)
+            throws IOException {
+        this(x_key, false, in, executor != null ? executor : ChunkPipeline.getExecutor());
+    }
+
+    private CacheWordExportInputStream(byte[] x_key, boolean wipeKey, InputStream in,
+            ExecutorService executor) throws IOException {
+        try {
+            byte[] header = new byte[SegmentedAead.HEADER_LEN];
+            if (readFully(in, header, 0, header.length) < header.length)
+                throw new IOException("truncated header");
+            SegmentedAead.checkHeader(header, SegmentedAead.EXPORT_MAGIC);
+            mIn = in;
+            mExecutor = executor;
+            mCipherId = SegmentedAead.getCipherId(header);
+            mChunkSize = SegmentedAead.getSegmentSize(header);
+            mMaxInFlight = 2 * ChunkPipeline.getParallelism();
+            AeadCipher.getInstance(mCipherId, x_key).wipe();
+            mKey = SegmentedAead.deriveKey(x_key, header);
+            mNextLength = readLength();
+            if (mNextLength < 0)
+                throw new IOException("export has no data, it is truncated");
+        } catch (GeneralSecurityException e) {
+            throw new IOException("could not set up decryption: " + e.getMessage(), e);
+        } finally {
+            if (wipeKey)
+                Wiper.wipe(x_key);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        int n = read(mSingleByte, 0, 1);
+        return n <= 0 ? -1 : mSingleByte[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (off < 0 || len < 0 || off + len > b.length)
+            throw new IndexOutOfBoundsException();
+        if (len == 0)
+            return 0;
+        while (mChunk == null || mPosition == mChunk.length) {
+            if (!nextChunk())
+                return -1;
+        }
+        int n = Math.min(len, mChunk.length - mPosition);
+        System.arraycopy(mChunk, mPosition, b, off, n);
+        mPosition += n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        ensureOpen();
+        return mChunk == null ? 0 : mChunk.length - mPosition;
+    }
+
+    /**
+     * Stop decrypting ahead, wipe the key and buffered data and close the
+     * underlying stream. Chunks being decrypted are waited for, so no worker
+     * uses the key after it is wiped.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed)
+            return;
+        mClosed = true;
+        for (ChunkPipeline.Task task : mInFlight)
+            task.abandon();
+        mInFlight.clear();
+        wipeChunk();
+        Wiper.wipe(mKey);
+        mIn.close();
+    }
+
+    // / private methods
+    // ////////////////////////////////////
+
+    private static byte[] getKey(CacheWordHandler cacheWord) {
+        byte[] key = cacheWord.getEncryptionKey();
+        if (key == null)
+            throw new CacheWordLockedException();
+        return key;
+    }
+
+    /**
+     * @return false at the end of the export
+     */
+    private boolean nextChunk() throws IOException {
+        wipeChunk();
+        fillPipeline();
+        ChunkPipeline.Task next = mInFlight.peek();
+        if (next == null)
+            return false;
+        try {
+            mChunk = next.getFuture().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while importing");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            throw new IOException("decrypting a chunk failed: " + cause.getMessage(), cause);
+        }
+        mInFlight.poll();
+        mPosition = 0;
+        fillPipeline();
+        return true;
+    }
+
+    private void fillPipeline() throws IOException {
+        while (mInFlight.size() < mMaxInFlight && mNextLength >= 0) {
+            if (mNextLength < AeadCipher.TAG_LEN_BYTES + ChunkPipeline.FLAG_LEN
+                    || mNextLength > ChunkPipeline.maxCiphertextLength(mChunkSize))
+                throw new IOException("chunk " + mChunkIndex + " has an invalid length");
+            final byte[] ciphertext = new byte[mNextLength];
+            if (readFully(mIn, ciphertext, 0, ciphertext.length) < ciphertext.length)
+                throw new IOException("export truncated in chunk " + mChunkIndex);
+            mNextLength = readLength();
+            // the chunk is the last one iff nothing follows it
+            final boolean last = mNextLength < 0;
+            final long index = mChunkIndex++;
+            mInFlight.add(new ChunkPipeline.Task() {
+                @Override
+                byte[] run() throws IOException {
+                    return ChunkPipeline.decode(mCipherId, mKey, index, last, ciphertext,
+                            mChunkSize);
+                }
+
+                @Override
+                void discard() {
+                    Wiper.wipe(ciphertext);
+                }
+            }.submit(mExecutor));
+        }
+    }
+
+    /**
+     * @return the length prefix of the next chunk, or -1 at the end of the
+     *         input
+     */
+    private int readLength() throws IOException {
+        int n = readFully(mIn, mLength, 0, mLength.length);
+        if (n == 0)
+            return -1;
+        if (n < mLength.length)
+            throw new IOException("export truncated after chunk " + (mChunkIndex - 1));
+        int length = ((mLength[0] & 0xff) << 24) | ((mLength[1] & 0xff) << 16)
+                | ((mLength[2] & 0xff) << 8) | (mLength[3] & 0xff);
+        // only the end of the input ends the export
+        if (length < 0)
+            throw new IOException("chunk " + mChunkIndex + " has an invalid length");
+        return length;
+    }
+
+    private void wipeChunk() {
+        if (mChunk != null)
+            Wiper.wipe(mChunk);
+        mChunk = null;
+    }
+
+    private static int readFully(InputStream in, byte[] b, int off, int len) throws IOException {
+        int total = 0;
+        while (total < len) {
+            int n = in.read(b, off + total, len - total);
+            if (n < 0)
+                break;
+            total += n;
+        }
+        return total;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (mClosed)
+            throw new IOException("Stream closed");
+    }
+}
@@ -0,0 +1,210 @@
+
+package info.guardianproject.cacheword;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Compresses and encrypts everything written to it for export or backup,
+ * splitting it into chunks that are deflated and encrypted in parallel, one
+ * per core, and written to the underlying stream in order. Read it back with
+ * {@link CacheWordExportInputStream}.
+ * <p>
+ * At most two chunks per core are in flight, so memory use is bounded by the
+ * chunk size and the number of cores rather than the size of the data. The
+ * writing thread blocks while the pipeline is full.
+ * <p>
+ * {@link #close()} writes the final chunk, which marks the end of the data;
+ * an export that isn't closed can't be read completely.
+ */
+public class CacheWordExportOutputStream extends OutputStream {
+
+    public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+
+    private final OutputStream mOut;
+    private final ExecutorService mExecutor;
+    private final int mCipherId;
+    private final int mChunkSize;
+    private final int mMaxInFlight;
+    private final ArrayDeque<ChunkPipeline.Task> mInFlight = new ArrayDeque<ChunkPipeline.Task>();
+    private byte[] mKey;
+    private byte[] mChunk;
+    private int mBuffered = 0;
+    private long mChunkIndex = 0;
+    private boolean mClosed = false;
+
+    /**
+     * Export with CacheWord's current key, using the preferred cipher.
+     *
+     * @throws CacheWordLockedException if CacheWord is locked
+     */
+    public CacheWordExportOutputStream(CacheWordHandler cacheWord, OutputStream out)
+            throws IOException {
+        this(getKey(cacheWord), true, out, CryptoProviders.getPreferredAead(),
+                DEFAULT_CHUNK_SIZE, ChunkPipeline.getExecutor());
+    }
+
+    /**
+     * @param x_key a 256 bit key NOT WIPED
+     */
+    public CacheWordExportOutputStream(byte[] x_key, OutputStream out) throws IOException {
+        this(x_key, false, out, CryptoProviders.getPreferredAead(), DEFAULT_CHUNK_SIZE,
+                ChunkPipeline.getExecutor());
+    }
+
+    /**
+     * @param x_key a 256 bit key NOT WIPED
+     * @param cipherId one of the {@code Constants.CIPHER_*} ids
+     * @param chunkSize input bytes per chunk
+     * @param executor runs the compression and encryption, null for the
+     *            shared pool
+     */
+    public CacheWordExportOutputStream(byte[] x_key, OutputStream out, int cipherId,
+            int chunkSize, ExecutorService executor) throws IOException {
+        this(x_key, false, out, cipherId, chunkSize,
+                executor != null ? executor : ChunkPipeline.getExecutor());
+    }
+
+    private CacheWordExportOutputStream(byte[] x_key, boolean wipeKey, OutputStream out,
+            int cipherId, int chunkSize, ExecutorService executor) throws IOException {
+        try {
+            byte[] header = SegmentedAead.newHeader(SegmentedAead.EXPORT_MAGIC, cipherId,
+                    chunkSize);
+            // fail here rather than in the first chunk if the cipher is unusable
+            AeadCipher.getInstance(cipherId, x_key).wipe();
+            mKey = SegmentedAead.deriveKey(x_key, header);
+            mOut = out;
+            mExecutor = executor;
+            mCipherId = cipherId;
+            mChunkSize = chunkSize;
+            mMaxInFlight = 2 * ChunkPipeline.getParallelism();
+            mChunk = BufferPool.acquire(chunkSize);
+            mOut.write(header);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("could not set up encryption: " + e.getMessage(), e);
+        } finally {
+            if (wipeKey)
+                Wiper.wipe(x_key);
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (mBuffered == mChunkSize)
+            submitChunk(false);
+        mChunk[mBuffered++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (off < 0 || len < 0 || off + len > b.length)
+            throw new IndexOutOfBoundsException();
+        while (len > 0) {
+            // a full chunk is only submitted once more data follows, the last
+            // one must carry the final flag
+            if (mBuffered == mChunkSize)
+                submitChunk(false);
+            int n = Math.min(len, mChunkSize - mBuffered);
+            System.arraycopy(b, off, mChunk, mBuffered, n);
+            mBuffered += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Wait for the chunks in flight and write them. Data not yet making up a
+     * full chunk stays buffered.
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        while (!mInFlight.isEmpty())
+            writeOldest();
+        mOut.flush();
+    }
+
+    /**
+     * Write the final chunk and everything in flight, wipe the key and close
+     * the underlying stream. If that fails, the chunks still in flight are
+     * abandoned and wiped, and the key is wiped once no worker uses it.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed)
+            return;
+        try {
+            submitChunk(true);
+            while (!mInFlight.isEmpty())
+                writeOldest();
+            mOut.flush();
+        } finally {
+            mClosed = true;
+            for (ChunkPipeline.Task task : mInFlight)
+                task.abandon();
+            mInFlight.clear();
+            BufferPool.release(mChunk);
+            mChunk = null;
+            Wiper.wipe(mKey);
+            mOut.close();
+        }
+    }
+
+    // / private methods
+    // ////////////////////////////////////
+
+    private static byte[] getKey(CacheWordHandler cacheWord) {
+        byte[] key = cacheWord.getEncryptionKey();
+        if (key == null)
+            throw new CacheWordLockedException();
+        return key;
+    }
+
+    private void submitChunk(final boolean last) throws IOException {
+        while (mInFlight.size() >= mMaxInFlight)
+            writeOldest();
+        final byte[] chunk = mChunk;
+        final int length = mBuffered;
+        final long index = mChunkIndex++;
+        mChunk = last ? null : BufferPool.acquire(mChunkSize);
+        mBuffered = 0;
+        mInFlight.add(new ChunkPipeline.Task() {
+            @Override
+            byte[] run() throws GeneralSecurityException {
+                return ChunkPipeline.encode(mCipherId, mKey, index, last, chunk, length);
+            }
+
+            @Override
+            void discard() {
+                BufferPool.release(chunk);
+            }
+        }.submit(mExecutor));
+    }
+
+    private void writeOldest() throws IOException {
+        byte[] framed;
+        try {
+            framed = mInFlight.peek().getFuture().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while exporting");
+        } catch (ExecutionException e) {
+            throw new IOException("encrypting a chunk failed: " + e.getCause().getMessage(),
+                    e.getCause());
+        }
+        mInFlight.poll();
+        mOut.write(framed);
+    }
+
+    private void ensureOpen() throws IOException {
+        if (mClosed)
+            throw new IOException("Stream closed");
+    }
+}
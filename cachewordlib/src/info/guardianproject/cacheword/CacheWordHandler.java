@@ -11,18 +11,25 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
+import android.net.Uri;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
 import java.io.IOException;
 import java.security.GeneralSecurityException;
+import java.util.concurrent.Future;
 
 /**
  * This class is designed to accompany any Activity that is interested in the
  * secrets cached by CacheWord. <i>The context provided in the constructor must
  * implement the ICacheWordSubscriber interface.</i> This is so the Activity can
  * be alerted to the state change events.
+ * <p>
+ * A handler works on one namespace of secrets, see {@link CacheWordService}.
+ * Apps with several accounts can keep a handler per account; they all share
+ * the one service, and each only receives the events of its own namespace.
  */
 public class CacheWordHandler {
     private static final String TAG = "CacheWordHandler";
@@ -30,8 +37,10 @@ public class CacheWordHandler {
     private Context mContext;
     private CacheWordService mCacheWordService;
     private ICacheWordSubscriber mSubscriber;
+    private String mNamespace = Constants.DEFAULT_NAMESPACE;
     private Notification mNotification;
     private int mTimeout;
+    private boolean mHeadless = false;
 
     /**
      * Timeout: How long to wait before automatically locking and wiping the
@@ -137,11 +146,48 @@ public class CacheWordHandler {
      */
     public CacheWordHandler(Context context, ICacheWordSubscriber subscriber,
             int timeout) {
+        this(context, subscriber, Constants.DEFAULT_NAMESPACE, timeout);
+    }
+
+    /**
+     * Initializes a {@code CacheWordHandler} for the secrets of one
+     * namespace, for example an account. Each namespace has its own
+     * passphrase, timeout and lock state.
+     *
+     * @param context your {@link Application}'s or {@link Activity}'s context
+     * @param subscriber the object to notify of the namespace's events
+     * @param namespace letters, digits, '.', '_' and '-'
+     * @param timeout the time in seconds before the namespace automatically
+     *            locks
+     */
+    public CacheWordHandler(Context context, ICacheWordSubscriber subscriber,
+            String namespace, int timeout) {
+        SecretsManager.checkNamespace(namespace);
         mContext = context;
         mSubscriber = subscriber;
+        mNamespace = namespace;
         mTimeout = timeout;
     }
 
+    /**
+     * Creates a {@code CacheWordHandler} for components without a user
+     * interface, such as a {@code ContentProvider} or a background
+     * {@code Service}. A headless handler receives CacheWord events and can
+     * fetch the secrets, but it is never counted as an attached subscriber, so
+     * it doesn't keep CacheWord from timing out, and it leaves the timeout and
+     * notification settings of the service alone.
+     *
+     * @param context your {@link Application}'s context
+     * @param subscriber the object to notify of CacheWord events
+     */
+    public static CacheWordHandler createHeadless(Context context,
+            ICacheWordSubscriber subscriber) {
+        CacheWordHandler handler = new CacheWordHandler(context, subscriber,
+                DEFAULT_TIMEOUT_SECONDS);
+        handler.mHeadless = true;
+        return handler;
+    }
+
     /**
      * Connect to {@link CacheWordService}, starting it if necessary. Once
      * connected, the attached {@code Context} will begin receiving CacheWord
@@ -152,6 +198,9 @@ public class CacheWordHandler {
         if (isCacheWordConnected())
             return;
 
+        // get ready for the unlock while the service starts
+        CacheWord.bootstrap(mContext);
+
         Intent cacheWordIntent = getBlankServiceIntent(mContext);
         /*
          * We start AND bind the service starting - ensures the cacheword
@@ -167,14 +216,34 @@ public class CacheWordHandler {
 
     }
 
+    /**
+     * Wait for a connection started with {@link #connectToService()} to
+     * complete. The connection completes on the main thread, so don't call
+     * this from there.
+     *
+     * @param timeoutMillis how long to wait at most
+     * @return true if connected to the service
+     * @throws InterruptedException
+     */
+    public synchronized boolean awaitConnection(long timeoutMillis) throws InterruptedException {
+        long deadline = SystemClock.elapsedRealtime() + timeoutMillis;
+        while (mConnectionState == ServiceConnectionState.CONNECTION_INPROGRESS) {
+            long remaining = deadline - SystemClock.elapsedRealtime();
+            if (remaining <= 0)
+                break;
+            wait(remaining);
+        }
+        return mConnectionState == ServiceConnectionState.CONNECTION_ACTIVE;
+    }
+
     /**
      * Detach but don't disconnect from {@link CacheWordService}. CacheWord
      * events will continue to be received, but this client will not be
      * considered when performing automatic timeouts.
      */
     public void detach() {
-        if (mCacheWordService != null) {
-            mCacheWordService.detachSubscriber();
+        if (mCacheWordService != null && !mHeadless) {
+            mCacheWordService.detachSubscriber(mNamespace);
         }
     }
 
@@ -182,8 +251,8 @@ public class CacheWordHandler {
      * Reattach to the CacheWord service.
      */
     public void reattach() {
-        if (mCacheWordService != null) {
-            mCacheWordService.attachSubscriber();
+        if (mCacheWordService != null && !mHeadless) {
+            mCacheWordService.attachSubscriber(mNamespace);
         }
     }
 
@@ -194,10 +263,12 @@ public class CacheWordHandler {
     public void disconnectFromService() {
         synchronized (this) {
             mConnectionState = ServiceConnectionState.CONNECTION_CANCELED;
+            notifyAll();
 
             if (mBoundState == BindState.BIND_COMPLETED) {
                 if (mCacheWordService != null) {
-                    mCacheWordService.detachSubscriber();
+                    if (!mHeadless)
+                        mCacheWordService.detachSubscriber(mNamespace);
                     mCacheWordService = null;
                 }
                 mContext.unbindService(mCacheWordServiceConnection);
@@ -216,7 +287,7 @@ public class CacheWordHandler {
         if (!isCacheWordConnected())
             return null;
 
-        return mCacheWordService.getCachedSecrets();
+        return mCacheWordService.getCachedSecrets(mNamespace);
     }
 
     public byte[] getEncryptionKey() {
@@ -236,7 +307,20 @@ public class CacheWordHandler {
         if (!isCacheWordConnected())
             return;
 
-        mCacheWordService.setCachedSecrets(secrets);
+        mCacheWordService.setCachedSecrets(mNamespace, secrets);
+    }
+
+    /**
+     * Write the secrets into CacheWord, but only if it still holds expected.
+     *
+     * @return false if CacheWord was locked or unlocked with other secrets
+     *         meanwhile
+     */
+    boolean replaceCachedSecrets(ICachedSecrets expected, ICachedSecrets secrets) {
+        if (!isCacheWordConnected())
+            return false;
+
+        return mCacheWordService.replaceCachedSecrets(mNamespace, expected, secrets);
     }
 
     /**
@@ -247,15 +331,24 @@ public class CacheWordHandler {
      * @throws GeneralSecurityException on invalid password
      */
     public void setPassphrase(char[] passphrase) throws GeneralSecurityException {
-        final PassphraseSecrets ps;
-        if (SecretsManager.isInitialized(mContext)) {
-            ps = PassphraseSecrets.fetchSecrets(mContext, passphrase);
-        } else {
-            ps = PassphraseSecrets.initializeSecrets(mContext, passphrase);
-            if (ps == null)
-                throw new GeneralSecurityException("initializeSecrets could not save the secrets.");
-        }
-        setCachedSecrets(ps);
+        setCachedSecrets(PassphraseSecrets.initializeOrFetchSecrets(mContext, mNamespace,
+                passphrase));
+    }
+
+    /**
+     * Like {@link #setPassphrase(char[])}, but derives the key on the
+     * service's key derivation pool instead of the calling thread.
+     *
+     * @param passphrase WIPED
+     * @return the secrets, or a {@link GeneralSecurityException} on an invalid
+     *         passphrase
+     * @throws IllegalStateException
+     */
+    public Future<ICachedSecrets> setPassphraseAsync(char[] passphrase)
+            throws IllegalStateException {
+        if (!isCacheWordConnected())
+            throw new IllegalStateException("CacheWord not connected");
+        return mCacheWordService.unlock(mNamespace, passphrase);
     }
 
     /**
@@ -273,12 +366,12 @@ public class CacheWordHandler {
      */
     public PassphraseSecrets changePassphrase(PassphraseSecrets current_secrets,
             char[] new_passphrase) throws IOException {
-        if (!SecretsManager.isInitialized(mContext)) {
+        if (!SecretsManager.isInitialized(mContext, mNamespace)) {
             throw new IllegalStateException(
                     "CacheWord is not initialized. Passphrase can't be changed");
         }
         PassphraseSecrets new_secrets = PassphraseSecrets.changePassphrase(mContext,
-                current_secrets, new_passphrase);
+                mNamespace, current_secrets, new_passphrase);
         if (new_secrets != null)
             return new_secrets;
         else
@@ -286,14 +379,15 @@ public class CacheWordHandler {
     }
 
     /**
-     * Request {@link CacheWordService} clear the secrets from memory. This is
-     * only a request! The cache should not be considered wiped and locked until
-     * the {@link ICacheWordSubscriber#onCacheWordLocked()} is received.
+     * Request {@link CacheWordService} clear the secrets from memory. Once
+     * this returns the secrets are no longer handed out, but they should not
+     * be considered wiped until {@link ICacheWordSubscriber#onCacheWordLocked()}
+     * is received.
      */
     public void lock() {
         if (!isPrepared())
             return;
-        mCacheWordService.lock();
+        mCacheWordService.lock(mNamespace);
     }
 
     /**
@@ -302,7 +396,7 @@ public class CacheWordHandler {
     public boolean isLocked() {
         if (!isPrepared())
             return true;
-        return mCacheWordService.isLocked();
+        return mCacheWordService.isLocked(mNamespace);
     }
 
     /**
@@ -315,7 +409,7 @@ public class CacheWordHandler {
     public void setTimeout(int seconds) throws IllegalStateException {
         if (!isCacheWordConnected())
             throw new IllegalStateException("CacheWord not connected");
-        mCacheWordService.setTimeout(seconds);
+        mCacheWordService.setTimeout(mNamespace, seconds);
     }
 
     /**
@@ -327,7 +421,7 @@ public class CacheWordHandler {
     public int getTimeout() throws IllegalStateException {
         if (!isCacheWordConnected())
             throw new IllegalStateException("CacheWord not connected");
-        return mCacheWordService.getTimeout();
+        return mCacheWordService.getTimeout(mNamespace);
     }
 
     /**
@@ -362,8 +456,25 @@ public class CacheWordHandler {
      * @return
      */
     static public PendingIntent getPasswordLockPendingIntent(Context context) {
+        return getPasswordLockPendingIntent(context, Constants.DEFAULT_NAMESPACE);
+    }
+
+    /**
+     * Get a {@link PendingIntent} that will cause {@link CacheWordService} to
+     * lock the given namespace once it is sent.
+     *
+     * @param context
+     * @param namespace
+     * @return
+     */
+    static public PendingIntent getPasswordLockPendingIntent(Context context, String namespace) {
         Intent notificationIntent = getBlankServiceIntent(context);
         notificationIntent.setAction(Constants.INTENT_LOCK_CACHEWORD);
+        notificationIntent.putExtra(Constants.EXTRA_NAMESPACE, namespace);
+        if (!namespace.equals(Constants.DEFAULT_NAMESPACE)) {
+            // extras don't tell PendingIntents apart, the data does
+            notificationIntent.setData(Uri.fromParts("cacheword", namespace, null));
+        }
         return PendingIntent.getService(context, 0, notificationIntent, 0);
     }
 
@@ -392,7 +503,7 @@ public class CacheWordHandler {
         } else if (!isCacheWordInitialized()) {
             newState = Constants.STATE_UNINITIALIZED;
             Log.d(TAG, "checkCacheWordState: STATE_UNINITIALIZED");
-        } else if (isCacheWordConnected() && mCacheWordService.isLocked()) {
+        } else if (isCacheWordConnected() && mCacheWordService.isLocked(mNamespace)) {
             newState = Constants.STATE_LOCKED;
             Log.d(TAG, "checkCacheWordState: STATE_LOCKED, but isCacheWordConnected()=="
                     + isCacheWordConnected());
@@ -421,11 +532,11 @@ public class CacheWordHandler {
     }
 
     private boolean isCacheWordInitialized() {
-        return SecretsManager.isInitialized(mContext);
+        return SecretsManager.isInitialized(mContext, mNamespace);
     }
 
     public void deinitialize() {
-        SecretsManager.setInitialized(mContext, false);
+        SecretsManager.setInitialized(mContext, mNamespace, false);
     }
 
     private boolean isPrepared() {
@@ -436,7 +547,10 @@ public class CacheWordHandler {
         @Override
         public void onReceive(Context context, Intent intent) {
             if (intent.getAction().equals(Constants.INTENT_NEW_SECRETS)) {
-                if (isCacheWordConnected()) {
+                String namespace = intent.getStringExtra(Constants.EXTRA_NAMESPACE);
+                if (namespace == null)
+                    namespace = Constants.DEFAULT_NAMESPACE;
+                if (isCacheWordConnected() && namespace.equals(mNamespace)) {
                     checkCacheWordState();
                 }
             }
@@ -454,11 +568,14 @@ public class CacheWordHandler {
                     if (mConnectionState == ServiceConnectionState.CONNECTION_INPROGRESS) {
                         mCacheWordService = cwBinder.getService();
                         registerBroadcastReceiver();
-                        mCacheWordService.attachSubscriber();
-                        mCacheWordService.setTimeout(mTimeout);
-                        mCacheWordService.setNotification(mNotification);
+                        if (!mHeadless) {
+                            mCacheWordService.attachSubscriber(mNamespace);
+                            mCacheWordService.setTimeout(mNamespace, mTimeout);
+                            mCacheWordService.setNotification(mNotification);
+                        }
                         mConnectionState = ServiceConnectionState.CONNECTION_ACTIVE;
                         mBoundState = BindState.BIND_COMPLETED;
+                        CacheWordHandler.this.notifyAll();
                         checkCacheWordState();
                     } else if (mConnectionState == ServiceConnectionState.CONNECTION_CANCELED) {
                         // race condition hit
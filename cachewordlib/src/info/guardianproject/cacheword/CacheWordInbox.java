@@ -0,0 +1,722 @@
+
+package info.guardianproject.cacheword;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A directory of records encrypted to a public key, so data arriving while
+ * CacheWord is locked, such as push messages or sync results, can be stored
+ * without being kept in plaintext until the next unlock.
+ * <p>
+ * An X25519 key pair is generated when the secrets are initialized. The
+ * public key is stored in the clear and the private key wrapped under the
+ * secret key, so {@link #deliver(List)} works while locked and
+ * {@link #ingest(CacheWordHandler, Sink)} only once unlocked. Each delivery
+ * is written as a batch file:
+ *
+ * <pre>
+ * batch  = magic "CWIB" | version (1) | cipher id (1) | ephemeral public key (32) | record...
+ * record = ciphertext length (4) | AEAD(batch key, nonce, data)
+ * </pre>
+ *
+ * The batch key is derived with HKDF-SHA256 from the X25519 agreement of a
+ * new ephemeral key pair and the inbox key, and the nonces are those of
+ * {@link SegmentedAead}, so records can't be reordered, dropped or appended.
+ * Batching many records into one delivery saves the key agreement per record.
+ * <p>
+ * Ingest decrypts batches in parallel, one per core, and hands their records
+ * to the sink in delivery order on the calling thread. A batch is deleted
+ * once all its records were accepted; if the sink fails, the batch is offered
+ * again by the next ingest, so records are delivered at least once. A batch
+ * that fails to decrypt is renamed aside and counted in
+ * {@link #getFailedBatches()}.
+ */
+public class CacheWordInbox {
+    private static final String TAG = "CacheWordInbox";
+
+    public static final String DEFAULT_DIRECTORY = "cacheword-inbox";
+
+    static final byte[] MAGIC = {
+            'C', 'W', 'I', 'B'
+    };
+    static final int VERSION = 1;
+    static final int HEADER_LEN = MAGIC.length + 1 + 1 + X25519.KEY_LEN_BYTES;
+    static final int MAX_RECORD_LEN = 1 << 24;
+
+    private static final String BATCH_SUFFIX = ".batch";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final String FAILED_SUFFIX = ".failed";
+    private static final byte[] HKDF_INFO = {
+            'c', 'a', 'c', 'h', 'e', 'w', 'o', 'r', 'd', ' ', 'i', 'n', 'b', 'o', 'x'
+    };
+    private static final byte[] WRAP_INFO = {
+            'c', 'a', 'c', 'h', 'e', 'w', 'o', 'r', 'd', ' ', 'i', 'n', 'b', 'o', 'x', ' ',
+            'k', 'e', 'y'
+    };
+
+    private static final SecureRandom sRandom = new SecureRandom();
+    private static final AtomicInteger sSequence = new AtomicInteger();
+
+    /**
+     * Receives ingested records.
+     */
+    public interface Sink {
+        /**
+         * Store a record. Called on the ingesting thread, in delivery order.
+         *
+         * @param x_record the decrypted record WIPED after the call returns
+         * @throws IOException to stop the ingest, the record's batch stays in
+         *             the inbox
+         */
+        public void onRecord(byte[] x_record) throws IOException;
+    }
+
+    private final Context mContext;
+    private final File mDirectory;
+    private final byte[] mPublicKey;
+    private final int mCipherId;
+
+    private final AtomicLong mDeliveredRecords = new AtomicLong();
+    private final AtomicLong mDeliveredBytes = new AtomicLong();
+    private final AtomicLong mDeliverNanos = new AtomicLong();
+    private final AtomicLong mIngestedRecords = new AtomicLong();
+    private final AtomicLong mIngestedBytes = new AtomicLong();
+    private final AtomicLong mIngestNanos = new AtomicLong();
+    private final AtomicLong mFailedBatches = new AtomicLong();
+
+    /**
+     * Open the app's inbox in {@link #DEFAULT_DIRECTORY} of its files
+     * directory.
+     *
+     * @throws IllegalStateException if CacheWord hasn't generated the inbox
+     *             key pair yet, that is, it has never been unlocked
+     */
+    public CacheWordInbox(Context ctx) {
+        mContext = ctx.getApplicationContext();
+        mDirectory = new File(ctx.getFilesDir(), DEFAULT_DIRECTORY);
+        mPublicKey = SecretsManager.getBytes(ctx, Constants.SHARED_PREFS_INBOX_PUBLIC_KEY);
+        if (mPublicKey == null || mPublicKey.length != X25519.KEY_LEN_BYTES)
+            throw new IllegalStateException("CacheWord has no inbox key pair yet");
+        mCipherId = CryptoProviders.getPreferredAead();
+    }
+
+    /**
+     * Open an inbox in any directory, for keys managed by the caller.
+     * Records are ingested with {@link #ingest(byte[], Sink)}.
+     *
+     * @param publicKey the X25519 public key records are encrypted to
+     * @param cipherId one of the {@code Constants.CIPHER_*} ids
+     */
+    public CacheWordInbox(File directory, byte[] publicKey, int cipherId) {
+        if (publicKey.length != X25519.KEY_LEN_BYTES)
+            throw new IllegalArgumentException("invalid X25519 public key");
+        mContext = null;
+        mDirectory = directory;
+        mPublicKey = publicKey.clone();
+        mCipherId = cipherId;
+    }
+
+    /**
+     * Generate a new inbox key pair, replacing any previous one, and store it.
+     * Called when the secrets are initialized.
+     *
+     * @param x_secretKey the secret key the private key is wrapped under NOT
+     *            WIPED
+     * @return whether the key pair was saved
+     */
+    public static boolean generateKeyPair(Context ctx, byte[] x_secretKey) {
+        try {
+            // both keys in one commit: a public key without its private key
+            // would take deliveries no one can read
+            return SecretsManager.saveBytes(ctx, Constants.DEFAULT_NAMESPACE,
+                    newKeyPair(x_secretKey));
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "generateKeyPair failed: " + e.getClass().getName() + " : "
+                    + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Generate the inbox key pair unless there is one, for secrets
+     * initialized before the inbox existed.
+     *
+     * @param x_secretKey NOT WIPED
+     */
+    public static boolean ensureKeyPair(Context ctx, byte[] x_secretKey) {
+        if (SecretsManager.getBytes(ctx, Constants.SHARED_PREFS_INBOX_PUBLIC_KEY) != null
+                && SecretsManager.getBytes(ctx, Constants.SHARED_PREFS_INBOX_PRIVATE_KEY) != null)
+            return true;
+        return generateKeyPair(ctx, x_secretKey);
+    }
+
+    /**
+     * Encrypt a record to the inbox.
+     *
+     * @param x_record NOT WIPED
+     */
+    public void deliver(byte[] x_record) throws IOException {
+        deliver(Collections.singletonList(x_record));
+    }
+
+    /**
+     * Encrypt records to the inbox as one batch. They are ingested together,
+     * in order, and the file is synced before it becomes visible, so either
+     * all or none of them are delivered.
+     *
+     * @param x_records NOT WIPED
+     */
+    public void deliver(List<byte[]> x_records) throws IOException {
+        if (x_records.isEmpty())
+            return;
+        long start = System.nanoTime();
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs() && !mDirectory.isDirectory())
+            throw new IOException("could not create inbox " + mDirectory);
+        String name = String.format(Locale.US, "%013d-%08x-%04x",
+                System.currentTimeMillis(), sRandom.nextInt(),
+                sSequence.getAndIncrement() & 0xffff);
+        File tmp = new File(mDirectory, name + TMP_SUFFIX);
+        long bytes;
+        boolean delivered = false;
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            bytes = writeBatch(out, x_records);
+            out.flush();
+            fos.getFD().sync();
+            out.close();
+            if (!tmp.renameTo(new File(mDirectory, name + BATCH_SUFFIX)))
+                throw new IOException("could not deliver " + name);
+            delivered = true;
+        } finally {
+            if (!delivered) {
+                fos.close();
+                tmp.delete();
+            }
+        }
+        mDeliveredRecords.addAndGet(x_records.size());
+        mDeliveredBytes.addAndGet(bytes);
+        mDeliverNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    /**
+     * Decrypt every batch in the inbox and hand its records to the sink.
+     * Call it after unlocking, for example from
+     * {@link ICacheWordSubscriber#onCacheWordOpened()}, but off the main
+     * thread.
+     *
+     * @return the number of records ingested
+     * @throws CacheWordLockedException if CacheWord is locked
+     * @throws IOException if the inbox can't be read or the sink failed
+     */
+    public int ingest(CacheWordHandler cacheWord, Sink sink) throws IOException {
+        if (mContext == null)
+            throw new IllegalStateException("inbox keys are managed by the caller");
+        byte[] x_secretKey = cacheWord.getEncryptionKey();
+        if (x_secretKey == null)
+            throw new CacheWordLockedException();
+        byte[] x_privateKey = null;
+        try {
+            x_privateKey = unwrapPrivateKey(mContext, x_secretKey, mPublicKey);
+            return ingest(x_privateKey, sink);
+        } finally {
+            Wiper.wipe(x_secretKey);
+            Wiper.wipe(x_privateKey);
+        }
+    }
+
+    /**
+     * @param x_privateKey the X25519 private key of the inbox NOT WIPED
+     * @see #ingest(CacheWordHandler, Sink)
+     */
+    public int ingest(final byte[] x_privateKey, Sink sink) throws IOException {
+        long start = System.nanoTime();
+        File[] batches = listBatches();
+        ExecutorService executor = ChunkPipeline.getExecutor();
+        int maxInFlight = 2 * ChunkPipeline.getParallelism();
+        ArrayDeque<BatchRead> inFlight = new ArrayDeque<BatchRead>();
+        int next = 0;
+        int records = 0;
+        long bytes = 0;
+        try {
+            for (int i = 0; i < batches.length; i++) {
+                while (next < batches.length && inFlight.size() < maxInFlight) {
+                    inFlight.add(new BatchRead(x_privateKey, batches[next++]).submit(executor));
+                }
+                List<byte[]> x_batch;
+                try {
+                    x_batch = inFlight.peek().mFuture.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while ingesting");
+                } catch (ExecutionException e) {
+                    inFlight.poll();
+                    setAside(batches[i], e.getCause());
+                    continue;
+                }
+                inFlight.poll();
+                try {
+                    for (int r = 0; r < x_batch.size(); r++) {
+                        byte[] x_record = x_batch.get(r);
+                        sink.onRecord(x_record);
+                        records++;
+                        bytes += x_record.length;
+                    }
+                } finally {
+                    for (byte[] x_record : x_batch)
+                        Wiper.wipe(x_record);
+                }
+                if (!batches[i].delete())
+                    Log.w(TAG, "could not delete ingested batch " + batches[i].getName());
+            }
+        } finally {
+            // the caller wipes the private key once this returns
+            for (BatchRead read : inFlight)
+                read.abandon();
+            mIngestedRecords.addAndGet(records);
+            mIngestedBytes.addAndGet(bytes);
+            mIngestNanos.addAndGet(System.nanoTime() - start);
+        }
+        return records;
+    }
+
+    /**
+     * @return the number of batches waiting to be ingested
+     */
+    public int getPendingBatches() {
+        return listBatches().length;
+    }
+
+    public long getDeliveredRecords() {
+        return mDeliveredRecords.get();
+    }
+
+    public long getDeliveredBytes() {
+        return mDeliveredBytes.get();
+    }
+
+    public long getIngestedRecords() {
+        return mIngestedRecords.get();
+    }
+
+    public long getIngestedBytes() {
+        return mIngestedBytes.get();
+    }
+
+    /**
+     * @return the number of batches that failed to decrypt and were set aside
+     */
+    public long getFailedBatches() {
+        return mFailedBatches.get();
+    }
+
+    /**
+     * @return records delivered per second of time spent delivering, by this
+     *         instance
+     */
+    public double getDeliverRecordsPerSecond() {
+        return perSecond(mDeliveredRecords.get(), mDeliverNanos.get());
+    }
+
+    /**
+     * @return records ingested per second of time spent ingesting, sink
+     *         included, by this instance
+     */
+    public double getIngestRecordsPerSecond() {
+        return perSecond(mIngestedRecords.get(), mIngestNanos.get());
+    }
+
+    public double getIngestBytesPerSecond() {
+        return perSecond(mIngestedBytes.get(), mIngestNanos.get());
+    }
+
+    // / package private API for CacheWordJobQueue
+    // ////////////////////////////////////
+
+    /**
+     * Encrypt a single record to the inbox key in memory, in the batch
+     * format.
+     *
+     * @param x_record NOT WIPED
+     */
+    byte[] seal(byte[] x_record) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_LEN + Constants.INT_LENGTH
+                + x_record.length + AeadCipher.TAG_LEN_BYTES);
+        writeBatch(new DataOutputStream(bytes), Collections.singletonList(x_record));
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param x_privateKey NOT WIPED
+     * @return the record sealed with {@link #seal(byte[])}
+     */
+    byte[] unseal(byte[] x_privateKey, byte[] sealed) throws IOException {
+        List<byte[]> x_records = readBatch(x_privateKey, new DataInputStream(
+                new ByteArrayInputStream(sealed)));
+        if (x_records.size() != 1) {
+            for (byte[] x_record : x_records)
+                Wiper.wipe(x_record);
+            throw new IOException("sealed data holds " + x_records.size() + " records");
+        }
+        return x_records.get(0);
+    }
+
+    /**
+     * @param x_secretKey NOT WIPED
+     * @return the inbox private key stored by {@link #generateKeyPair}
+     */
+    static byte[] unwrapPrivateKey(Context ctx, byte[] x_secretKey, byte[] publicKey)
+            throws IOException {
+        byte[] wrapped = SecretsManager.getBytes(ctx, Constants.SHARED_PREFS_INBOX_PRIVATE_KEY);
+        if (wrapped == null)
+            throw new IOException("CacheWord has no inbox key pair");
+        try {
+            return unwrap(x_secretKey, publicKey, wrapped);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("could not unwrap the inbox key: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Re-wrap the stored inbox private key under a new secret key, for a key
+     * rotation. The public key is kept, so senders and undelivered batches
+     * are unaffected. If there is no key pair, or the private key can't be
+     * unwrapped, a new pair is generated instead and pending batches become
+     * unreadable.
+     *
+     * @param x_oldKey the secret key the private key is wrapped under NOT
+     *            WIPED
+     * @param x_newKey the secret key to wrap it under NOT WIPED
+     * @return the preferences to save together with the new secrets
+     */
+    static Map<String, byte[]> rewrapKeyPair(Context ctx, byte[] x_oldKey, byte[] x_newKey)
+            throws GeneralSecurityException {
+        byte[] publicKey = SecretsManager.getBytes(ctx, Constants.SHARED_PREFS_INBOX_PUBLIC_KEY);
+        byte[] x_privateKey = null;
+        try {
+            if (publicKey != null)
+                x_privateKey = unwrapPrivateKey(ctx, x_oldKey, publicKey);
+        } catch (IOException e) {
+            Log.e(TAG, "replacing the inbox key pair: " + e.getClass().getName() + " : "
+                    + e.getMessage());
+        }
+        if (x_privateKey == null)
+            return newKeyPair(x_newKey);
+        try {
+            Map<String, byte[]> prefs = new LinkedHashMap<String, byte[]>();
+            prefs.put(Constants.SHARED_PREFS_INBOX_PRIVATE_KEY,
+                    wrap(x_newKey, publicKey, x_privateKey));
+            return prefs;
+        } finally {
+            Wiper.wipe(x_privateKey);
+        }
+    }
+
+    byte[] getPublicKey() {
+        return mPublicKey.clone();
+    }
+
+    // / private methods
+    // ////////////////////////////////////
+
+    /**
+     * @return the preferences holding a new key pair, the private key wrapped
+     *         under x_secretKey (NOT WIPED)
+     */
+    private static Map<String, byte[]> newKeyPair(byte[] x_secretKey)
+            throws GeneralSecurityException {
+        byte[] x_privateKey = X25519.generatePrivateKey(sRandom);
+        try {
+            byte[] publicKey = X25519.publicKey(x_privateKey);
+            Map<String, byte[]> prefs = new LinkedHashMap<String, byte[]>();
+            prefs.put(Constants.SHARED_PREFS_INBOX_PRIVATE_KEY,
+                    wrap(x_secretKey, publicKey, x_privateKey));
+            prefs.put(Constants.SHARED_PREFS_INBOX_PUBLIC_KEY, publicKey);
+            return prefs;
+        } finally {
+            Wiper.wipe(x_privateKey);
+        }
+    }
+
+    private static double perSecond(long count, long nanos) {
+        return nanos == 0 ? 0 : count * 1e9 / nanos;
+    }
+
+    private File[] listBatches() {
+        File[] batches = mDirectory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(BATCH_SUFFIX);
+            }
+        });
+        if (batches == null)
+            return new File[0];
+        // names start with the delivery time
+        Arrays.sort(batches);
+        return batches;
+    }
+
+    /**
+     * @param x_shared the X25519 shared secret WIPED
+     */
+    private static AeadCipher newCipher(byte[] x_shared, byte[] header, byte[] recipient)
+            throws GeneralSecurityException {
+        byte[] x_key = null;
+        try {
+            if (X25519.isZero(x_shared))
+                throw new GeneralSecurityException("invalid ephemeral key");
+            byte[] context = new byte[HEADER_LEN + X25519.KEY_LEN_BYTES];
+            System.arraycopy(header, 0, context, 0, HEADER_LEN);
+            System.arraycopy(recipient, 0, context, HEADER_LEN, X25519.KEY_LEN_BYTES);
+            x_key = SegmentedAead.hkdf(x_shared, Arrays.copyOfRange(header, 6, HEADER_LEN),
+                    HKDF_INFO, context);
+            return AeadCipher.getInstance(header[5], x_key);
+        } finally {
+            Wiper.wipe(x_shared);
+            Wiper.wipe(x_key);
+        }
+    }
+
+    private List<byte[]> readBatch(byte[] x_privateKey, File batch) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(batch)));
+        try {
+            return readBatch(x_privateKey, in);
+        } catch (IOException e) {
+            throw new IOException("inbox batch " + batch.getName() + ": " + e.getMessage(), e);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @param x_records NOT WIPED
+     * @return the number of plaintext bytes written
+     */
+    private long writeBatch(DataOutputStream out, List<byte[]> x_records) throws IOException {
+        byte[] x_ephemeral = X25519.generatePrivateKey(sRandom);
+        AeadCipher cipher = null;
+        long bytes = 0;
+        try {
+            byte[] header = new byte[HEADER_LEN];
+            System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+            header[4] = (byte) VERSION;
+            header[5] = (byte) mCipherId;
+            System.arraycopy(X25519.publicKey(x_ephemeral), 0, header, 6,
+                    X25519.KEY_LEN_BYTES);
+            cipher = newCipher(X25519.scalarMult(x_ephemeral, mPublicKey), header, mPublicKey);
+
+            out.write(header);
+            byte[] nonce = new byte[AeadCipher.NONCE_LEN_BYTES];
+            for (int i = 0; i < x_records.size(); i++) {
+                byte[] x_record = x_records.get(i);
+                if (x_record.length > MAX_RECORD_LEN)
+                    throw new IOException("record of " + x_record.length + " bytes is too large");
+                SegmentedAead.segmentNonce(nonce, i, i == x_records.size() - 1);
+                byte[] ciphertext = cipher.encrypt(nonce, null, x_record);
+                out.writeInt(ciphertext.length);
+                out.write(ciphertext);
+                bytes += x_record.length;
+            }
+            return bytes;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("could not encrypt to the inbox: " + e.getMessage(), e);
+        } finally {
+            Wiper.wipe(x_ephemeral);
+            if (cipher != null)
+                cipher.wipe();
+        }
+    }
+
+    private List<byte[]> readBatch(byte[] x_privateKey, DataInputStream in) throws IOException {
+        AeadCipher cipher = null;
+        List<byte[]> records = new ArrayList<byte[]>();
+        boolean read = false;
+        try {
+            byte[] header = new byte[HEADER_LEN];
+            in.readFully(header);
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (header[i] != MAGIC[i])
+                    throw new IOException("not an inbox batch");
+            }
+            if (header[4] != VERSION)
+                throw new IOException("unsupported inbox batch version " + header[4]);
+            byte[] ephemeral = Arrays.copyOfRange(header, 6, HEADER_LEN);
+            cipher = newCipher(X25519.scalarMult(x_privateKey, ephemeral), header, mPublicKey);
+
+            byte[] nonce = new byte[AeadCipher.NONCE_LEN_BYTES];
+            int length = in.readInt();
+            for (long index = 0;; index++) {
+                if (length < AeadCipher.TAG_LEN_BYTES
+                        || length > MAX_RECORD_LEN + AeadCipher.TAG_LEN_BYTES)
+                    throw new IOException("record " + index + " has an invalid length");
+                byte[] ciphertext = new byte[length];
+                in.readFully(ciphertext);
+                int n = in.read();
+                boolean last = n < 0;
+                if (!last)
+                    length = (n << 24) | (in.readUnsignedByte() << 16)
+                            | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+                SegmentedAead.segmentNonce(nonce, index, last);
+                records.add(cipher.decrypt(nonce, null, ciphertext));
+                if (last)
+                    break;
+            }
+            read = true;
+            return records;
+        } catch (EOFException e) {
+            throw new IOException("truncated", e);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("failed to decrypt: " + e.getMessage(), e);
+        } finally {
+            if (cipher != null)
+                cipher.wipe();
+            if (!read) {
+                for (byte[] x_record : records)
+                    Wiper.wipe(x_record);
+            }
+        }
+    }
+
+    private void setAside(File batch, Throwable cause) {
+        mFailedBatches.incrementAndGet();
+        Log.e(TAG, "setting aside " + batch.getName() + ": " + cause.getClass().getName()
+                + " : " + cause.getMessage());
+        File failed = new File(mDirectory, batch.getName() + FAILED_SUFFIX);
+        if (!batch.renameTo(failed))
+            batch.delete();
+    }
+
+    /**
+     * @return cipher id (1) | nonce | AEAD(wrap key, nonce, private key)
+     */
+    private static byte[] wrap(byte[] x_secretKey, byte[] publicKey, byte[] x_privateKey)
+            throws GeneralSecurityException {
+        int cipherId = CryptoProviders.getPreferredAead();
+        byte[] x_wrapKey = SegmentedAead.hkdf(x_secretKey, publicKey, WRAP_INFO, publicKey);
+        AeadCipher cipher = AeadCipher.getInstance(cipherId, x_wrapKey);
+        try {
+            byte[] wrapped = new byte[1 + AeadCipher.NONCE_LEN_BYTES + X25519.KEY_LEN_BYTES
+                    + AeadCipher.TAG_LEN_BYTES];
+            byte[] nonce = new byte[AeadCipher.NONCE_LEN_BYTES];
+            sRandom.nextBytes(nonce);
+            wrapped[0] = (byte) cipherId;
+            System.arraycopy(nonce, 0, wrapped, 1, nonce.length);
+            cipher.encrypt(nonce, null, x_privateKey, 0, x_privateKey.length, wrapped,
+                    1 + nonce.length);
+            return wrapped;
+        } finally {
+            cipher.wipe();
+            Wiper.wipe(x_wrapKey);
+        }
+    }
+
+    private static byte[] unwrap(byte[] x_secretKey, byte[] publicKey, byte[] wrapped)
+            throws GeneralSecurityException {
+        if (wrapped.length != 1 + AeadCipher.NONCE_LEN_BYTES + X25519.KEY_LEN_BYTES
+                + AeadCipher.TAG_LEN_BYTES)
+            throw new GeneralSecurityException("invalid wrapped inbox key");
+        byte[] x_wrapKey = SegmentedAead.hkdf(x_secretKey, publicKey, WRAP_INFO, publicKey);
+        AeadCipher cipher = AeadCipher.getInstance(wrapped[0], x_wrapKey);
+        try {
+            byte[] nonce = Arrays.copyOfRange(wrapped, 1, 1 + AeadCipher.NONCE_LEN_BYTES);
+            byte[] x_privateKey = new byte[X25519.KEY_LEN_BYTES];
+            cipher.decrypt(nonce, null, wrapped, 1 + nonce.length,
+                    wrapped.length - 1 - nonce.length, x_privateKey, 0);
+            return x_privateKey;
+        } finally {
+            cipher.wipe();
+            Wiper.wipe(x_wrapKey);
+        }
+    }
+
+    /**
+     * Decrypts one batch on the shared pool. An abandoned read either never
+     * starts or is waited for, so no worker uses the private key after ingest
+     * returns.
+     */
+    private final class BatchRead implements Callable<List<byte[]>> {
+        private final AtomicBoolean mStarted = new AtomicBoolean();
+        private final byte[] x_mPrivateKey;
+        private final File mBatch;
+        private Future<List<byte[]>> mFuture;
+
+        BatchRead(byte[] x_privateKey, File batch) {
+            x_mPrivateKey = x_privateKey;
+            mBatch = batch;
+        }
+
+        BatchRead submit(ExecutorService executor) {
+            mFuture = executor.submit(this);
+            return this;
+        }
+
+        @Override
+        public List<byte[]> call() throws IOException {
+            if (!mStarted.compareAndSet(false, true))
+                return null;
+            return readBatch(x_mPrivateKey, mBatch);
+        }
+
+        /**
+         * Keep the read from starting, or wait for it to finish and wipe the
+         * records it decrypted.
+         */
+        void abandon() {
+            if (mStarted.compareAndSet(false, true)) {
+                mFuture.cancel(false);
+                return;
+            }
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        for (byte[] x_record : mFuture.get())
+                            Wiper.wipe(x_record);
+                        return;
+                    } catch (InterruptedException e) {
+                        // the private key must outlive the read, finish waiting
+                        interrupted = true;
+                    } catch (ExecutionException e) {
+                        return;
+                    }
+                }
+            } finally {
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
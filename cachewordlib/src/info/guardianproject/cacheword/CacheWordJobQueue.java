@@ -0,0 +1,704 @@
+
+package info.guardianproject.cacheword;
+
+import android.content.Context;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A persistent queue of jobs that need the key, such as indexing or upload
+ * preparation, which can be scheduled while CacheWord is locked and survive
+ * the process dying.
+ * <p>
+ * A job has a type, which selects the {@link JobHandler} that runs it, a key,
+ * and an optional payload. The type and key are stored in plaintext and must
+ * not be sensitive; the payload is encrypted to the {@link CacheWordInbox}
+ * key, so it can be written while locked and only read after unlock.
+ * Scheduling a job with the same type and key as one already queued does
+ * nothing, unless that job is running: then it runs again once it finishes,
+ * with the new payload.
+ * <p>
+ * When CacheWord unlocks, {@link CacheWordService} starts a drain of every
+ * queue in the process. Due jobs are grouped by type into batches of up to
+ * the handler's batch size, which run on a bounded pool. A job is deleted
+ * once its batch succeeds; if the handler throws, the batch is retried with
+ * exponential backoff while CacheWord stays unlocked, and dropped after
+ * {@link #MAX_ATTEMPTS} attempts. Jobs scheduled while unlocked are drained
+ * right away, coalesced with any drain already pending.
+ * <p>
+ * The queue takes part in the {@link LockOrchestrator#STAGE_FLUSH} stage of
+ * locking: running batches are interrupted and waited for, and count as
+ * neither done nor attempted.
+ */
+public class CacheWordJobQueue implements ICacheWordLockParticipant {
+    private static final String TAG = "CacheWordJobQueue";
+
+    public static final String DEFAULT_DIRECTORY = "cacheword-jobs";
+    public static final int DEFAULT_THREADS = 2;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 50;
+    public static final int MAX_ATTEMPTS = 10;
+    public static final long MIN_BACKOFF_MILLIS = 1000;
+    public static final long MAX_BACKOFF_MILLIS = 60 * 60 * 1000;
+
+    private static final int FORMAT_VERSION = 1;
+    private static final String JOB_SUFFIX = ".job";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static final List<CacheWordJobQueue> sQueues =
+            new CopyOnWriteArrayList<CacheWordJobQueue>();
+    private static final SecureRandom sRandom = new SecureRandom();
+
+    /**
+     * Runs batches of jobs of one type.
+     */
+    public interface JobHandler {
+        /**
+         * Called on a pool thread while CacheWord is unlocked.
+         *
+         * @param jobs one or more jobs of the handler's type, oldest first
+         * @throws Exception to retry the whole batch later
+         */
+        public void onJobs(List<Job> jobs) throws Exception;
+    }
+
+    /**
+     * A job handed to a {@link JobHandler}.
+     */
+    public static final class Job {
+        private final String mId;
+        private final String mType;
+        private final String mKey;
+        private final long mCreatedAt;
+        private int mAttempts;
+        private long mNotBefore;
+        private byte[] mSealedPayload;
+        private byte[] mPayload;
+
+        Job(String id, String type, String key, long createdAt, int attempts, long notBefore,
+                byte[] sealedPayload) {
+            mId = id;
+            mType = type;
+            mKey = key;
+            mCreatedAt = createdAt;
+            mAttempts = attempts;
+            mNotBefore = notBefore;
+            mSealedPayload = sealedPayload;
+        }
+
+        public String getType() {
+            return mType;
+        }
+
+        public String getKey() {
+            return mKey;
+        }
+
+        /**
+         * @return when the job was scheduled, in milliseconds since the epoch
+         */
+        public long getCreatedAt() {
+            return mCreatedAt;
+        }
+
+        /**
+         * @return the number of earlier attempts that failed
+         */
+        public int getAttempts() {
+            return mAttempts;
+        }
+
+        /**
+         * @return the decrypted payload, or null. It is wiped when
+         *         {@link JobHandler#onJobs(List)} returns.
+         */
+        public byte[] getPayload() {
+            return mPayload;
+        }
+    }
+
+    private static final class Registration {
+        final JobHandler handler;
+        final int maxBatchSize;
+
+        Registration(JobHandler handler, int maxBatchSize) {
+            this.handler = handler;
+            this.maxBatchSize = maxBatchSize;
+        }
+    }
+
+    private final Context mContext;
+    private final File mDirectory;
+    private final CacheWordInbox mInbox;
+    private final ScheduledThreadPoolExecutor mExecutor;
+
+    // the following are guarded by this
+    private final Map<String, Registration> mHandlers = new HashMap<String, Registration>();
+    private final Set<String> mInFlight = new HashSet<String>();
+    // in-flight jobs scheduled again, to keep when their batch finishes
+    private final Set<String> mRerun = new HashSet<String>();
+    private final Set<Thread> mRunning = new HashSet<Thread>();
+    private byte[] mPrivateKey;
+    private boolean mUnlocked = false;
+    private ScheduledFuture<?> mDrain;
+    private long mDrainAt;
+    private long mCompleted = 0;
+    private long mFailed = 0;
+    private long mDropped = 0;
+
+    /**
+     * Open the app's queue in {@link #DEFAULT_DIRECTORY} of its files
+     * directory, with {@link #DEFAULT_THREADS} threads.
+     *
+     * @throws IllegalStateException if CacheWord hasn't generated the inbox
+     *             key pair yet, that is, it has never been unlocked
+     */
+    public CacheWordJobQueue(Context ctx) {
+        this(ctx.getApplicationContext(), new File(ctx.getFilesDir(), DEFAULT_DIRECTORY),
+                new CacheWordInbox(ctx), DEFAULT_THREADS);
+    }
+
+    /**
+     * @param threads the most batches that run at once
+     */
+    public CacheWordJobQueue(Context ctx, File directory, int threads) {
+        this(ctx.getApplicationContext(), directory, new CacheWordInbox(ctx), threads);
+    }
+
+    CacheWordJobQueue(Context ctx, File directory, CacheWordInbox inbox, int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("invalid number of threads " + threads);
+        mContext = ctx;
+        mDirectory = directory;
+        mInbox = inbox;
+        mExecutor = new ScheduledThreadPoolExecutor(threads, new WorkerThreadFactory());
+        sQueues.add(this);
+        LockOrchestrator.getInstance().register(this, LockOrchestrator.STAGE_FLUSH);
+    }
+
+    /**
+     * Start draining all queues of the process. Called by
+     * {@link CacheWordService} when it receives new secrets.
+     */
+    static void onNewSecrets(ICachedSecrets secrets) {
+        if (sQueues.isEmpty() || !(secrets instanceof PassphraseSecrets))
+            return;
+        byte[] x_secretKey = ((PassphraseSecrets) secrets).getSecretKey().getEncoded();
+        try {
+            for (CacheWordJobQueue queue : sQueues)
+                queue.unlock(x_secretKey);
+        } finally {
+            Wiper.wipe(x_secretKey);
+        }
+    }
+
+    /**
+     * Start draining a queue created while CacheWord was already unlocked,
+     * for example from {@link ICacheWordSubscriber#onCacheWordOpened()}.
+     */
+    public void resume(CacheWordHandler cacheWord) {
+        byte[] x_secretKey = cacheWord.getEncryptionKey();
+        if (x_secretKey == null)
+            return;
+        try {
+            unlock(x_secretKey);
+        } finally {
+            Wiper.wipe(x_secretKey);
+        }
+    }
+
+    /**
+     * Run jobs of a type with a handler, with
+     * {@link #DEFAULT_MAX_BATCH_SIZE}.
+     */
+    public void registerHandler(String type, JobHandler handler) {
+        registerHandler(type, handler, DEFAULT_MAX_BATCH_SIZE);
+    }
+
+    /**
+     * Run jobs of a type with a handler. Jobs of a type without a handler
+     * stay queued.
+     *
+     * @param maxBatchSize the most jobs passed to one call of the handler
+     */
+    public void registerHandler(String type, JobHandler handler, int maxBatchSize) {
+        if (maxBatchSize < 1)
+            throw new IllegalArgumentException("invalid batch size " + maxBatchSize);
+        synchronized (this) {
+            mHandlers.put(type, new Registration(handler, maxBatchSize));
+        }
+        scheduleDrain(0);
+    }
+
+    /**
+     * @return false if the same job is already queued
+     */
+    public boolean schedule(String type, String key) throws IOException {
+        return schedule(type, key, null);
+    }
+
+    /**
+     * Queue a job. Works whether CacheWord is locked or not.
+     *
+     * @param key identifies the job within its type for de-duplication, null
+     *            to never de-duplicate
+     * @param x_payload data for the job, encrypted to the inbox key, may be
+     *            null NOT WIPED
+     * @return false if the same job is already queued and not running
+     */
+    public boolean schedule(String type, String key, byte[] x_payload) throws IOException {
+        if (type == null)
+            throw new NullPointerException("type == null");
+        String id = key != null ? jobId(type, key) : randomId();
+        File file = new File(mDirectory, id + JOB_SUFFIX);
+        byte[] sealed = x_payload != null ? mInbox.seal(x_payload) : null;
+        synchronized (this) {
+            boolean rerun = mInFlight.contains(id);
+            if (file.exists() && (!rerun || mRerun.contains(id)))
+                return false;
+            long now = System.currentTimeMillis();
+            // a running job already read its file, this replaces it for the
+            // next run
+            write(new Job(id, type, key != null ? key : "", now, 0, now, sealed));
+            if (rerun)
+                mRerun.add(id);
+        }
+        scheduleDrain(0);
+        return true;
+    }
+
+    /**
+     * @return the number of jobs queued, including running ones
+     */
+    public int getPendingCount() {
+        return listJobs().length;
+    }
+
+    /**
+     * @return the number of jobs that ran successfully
+     */
+    public synchronized long getCompletedCount() {
+        return mCompleted;
+    }
+
+    /**
+     * @return the number of failed attempts
+     */
+    public synchronized long getFailedCount() {
+        return mFailed;
+    }
+
+    /**
+     * @return the number of jobs dropped after {@link #MAX_ATTEMPTS} attempts
+     */
+    public synchronized long getDroppedCount() {
+        return mDropped;
+    }
+
+    /**
+     * Stop draining, then interrupt the running batches and wait for them.
+     */
+    @Override
+    public synchronized void onCacheWordLocking() {
+        wipe();
+        try {
+            while (!mRunning.isEmpty())
+                wait();
+        } catch (InterruptedException e) {
+            // past the deadline, forceWipe follows
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String getName() {
+        return TAG;
+    }
+
+    @Override
+    public void forceWipe() {
+        wipe();
+    }
+
+    /**
+     * Stop draining and unregister. Queued jobs stay on disk.
+     */
+    public void close() {
+        sQueues.remove(this);
+        LockOrchestrator.getInstance().unregister(this);
+        wipe();
+        mExecutor.shutdownNow();
+    }
+
+    // / package private API
+    // ////////////////////////////////////
+
+    /**
+     * @param x_secretKey NOT WIPED
+     */
+    void unlock(byte[] x_secretKey) {
+        byte[] x_privateKey = null;
+        try {
+            x_privateKey = CacheWordInbox.unwrapPrivateKey(mContext, x_secretKey,
+                    mInbox.getPublicKey());
+        } catch (IOException e) {
+            // jobs without a payload can still run
+            Log.e(TAG, "no inbox key for job payloads: " + e.getClass().getName() + " : "
+                    + e.getMessage());
+        }
+        unlockWithPrivateKey(x_privateKey);
+        Wiper.wipe(x_privateKey);
+    }
+
+    /**
+     * @param x_privateKey the inbox private key, may be null NOT WIPED
+     */
+    void unlockWithPrivateKey(byte[] x_privateKey) {
+        synchronized (this) {
+            Wiper.wipe(mPrivateKey);
+            mPrivateKey = x_privateKey != null ? x_privateKey.clone() : null;
+            mUnlocked = true;
+        }
+        scheduleDrain(0);
+    }
+
+    static long backoffMillis(int attempts) {
+        if (attempts >= 22)
+            return MAX_BACKOFF_MILLIS;
+        return Math.min(MAX_BACKOFF_MILLIS, MIN_BACKOFF_MILLIS << Math.max(0, attempts - 1));
+    }
+
+    // / private methods
+    // ////////////////////////////////////
+
+    private synchronized void wipe() {
+        mUnlocked = false;
+        Wiper.wipe(mPrivateKey);
+        mPrivateKey = null;
+        if (mDrain != null) {
+            mDrain.cancel(false);
+            mDrain = null;
+        }
+        for (Thread t : mRunning)
+            t.interrupt();
+    }
+
+    /**
+     * Schedule a drain, unless one is already due at least as early.
+     */
+    private synchronized void scheduleDrain(long delayMillis) {
+        if (!mUnlocked || mExecutor.isShutdown())
+            return;
+        long at = System.currentTimeMillis() + delayMillis;
+        if (mDrain != null && !mDrain.isDone()) {
+            if (mDrainAt <= at)
+                return;
+            mDrain.cancel(false);
+        }
+        mDrainAt = at;
+        mDrain = mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void drain() {
+        long now = System.currentTimeMillis();
+        Map<String, List<Job>> due = new HashMap<String, List<Job>>();
+        long nextDue = Long.MAX_VALUE;
+        for (File file : listJobs()) {
+            String id = file.getName().substring(0,
+                    file.getName().length() - JOB_SUFFIX.length());
+            synchronized (this) {
+                if (mInFlight.contains(id))
+                    continue;
+            }
+            Job job;
+            try {
+                job = read(id, file);
+            } catch (IOException e) {
+                Log.e(TAG, "dropping unreadable job " + id + ": " + e.getMessage());
+                file.delete();
+                continue;
+            }
+            if (job.mNotBefore > now) {
+                nextDue = Math.min(nextDue, job.mNotBefore);
+                continue;
+            }
+            List<Job> jobs = due.get(job.mType);
+            if (jobs == null) {
+                jobs = new ArrayList<Job>();
+                due.put(job.mType, jobs);
+            }
+            jobs.add(job);
+        }
+        for (Map.Entry<String, List<Job>> e : due.entrySet()) {
+            final Registration registration;
+            synchronized (this) {
+                if (!mUnlocked)
+                    return;
+                registration = mHandlers.get(e.getKey());
+            }
+            if (registration == null)
+                continue;
+            List<Job> jobs = e.getValue();
+            sortByAge(jobs);
+            for (int i = 0; i < jobs.size(); i += registration.maxBatchSize) {
+                final List<Job> batch = new ArrayList<Job>(jobs.subList(i,
+                        Math.min(jobs.size(), i + registration.maxBatchSize)));
+                synchronized (this) {
+                    for (Job job : batch)
+                        mInFlight.add(job.mId);
+                }
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        runBatch(registration.handler, batch);
+                    }
+                });
+            }
+        }
+        if (nextDue != Long.MAX_VALUE)
+            scheduleDrain(Math.max(0, nextDue - now));
+    }
+
+    private void runBatch(JobHandler handler, List<Job> batch) {
+        byte[] x_privateKey = null;
+        boolean succeeded = false;
+        try {
+            synchronized (this) {
+                if (!mUnlocked)
+                    return;
+                mRunning.add(Thread.currentThread());
+                if (mPrivateKey != null)
+                    x_privateKey = mPrivateKey.clone();
+            }
+            for (Job job : batch) {
+                if (job.mSealedPayload == null)
+                    continue;
+                if (x_privateKey == null)
+                    throw new IOException("the inbox key is not available");
+                job.mPayload = mInbox.unseal(x_privateKey, job.mSealedPayload);
+            }
+            handler.onJobs(batch);
+            succeeded = true;
+        } catch (Exception e) {
+            Log.e(TAG, "batch of " + batch.size() + " " + batch.get(0).mType + " jobs failed: "
+                    + e.getClass().getName() + " : " + e.getMessage());
+        } finally {
+            Wiper.wipe(x_privateKey);
+            for (Job job : batch) {
+                Wiper.wipe(job.mPayload);
+                job.mPayload = null;
+            }
+            finishBatch(batch, succeeded, x_privateKey != null || !hasPayloads(batch));
+        }
+    }
+
+    /**
+     * @param attempted whether the handler was reached, a batch cut short by
+     *            the lock isn't counted as an attempt
+     */
+    private void finishBatch(List<Job> batch, boolean succeeded, boolean attempted) {
+        long retryAt = Long.MAX_VALUE;
+        synchronized (this) {
+            boolean locked = !mUnlocked;
+            for (Job job : batch) {
+                File file = new File(mDirectory, job.mId + JOB_SUFFIX);
+                if (mRerun.remove(job.mId)) {
+                    // scheduled again while running, its file holds the new
+                    // job
+                    if (succeeded)
+                        mCompleted++;
+                    else if (!locked && attempted)
+                        mFailed++;
+                    retryAt = Math.min(retryAt, System.currentTimeMillis());
+                } else if (succeeded) {
+                    file.delete();
+                    mCompleted++;
+                } else if (!locked && attempted) {
+                    mFailed++;
+                    job.mAttempts++;
+                    if (job.mAttempts >= MAX_ATTEMPTS) {
+                        Log.e(TAG, "dropping " + job.mType + " job after " + job.mAttempts
+                                + " attempts");
+                        file.delete();
+                        mDropped++;
+                    } else {
+                        job.mNotBefore = System.currentTimeMillis()
+                                + backoffMillis(job.mAttempts);
+                        retryAt = Math.min(retryAt, job.mNotBefore);
+                        try {
+                            write(job);
+                        } catch (IOException e) {
+                            Log.e(TAG, "could not save the job attempt: " + e.getMessage());
+                        }
+                    }
+                }
+                mInFlight.remove(job.mId);
+            }
+            mRunning.remove(Thread.currentThread());
+            notifyAll();
+        }
+        if (retryAt != Long.MAX_VALUE)
+            scheduleDrain(Math.max(0, retryAt - System.currentTimeMillis()));
+    }
+
+    private static boolean hasPayloads(List<Job> batch) {
+        for (Job job : batch) {
+            if (job.mSealedPayload != null)
+                return true;
+        }
+        return false;
+    }
+
+    private static void sortByAge(List<Job> jobs) {
+        Collections.sort(jobs, new Comparator<Job>() {
+            @Override
+            public int compare(Job a, Job b) {
+                return a.mCreatedAt < b.mCreatedAt ? -1 : (a.mCreatedAt == b.mCreatedAt ? 0 : 1);
+            }
+        });
+    }
+
+    private File[] listJobs() {
+        File[] jobs = mDirectory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(JOB_SUFFIX);
+            }
+        });
+        return jobs != null ? jobs : new File[0];
+    }
+
+    private static String jobId(String type, String key) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            sha.update(type.getBytes("UTF-8"));
+            sha.update((byte) 0);
+            sha.update(key.getBytes("UTF-8"));
+            return hex(sha.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String randomId() {
+        byte[] id = new byte[16];
+        sRandom.nextBytes(id);
+        return "r" + hex(id);
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(
+                    Character.forDigit(b & 0xf, 16));
+        return sb.toString();
+    }
+
+    // call with this held, so a job isn't written twice at once
+    private void write(Job job) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs() && !mDirectory.isDirectory())
+            throw new IOException("could not create job queue " + mDirectory);
+        File tmp = new File(mDirectory, job.mId + TMP_SUFFIX);
+        FileOutputStream fos = new FileOutputStream(tmp);
+        boolean written = false;
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(job.mType);
+            out.writeUTF(job.mKey);
+            out.writeLong(job.mCreatedAt);
+            out.writeInt(job.mAttempts);
+            out.writeLong(job.mNotBefore);
+            if (job.mSealedPayload == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(job.mSealedPayload.length);
+                out.write(job.mSealedPayload);
+            }
+            out.flush();
+            fos.getFD().sync();
+            out.close();
+            if (!tmp.renameTo(new File(mDirectory, job.mId + JOB_SUFFIX)))
+                throw new IOException("could not save job " + job.mId);
+            written = true;
+        } finally {
+            if (!written) {
+                fos.close();
+                tmp.delete();
+            }
+        }
+    }
+
+    private static Job read(String id, File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            int version = in.readInt();
+            if (version != FORMAT_VERSION)
+                throw new IOException("unsupported job version " + version);
+            String type = in.readUTF();
+            String key = in.readUTF();
+            long createdAt = in.readLong();
+            int attempts = in.readInt();
+            long notBefore = in.readLong();
+            int length = in.readInt();
+            byte[] sealed = null;
+            if (length >= 0) {
+                if (length > CacheWordInbox.MAX_RECORD_LEN + 1024)
+                    throw new IOException("invalid payload length " + length);
+                sealed = new byte[length];
+                in.readFully(sealed);
+            }
+            return new Job(id, type, key, createdAt, attempts, notBefore, sealed);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, TAG);
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,937 @@
+
+package info.guardianproject.cacheword;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An encrypted key-value store for apps that don't need a whole SQLCipher
+ * database. Every change is appended to a log file:
+ *
+ * <pre>
+ * log    = header | record | record | ...
+ * record = length (4) | nonce (12) | AEAD(store key, nonce, plaintext)
+ * plaintext = put or remove (1) | key length (4) | key | value
+ * </pre>
+ *
+ * The header is the {@link CacheWordEncryptingOutputStream} header with the
+ * magic "CWKV" and the maximum record size, and the store key is derived from
+ * the master key the same way.
+ * <p>
+ * {@link #open(CacheWordHandler)} scans the log and builds an in-memory index
+ * from each key to its latest record, so {@link #get(byte[])} is a hash
+ * lookup and one positional read. Writes from several threads are committed
+ * together with one write and one sync. Superseded records are dropped by
+ * compacting the log on a background thread once they take up more space
+ * than the live ones.
+ * <p>
+ * Open the store from {@link ICacheWordSubscriber#onCacheWordOpened()}. When
+ * CacheWord locks, pending writes are committed, the index is wiped and the
+ * store closes until it is opened again; meanwhile operations throw
+ * {@link CacheWordLockedException}.
+ */
+public class CacheWordKeyValueStore implements ICacheWordLockParticipant {
+    private static final String TAG = "CacheWordKeyValueStore";
+
+    static final byte[] MAGIC = {
+            'C', 'W', 'K', 'V'
+    };
+    public static final int MAX_RECORD_SIZE = SegmentedAead.MAX_SEGMENT_SIZE;
+    /** Logs smaller than this are never compacted */
+    public static final long MIN_COMPACTION_BYTES = 256 * 1024;
+
+    private static final int TYPE_PUT = 1;
+    private static final int TYPE_REMOVE = 2;
+    private static final int PREFIX_LEN = Constants.INT_LENGTH;
+    private static final int RECORD_HEADER_LEN = 1 + Constants.INT_LENGTH;
+    private static final int MIN_RECORD_LEN = AeadCipher.NONCE_LEN_BYTES + RECORD_HEADER_LEN
+            + AeadCipher.TAG_LEN_BYTES;
+
+    private final File mFile;
+    private final int mCipherId;
+    private final ExecutorService mCompactor;
+    private final SecureRandom mRandom = new SecureRandom();
+
+    // serializes commits and compaction, guards the following
+    private final ReentrantLock mCommitLock = new ReentrantLock();
+    private final byte[] mNonce = new byte[AeadCipher.NONCE_LEN_BYTES];
+    private int mNonceCounter = 0;
+    private long mEnd;
+
+    // guards the open state, the index and the file
+    private final ReentrantReadWriteLock mStateLock = new ReentrantReadWriteLock();
+    private HashMap<Key, Entry> mIndex;
+    private RandomAccessFile mRaf;
+    private FileChannel mChannel;
+    private AeadCipher mCipher;
+    private long mLiveBytes;
+    private long mGarbageBytes;
+
+    // guarded by itself
+    private List<PendingWrite> mPending = new ArrayList<PendingWrite>();
+
+    private volatile boolean mWipeRequested = false;
+
+    /**
+     * @param file the log file, created on the first {@link #open} with the
+     *            preferred cipher
+     */
+    public CacheWordKeyValueStore(File file) {
+        this(file, -1);
+    }
+
+    /**
+     * @param file the log file, created on the first {@link #open}
+     * @param cipherId the {@code Constants.CIPHER_*} id used if the log is
+     *            created, -1 for the preferred cipher
+     */
+    public CacheWordKeyValueStore(File file, int cipherId) {
+        mFile = file;
+        mCipherId = cipherId;
+        mCompactor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(1), new CompactorThreadFactory(),
+                new ThreadPoolExecutor.DiscardPolicy());
+    }
+
+    /**
+     * Open the store with CacheWord's current key and build the index.
+     *
+     * @throws CacheWordLockedException if CacheWord is locked
+     * @throws IOException if the log can't be read or a record in it fails
+     *             authentication
+     */
+    public void open(CacheWordHandler cacheWord) throws IOException {
+        byte[] x_key = cacheWord.getEncryptionKey();
+        if (x_key == null)
+            throw new CacheWordLockedException();
+        try {
+            open(x_key);
+        } finally {
+            Wiper.wipe(x_key);
+        }
+    }
+
+    /**
+     * @param x_key a 256 bit key NOT WIPED
+     * @see #open(CacheWordHandler)
+     */
+    public void open(byte[] x_key) throws IOException {
+        mCommitLock.lock();
+        mStateLock.writeLock().lock();
+        try {
+            if (mIndex != null)
+                return;
+            mWipeRequested = false;
+            for (PendingWrite write : takePending())
+                write.wipe();
+            RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+            boolean opened = false;
+            try {
+                byte[] header;
+                if (raf.length() == 0) {
+                    int cipherId = mCipherId >= 0 ? mCipherId
+                            : CryptoProviders.getPreferredAead();
+                    header = SegmentedAead.newHeader(MAGIC, cipherId, MAX_RECORD_SIZE);
+                    raf.write(header);
+                    raf.getFD().sync();
+                } else {
+                    header = new byte[SegmentedAead.HEADER_LEN];
+                    if (raf.length() < header.length)
+                        throw new IOException(mFile.getName() + " is truncated");
+                    raf.readFully(header);
+                    SegmentedAead.checkHeader(header, MAGIC);
+                }
+                mCipher = SegmentedAead.newCipher(x_key, header);
+                mRaf = raf;
+                mChannel = raf.getChannel();
+                mIndex = new HashMap<Key, Entry>();
+                mLiveBytes = 0;
+                mGarbageBytes = 0;
+                mNonceCounter = 0;
+                scan();
+                opened = true;
+            } catch (GeneralSecurityException e) {
+                throw new IOException("could not set up encryption: " + e.getMessage(), e);
+            } finally {
+                if (!opened) {
+                    wipeState();
+                    raf.close();
+                }
+            }
+        } finally {
+            mStateLock.writeLock().unlock();
+            mCommitLock.unlock();
+        }
+        CacheWordService.addLockListener(this);
+        scheduleCompactionIfNeeded();
+    }
+
+    public boolean isOpen() {
+        mStateLock.readLock().lock();
+        try {
+            return mIndex != null;
+        } finally {
+            mStateLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return a copy of the value stored for key, or null
+     * @throws IOException if the record can't be read or fails authentication
+     */
+    public byte[] get(byte[] key) throws IOException {
+        mStateLock.readLock().lock();
+        try {
+            checkOpen();
+            Entry entry = mIndex.get(new Key(key));
+            if (entry == null)
+                return null;
+            byte[] record = new byte[entry.length];
+            try {
+                ByteBuffer dst = ByteBuffer.wrap(record);
+                while (dst.hasRemaining()) {
+                    if (mChannel.read(dst, entry.offset + dst.position()) < 0)
+                        throw new IOException(mFile.getName() + " was truncated while open");
+                }
+                int n = decrypt(record, 0, record.length, entry.offset);
+                int keyLength = getInt(record, AeadCipher.NONCE_LEN_BYTES + 1);
+                int keyOffset = AeadCipher.NONCE_LEN_BYTES + RECORD_HEADER_LEN;
+                // a record moved to the offset of another key's is caught here
+                if (keyLength != key.length
+                        || !equals(record, keyOffset, key, 0, keyLength))
+                    throw new IOException("record at " + entry.offset + " is not for this key");
+                int valueOffset = keyOffset + keyLength;
+                return Arrays.copyOfRange(record, valueOffset, AeadCipher.NONCE_LEN_BYTES + n);
+            } finally {
+                Wiper.wipe(record);
+            }
+        } finally {
+            mStateLock.readLock().unlock();
+            wipeIfRequested();
+        }
+    }
+
+    public byte[] get(String key) throws IOException {
+        return get(toBytes(key));
+    }
+
+    public boolean containsKey(byte[] key) {
+        mStateLock.readLock().lock();
+        try {
+            checkOpen();
+            return mIndex.containsKey(new Key(key));
+        } finally {
+            mStateLock.readLock().unlock();
+            wipeIfRequested();
+        }
+    }
+
+    public boolean containsKey(String key) {
+        return containsKey(toBytes(key));
+    }
+
+    /**
+     * @return the number of keys in the store
+     */
+    public int size() {
+        mStateLock.readLock().lock();
+        try {
+            checkOpen();
+            return mIndex.size();
+        } finally {
+            mStateLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Store value for key. The write is on disk when this returns; writes
+     * made at the same time from other threads share one sync.
+     *
+     * @param key NOT WIPED
+     * @param value NOT WIPED
+     * @throws IllegalArgumentException if the record for key and value would
+     *             exceed {@link #MAX_RECORD_SIZE}
+     */
+    public void put(byte[] key, byte[] value) throws IOException {
+        if (value == null)
+            throw new IllegalArgumentException("value is null, use remove()");
+        checkRecordSize(key, value);
+        commit(enqueue(new PendingWrite(TYPE_PUT, key.clone(), value.clone())));
+    }
+
+    public void put(String key, byte[] value) throws IOException {
+        put(toBytes(key), value);
+    }
+
+    /**
+     * @return whether key was in the store
+     */
+    public boolean remove(byte[] key) throws IOException {
+        checkRecordSize(key, null);
+        PendingWrite write = enqueue(new PendingWrite(TYPE_REMOVE, key.clone(), null));
+        commit(write);
+        return write.existed;
+    }
+
+    public boolean remove(String key) throws IOException {
+        return remove(toBytes(key));
+    }
+
+    /**
+     * @return the size of the log file
+     */
+    public long getLogSize() {
+        mCommitLock.lock();
+        try {
+            return mEnd;
+        } finally {
+            mCommitLock.unlock();
+        }
+    }
+
+    /**
+     * Rewrite the log without superseded records. This normally happens in
+     * the background; writers wait while it runs, readers don't.
+     */
+    public void compact() throws IOException {
+        mCommitLock.lock();
+        try {
+            mStateLock.readLock().lock();
+            List<Entry> live;
+            try {
+                checkOpen();
+                live = new ArrayList<Entry>(mIndex.values());
+            } finally {
+                mStateLock.readLock().unlock();
+            }
+            compact(live);
+        } finally {
+            mCommitLock.unlock();
+            wipeIfRequested();
+        }
+    }
+
+    /**
+     * Commit pending writes, wipe the index and the key and close the log.
+     * The store can be opened again.
+     */
+    public void close() throws IOException {
+        CacheWordService.removeLockListener(this);
+        mCommitLock.lock();
+        try {
+            boolean open;
+            mStateLock.readLock().lock();
+            try {
+                open = mIndex != null;
+            } finally {
+                mStateLock.readLock().unlock();
+            }
+            if (open && !mWipeRequested)
+                writeBatch(takePending());
+        } finally {
+            mStateLock.writeLock().lock();
+            try {
+                wipeState();
+            } finally {
+                mStateLock.writeLock().unlock();
+                mCommitLock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void onCacheWordLocking() {
+        try {
+            close();
+        } catch (IOException e) {
+            Log.e(TAG, "committing before lock failed: " + e.getClass().getName() + " : "
+                    + e.getMessage());
+        }
+    }
+
+    @Override
+    public String getName() {
+        return TAG + " " + mFile.getName();
+    }
+
+    /**
+     * Wipes the index now if no other thread is using the store, otherwise
+     * as soon as the threads using it are done. Pending writes are dropped.
+     */
+    @Override
+    public void forceWipe() {
+        mWipeRequested = true;
+        wipeIfRequested();
+    }
+
+    // / private methods
+    // ////////////////////////////////////
+
+    private void checkOpen() {
+        if (mIndex == null || mWipeRequested)
+            throw new CacheWordLockedException("CacheWordKeyValueStore is not open");
+    }
+
+    private void wipeIfRequested() {
+        if (!mWipeRequested || !mStateLock.writeLock().tryLock())
+            return;
+        try {
+            wipeState();
+        } finally {
+            mStateLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Called with the state write lock held.
+     */
+    private void wipeState() {
+        if (mIndex != null) {
+            for (Key key : mIndex.keySet())
+                Wiper.wipe(key.bytes);
+            mIndex.clear();
+            mIndex = null;
+        }
+        if (mCipher != null)
+            mCipher.wipe();
+        mCipher = null;
+        if (mRaf != null) {
+            try {
+                mRaf.close();
+            } catch (IOException e) {
+                Log.e(TAG, "closing " + mFile.getName() + " failed: " + e.getMessage());
+            }
+        }
+        mRaf = null;
+        mChannel = null;
+        List<PendingWrite> dropped = takePending();
+        for (PendingWrite write : dropped)
+            write.wipe();
+    }
+
+    /**
+     * Reject a write before it is queued, it would fail the whole batch it is
+     * committed with.
+     */
+    private static void checkRecordSize(byte[] key, byte[] value) {
+        long length = (long) AeadCipher.NONCE_LEN_BYTES + RECORD_HEADER_LEN + key.length
+                + (value == null ? 0 : value.length) + AeadCipher.TAG_LEN_BYTES;
+        if (length > MAX_RECORD_SIZE)
+            throw new IllegalArgumentException("record too large: " + length + " > "
+                    + MAX_RECORD_SIZE);
+    }
+
+    private PendingWrite enqueue(PendingWrite write) {
+        mStateLock.readLock().lock();
+        try {
+            checkOpen();
+        } finally {
+            mStateLock.readLock().unlock();
+        }
+        // if the store closes now, commit() finds it closed and open() drops
+        // the write
+        synchronized (this) {
+            mPending.add(write);
+        }
+        return write;
+    }
+
+    private synchronized List<PendingWrite> takePending() {
+        List<PendingWrite> pending = mPending;
+        mPending = new ArrayList<PendingWrite>();
+        return pending;
+    }
+
+    /**
+     * Group commit: whichever writer gets the lock first writes everything
+     * pending, the others find their writes done.
+     */
+    private void commit(PendingWrite write) throws IOException {
+        mCommitLock.lock();
+        try {
+            if (!write.done) {
+                mStateLock.readLock().lock();
+                try {
+                    checkOpen();
+                } finally {
+                    mStateLock.readLock().unlock();
+                }
+                writeBatch(takePending());
+            }
+            if (write.failure != null)
+                throw new IOException("commit failed: " + write.failure.getMessage(),
+                        write.failure);
+            if (!write.done)
+                throw new CacheWordLockedException("CacheWordKeyValueStore was closed");
+        } finally {
+            mCommitLock.unlock();
+            wipeIfRequested();
+        }
+        scheduleCompactionIfNeeded();
+    }
+
+    /**
+     * Called with the commit lock held.
+     */
+    private void writeBatch(List<PendingWrite> batch) throws IOException {
+        if (batch.isEmpty())
+            return;
+        byte[] buf = null;
+        try {
+            int size = 0;
+            for (PendingWrite write : batch)
+                size += PREFIX_LEN + recordLength(write);
+            buf = new byte[size];
+            int off = 0;
+            long[] offsets = new long[batch.size()];
+            for (int i = 0; i < batch.size(); i++) {
+                PendingWrite write = batch.get(i);
+                offsets[i] = mEnd + off + PREFIX_LEN;
+                off += encrypt(write, buf, off);
+            }
+            ByteBuffer src = ByteBuffer.wrap(buf);
+            while (src.hasRemaining())
+                mChannel.write(src, mEnd + src.position());
+            mChannel.force(false);
+
+            mStateLock.writeLock().lock();
+            try {
+                for (int i = 0; i < batch.size(); i++) {
+                    PendingWrite write = batch.get(i);
+                    write.existed = index(write.type, new Key(write.key.clone()),
+                            offsets[i], recordLength(write));
+                }
+            } finally {
+                mStateLock.writeLock().unlock();
+            }
+            mEnd += size;
+            for (PendingWrite write : batch)
+                write.done = true;
+        } catch (IOException e) {
+            for (PendingWrite write : batch)
+                write.failure = e;
+            throw e;
+        } catch (GeneralSecurityException e) {
+            IOException failure = new IOException("encrypting failed: " + e.getMessage(), e);
+            for (PendingWrite write : batch)
+                write.failure = failure;
+            throw failure;
+        } finally {
+            Wiper.wipe(buf);
+            for (PendingWrite write : batch)
+                write.wipe();
+        }
+    }
+
+    private static int recordLength(PendingWrite write) {
+        return AeadCipher.NONCE_LEN_BYTES + RECORD_HEADER_LEN + write.key.length
+                + (write.value == null ? 0 : write.value.length) + AeadCipher.TAG_LEN_BYTES;
+    }
+
+    /**
+     * Write write's record with its length prefix into buf at off, encrypting
+     * in place.
+     *
+     * @return the number of bytes written
+     */
+    private int encrypt(PendingWrite write, byte[] buf, int off)
+            throws GeneralSecurityException {
+        int length = recordLength(write);
+        if (length > MAX_RECORD_SIZE)
+            throw new GeneralSecurityException("record too large: " + length);
+        putInt(buf, off, length);
+        nextNonce();
+        int p = off + PREFIX_LEN;
+        System.arraycopy(mNonce, 0, buf, p, mNonce.length);
+        p += mNonce.length;
+        int plainOff = p;
+        buf[p++] = (byte) write.type;
+        putInt(buf, p, write.key.length);
+        p += Constants.INT_LENGTH;
+        System.arraycopy(write.key, 0, buf, p, write.key.length);
+        p += write.key.length;
+        if (write.value != null) {
+            System.arraycopy(write.value, 0, buf, p, write.value.length);
+            p += write.value.length;
+        }
+        mCipher.encrypt(mNonce, null, buf, plainOff, p - plainOff, buf, plainOff);
+        return PREFIX_LEN + length;
+    }
+
+    /**
+     * nonce = random prefix (8) | counter (4), with a new prefix every time
+     * the log is opened and when the counter wraps
+     */
+    private void nextNonce() {
+        if (mNonceCounter == 0)
+            mRandom.nextBytes(mNonce);
+        putInt(mNonce, 8, mNonceCounter++);
+    }
+
+    /**
+     * Decrypt the record in buf[off..off+length) in place, after its nonce.
+     *
+     * @return the plaintext length
+     */
+    private int decrypt(byte[] buf, int off, int length, long position) throws IOException {
+        byte[] nonce = Arrays.copyOfRange(buf, off, off + AeadCipher.NONCE_LEN_BYTES);
+        try {
+            return mCipher.decrypt(nonce, null, buf, off + nonce.length, length - nonce.length,
+                    buf, off + nonce.length);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("record at " + position + " of " + mFile.getName()
+                    + " failed authentication", e);
+        }
+    }
+
+    /**
+     * Build the index from the log, dropping a torn record at the end, as
+     * left by a crash during a write. A bad record followed by anything but
+     * zeros is not a torn write, and fails the open. Called with both locks
+     * held.
+     */
+    private void scan() throws IOException {
+        long end = mChannel.size();
+        long pos = SegmentedAead.HEADER_LEN;
+        byte[] prefix = new byte[PREFIX_LEN];
+        byte[] record = new byte[0];
+        try {
+            while (pos < end) {
+                if (end - pos < PREFIX_LEN || !readFully(prefix, pos, PREFIX_LEN)) {
+                    truncate(pos, end);
+                    break;
+                }
+                int length = getInt(prefix, 0);
+                long recordEnd = pos + PREFIX_LEN + length;
+                if (recordEnd > end) {
+                    truncate(pos, end);
+                    break;
+                }
+                if (length < MIN_RECORD_LEN || length > MAX_RECORD_SIZE) {
+                    if (!isZeros(pos + PREFIX_LEN, end))
+                        throw new IOException("record at " + pos + " of " + mFile.getName()
+                                + " has an invalid length");
+                    truncate(pos, end);
+                    break;
+                }
+                if (record.length < length) {
+                    Wiper.wipe(record);
+                    record = new byte[Math.max(length, 2 * record.length)];
+                }
+                readFully(record, pos + PREFIX_LEN, length);
+                int n;
+                try {
+                    n = decrypt(record, 0, length, pos + PREFIX_LEN);
+                } catch (IOException e) {
+                    // only the last record can be torn, anything else is tampering
+                    if (recordEnd < end && !isZeros(recordEnd, end))
+                        throw e;
+                    truncate(pos, end);
+                    break;
+                }
+                index(record, n, pos + PREFIX_LEN, length);
+                pos = recordEnd;
+            }
+        } finally {
+            Wiper.wipe(record);
+        }
+        mEnd = Math.min(pos, end);
+    }
+
+    private void index(byte[] record, int plainLength, long offset, int length)
+            throws IOException {
+        int p = AeadCipher.NONCE_LEN_BYTES;
+        int type = record[p];
+        int keyLength = getInt(record, p + 1);
+        if ((type != TYPE_PUT && type != TYPE_REMOVE) || keyLength < 0
+                || keyLength > plainLength - RECORD_HEADER_LEN)
+            throw new IOException("record at " + offset + " is malformed");
+        int keyOffset = p + RECORD_HEADER_LEN;
+        index(type, new Key(Arrays.copyOfRange(record, keyOffset, keyOffset + keyLength)),
+                offset, length);
+    }
+
+    /**
+     * Apply a record to the index. Called with the state write lock held.
+     *
+     * @param key WIPED if not kept in the index
+     * @return whether the key was in the index
+     */
+    private boolean index(int type, Key key, long offset, int length) {
+        Entry old = mIndex.remove(key);
+        if (old != null) {
+            Wiper.wipe(old.key.bytes);
+            mLiveBytes -= PREFIX_LEN + old.length;
+            mGarbageBytes += PREFIX_LEN + old.length;
+        }
+        if (type == TYPE_PUT) {
+            mIndex.put(key, new Entry(key, offset, length));
+            mLiveBytes += PREFIX_LEN + length;
+        } else {
+            Wiper.wipe(key.bytes);
+            mGarbageBytes += PREFIX_LEN + length;
+        }
+        return old != null;
+    }
+
+    private void truncate(long pos, long end) throws IOException {
+        Log.w(TAG, "dropping " + (end - pos) + " bytes of incomplete writes at the end of "
+                + mFile.getName());
+        mChannel.truncate(pos);
+    }
+
+    /**
+     * @return true if the log holds only zeros from pos to end, as in space
+     *         allocated by a write that didn't complete
+     */
+    private boolean isZeros(long pos, long end) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(4096);
+        while (pos < end) {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), end - pos));
+            int n = mChannel.read(buf, pos);
+            if (n < 0)
+                return true;
+            for (int i = 0; i < n; i++) {
+                if (buf.get(i) != 0)
+                    return false;
+            }
+            pos += n;
+        }
+        return true;
+    }
+
+    private boolean readFully(byte[] buf, long position, int length) throws IOException {
+        ByteBuffer dst = ByteBuffer.wrap(buf, 0, length);
+        while (dst.hasRemaining()) {
+            if (mChannel.read(dst, position + dst.position()) < 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Append count bytes of the log from position to dst. transferTo may
+     * copy fewer bytes than asked for.
+     */
+    private void transferFully(long position, long count, FileChannel dst) throws IOException {
+        long copied = 0;
+        while (copied < count) {
+            long n = mChannel.transferTo(position + copied, count - copied, dst);
+            if (n <= 0)
+                throw new IOException("log ended at " + (position + copied));
+            copied += n;
+        }
+    }
+
+    private void scheduleCompactionIfNeeded() {
+        mStateLock.readLock().lock();
+        try {
+            if (mIndex == null || mGarbageBytes < mLiveBytes
+                    || mLiveBytes + mGarbageBytes < MIN_COMPACTION_BYTES)
+                return;
+        } finally {
+            mStateLock.readLock().unlock();
+        }
+        mCompactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (isOpen())
+                        compact();
+                } catch (CacheWordLockedException e) {
+                    // locked in the meantime
+                } catch (IOException e) {
+                    Log.e(TAG, "compaction failed: " + e.getClass().getName() + " : "
+                            + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Copy the live records, still encrypted, to a new log and swap it in.
+     * Called with the commit lock held, so the index doesn't change.
+     */
+    private void compact(List<Entry> live) throws IOException {
+        File tmp = new File(mFile.getPath() + ".compact");
+        RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+        boolean swapped = false;
+        try {
+            out.setLength(0);
+            FileChannel dst = out.getChannel();
+            // the same header keeps the same key, so records copy unchanged
+            transferFully(0, SegmentedAead.HEADER_LEN, dst);
+            long pos = SegmentedAead.HEADER_LEN;
+            Map<Entry, Long> moved = new HashMap<Entry, Long>();
+            Collections.sort(live, BY_OFFSET);
+            for (Entry entry : live) {
+                long from = entry.offset - PREFIX_LEN;
+                long count = PREFIX_LEN + entry.length;
+                transferFully(from, count, dst);
+                moved.put(entry, pos + PREFIX_LEN);
+                pos += count;
+            }
+            dst.force(true);
+
+            mStateLock.writeLock().lock();
+            try {
+                if (mIndex == null)
+                    return;
+                if (!tmp.renameTo(mFile))
+                    throw new IOException("could not replace " + mFile.getName());
+                swapped = true;
+                for (Map.Entry<Key, Entry> e : mIndex.entrySet()) {
+                    Entry entry = e.getValue();
+                    e.setValue(new Entry(entry.key, moved.get(entry), entry.length));
+                }
+                mRaf.close();
+                mRaf = out;
+                mChannel = dst;
+                mGarbageBytes = 0;
+                mEnd = pos;
+            } finally {
+                mStateLock.writeLock().unlock();
+            }
+            Log.d(TAG, "compacted " + mFile.getName() + " to " + pos + " bytes");
+        } finally {
+            if (!swapped) {
+                out.close();
+                tmp.delete();
+            }
+        }
+    }
+
+    private static final Comparator<Entry> BY_OFFSET = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return a.offset < b.offset ? -1 : (a.offset == b.offset ? 0 : 1);
+        }
+    };
+
+    private static byte[] toBytes(String key) {
+        try {
+            return key.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static boolean equals(byte[] a, int aOff, byte[] b, int bOff, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[aOff + i] != b[bOff + i])
+                return false;
+        }
+        return true;
+    }
+
+    private static int getInt(byte[] b, int off) {
+        return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16)
+                | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+    }
+
+    private static void putInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+
+    /**
+     * A key in the index, held as bytes so it can be wiped.
+     */
+    private static final class Key {
+        final byte[] bytes;
+        final int hash;
+
+        Key(byte[] bytes) {
+            this.bytes = bytes;
+            this.hash = Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(bytes, ((Key) o).bytes);
+        }
+    }
+
+    /**
+     * The position of a record in the log, after its length prefix.
+     */
+    private static final class Entry {
+        final Key key;
+        final long offset;
+        final int length;
+
+        Entry(Key key, long offset, int length) {
+            this.key = key;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static final class PendingWrite {
+        final int type;
+        final byte[] key;
+        final byte[] value;
+        // the following are guarded by the commit lock
+        boolean done = false;
+        boolean existed = false;
+        IOException failure;
+
+        PendingWrite(int type, byte[] key, byte[] value) {
+            this.type = type;
+            this.key = key;
+            this.value = value;
+        }
+
+        void wipe() {
+            Wiper.wipe(key);
+            if (value != null)
+                Wiper.wipe(value);
+        }
+    }
+
+    private static class CompactorThreadFactory implements ThreadFactory {
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, TAG);
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
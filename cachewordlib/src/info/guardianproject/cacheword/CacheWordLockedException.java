@@ -0,0 +1,21 @@
+
+package info.guardianproject.cacheword;
+
+/**
+ * Thrown when an operation needs the cached secrets but CacheWord is locked
+ * (or not yet connected). Callers can catch it to retry after
+ * {@link ICacheWordSubscriber#onCacheWordOpened()} instead of treating it as
+ * an error.
+ */
+public class CacheWordLockedException extends IllegalStateException {
+
+    private static final long serialVersionUID = 1L;
+
+    public CacheWordLockedException() {
+        super("CacheWord is locked. Decryption key unavailable.");
+    }
+
+    public CacheWordLockedException(String message) {
+        super(message);
+    }
+}
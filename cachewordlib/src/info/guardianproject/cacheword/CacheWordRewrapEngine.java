@@ -0,0 +1,384 @@
+
+package info.guardianproject.cacheword;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Verifies and re-wraps serialized secrets in bulk, for migrations on a
+ * server: raising the PBKDF2 iteration count, changing the cipher or changing
+ * the passphrase of many bundles. It uses no Android APIs.
+ * <p>
+ * Bundles are read from an iterator and the key derivations run on a pool
+ * with a thread per core. Only a few bundles per thread are in flight at a
+ * time, so memory use doesn't depend on the size of the input. Results go to
+ * a {@link Sink} on the thread calling {@link #run(Iterator, Sink)}, either in
+ * input order ({@link #ORDER_INPUT}) or as they finish
+ * ({@link #ORDER_COMPLETION}), in which case the sink should write them by
+ * id.
+ * <p>
+ * With a checkpoint file, the number of leading input bundles whose results
+ * were delivered is saved as the run goes. A run over the same input after a
+ * crash skips those bundles. Results delivered after the checkpoint may be
+ * delivered again. The file is deleted once the input is done.
+ */
+public class CacheWordRewrapEngine {
+
+    public static final int ORDER_INPUT = 0;
+    public static final int ORDER_COMPLETION = 1;
+
+    static final int IN_FLIGHT_PER_THREAD = 4;
+    static final long CHECKPOINT_INTERVAL = 1000;
+
+    /**
+     * One serialized secrets bundle to re-wrap.
+     */
+    public static final class Bundle {
+        final String id;
+        final byte[] secrets;
+        final char[] passphrase;
+        final char[] newPassphrase;
+
+        /**
+         * @param id identifies the bundle to the {@link Sink}
+         * @param secrets as saved by
+         *            {@link PassphraseSecretsImpl#encryptWithPassphrase}
+         * @param x_passphrase WIPED
+         * @param x_newPassphrase the passphrase to re-wrap with, or null to
+         *            keep the current one WIPED
+         */
+        public Bundle(String id, byte[] secrets, char[] x_passphrase, char[] x_newPassphrase) {
+            this.id = id;
+            this.secrets = secrets;
+            this.passphrase = x_passphrase;
+            this.newPassphrase = x_newPassphrase;
+        }
+
+        void wipe() {
+            Wiper.wipe(passphrase);
+            Wiper.wipe(newPassphrase);
+        }
+    }
+
+    /**
+     * Receives the results, on the thread calling
+     * {@link CacheWordRewrapEngine#run(Iterator, Sink)}. An exception thrown
+     * here stops the run.
+     */
+    public interface Sink {
+        /**
+         * @param secrets the re-wrapped bundle, or null when only verifying
+         */
+        public void onRewrapped(String id, byte[] secrets) throws IOException;
+
+        /**
+         * @param e a {@link GeneralSecurityException} for a wrong passphrase
+         *            or unreadable secrets
+         */
+        public void onFailed(String id, Exception e) throws IOException;
+    }
+
+    private final int mIterations;
+    private final int mCipher;
+    private final int mOrder;
+    private int mThreads = ChunkPipeline.getParallelism();
+    private boolean mVerifyOnly = false;
+    private File mCheckpoint;
+
+    private final AtomicLong mProcessed = new AtomicLong();
+    private final AtomicLong mFailed = new AtomicLong();
+    private final AtomicLong mSkipped = new AtomicLong();
+    private volatile long mStartNanos = 0;
+    private volatile long mExpectedTotal = -1;
+
+    /**
+     * @param iterations the PBKDF2 iteration count of the re-wrapped bundles
+     * @param cipher one of the {@code Constants.CIPHER_*} ids
+     * @param order {@link #ORDER_INPUT} or {@link #ORDER_COMPLETION}
+     */
+    public CacheWordRewrapEngine(int iterations, int cipher, int order) {
+        if (order != ORDER_INPUT && order != ORDER_COMPLETION)
+            throw new IllegalArgumentException("invalid order " + order);
+        mIterations = iterations;
+        mCipher = cipher;
+        mOrder = order;
+    }
+
+    /**
+     * @param threads key derivation threads, one per core by default
+     */
+    public void setThreads(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("invalid number of threads " + threads);
+        mThreads = threads;
+    }
+
+    /**
+     * Only check that the passphrases open their bundles; the sink gets null
+     * secrets.
+     */
+    public void setVerifyOnly(boolean verifyOnly) {
+        mVerifyOnly = verifyOnly;
+    }
+
+    public void setCheckpointFile(File checkpoint) {
+        mCheckpoint = checkpoint;
+    }
+
+    /**
+     * @param total the number of bundles in the input, to estimate the time
+     *            left
+     */
+    public void setExpectedTotal(long total) {
+        mExpectedTotal = total;
+    }
+
+    /**
+     * Process every bundle of the source.
+     *
+     * @return the number of bundles processed, not counting those skipped
+     *         after a checkpoint
+     * @throws IOException from the sink or the checkpoint file
+     * @throws InterruptedException
+     */
+    public long run(Iterator<Bundle> source, Sink sink) throws IOException,
+            InterruptedException {
+        long skip = readCheckpoint();
+        long seq = 0;
+        while (seq < skip && source.hasNext()) {
+            source.next().wipe();
+            seq++;
+        }
+        mSkipped.set(seq);
+        mProcessed.set(0);
+        mFailed.set(0);
+        mStartNanos = System.nanoTime();
+
+        int window = mThreads * IN_FLIGHT_PER_THREAD;
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(mThreads, mThreads, 30,
+                TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(window), new RewrapFactory());
+        CompletionService<Result> results = new ExecutorCompletionService<Result>(pool);
+
+        // the first bundle whose result hasn't been delivered
+        long next = seq;
+        long checkpointed = seq;
+        // results waiting for an earlier one (ORDER_INPUT), or delivered
+        // ahead of it (ORDER_COMPLETION)
+        Map<Long, Result> waiting = new HashMap<Long, Result>();
+        Set<Long> ahead = new HashSet<Long>();
+        int inFlight = 0;
+        boolean done = false;
+        try {
+            while (true) {
+                // results held back for ORDER_INPUT count against the window,
+                // so a slow bundle can't make them pile up
+                while (inFlight + waiting.size() < window && source.hasNext()) {
+                    final Bundle bundle = source.next();
+                    final long s = seq++;
+                    results.submit(new Callable<Result>() {
+                        @Override
+                        public Result call() {
+                            return process(s, bundle);
+                        }
+                    });
+                    inFlight++;
+                }
+                if (inFlight == 0)
+                    break;
+
+                Result r = take(results);
+                inFlight--;
+                if (mOrder == ORDER_INPUT) {
+                    waiting.put(r.seq, r);
+                    while ((r = waiting.remove(next)) != null) {
+                        deliver(r, sink);
+                        next++;
+                    }
+                } else {
+                    deliver(r, sink);
+                    ahead.add(r.seq);
+                    while (ahead.remove(next))
+                        next++;
+                }
+
+                if (mCheckpoint != null && next - checkpointed >= CHECKPOINT_INTERVAL) {
+                    writeCheckpoint(next);
+                    checkpointed = next;
+                }
+            }
+            done = true;
+        } finally {
+            pool.shutdownNow();
+            if (mCheckpoint != null) {
+                if (done) {
+                    mCheckpoint.delete();
+                } else if (next > checkpointed) {
+                    try {
+                        writeCheckpoint(next);
+                    } catch (IOException e) {
+                        // already failing, and that failure is the one to
+                        // report; the previous checkpoint is still valid
+                    }
+                }
+            }
+        }
+        return mProcessed.get();
+    }
+
+    public long getProcessedCount() {
+        return mProcessed.get();
+    }
+
+    public long getFailedCount() {
+        return mFailed.get();
+    }
+
+    /**
+     * @return the number of bundles skipped because an earlier run had
+     *         checkpointed them
+     */
+    public long getSkippedCount() {
+        return mSkipped.get();
+    }
+
+    /**
+     * @return bundles processed per second in the current or last run
+     */
+    public double getThroughput() {
+        long start = mStartNanos;
+        if (start == 0)
+            return 0;
+        double seconds = (System.nanoTime() - start) / 1e9;
+        return seconds <= 0 ? 0 : mProcessed.get() / seconds;
+    }
+
+    /**
+     * @return the estimated time left in milliseconds, or -1 if unknown, see
+     *         {@link #setExpectedTotal(long)}
+     */
+    public long getEtaMillis() {
+        double throughput = getThroughput();
+        if (mExpectedTotal < 0 || throughput <= 0)
+            return -1;
+        long left = mExpectedTotal - mSkipped.get() - mProcessed.get();
+        return Math.max(0, (long) (left * 1000 / throughput));
+    }
+
+    // / private methods
+    // ////////////////////////////////////
+
+    private Result process(long seq, Bundle bundle) {
+        byte[] x_key = null;
+        try {
+            SerializedSecretsV1 ss = new SerializedSecretsLoader().loadSecrets(bundle.secrets);
+            if (ss == null)
+                throw new GeneralSecurityException("unreadable secrets");
+            PassphraseSecretsImpl crypto = new PassphraseSecretsImpl();
+            x_key = crypto.decryptWithPassphrase(bundle.passphrase, ss);
+            if (mVerifyOnly)
+                return new Result(seq, bundle.id, null, null);
+            char[] passphrase = bundle.newPassphrase != null ? bundle.newPassphrase
+                    : bundle.passphrase;
+            // the context is not used
+            byte[] rewrapped = crypto.encryptWithPassphrase(null, passphrase, x_key,
+                    mIterations, mCipher).getBytes();
+            return new Result(seq, bundle.id, rewrapped, null);
+        } catch (Exception e) {
+            return new Result(seq, bundle.id, null, e);
+        } finally {
+            bundle.wipe();
+            Wiper.wipe(x_key);
+        }
+    }
+
+    private static Result take(CompletionService<Result> results) throws InterruptedException {
+        try {
+            return results.take().get();
+        } catch (ExecutionException e) {
+            // process() returns its failures
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private void deliver(Result r, Sink sink) throws IOException {
+        mProcessed.incrementAndGet();
+        if (r.error != null) {
+            mFailed.incrementAndGet();
+            sink.onFailed(r.id, r.error);
+        } else {
+            sink.onRewrapped(r.id, r.secrets);
+        }
+    }
+
+    private long readCheckpoint() throws IOException {
+        if (mCheckpoint == null || !mCheckpoint.exists())
+            return 0;
+        DataInputStream in = new DataInputStream(new FileInputStream(mCheckpoint));
+        try {
+            return in.readLong();
+        } finally {
+            in.close();
+        }
+    }
+
+    private void writeCheckpoint(long delivered) throws IOException {
+        File tmp = new File(mCheckpoint.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(fos);
+        try {
+            out.writeLong(delivered);
+            out.flush();
+            // sync before the rename, so a crash leaves the old or the new count
+            fos.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(mCheckpoint))
+            throw new IOException("could not replace " + mCheckpoint.getName());
+    }
+
+    private static final class Result {
+        final long seq;
+        final String id;
+        final byte[] secrets;
+        final Exception error;
+
+        Result(long seq, String id, byte[] secrets, Exception error) {
+            this.seq = seq;
+            this.id = id;
+            this.secrets = secrets;
+            this.error = error;
+        }
+    }
+
+    private static class RewrapFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "CacheWordRewrap-" + mCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
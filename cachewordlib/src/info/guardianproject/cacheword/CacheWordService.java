@@ -13,22 +13,52 @@ import android.os.SystemClock;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds the secrets in memory until they are locked. Secrets live in
+ * namespaces, for example one per account, each with its own secrets, timeout,
+ * subscribers and lock state. Methods without a namespace argument act on
+ * {@link Constants#DEFAULT_NAMESPACE}. A namespace locking tears down the lock
+ * listeners bound to it, then broadcasts its
+ * {@link Constants#INTENT_NEW_SECRETS}. Only the default namespace drives
+ * {@link CacheWordJobQueue}.
+ */
 public class CacheWordService extends Service {
 
     private final static String TAG = "CacheWordService";
 
     private final IBinder mBinder = new CacheWordBinder();
 
-    private ICachedSecrets mSecrets = null;
+    // guarded by this
+    private final HashMap<String, Namespace> mNamespaces = new HashMap<String, Namespace>();
 
     private Notification mNotification;
-    private PendingIntent mTimeoutIntent;
-    private int mTimeout = CacheWordHandler.DEFAULT_TIMEOUT_SECONDS;
-    private Intent mBroadcastIntent = new Intent(Constants.INTENT_NEW_SECRETS);
-
-    private int mSubscriberCount = 0;
     private boolean mIsForegrounded = false;
 
+    // shared by all namespaces, so unlocking several at once doesn't
+    // oversubscribe the CPU with key derivations
+    private static ExecutorService sKdfPool;
+    // runs the lock listeners, which may take up to the LockOrchestrator
+    // deadline, off the main thread and one lock at a time
+    private static ExecutorService sLockExecutor;
+    // bumped whenever the default namespace receives secrets
+    private static volatile long sUnlockCount = 0;
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         if (intent == null) {
@@ -46,7 +76,8 @@ public class CacheWordService extends Service {
 
         if (action.equals(Constants.INTENT_LOCK_CACHEWORD)) {
             Log.d(TAG, "onStart: LOCK COMMAND received..locking");
-            lock();
+            String namespace = intent.getStringExtra(Constants.EXTRA_NAMESPACE);
+            lock(namespace == null ? Constants.DEFAULT_NAMESPACE : namespace);
         }
         return START_NOT_STICKY;
     }
@@ -69,20 +100,23 @@ public class CacheWordService extends Service {
     @Override
     public void onDestroy() {
         super.onDestroy();
-        if (mSecrets != null) {
-            Log.d(TAG, "onDestroy() killed secrets");
-            mSecrets.destroy();
-            mSecrets = null;
+        Set<String> unlocked = getUnlockedNamespaces();
+        if (!unlocked.isEmpty()) {
+            Log.d(TAG, "onDestroy() killing secrets");
+            // synchronously, nothing may use the service once it is destroyed
+            for (String namespace : unlocked)
+                finishLock(namespace, takeSecrets(namespace), false);
         } else {
             Log.d(TAG, "onDestroy() secrets already null");
         }
     }
 
     @Override
-    public boolean onUnbind(Intent intent) {
+    public synchronized boolean onUnbind(Intent intent) {
         // note: this method is called when ALL clients
         // have unbound, and not per-client.
-        resetTimeout();
+        for (Namespace ns : new ArrayList<Namespace>(mNamespaces.values()))
+            resetTimeout(ns);
         return super.onUnbind(intent);
     }
 
@@ -96,66 +130,316 @@ public class CacheWordService extends Service {
     // API for Clients
     // //////////////////////////////////////
 
-    public synchronized ICachedSecrets getCachedSecrets() {
-        return mSecrets;
+    public ICachedSecrets getCachedSecrets() {
+        return getCachedSecrets(Constants.DEFAULT_NAMESPACE);
     }
 
-    public synchronized void setCachedSecrets(ICachedSecrets secrets) {
-        Log.d(TAG, "setCachedSecrets()");
-        mSecrets = secrets;
+    public synchronized ICachedSecrets getCachedSecrets(String namespace) {
+        Namespace ns = mNamespaces.get(namespace);
+        return ns == null ? null : ns.secrets;
+    }
 
-        handleNewSecrets(true);
+    public void setCachedSecrets(ICachedSecrets secrets) {
+        setCachedSecrets(Constants.DEFAULT_NAMESPACE, secrets);
+    }
+
+    public synchronized void setCachedSecrets(String namespace, ICachedSecrets secrets) {
+        Log.d(TAG, "setCachedSecrets(" + namespace + ")");
+        Namespace ns = getNamespace(namespace);
+        ns.secrets = secrets;
+
+        handleNewSecrets(ns, true);
+    }
+
+    /**
+     * Replace the secrets of a namespace, unless it was locked or given other
+     * secrets since expected was fetched.
+     *
+     * @return true if the secrets were replaced
+     */
+    synchronized boolean replaceCachedSecrets(String namespace, ICachedSecrets expected,
+            ICachedSecrets secrets) {
+        Namespace ns = mNamespaces.get(namespace);
+        if (ns == null || ns.secrets == null || ns.secrets != expected)
+            return false;
+        Log.d(TAG, "replaceCachedSecrets(" + namespace + ")");
+        ns.secrets = secrets;
+
+        handleNewSecrets(ns, true);
+        return true;
+    }
+
+    /**
+     * Derive the secrets of a namespace from a passphrase on the shared key
+     * derivation pool and cache them, initializing the namespace if
+     * necessary.
+     *
+     * @param namespace
+     * @param x_passphrase WIPED
+     * @return the cached secrets, or a {@link GeneralSecurityException} on an
+     *         invalid passphrase
+     */
+    public Future<ICachedSecrets> unlock(final String namespace, final char[] x_passphrase) {
+        SecretsManager.checkNamespace(namespace);
+        return getKdfPool().submit(new Callable<ICachedSecrets>() {
+            @Override
+            public ICachedSecrets call() throws GeneralSecurityException {
+                PassphraseSecrets ps = PassphraseSecrets.initializeOrFetchSecrets(
+                        CacheWordService.this, namespace, x_passphrase);
+                setCachedSecrets(namespace, ps);
+                return ps;
+            }
+        });
     }
 
     public int getTimeout() {
-        return mTimeout;
+        return getTimeout(Constants.DEFAULT_NAMESPACE);
+    }
+
+    public synchronized int getTimeout(String namespace) {
+        Namespace ns = mNamespaces.get(namespace);
+        return ns == null ? CacheWordHandler.DEFAULT_TIMEOUT_SECONDS : ns.timeout;
     }
 
     public void setTimeout(int timeout) {
-        mTimeout = timeout;
-        resetTimeout();
+        setTimeout(Constants.DEFAULT_NAMESPACE, timeout);
     }
 
-    public synchronized boolean isLocked() {
-        return mSecrets == null;
+    public synchronized void setTimeout(String namespace, int timeout) {
+        Namespace ns = getNamespace(namespace);
+        ns.timeout = timeout;
+        resetTimeout(ns);
+    }
+
+    public boolean isLocked() {
+        return isLocked(Constants.DEFAULT_NAMESPACE);
+    }
+
+    public synchronized boolean isLocked(String namespace) {
+        Namespace ns = mNamespaces.get(namespace);
+        return ns == null || ns.secrets == null;
+    }
+
+    /**
+     * @return the namespaces that are currently unlocked
+     */
+    public synchronized Set<String> getUnlockedNamespaces() {
+        Set<String> unlocked = new HashSet<String>();
+        for (Namespace ns : mNamespaces.values()) {
+            if (ns.secrets != null)
+                unlocked.add(ns.name);
+        }
+        return unlocked;
     }
 
     public void lock() {
-        Log.d(TAG, "lock");
+        lock(Constants.DEFAULT_NAMESPACE);
+    }
 
-        synchronized (this) {
-            if (mSecrets != null) {
-                mSecrets.destroy();
-                mSecrets = null;
+    /**
+     * Lock one namespace. It is locked when this returns: its secrets are no
+     * longer handed out. The lock listeners then run on a background thread,
+     * after which the secrets are destroyed and the namespace's
+     * {@link Constants#INTENT_NEW_SECRETS} is broadcast. The service stops
+     * once every namespace is locked.
+     */
+    public void lock(final String namespace) {
+        Log.d(TAG, "lock(" + namespace + ")");
+        final ICachedSecrets secrets = takeSecrets(namespace);
+        getLockExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                finishLock(namespace, secrets, true);
             }
-        }
+        });
+    }
 
-        LocalBroadcastManager.getInstance(this).sendBroadcast(mBroadcastIntent);
+    /**
+     * Lock every namespace.
+     */
+    public void lockAll() {
+        List<String> namespaces = new ArrayList<String>(getUnlockedNamespaces());
+        // the default namespace last, so the service stops once
+        namespaces.remove(Constants.DEFAULT_NAMESPACE);
+        for (String namespace : namespaces)
+            lock(namespace);
+        lock(Constants.DEFAULT_NAMESPACE);
+    }
 
-        if (mIsForegrounded) {
-            stopForeground(true);
-            mIsForegrounded = false;
+    /**
+     * Register a listener that is notified before the secrets are destroyed.
+     * Registration is process wide and does not require a connection to the
+     * service. Listeners are torn down in parallel, see
+     * {@link LockOrchestrator}.
+     */
+    public static void addLockListener(ICacheWordLockListener listener) {
+        LockOrchestrator.getInstance().register(listener);
+    }
+
+    /**
+     * Register a listener that is notified before the secrets of a namespace
+     * are destroyed.
+     */
+    public static void addLockListener(ICacheWordLockListener listener, String namespace) {
+        LockOrchestrator.getInstance().register(listener, LockOrchestrator.STAGE_CLOSE,
+                namespace);
+    }
+
+    public static void removeLockListener(ICacheWordLockListener listener) {
+        LockOrchestrator.getInstance().unregister(listener);
+    }
+
+    /**
+     * @return how often the default namespace has been unlocked in this
+     *         process, so a lock listener can tell whether CacheWord unlocked
+     *         again since it was notified
+     */
+    static long getUnlockCount() {
+        return sUnlockCount;
+    }
+
+    static synchronized void countUnlock() {
+        sUnlockCount++;
+    }
+
+    /**
+     * Wait until the locks requested so far have run their lock listeners
+     * and destroyed the secrets.
+     */
+    static void awaitLocks() throws InterruptedException {
+        try {
+            getLockExecutor().submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
         }
-        stopSelf();
     }
 
-    public synchronized void attachSubscriber() {
-        mSubscriberCount++;
-        Log.d(TAG, "attachSubscriber(): " + mSubscriberCount);
-        resetTimeout();
+    public void attachSubscriber() {
+        attachSubscriber(Constants.DEFAULT_NAMESPACE);
+    }
+
+    public synchronized void attachSubscriber(String namespace) {
+        Namespace ns = getNamespace(namespace);
+        ns.subscribers++;
+        Log.d(TAG, "attachSubscriber(" + namespace + "): " + ns.subscribers);
+        resetTimeout(ns);
+    }
+
+    public void detachSubscriber() {
+        detachSubscriber(Constants.DEFAULT_NAMESPACE);
     }
 
-    public synchronized void detachSubscriber() {
-        mSubscriberCount--;
-        Log.d(TAG, "detachSubscriber(): " + mSubscriberCount);
-        resetTimeout();
+    public synchronized void detachSubscriber(String namespace) {
+        Namespace ns = getNamespace(namespace);
+        ns.subscribers--;
+        Log.d(TAG, "detachSubscriber(" + namespace + "): " + ns.subscribers);
+        resetTimeout(ns);
     }
 
     // / private methods
     // ////////////////////////////////////
 
-    private void handleNewSecrets(boolean notify) {
-        if (!SecretsManager.isInitialized(this)) {
+    // call with the monitor held
+    private Namespace getNamespace(String namespace) {
+        Namespace ns = mNamespaces.get(namespace);
+        if (ns == null) {
+            SecretsManager.checkNamespace(namespace);
+            ns = new Namespace(namespace, newBroadcastIntent(namespace));
+            mNamespaces.put(namespace, ns);
+        }
+        return ns;
+    }
+
+    private static Intent newBroadcastIntent(String namespace) {
+        Intent intent = new Intent(Constants.INTENT_NEW_SECRETS);
+        intent.putExtra(Constants.EXTRA_NAMESPACE, namespace);
+        return intent;
+    }
+
+    private static synchronized ExecutorService getKdfPool() {
+        if (sKdfPool == null) {
+            // key derivation is sized to take a second on one core
+            int threads = Math.min(2, ChunkPipeline.getParallelism());
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new KdfFactory());
+            executor.allowCoreThreadTimeOut(true);
+            sKdfPool = executor;
+        }
+        return sKdfPool;
+    }
+
+    private static synchronized ExecutorService getLockExecutor() {
+        if (sLockExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "CacheWordLock");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            sLockExecutor = executor;
+        }
+        return sLockExecutor;
+    }
+
+    /**
+     * Mark a namespace locked.
+     *
+     * @return the secrets it held, or null if it was locked
+     */
+    private synchronized ICachedSecrets takeSecrets(String namespace) {
+        Namespace ns = mNamespaces.get(namespace);
+        if (ns == null)
+            return null;
+        ICachedSecrets secrets = ns.secrets;
+        ns.secrets = null;
+        return secrets;
+    }
+
+    /**
+     * Tear down a namespace marked locked by {@link #takeSecrets(String)}.
+     *
+     * @param secrets the secrets taken from it, destroyed here
+     * @param stop stop the service if every namespace is locked
+     */
+    private void finishLock(String namespace, ICachedSecrets secrets, boolean stop) {
+        // listeners may still use data derived from the secrets (e.g., flush
+        // an open database), so they run first and outside of the monitor to
+        // avoid deadlocking with them. Only the secrets taken are destroyed,
+        // not those of an unlock that happened meanwhile.
+        if (secrets != null) {
+            notifyLockListeners(namespace);
+            secrets.destroy();
+        }
+
+        Intent broadcast;
+        boolean allLocked;
+        synchronized (this) {
+            Namespace ns = mNamespaces.get(namespace);
+            broadcast = ns != null ? ns.broadcast : newBroadcastIntent(namespace);
+            allLocked = getUnlockedNamespaces().isEmpty();
+        }
+
+        LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
+
+        if (stop && allLocked) {
+            if (mIsForegrounded) {
+                stopForeground(true);
+                mIsForegrounded = false;
+            }
+            stopSelf();
+        }
+    }
+
+    private void handleNewSecrets(Namespace ns, boolean notify) {
+        if (!SecretsManager.isInitialized(this, ns.name)) {
             return;
         }
         if (mNotification != null) {
@@ -168,26 +452,35 @@ public class CacheWordService extends Service {
                 mIsForegrounded = false;
             }
         }
-        resetTimeout();
+        resetTimeout(ns);
+        if (ns.name.equals(Constants.DEFAULT_NAMESPACE) && ns.secrets != null) {
+            countUnlock();
+            CacheWordJobQueue.onNewSecrets(ns.secrets);
+        }
         if (notify)
-            LocalBroadcastManager.getInstance(this).sendBroadcast(mBroadcastIntent);
+            LocalBroadcastManager.getInstance(this).sendBroadcast(ns.broadcast);
     }
 
-    private void resetTimeout() {
-        if (mTimeout < 0)
-            mTimeout = CacheWordHandler.DEFAULT_TIMEOUT_SECONDS;
-        boolean timeoutEnabled = (mTimeout > 0);
+    private void notifyLockListeners(String namespace) {
+        LockTeardownReport report = LockOrchestrator.getInstance().teardown(namespace);
+        Log.d(TAG, "lock listeners of '" + namespace + "': " + report);
+    }
+
+    private void resetTimeout(Namespace ns) {
+        if (ns.timeout < 0)
+            ns.timeout = CacheWordHandler.DEFAULT_TIMEOUT_SECONDS;
+        boolean timeoutEnabled = (ns.timeout > 0);
 
-        Log.d(TAG, "timeout enabled: " + timeoutEnabled + ", seconds=" + mTimeout);
-        Log.d(TAG, "mSubscriberCount: " + mSubscriberCount);
+        Log.d(TAG, "timeout enabled: " + timeoutEnabled + ", seconds=" + ns.timeout);
+        Log.d(TAG, "subscribers of '" + ns.name + "': " + ns.subscribers);
 
-        if (timeoutEnabled && mSubscriberCount == 0) {
-            startTimeout(mTimeout);
+        if (timeoutEnabled && ns.subscribers == 0) {
+            startTimeout(ns, ns.timeout);
         } else {
             Log.d(TAG, "disabled timeout alarm");
-            if (mTimeoutIntent != null) {
+            if (ns.timeoutIntent != null) {
                 AlarmManager alarmManager = (AlarmManager) getSystemService(ALARM_SERVICE);
-                alarmManager.cancel(mTimeoutIntent);
+                alarmManager.cancel(ns.timeoutIntent);
             }
         }
     }
@@ -195,25 +488,54 @@ public class CacheWordService extends Service {
     /**
      * @param seconds timeout interval in seconds
      */
-    private void startTimeout(long seconds) {
+    private void startTimeout(Namespace ns, long seconds) {
         if (seconds <= 0) {
             Log.d(TAG, "immediate timeout");
-            lock();
+            lock(ns.name);
             return;
         }
         Log.d(TAG, "starting timeout: " + seconds);
 
-        if (mTimeoutIntent == null)
-            mTimeoutIntent = CacheWordHandler.getPasswordLockPendingIntent(this);
+        if (ns.timeoutIntent == null)
+            ns.timeoutIntent = CacheWordHandler.getPasswordLockPendingIntent(this, ns.name);
         AlarmManager alarmManager = (AlarmManager) getSystemService(ALARM_SERVICE);
         alarmManager.set(AlarmManager.ELAPSED_REALTIME,
-                SystemClock.elapsedRealtime() + (seconds * 1000), mTimeoutIntent);
+                SystemClock.elapsedRealtime() + (seconds * 1000), ns.timeoutIntent);
     }
 
     public void setNotification(Notification notification) {
         mNotification = notification;
     }
 
+    /**
+     * The secrets and lock state of one namespace.
+     */
+    private static final class Namespace {
+        final String name;
+        final Intent broadcast;
+        ICachedSecrets secrets;
+        int timeout = CacheWordHandler.DEFAULT_TIMEOUT_SECONDS;
+        int subscribers = 0;
+        PendingIntent timeoutIntent;
+
+        Namespace(String name, Intent broadcast) {
+            this.name = name;
+            this.broadcast = broadcast;
+        }
+    }
+
+    private static class KdfFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            // not a background priority, the user is waiting for the unlock
+            Thread t = new Thread(r, TAG + "-kdf-" + mCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
     public class CacheWordBinder extends Binder implements ICacheWordBinder {
 
         @Override
@@ -0,0 +1,481 @@
+
+package info.guardianproject.cacheword;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the unlocked master keys of many tenants in memory, for servers that
+ * store per-user secrets in the CacheWord format (see
+ * {@link PassphraseSecretsImpl}). It uses no Android APIs.
+ * <p>
+ * Keys are spread over lock-striped segments. Each segment is an access
+ * ordered map bounded to its share of the maximum size, so a full segment
+ * evicts its least recently used key. Keys idle for longer than the TTL are
+ * evicted by one hashed timer wheel rather than a timer per key: reading a key
+ * only records the time, and the wheel checks the idle time when the key's
+ * slot comes around, rescheduling keys that were used since. The keys
+ * themselves sit in a {@link KeySlab} off the heap, and every key leaving the
+ * vault is wiped.
+ * <p>
+ * Unlocks run the key derivation on a bounded pool. When its queue is full,
+ * {@link #unlock(String, byte[], char[], Callback)} throws a
+ * {@link RejectedExecutionException} so the caller can shed load. Callers can
+ * wait on the returned {@link Future}, or pass a {@link Callback}, which needs
+ * no waiting thread at all.
+ */
+public class CacheWordVault {
+
+    static final int SEGMENTS = 16;
+    static final int WHEEL_SLOTS = 512;
+    static final long MIN_TICK_MILLIS = 10;
+    static final long MAX_TICK_MILLIS = 1000;
+    static final int KDF_QUEUE_PER_THREAD = 64;
+
+    /**
+     * Notified when an unlock finishes, on the key derivation thread.
+     */
+    public interface Callback {
+        public void onUnlocked(String tenant);
+
+        /**
+         * @param cause a {@link GeneralSecurityException} for a wrong
+         *            passphrase or unreadable secrets
+         */
+        public void onUnlockFailed(String tenant, Throwable cause);
+    }
+
+    private final Segment[] mSegments;
+    private final KeySlab mSlab;
+    private final long mTtlMillis;
+    private final TimerWheel mWheel;
+    private final ThreadPoolExecutor mKdfPool;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mUnlocks = new AtomicLong();
+    private final AtomicLong mFailedUnlocks = new AtomicLong();
+    private final AtomicLong mIdleEvictions = new AtomicLong();
+    private final AtomicLong mSizeEvictions = new AtomicLong();
+
+    /**
+     * @param maxTenants the most keys held at once, at most
+     *            {@link KeySlab#MAX_CAPACITY} less {@link #SEGMENTS}
+     * @param idleTtlMillis how long a key may go unused before it is wiped
+     * @param kdfThreads the number of concurrent key derivations
+     */
+    public CacheWordVault(int maxTenants, long idleTtlMillis, int kdfThreads) {
+        this(maxTenants, idleTtlMillis, kdfThreads, Math.max(MIN_TICK_MILLIS,
+                Math.min(MAX_TICK_MILLIS, idleTtlMillis / 16)));
+    }
+
+    CacheWordVault(int maxTenants, long idleTtlMillis, int kdfThreads, long tickMillis) {
+        if (maxTenants < SEGMENTS || maxTenants > KeySlab.MAX_CAPACITY - SEGMENTS)
+            throw new IllegalArgumentException("invalid maxTenants " + maxTenants);
+        if (idleTtlMillis <= 0 || kdfThreads < 1)
+            throw new IllegalArgumentException("invalid ttl " + idleTtlMillis + " or threads "
+                    + kdfThreads);
+        mTtlMillis = idleTtlMillis;
+        // a segment holds one key over its capacity until it evicts
+        mSlab = new KeySlab(maxTenants + SEGMENTS);
+        mSegments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            // spread the remainder, so the capacities add up to maxTenants
+            mSegments[i] = new Segment(maxTenants / SEGMENTS
+                    + (i < maxTenants % SEGMENTS ? 1 : 0));
+        }
+        mKdfPool = new ThreadPoolExecutor(kdfThreads, kdfThreads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(kdfThreads * KDF_QUEUE_PER_THREAD),
+                new VaultThreadFactory("kdf"));
+        mKdfPool.allowCoreThreadTimeOut(true);
+        mWheel = new TimerWheel(tickMillis);
+        Thread t = new VaultThreadFactory("wheel").newThread(mWheel);
+        t.start();
+    }
+
+    /**
+     * Derive the tenant's master key from its passphrase and keep it in the
+     * vault. A key already in the vault is replaced.
+     *
+     * @param tenant
+     * @param serializedSecrets the tenant's secrets, as saved by
+     *            {@link PassphraseSecretsImpl#encryptWithPassphrase}
+     * @param x_passphrase WIPED
+     * @param callback may be null
+     * @return completes when the key is in the vault, or with a
+     *         {@link GeneralSecurityException}
+     * @throws RejectedExecutionException if too many unlocks are queued
+     */
+    public Future<Void> unlock(final String tenant, final byte[] serializedSecrets,
+            final char[] x_passphrase, final Callback callback)
+            throws RejectedExecutionException {
+        FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+            @Override
+            public Void call() throws GeneralSecurityException {
+                byte[] x_key = null;
+                try {
+                    SerializedSecretsV1 ss = new SerializedSecretsLoader()
+                            .loadSecrets(serializedSecrets);
+                    if (ss == null)
+                        throw new GeneralSecurityException("unreadable secrets for " + tenant);
+                    x_key = new PassphraseSecretsImpl().decryptWithPassphrase(x_passphrase, ss);
+                    put(tenant, x_key);
+                    mUnlocks.incrementAndGet();
+                    return null;
+                } catch (GeneralSecurityException e) {
+                    mFailedUnlocks.incrementAndGet();
+                    throw e;
+                } finally {
+                    Wiper.wipe(x_passphrase);
+                    Wiper.wipe(x_key);
+                }
+            }
+        }) {
+            @Override
+            protected void done() {
+                if (callback == null)
+                    return;
+                try {
+                    get();
+                    callback.onUnlocked(tenant);
+                } catch (ExecutionException e) {
+                    callback.onUnlockFailed(tenant, e.getCause());
+                } catch (CancellationException e) {
+                    callback.onUnlockFailed(tenant, e);
+                } catch (InterruptedException e) {
+                    // not reached, the task is done
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        try {
+            mKdfPool.execute(task);
+        } catch (RejectedExecutionException e) {
+            Wiper.wipe(x_passphrase);
+            throw e;
+        }
+        return task;
+    }
+
+    /**
+     * @return a copy of the tenant's master key, which the caller must wipe,
+     *         or null if it is not in the vault
+     */
+    public byte[] getKey(String tenant) {
+        Segment segment = segmentFor(tenant);
+        synchronized (segment) {
+            Entry e = segment.map.get(tenant);
+            if (e == null) {
+                mMisses.incrementAndGet();
+                return null;
+            }
+            e.lastAccess = now();
+            mHits.incrementAndGet();
+            return mSlab.get(e.handle);
+        }
+    }
+
+    public boolean isUnlocked(String tenant) {
+        Segment segment = segmentFor(tenant);
+        synchronized (segment) {
+            return segment.map.containsKey(tenant);
+        }
+    }
+
+    /**
+     * Wipe the tenant's key.
+     */
+    public void lock(String tenant) {
+        Segment segment = segmentFor(tenant);
+        synchronized (segment) {
+            Entry e = segment.map.remove(tenant);
+            if (e != null)
+                e.wipe(mSlab);
+        }
+    }
+
+    /**
+     * Wipe every key. The vault stays usable.
+     */
+    public void lockAll() {
+        for (Segment segment : mSegments) {
+            synchronized (segment) {
+                for (Entry e : segment.map.values())
+                    e.wipe(mSlab);
+                segment.map.clear();
+            }
+        }
+    }
+
+    /**
+     * Wipe every key and stop the vault's threads. Queued unlocks are
+     * dropped.
+     */
+    public void close() {
+        mKdfPool.shutdownNow();
+        mWheel.close();
+        lockAll();
+        mSlab.wipeAll();
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : mSegments) {
+            synchronized (segment) {
+                size += segment.map.size();
+            }
+        }
+        return size;
+    }
+
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    public long getUnlockCount() {
+        return mUnlocks.get();
+    }
+
+    public long getFailedUnlockCount() {
+        return mFailedUnlocks.get();
+    }
+
+    /**
+     * @return the number of keys wiped for being idle longer than the TTL
+     */
+    public long getIdleEvictionCount() {
+        return mIdleEvictions.get();
+    }
+
+    /**
+     * @return the number of keys wiped to stay within the maximum size
+     */
+    public long getSizeEvictionCount() {
+        return mSizeEvictions.get();
+    }
+
+    /**
+     * @return the number of unlocks waiting for a key derivation thread
+     */
+    public int getQueuedUnlocks() {
+        return mKdfPool.getQueue().size();
+    }
+
+    // / package private API
+    // ////////////////////////////////////
+
+    /**
+     * Keep a copy of x_key as the tenant's key.
+     *
+     * @param x_key {@link KeySlab#KEY_LEN_BYTES} long, NOT WIPED
+     */
+    void put(String tenant, byte[] x_key) {
+        Entry entry;
+        Segment segment = segmentFor(tenant);
+        synchronized (segment) {
+            // allocating under the segment's lock bounds the slots in use
+            entry = new Entry(tenant, mSlab.allocate(x_key), now());
+            Entry old = segment.map.put(tenant, entry);
+            if (old != null)
+                old.wipe(mSlab);
+            if (segment.map.size() > segment.capacity) {
+                Iterator<Entry> eldest = segment.map.values().iterator();
+                eldest.next().wipe(mSlab);
+                eldest.remove();
+                mSizeEvictions.incrementAndGet();
+            }
+        }
+        // the wheel skips the entry if it was evicted in the meantime
+        mWheel.schedule(entry, entry.lastAccess + mTtlMillis);
+    }
+
+    // / private methods
+    // ////////////////////////////////////
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    private Segment segmentFor(String tenant) {
+        // spread the hash, String hash codes are weak in the low bits
+        int h = tenant.hashCode();
+        h ^= (h >>> 16);
+        h ^= (h >>> 8);
+        return mSegments[h & (SEGMENTS - 1)];
+    }
+
+    /**
+     * Wipe the entries that have been idle for the TTL, and reschedule the
+     * ones used since they were scheduled.
+     */
+    private void expire(List<Entry> due) {
+        for (Entry e : due) {
+            long deadline;
+            Segment segment = segmentFor(e.tenant);
+            synchronized (segment) {
+                if (e.isWiped())
+                    continue;
+                deadline = e.lastAccess + mTtlMillis;
+                if (deadline <= now()) {
+                    segment.map.remove(e.tenant);
+                    e.wipe(mSlab);
+                    mIdleEvictions.incrementAndGet();
+                    continue;
+                }
+            }
+            mWheel.schedule(e, deadline);
+        }
+    }
+
+    private static final class Entry {
+        final String tenant;
+        final int handle;
+        // written with the segment's lock held
+        volatile long lastAccess;
+        private volatile boolean mWiped = false;
+        // guarded by the wheel
+        long deadlineTick;
+
+        Entry(String tenant, int handle, long lastAccess) {
+            this.tenant = tenant;
+            this.handle = handle;
+            this.lastAccess = lastAccess;
+        }
+
+        // call with the segment's lock held, after removing the entry
+        void wipe(KeySlab slab) {
+            slab.free(handle);
+            mWiped = true;
+        }
+
+        boolean isWiped() {
+            return mWiped;
+        }
+    }
+
+    private static final class Segment {
+        final int capacity;
+        final LinkedHashMap<String, Entry> map;
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+            this.map = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+        }
+    }
+
+    /**
+     * A hashed timer wheel: entries hang in the slot of their deadline tick,
+     * modulo the number of slots, and the wheel thread takes the due ones out
+     * of one slot per tick.
+     */
+    private final class TimerWheel implements Runnable {
+        private final ArrayList<ArrayList<Entry>> mSlots;
+        private final long mTickMillis;
+        private final long mStart = now();
+        // guarded by this
+        private long mTick = 0;
+        private volatile boolean mClosed = false;
+        private Thread mThread;
+
+        TimerWheel(long tickMillis) {
+            mTickMillis = tickMillis;
+            mSlots = new ArrayList<ArrayList<Entry>>(WHEEL_SLOTS);
+            for (int i = 0; i < WHEEL_SLOTS; i++)
+                mSlots.add(new ArrayList<Entry>());
+        }
+
+        synchronized void schedule(Entry entry, long deadlineMillis) {
+            long tick = (deadlineMillis - mStart + mTickMillis - 1) / mTickMillis;
+            if (tick <= mTick)
+                tick = mTick + 1;
+            entry.deadlineTick = tick;
+            mSlots.get((int) (tick & (WHEEL_SLOTS - 1))).add(entry);
+        }
+
+        void close() {
+            mClosed = true;
+            synchronized (this) {
+                if (mThread != null)
+                    mThread.interrupt();
+                for (ArrayList<Entry> slot : mSlots)
+                    slot.clear();
+            }
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                mThread = Thread.currentThread();
+            }
+            try {
+                while (!mClosed) {
+                    Thread.sleep(mTickMillis);
+                    long target = (now() - mStart) / mTickMillis;
+                    List<Entry> due;
+                    while ((due = advance(target)) != null)
+                        expire(due);
+                }
+            } catch (InterruptedException e) {
+                // closed
+            }
+        }
+
+        /**
+         * @return the entries due at the next tick, or null once the wheel has
+         *         caught up with target
+         */
+        private synchronized List<Entry> advance(long target) {
+            if (mTick >= target || mClosed)
+                return null;
+            mTick++;
+            ArrayList<Entry> slot = mSlots.get((int) (mTick & (WHEEL_SLOTS - 1)));
+            List<Entry> due = new ArrayList<Entry>();
+            Iterator<Entry> it = slot.iterator();
+            while (it.hasNext()) {
+                Entry e = it.next();
+                if (e.isWiped()) {
+                    it.remove();
+                } else if (e.deadlineTick <= mTick) {
+                    it.remove();
+                    due.add(e);
+                }
+            }
+            return due;
+        }
+    }
+
+    private static class VaultThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        VaultThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "CacheWordVault-" + mName + "-" + mCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
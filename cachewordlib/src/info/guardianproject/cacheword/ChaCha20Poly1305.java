@@ -0,0 +1,337 @@
+
+package info.guardianproject.cacheword;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.BadPaddingException;
+
+/**
+ * The ChaCha20-Poly1305 AEAD of RFC 8439, in plain Java. On devices without
+ * AES instructions it is several times faster than the software AES-GCM in
+ * the platform providers, and unlike table based AES it runs in constant
+ * time.
+ * <p>
+ * All working state is allocated once per instance, so encrypting and
+ * decrypting don't allocate. Not thread safe.
+ */
+public final class ChaCha20Poly1305 extends AeadCipher {
+
+    private static final int BLOCK_LEN = 64;
+    private static final int MASK26 = 0x3ffffff;
+
+    private final int[] mKey = new int[8];
+    private final int[] mState = new int[16];
+    private final int[] mWorking = new int[16];
+    private final byte[] mKeystream = new byte[BLOCK_LEN];
+    private final byte[] mBlock = new byte[16];
+    private final byte[] mTag = new byte[TAG_LEN_BYTES];
+
+    // Poly1305 state, 26 bit limbs
+    private long mR0, mR1, mR2, mR3, mR4;
+    private long mH0, mH1, mH2, mH3, mH4;
+    private final int[] mPad = new int[4];
+
+    private boolean mWiped = false;
+
+    /**
+     * @param x_key the 256 bit key NOT WIPED
+     */
+    public ChaCha20Poly1305(byte[] x_key) throws GeneralSecurityException {
+        super(Constants.CIPHER_CHACHA20_POLY1305);
+        if (x_key == null || x_key.length != KEY_LEN_BYTES)
+            throw new GeneralSecurityException("key must be " + KEY_LEN_BYTES + " bytes");
+        for (int i = 0; i < 8; i++)
+            mKey[i] = le32(x_key, 4 * i);
+    }
+
+    @Override
+    public int encrypt(byte[] nonce, byte[] aad, byte[] in, int inOff, int length, byte[] out,
+            int outOff) throws GeneralSecurityException {
+        checkUsable(nonce);
+        if (length < 0 || out.length - outOff < length + TAG_LEN_BYTES)
+            throw new GeneralSecurityException("output buffer too small");
+        try {
+            initPoly1305(nonce);
+            xorKeystream(nonce, in, inOff, length, out, outOff);
+            computeTag(aad, out, outOff, length);
+            System.arraycopy(mTag, 0, out, outOff + length, TAG_LEN_BYTES);
+            return length + TAG_LEN_BYTES;
+        } finally {
+            clearState();
+        }
+    }
+
+    @Override
+    public int decrypt(byte[] nonce, byte[] aad, byte[] in, int inOff, int length, byte[] out,
+            int outOff) throws GeneralSecurityException {
+        checkUsable(nonce);
+        int ctLength = length - TAG_LEN_BYTES;
+        if (ctLength < 0)
+            throw new GeneralSecurityException("ciphertext too short");
+        if (out.length - outOff < ctLength)
+            throw new GeneralSecurityException("output buffer too small");
+        try {
+            initPoly1305(nonce);
+            computeTag(aad, in, inOff, ctLength);
+            int diff = 0;
+            for (int i = 0; i < TAG_LEN_BYTES; i++)
+                diff |= mTag[i] ^ in[inOff + ctLength + i];
+            if (diff != 0)
+                throw new BadPaddingException("mac check failed");
+            xorKeystream(nonce, in, inOff, ctLength, out, outOff);
+            return ctLength;
+        } finally {
+            clearState();
+        }
+    }
+
+    @Override
+    public void wipe() {
+        Arrays.fill(mKey, 0);
+        clearState();
+        mWiped = true;
+    }
+
+    // / private methods
+    // ////////////////////////////////////
+
+    private void checkUsable(byte[] nonce) throws GeneralSecurityException {
+        if (mWiped)
+            throw new IllegalStateException("cipher has been wiped");
+        checkNonce(nonce);
+    }
+
+    private void clearState() {
+        Arrays.fill(mState, 0);
+        Arrays.fill(mWorking, 0);
+        Arrays.fill(mKeystream, (byte) 0);
+        Arrays.fill(mBlock, (byte) 0);
+        Arrays.fill(mPad, 0);
+        mR0 = mR1 = mR2 = mR3 = mR4 = 0;
+        mH0 = mH1 = mH2 = mH3 = mH4 = 0;
+    }
+
+    private void setupState(byte[] nonce, int counter) {
+        mState[0] = 0x61707865;
+        mState[1] = 0x3320646e;
+        mState[2] = 0x79622d32;
+        mState[3] = 0x6b206574;
+        System.arraycopy(mKey, 0, mState, 4, 8);
+        mState[12] = counter;
+        mState[13] = le32(nonce, 0);
+        mState[14] = le32(nonce, 4);
+        mState[15] = le32(nonce, 8);
+    }
+
+    /**
+     * Computes the block for the current state into mKeystream.
+     */
+    private void chachaBlock() {
+        int[] x = mWorking;
+        System.arraycopy(mState, 0, x, 0, 16);
+        for (int i = 0; i < 10; i++) {
+            quarterRound(x, 0, 4, 8, 12);
+            quarterRound(x, 1, 5, 9, 13);
+            quarterRound(x, 2, 6, 10, 14);
+            quarterRound(x, 3, 7, 11, 15);
+            quarterRound(x, 0, 5, 10, 15);
+            quarterRound(x, 1, 6, 11, 12);
+            quarterRound(x, 2, 7, 8, 13);
+            quarterRound(x, 3, 4, 9, 14);
+        }
+        for (int i = 0; i < 16; i++)
+            putLe32(x[i] + mState[i], mKeystream, 4 * i);
+    }
+
+    private static void quarterRound(int[] x, int a, int b, int c, int d) {
+        x[a] += x[b];
+        x[d] = Integer.rotateLeft(x[d] ^ x[a], 16);
+        x[c] += x[d];
+        x[b] = Integer.rotateLeft(x[b] ^ x[c], 12);
+        x[a] += x[b];
+        x[d] = Integer.rotateLeft(x[d] ^ x[a], 8);
+        x[c] += x[d];
+        x[b] = Integer.rotateLeft(x[b] ^ x[c], 7);
+    }
+
+    private void xorKeystream(byte[] nonce, byte[] in, int inOff, int length, byte[] out,
+            int outOff) {
+        setupState(nonce, 1);
+        int done = 0;
+        while (done < length) {
+            chachaBlock();
+            mState[12]++;
+            int n = Math.min(BLOCK_LEN, length - done);
+            for (int i = 0; i < n; i++)
+                out[outOff + done + i] = (byte) (in[inOff + done + i] ^ mKeystream[i]);
+            done += n;
+        }
+    }
+
+    /**
+     * Derives the one time Poly1305 key from block 0 and loads it.
+     */
+    private void initPoly1305(byte[] nonce) {
+        setupState(nonce, 0);
+        chachaBlock();
+        byte[] k = mKeystream;
+        long t0 = le32(k, 0) & 0xffffffffL;
+        long t1 = le32(k, 4) & 0xffffffffL;
+        long t2 = le32(k, 8) & 0xffffffffL;
+        long t3 = le32(k, 12) & 0xffffffffL;
+        // r is clamped as the spec requires
+        mR0 = t0 & 0x3ffffff;
+        mR1 = ((t0 >>> 26) | (t1 << 6)) & 0x3ffff03;
+        mR2 = ((t1 >>> 20) | (t2 << 12)) & 0x3ffc0ff;
+        mR3 = ((t2 >>> 14) | (t3 << 18)) & 0x3f03fff;
+        mR4 = (t3 >>> 8) & 0x00fffff;
+        for (int i = 0; i < 4; i++)
+            mPad[i] = le32(k, 16 + 4 * i);
+        mH0 = mH1 = mH2 = mH3 = mH4 = 0;
+    }
+
+    /**
+     * MACs aad || pad16 || ciphertext || pad16 || len(aad) || len(ciphertext)
+     * into mTag.
+     */
+    private void computeTag(byte[] aad, byte[] ct, int ctOff, int ctLength) {
+        int aadLength = aad == null ? 0 : aad.length;
+        if (aadLength > 0)
+            polyPadded(aad, 0, aadLength);
+        polyPadded(ct, ctOff, ctLength);
+        putLe32(aadLength, mBlock, 0);
+        putLe32(0, mBlock, 4);
+        putLe32(ctLength, mBlock, 8);
+        putLe32(0, mBlock, 12);
+        polyBlock(mBlock, 0);
+        polyFinish();
+    }
+
+    private void polyPadded(byte[] data, int off, int length) {
+        int full = length & ~15;
+        for (int i = 0; i < full; i += 16)
+            polyBlock(data, off + i);
+        int rest = length - full;
+        if (rest > 0) {
+            Arrays.fill(mBlock, (byte) 0);
+            System.arraycopy(data, off + full, mBlock, 0, rest);
+            polyBlock(mBlock, 0);
+        }
+    }
+
+    private void polyBlock(byte[] m, int off) {
+        long t0 = le32(m, off) & 0xffffffffL;
+        long t1 = le32(m, off + 4) & 0xffffffffL;
+        long t2 = le32(m, off + 8) & 0xffffffffL;
+        long t3 = le32(m, off + 12) & 0xffffffffL;
+
+        long h0 = mH0 + (t0 & MASK26);
+        long h1 = mH1 + (((t0 >>> 26) | (t1 << 6)) & MASK26);
+        long h2 = mH2 + (((t1 >>> 20) | (t2 << 12)) & MASK26);
+        long h3 = mH3 + (((t2 >>> 14) | (t3 << 18)) & MASK26);
+        long h4 = mH4 + ((t3 >>> 8) | (1 << 24));
+
+        long r0 = mR0, r1 = mR1, r2 = mR2, r3 = mR3, r4 = mR4;
+        long s1 = r1 * 5, s2 = r2 * 5, s3 = r3 * 5, s4 = r4 * 5;
+
+        long d0 = h0 * r0 + h1 * s4 + h2 * s3 + h3 * s2 + h4 * s1;
+        long d1 = h0 * r1 + h1 * r0 + h2 * s4 + h3 * s3 + h4 * s2;
+        long d2 = h0 * r2 + h1 * r1 + h2 * r0 + h3 * s4 + h4 * s3;
+        long d3 = h0 * r3 + h1 * r2 + h2 * r1 + h3 * r0 + h4 * s4;
+        long d4 = h0 * r4 + h1 * r3 + h2 * r2 + h3 * r1 + h4 * r0;
+
+        long c = d0 >>> 26;
+        h0 = d0 & MASK26;
+        d1 += c;
+        c = d1 >>> 26;
+        h1 = d1 & MASK26;
+        d2 += c;
+        c = d2 >>> 26;
+        h2 = d2 & MASK26;
+        d3 += c;
+        c = d3 >>> 26;
+        h3 = d3 & MASK26;
+        d4 += c;
+        c = d4 >>> 26;
+        h4 = d4 & MASK26;
+        h0 += c * 5;
+        c = h0 >>> 26;
+        h0 &= MASK26;
+        h1 += c;
+
+        mH0 = h0;
+        mH1 = h1;
+        mH2 = h2;
+        mH3 = h3;
+        mH4 = h4;
+    }
+
+    private void polyFinish() {
+        long h0 = mH0, h1 = mH1, h2 = mH2, h3 = mH3, h4 = mH4;
+
+        long c = h1 >>> 26;
+        h1 &= MASK26;
+        h2 += c;
+        c = h2 >>> 26;
+        h2 &= MASK26;
+        h3 += c;
+        c = h3 >>> 26;
+        h3 &= MASK26;
+        h4 += c;
+        c = h4 >>> 26;
+        h4 &= MASK26;
+        h0 += c * 5;
+        c = h0 >>> 26;
+        h0 &= MASK26;
+        h1 += c;
+
+        // g = h + 5 - 2^130, use it if it didn't borrow
+        long g0 = h0 + 5;
+        c = g0 >>> 26;
+        g0 &= MASK26;
+        long g1 = h1 + c;
+        c = g1 >>> 26;
+        g1 &= MASK26;
+        long g2 = h2 + c;
+        c = g2 >>> 26;
+        g2 &= MASK26;
+        long g3 = h3 + c;
+        c = g3 >>> 26;
+        g3 &= MASK26;
+        long g4 = h4 + c - (1L << 26);
+
+        long mask = (g4 >>> 63) - 1; // all ones if g4 >= 0
+        h0 = (h0 & ~mask) | (g0 & mask);
+        h1 = (h1 & ~mask) | (g1 & mask);
+        h2 = (h2 & ~mask) | (g2 & mask);
+        h3 = (h3 & ~mask) | (g3 & mask);
+        h4 = (h4 & ~mask) | (g4 & mask & MASK26);
+
+        // h mod 2^128, plus the pad
+        long f0 = ((h0 | (h1 << 26)) & 0xffffffffL) + (mPad[0] & 0xffffffffL);
+        long f1 = (((h1 >>> 6) | (h2 << 20)) & 0xffffffffL) + (mPad[1] & 0xffffffffL)
+                + (f0 >>> 32);
+        long f2 = (((h2 >>> 12) | (h3 << 14)) & 0xffffffffL) + (mPad[2] & 0xffffffffL)
+                + (f1 >>> 32);
+        long f3 = (((h3 >>> 18) | (h4 << 8)) & 0xffffffffL) + (mPad[3] & 0xffffffffL)
+                + (f2 >>> 32);
+
+        putLe32((int) f0, mTag, 0);
+        putLe32((int) f1, mTag, 4);
+        putLe32((int) f2, mTag, 8);
+        putLe32((int) f3, mTag, 12);
+    }
+
+    private static int le32(byte[] b, int off) {
+        return (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8) | ((b[off + 2] & 0xff) << 16)
+                | ((b[off + 3] & 0xff) << 24);
+    }
+
+    private static void putLe32(int v, byte[] b, int off) {
+        b[off] = (byte) v;
+        b[off + 1] = (byte) (v >>> 8);
+        b[off + 2] = (byte) (v >>> 16);
+        b[off + 3] = (byte) (v >>> 24);
+    }
+}
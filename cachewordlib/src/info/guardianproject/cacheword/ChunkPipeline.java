@@ -0,0 +1,281 @@
+
+package info.guardianproject.cacheword;
+
+import android.os.Process;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The chunk format and worker pool shared by
+ * {@link CacheWordExportOutputStream} and {@link CacheWordExportInputStream}:
+ *
+ * <pre>
+ * export = header | chunk 0 | chunk 1 | ...
+ * chunk  = ciphertext length (4) | AEAD(export key, nonce, flag (1) | data)
+ * </pre>
+ *
+ * The header, key and nonces are those of {@link SegmentedAead}, with the
+ * chunk size in place of the segment size. Every chunk but the last holds
+ * exactly chunk size bytes of input, deflated if the flag is
+ * {@link #DEFLATED} and stored as is otherwise.
+ */
+final class ChunkPipeline {
+    private static final String TAG = "ChunkPipeline";
+
+    static final int STORED = 0;
+    static final int DEFLATED = 1;
+    static final int FLAG_LEN = 1;
+
+    private static ExecutorService sExecutor;
+
+    private ChunkPipeline() {
+    }
+
+    /**
+     * @return a process wide pool with a background thread per core
+     */
+    static synchronized ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            int threads = getParallelism();
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new WorkerFactory());
+            executor.allowCoreThreadTimeOut(true);
+            sExecutor = executor;
+        }
+        return sExecutor;
+    }
+
+    static int getParallelism() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @return the most ciphertext a chunk of chunkSize bytes can produce
+     */
+    static int maxCiphertextLength(int chunkSize) {
+        return FLAG_LEN + chunkSize + AeadCipher.TAG_LEN_BYTES;
+    }
+
+    /**
+     * Compress and encrypt a chunk.
+     *
+     * @param x_key the export key NOT WIPED
+     * @param x_chunk the input WIPED
+     * @return the framed chunk, length prefix included
+     */
+    static byte[] encode(int cipherId, byte[] x_key, long index, boolean last, byte[] x_chunk,
+            int length) throws GeneralSecurityException {
+        byte[] x_plain = new byte[FLAG_LEN + length + AeadCipher.TAG_LEN_BYTES];
+        AeadCipher cipher = null;
+        try {
+            int n = deflate(x_chunk, length, x_plain, FLAG_LEN, length);
+            if (n < 0) {
+                x_plain[0] = STORED;
+                System.arraycopy(x_chunk, 0, x_plain, FLAG_LEN, length);
+                n = length;
+            } else {
+                x_plain[0] = DEFLATED;
+            }
+            byte[] nonce = new byte[AeadCipher.NONCE_LEN_BYTES];
+            SegmentedAead.segmentNonce(nonce, index, last);
+            cipher = AeadCipher.getInstance(cipherId, x_key);
+            byte[] out = new byte[Constants.INT_LENGTH + FLAG_LEN + n + AeadCipher.TAG_LEN_BYTES];
+            int ctLength = cipher.encrypt(nonce, null, x_plain, 0, FLAG_LEN + n, out,
+                    Constants.INT_LENGTH);
+            out[0] = (byte) (ctLength >>> 24);
+            out[1] = (byte) (ctLength >>> 16);
+            out[2] = (byte) (ctLength >>> 8);
+            out[3] = (byte) ctLength;
+            return out;
+        } finally {
+            if (cipher != null)
+                cipher.wipe();
+            Wiper.wipe(x_plain);
+            BufferPool.release(x_chunk);
+        }
+    }
+
+    /**
+     * Decrypt and decompress a chunk.
+     *
+     * @param x_key the export key NOT WIPED
+     * @param ciphertext the chunk without its length prefix WIPED
+     * @return the input, chunkSize bytes unless last
+     * @throws IOException if the chunk fails authentication or is malformed
+     */
+    static byte[] decode(int cipherId, byte[] x_key, long index, boolean last,
+            byte[] ciphertext, int chunkSize) throws IOException {
+        byte[] nonce = new byte[AeadCipher.NONCE_LEN_BYTES];
+        SegmentedAead.segmentNonce(nonce, index, last);
+        AeadCipher cipher = null;
+        try {
+            cipher = AeadCipher.getInstance(cipherId, x_key);
+            int n = cipher.decrypt(nonce, null, ciphertext, 0, ciphertext.length, ciphertext, 0)
+                    - FLAG_LEN;
+            byte[] chunk;
+            if (ciphertext[0] == STORED) {
+                chunk = new byte[n];
+                System.arraycopy(ciphertext, FLAG_LEN, chunk, 0, n);
+            } else if (ciphertext[0] == DEFLATED) {
+                chunk = inflate(ciphertext, FLAG_LEN, n, chunkSize);
+            } else {
+                throw new IOException("chunk " + index + " has an unknown format");
+            }
+            if (chunk.length > chunkSize || (!last && chunk.length != chunkSize))
+                throw new IOException("chunk " + index + " has the wrong size");
+            return chunk;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("chunk " + index
+                    + " failed authentication, the export is truncated or modified", e);
+        } finally {
+            if (cipher != null)
+                cipher.wipe();
+            Wiper.wipe(ciphertext);
+        }
+    }
+
+    /**
+     * A chunk submitted to the pool that the stream can abandon when it is
+     * closed early. Either the task starts and its result is waited for and
+     * wiped, or it never starts and never touches the key.
+     */
+    static abstract class Task implements Callable<byte[]> {
+        private final AtomicBoolean mStarted = new AtomicBoolean();
+        private Future<byte[]> mFuture;
+
+        Task submit(ExecutorService executor) {
+            mFuture = executor.submit(this);
+            return this;
+        }
+
+        Future<byte[]> getFuture() {
+            return mFuture;
+        }
+
+        @Override
+        public final byte[] call() throws Exception {
+            if (!mStarted.compareAndSet(false, true))
+                return null;
+            return run();
+        }
+
+        /**
+         * Process the chunk, wiping its input.
+         */
+        abstract byte[] run() throws Exception;
+
+        /**
+         * Wipe the input of a task that never started.
+         */
+        abstract void discard();
+
+        /**
+         * Keep the task from starting, or wait for it to finish if it has, and
+         * wipe its input and output.
+         */
+        void abandon() {
+            if (mStarted.compareAndSet(false, true)) {
+                mFuture.cancel(false);
+                discard();
+                return;
+            }
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        byte[] x_out = mFuture.get();
+                        if (x_out != null)
+                            Wiper.wipe(x_out);
+                        return;
+                    } catch (InterruptedException e) {
+                        // the key must outlive the task, finish waiting
+                        interrupted = true;
+                    } catch (ExecutionException e) {
+                        return;
+                    }
+                }
+            } finally {
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // / private methods
+    // ////////////////////////////////////
+
+    /**
+     * @return the deflated length, or -1 if it would exceed max
+     */
+    private static int deflate(byte[] in, int length, byte[] out, int off, int max) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(in, 0, length);
+            deflater.finish();
+            int n = 0;
+            while (!deflater.finished() && n < max)
+                n += deflater.deflate(out, off + n, max - n);
+            return deflater.finished() ? n : -1;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] in, int off, int length, int max) throws IOException {
+        Inflater inflater = new Inflater(true);
+        // one spare byte to tell a chunk of exactly max bytes from a larger one
+        byte[] out = new byte[max + 1];
+        try {
+            // raw deflate needs a trailing dummy byte, the tag is there
+            inflater.setInput(in, off, length + 1);
+            int n = 0;
+            while (!inflater.finished() && n < out.length) {
+                int inflated = inflater.inflate(out, n, out.length - n);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new IOException("truncated deflate data");
+                n += inflated;
+            }
+            if (!inflater.finished() || n > max)
+                throw new IOException("chunk inflates beyond the chunk size");
+            byte[] chunk = new byte[n];
+            System.arraycopy(out, 0, chunk, 0, n);
+            return chunk;
+        } catch (DataFormatException e) {
+            throw new IOException("invalid deflate data: " + e.getMessage(), e);
+        } finally {
+            inflater.end();
+            Wiper.wipe(out);
+        }
+    }
+
+    private static class WorkerFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, TAG + "-" + mCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
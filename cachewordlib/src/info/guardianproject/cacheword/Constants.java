@@ -9,23 +9,34 @@ public class Constants {
     // Intents
     public static final String INTENT_LOCK_CACHEWORD = "info.guardianproject.cacheword.LOCK_CACHEWORD";
     public static final String INTENT_NEW_SECRETS = "info.guardianproject.cacheword.NEW_SECRETS";
+    public static final String EXTRA_NAMESPACE = "info.guardianproject.cacheword.NAMESPACE";
+
+    // Namespaces
+    public static final String DEFAULT_NAMESPACE = "";
 
     // Values
     public static final String SHARED_PREFS = "info.guardianproject.cacheword.prefs";
+    public static final String SHARED_PREFS_NAMESPACE_PREFIX = "info.guardianproject.cacheword.prefs.";
     public static final int SHARED_PREFS_PRIVATE_MODE = 0;
     public static final String SHARED_PREFS_INITIALIZED = "initialized";
     public static final String SHARED_PREFS_SECRETS = "encrypted_secrets";
     public static final String SHARED_PREFS_FOREGROUND = "foreground";
     public static final String SHARED_PREFS_TIMEOUT_SECONDS = "cacheword_timeout_seconds";
+    public static final String SHARED_PREFS_INBOX_PUBLIC_KEY = "inbox_public_key";
+    public static final String SHARED_PREFS_INBOX_PRIVATE_KEY = "inbox_private_key";
 
     public static final String SHARED_PREFS_SQLCIPHER_V3_MIGRATE = "cacheword_sqlcipher_v3_migrated";
+    public static final String SHARED_PREFS_REKEY = "info.guardianproject.cacheword.rekey";
+    public static final String SHARED_PREFS_NONCES = "info.guardianproject.cacheword.nonces";
+    public static final String SHARED_PREFS_PROVIDERS = "info.guardianproject.cacheword.providers";
 
     public static final int SERVICE_FOREGROUND_ID = 81231;
     public static final int SERVICE_BACKGROUND_ID = 13218;
 
     public final static int VERSION_ZERO = 0;
     public final static int VERSION_ONE = 1;
-    public final static int VERSION_MAX = VERSION_ONE;
+    public final static int VERSION_TWO = 2;
+    public final static int VERSION_MAX = VERSION_TWO;
 
     public static final int STATE_UNKNOWN = -1;
     public static final int STATE_UNINITIALIZED = 0;
@@ -35,6 +46,9 @@ public class Constants {
     // encryption constants
     public static final int AES_KEY_LEN_BITS        = 256; // bits
     public static final int GCM_IV_LEN_BYTES        = 12;  // 96 bits
+    // cipher ids, recorded in SerializedSecretsV2 and in encrypted streams
+    public static final int CIPHER_AES_GCM           = 0;
+    public static final int CIPHER_CHACHA20_POLY1305 = 1;
     public static final int INT_LENGTH              = 4;   // length of integer in the JVM
     // key derivation constants
     public static final int PBKDF2_KEY_LEN_BITS     = 128; // bits
@@ -0,0 +1,534 @@
+
+package info.guardianproject.cacheword;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Chooses which JCE provider implements each primitive CacheWord uses. How
+ * fast AES-GCM and PBKDF2 are varies a lot between the platform provider,
+ * Conscrypt and Bouncy Castle, depending on the Android version and on
+ * whether the CPU has AES instructions.
+ * <p>
+ * {@link #select(Context)} runs from {@link CacheWord#bootstrap(Context)}. On
+ * the first run it checks every installed provider against a known answer,
+ * times the ones that pass, and saves the fastest. Later runs reuse the saved
+ * choice until the platform fingerprint changes (e.g., after a system update)
+ * or the saved provider disappears, then the benchmark runs again. An app can
+ * pin a provider with {@link #setOverride(Context, String, String)}; pinning
+ * an {@link #AES_GCM} provider also selects AES-GCM as the AEAD cipher.
+ * <p>
+ * The same benchmark decides whether new secrets bundles and streams use
+ * AES-GCM or the plain Java {@link ChaCha20Poly1305}, which wins on devices
+ * without AES instructions (see {@link #getPreferredAead()} and
+ * {@link #setAeadOverride(Context, int)}).
+ * <p>
+ * Until a selection is made, and for providers that fail the known answer
+ * test, the platform default is used.
+ * <p>
+ * Providers disagree on how PBKDF2 turns a passphrase outside of ASCII into
+ * bytes (UTF-8 or the low 8 bits of each char), so the selected
+ * {@link #PBKDF2} provider only derives keys from ASCII passphrases, where
+ * every provider that passes the known answer test agrees. Other passphrases
+ * always go to the platform default, which derived every bundle before the
+ * selection existed, and a new benchmark can't change the key an existing
+ * bundle needs.
+ */
+public final class CryptoProviders {
+    private static final String TAG = "CryptoProviders";
+
+    public static final String AES_GCM = "AES/GCM/NoPadding";
+    public static final String PBKDF2 = "PBKDF2WithHmacSHA1";
+    /** The plain Java {@link ChaCha20Poly1305}, which needs no provider */
+    public static final String CHACHA20_POLY1305 = "ChaCha20-Poly1305";
+
+    /** Bytes encrypted by one {@link #AES_GCM} benchmark operation */
+    public static final int AES_GCM_BENCHMARK_BYTES = 4096;
+    /** Iterations of one {@link #PBKDF2} benchmark operation */
+    public static final int PBKDF2_BENCHMARK_ITERATIONS = 1000;
+
+    private static final int AEAD_AUTO = -1;
+
+    private static final String PREF_PLATFORM = "platform";
+    private static final String PREF_SELECTED = "selected.";
+    private static final String PREF_NANOS = "nanos.";
+    private static final String PREF_OVERRIDE = "override.";
+    private static final String PREF_AEAD = "aead";
+
+    /** Time spent benchmarking each provider for one primitive */
+    private static final long BENCHMARK_MILLIS = 50;
+
+    private static final Primitive[] PRIMITIVES = {
+            new AesGcm(), new Pbkdf2()
+    };
+    private static final Primitive CHACHA = new ChaChaPoly();
+
+    // copy on write, replaced wholesale
+    private static volatile Map<String, Provider> sSelected = Collections.emptyMap();
+    private static volatile Map<String, Long> sNanos = Collections.emptyMap();
+    private static volatile int sPreferredAead = Constants.CIPHER_AES_GCM;
+
+    private CryptoProviders() {
+    }
+
+    /**
+     * Select a provider for every primitive, running the benchmark if there
+     * is no saved choice for this platform. Blocks for up to a few hundred
+     * milliseconds; call it off the UI thread.
+     */
+    public static synchronized void select(Context ctx) {
+        SharedPreferences prefs = getPrefs(ctx);
+        String platform = getPlatform();
+        boolean revalidate = !platform.equals(prefs.getString(PREF_PLATFORM, null));
+        if (revalidate)
+            Log.d(TAG, "platform changed, benchmarking providers");
+
+        Map<String, Provider> selected = new HashMap<String, Provider>();
+        Map<String, Long> nanos = new HashMap<String, Long>();
+        SharedPreferences.Editor e = prefs.edit();
+        boolean aesGcmPinned = false;
+        for (Primitive primitive : PRIMITIVES) {
+            Provider provider = null;
+
+            String pinned = prefs.getString(PREF_OVERRIDE + primitive.algorithm, null);
+            if (pinned != null) {
+                provider = Security.getProvider(pinned);
+                if (provider == null)
+                    Log.w(TAG, "override " + pinned + " for " + primitive.algorithm
+                            + " not installed");
+                else if (primitive.algorithm.equals(AES_GCM))
+                    aesGcmPinned = true;
+            }
+
+            if (provider == null && !revalidate) {
+                String saved = prefs.getString(PREF_SELECTED + primitive.algorithm, null);
+                if (saved != null)
+                    provider = Security.getProvider(saved);
+                if (provider != null)
+                    nanos.put(primitive.algorithm,
+                            prefs.getLong(PREF_NANOS + primitive.algorithm, -1));
+            }
+
+            if (provider == null) {
+                long[] best = new long[1];
+                provider = benchmark(primitive, best);
+                if (provider != null) {
+                    nanos.put(primitive.algorithm, best[0]);
+                    e.putString(PREF_SELECTED + primitive.algorithm, provider.getName());
+                    e.putLong(PREF_NANOS + primitive.algorithm, best[0]);
+                }
+            }
+
+            if (provider != null)
+                selected.put(primitive.algorithm, provider);
+        }
+
+        int aead = prefs.getInt(PREF_OVERRIDE + PREF_AEAD, AEAD_AUTO);
+        if (aead == AEAD_AUTO && aesGcmPinned) {
+            // a pinned provider isn't benchmarked, pinning it asks for AES-GCM
+            aead = Constants.CIPHER_AES_GCM;
+        }
+        if (aead == AEAD_AUTO && !revalidate)
+            aead = prefs.getInt(PREF_SELECTED + PREF_AEAD, AEAD_AUTO);
+        if (aead == AEAD_AUTO) {
+            Long aesGcmNanos = nanos.get(AES_GCM);
+            aead = chooseAead(aesGcmNanos == null ? -1 : aesGcmNanos);
+            e.putInt(PREF_SELECTED + PREF_AEAD, aead);
+        }
+
+        e.putString(PREF_PLATFORM, platform);
+        e.commit();
+
+        sSelected = Collections.unmodifiableMap(selected);
+        sNanos = Collections.unmodifiableMap(nanos);
+        sPreferredAead = aead;
+        Log.d(TAG, "selected providers: " + describe(selected) + ", AEAD cipher " + aead);
+    }
+
+    /**
+     * Always use the named provider for an algorithm, or go back to the
+     * benchmarked choice if providerName is null. Takes effect with the next
+     * {@link #select(Context)}. Like the benchmarked choice, a {@link #PBKDF2}
+     * override only applies to ASCII passphrases.
+     *
+     * @param algorithm {@link #AES_GCM} or {@link #PBKDF2}
+     */
+    public static void setOverride(Context ctx, String algorithm, String providerName) {
+        SharedPreferences.Editor e = getPrefs(ctx).edit();
+        if (providerName == null)
+            e.remove(PREF_OVERRIDE + algorithm);
+        else
+            e.putString(PREF_OVERRIDE + algorithm, providerName);
+        e.commit();
+    }
+
+    /**
+     * Always use the given AEAD cipher for new secrets bundles and streams,
+     * or go back to the benchmarked choice. Takes effect with the next
+     * {@link #select(Context)}.
+     *
+     * @param cipherId one of the {@code Constants.CIPHER_*} ids, or -1 for the
+     *            benchmarked choice
+     */
+    public static void setAeadOverride(Context ctx, int cipherId) {
+        SharedPreferences.Editor e = getPrefs(ctx).edit();
+        if (cipherId == AEAD_AUTO)
+            e.remove(PREF_OVERRIDE + PREF_AEAD);
+        else
+            e.putInt(PREF_OVERRIDE + PREF_AEAD, cipherId);
+        e.commit();
+    }
+
+    /**
+     * @return the id of the AEAD cipher new data should be encrypted with,
+     *         {@link Constants#CIPHER_AES_GCM} until a selection is made
+     */
+    public static int getPreferredAead() {
+        return sPreferredAead;
+    }
+
+    /**
+     * Forget the saved choices, so the next {@link #select(Context)}
+     * benchmarks again. Overrides are kept.
+     */
+    public static void invalidate(Context ctx) {
+        getPrefs(ctx).edit().remove(PREF_PLATFORM).commit();
+    }
+
+    /**
+     * @return the provider selected for algorithm, or null if the platform
+     *         default is used
+     */
+    public static Provider getSelectedProvider(String algorithm) {
+        return sSelected.get(algorithm);
+    }
+
+    /**
+     * @return the benchmarked cost of one operation with the selected provider
+     *         in nanoseconds, or -1 if unknown. See
+     *         {@link #AES_GCM_BENCHMARK_BYTES} and
+     *         {@link #PBKDF2_BENCHMARK_ITERATIONS}.
+     */
+    public static long getBenchmarkNanos(String algorithm) {
+        Long nanos = sNanos.get(algorithm);
+        return nanos == null ? -1 : nanos;
+    }
+
+    public static Cipher getCipher(String transformation) throws NoSuchAlgorithmException,
+            NoSuchPaddingException {
+        Provider provider = sSelected.get(transformation);
+        if (provider != null)
+            return Cipher.getInstance(transformation, provider);
+        return Cipher.getInstance(transformation);
+    }
+
+    public static SecretKeyFactory getSecretKeyFactory(String algorithm)
+            throws NoSuchAlgorithmException {
+        Provider provider = sSelected.get(algorithm);
+        if (provider != null)
+            return SecretKeyFactory.getInstance(algorithm, provider);
+        return SecretKeyFactory.getInstance(algorithm);
+    }
+
+    /**
+     * @param x_passphrase the passphrase the factory will derive a key from
+     *            NOT WIPED
+     * @return the selected {@link #PBKDF2} factory if the passphrase is ASCII,
+     *         otherwise the platform default one
+     */
+    public static SecretKeyFactory getPbkdf2(char[] x_passphrase)
+            throws NoSuchAlgorithmException {
+        if (!isAscii(x_passphrase))
+            return SecretKeyFactory.getInstance(PBKDF2);
+        return getSecretKeyFactory(PBKDF2);
+    }
+
+    // / package private API
+    // ////////////////////////////////////
+
+    /**
+     * Run the known answer test that {@link #select(Context)} runs before
+     * benchmarking a provider.
+     *
+     * @param algorithm {@link #AES_GCM}, {@link #PBKDF2} or
+     *            {@link #CHACHA20_POLY1305}, which ignores the provider
+     * @return true if provider computes the known answer
+     * @throws GeneralSecurityException if the provider doesn't implement the
+     *             algorithm
+     */
+    static boolean passesKnownAnswerTest(String algorithm, Provider provider)
+            throws GeneralSecurityException {
+        if (CHACHA.algorithm.equals(algorithm))
+            return CHACHA.isCorrect(provider);
+        for (Primitive primitive : PRIMITIVES) {
+            if (primitive.algorithm.equals(algorithm))
+                return primitive.isCorrect(provider);
+        }
+        throw new NoSuchAlgorithmException(algorithm);
+    }
+
+    // / private methods
+    // ////////////////////////////////////
+
+    /**
+     * @param bestNanos receives the time per operation of the returned
+     *            provider
+     * @return the fastest provider that passes the known answer test, or null
+     */
+    private static Provider benchmark(Primitive primitive, long[] bestNanos) {
+        Provider best = null;
+        bestNanos[0] = Long.MAX_VALUE;
+        for (Provider provider : Security.getProviders()) {
+            try {
+                if (!primitive.isCorrect(provider)) {
+                    Log.w(TAG, provider.getName() + " failed the known answer test for "
+                            + primitive.algorithm);
+                    continue;
+                }
+                long nanos = measure(primitive, provider);
+                Log.d(TAG, primitive.algorithm + " " + provider.getName() + ": " + nanos
+                        + "ns/op");
+                if (nanos < bestNanos[0]) {
+                    bestNanos[0] = nanos;
+                    best = provider;
+                }
+            } catch (GeneralSecurityException e) {
+                // provider doesn't implement this primitive
+            } catch (RuntimeException e) {
+                Log.w(TAG, provider.getName() + " failed for " + primitive.algorithm + ": "
+                        + e.getClass().getName() + " : " + e.getMessage());
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return the average time per operation in nanoseconds
+     */
+    private static long measure(Primitive primitive, Provider provider)
+            throws GeneralSecurityException {
+        primitive.run(provider, 0); // warm up
+        long ops = 0;
+        long start = SystemClock.elapsedRealtime();
+        long startNanos = System.nanoTime();
+        do {
+            primitive.run(provider, ops++);
+        } while (SystemClock.elapsedRealtime() - start < BENCHMARK_MILLIS);
+        return (System.nanoTime() - startNanos) / ops;
+    }
+
+    /**
+     * @return the AEAD cipher id to use given the benchmark results
+     */
+    private static int chooseAead(long aesGcmNanos) {
+        long chachaNanos;
+        try {
+            if (!CHACHA.isCorrect(null)) {
+                Log.e(TAG, "ChaCha20-Poly1305 failed the known answer test");
+                return Constants.CIPHER_AES_GCM;
+            }
+            chachaNanos = measure(CHACHA, null);
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "ChaCha20-Poly1305 benchmark failed: " + e.getClass().getName() + " : "
+                    + e.getMessage());
+            return Constants.CIPHER_AES_GCM;
+        }
+        Log.d(TAG, "ChaCha20-Poly1305: " + chachaNanos + "ns/op, AES-GCM: " + aesGcmNanos
+                + "ns/op");
+        if (aesGcmNanos < 0 || chachaNanos < aesGcmNanos)
+            return Constants.CIPHER_CHACHA20_POLY1305;
+        return Constants.CIPHER_AES_GCM;
+    }
+
+    private static boolean isAscii(char[] x_passphrase) {
+        if (x_passphrase == null)
+            return true;
+        for (char c : x_passphrase) {
+            if (c > 0x7f)
+                return false;
+        }
+        return true;
+    }
+
+    private static String getPlatform() {
+        return Build.VERSION.SDK_INT + "/" + Build.FINGERPRINT;
+    }
+
+    private static String describe(Map<String, Provider> selected) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Provider> entry : selected.entrySet()) {
+            if (sb.length() > 0)
+                sb.append(", ");
+            sb.append(entry.getKey()).append('=').append(entry.getValue().getName());
+        }
+        return sb.toString();
+    }
+
+    private static SharedPreferences getPrefs(Context ctx) {
+        return ctx.getSharedPreferences(Constants.SHARED_PREFS_PROVIDERS,
+                Constants.SHARED_PREFS_PRIVATE_MODE);
+    }
+
+    private static byte[] unhex(String s) {
+        byte[] b = new byte[s.length() / 2];
+        for (int i = 0; i < b.length; i++)
+            b[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+        return b;
+    }
+
+    private static abstract class Primitive {
+        final String algorithm;
+
+        Primitive(String algorithm) {
+            this.algorithm = algorithm;
+        }
+
+        /**
+         * @throws GeneralSecurityException if the provider doesn't implement
+         *             the primitive
+         */
+        abstract boolean isCorrect(Provider provider) throws GeneralSecurityException;
+
+        /**
+         * Run one benchmark operation.
+         *
+         * @param op the number of the operation, to vary the input
+         */
+        abstract void run(Provider provider, long op) throws GeneralSecurityException;
+    }
+
+    private static final class AesGcm extends Primitive {
+        // NIST GCM test case 14: 256 bit zero key, zero IV, 16 zero bytes
+        private static final byte[] KAT_CIPHERTEXT = unhex(
+                "cea7403d4d606b6e074ec5d3baf39d18d0d1c8a799996bf0265b98b5d48ab919");
+
+        private final byte[] mIv = new byte[Constants.GCM_IV_LEN_BYTES];
+        private final byte[] mPlaintext = new byte[AES_GCM_BENCHMARK_BYTES];
+        private final byte[] mCiphertext = new byte[AES_GCM_BENCHMARK_BYTES + 16];
+        private final SecretKeySpec mKey = new SecretKeySpec(
+                new byte[Constants.AES_KEY_LEN_BITS / 8], "AES");
+
+        AesGcm() {
+            super(AES_GCM);
+        }
+
+        @Override
+        boolean isCorrect(Provider provider) throws GeneralSecurityException {
+            Cipher cipher = Cipher.getInstance(algorithm, provider);
+            cipher.init(Cipher.ENCRYPT_MODE, mKey, new IvParameterSpec(new byte[mIv.length]));
+            byte[] ct = cipher.doFinal(new byte[16]);
+            if (!Arrays.equals(KAT_CIPHERTEXT, ct))
+                return false;
+            cipher.init(Cipher.DECRYPT_MODE, mKey, new IvParameterSpec(new byte[mIv.length]));
+            return Arrays.equals(new byte[16], cipher.doFinal(ct));
+        }
+
+        @Override
+        void run(Provider provider, long op) throws GeneralSecurityException {
+            // some providers refuse to reuse an IV with the same key
+            for (int i = 0; i < 8; i++)
+                mIv[mIv.length - 1 - i] = (byte) (op >>> (8 * i));
+            mIv[0] = 1; // never the known answer IV
+            Cipher cipher = Cipher.getInstance(algorithm, provider);
+            cipher.init(Cipher.ENCRYPT_MODE, mKey, new IvParameterSpec(mIv));
+            cipher.doFinal(mPlaintext, 0, mPlaintext.length, mCiphertext, 0);
+        }
+    }
+
+    private static final class Pbkdf2 extends Primitive {
+        // RFC 6070: "password", "salt", 2 iterations, 20 bytes
+        private static final byte[] KAT_KEY = unhex("ea6c014dc72d6f8ccd1ed92ace1d41f0d8de8957");
+
+        private final char[] mPassword = "password".toCharArray();
+        private final byte[] mSalt = new byte[Constants.PBKDF2_SALT_LEN_BYTES];
+
+        Pbkdf2() {
+            super(PBKDF2);
+        }
+
+        @Override
+        boolean isCorrect(Provider provider) throws GeneralSecurityException {
+            SecretKeyFactory factory = SecretKeyFactory.getInstance(algorithm, provider);
+            byte[] key = factory.generateSecret(
+                    new PBEKeySpec(mPassword, new byte[] {
+                            's', 'a', 'l', 't'
+                    }, 2, 160)).getEncoded();
+            return Arrays.equals(KAT_KEY, key);
+        }
+
+        @Override
+        void run(Provider provider, long op) throws GeneralSecurityException {
+            mSalt[0] = (byte) op;
+            SecretKeyFactory factory = SecretKeyFactory.getInstance(algorithm, provider);
+            factory.generateSecret(new PBEKeySpec(mPassword, mSalt, PBKDF2_BENCHMARK_ITERATIONS,
+                    Constants.PBKDF2_KEY_LEN_BITS));
+        }
+    }
+
+    /**
+     * The plain Java ChaCha20-Poly1305, which needs no provider.
+     */
+    private static final class ChaChaPoly extends Primitive {
+        // RFC 8439 section 2.8.2
+        private static final byte[] KAT_NONCE = unhex("070000004041424344454647");
+        private static final byte[] KAT_AAD = unhex("50515253c0c1c2c3c4c5c6c7");
+        private static final String KAT_PLAINTEXT = "Ladies and Gentlemen of the class of "
+                + "'99: If I could offer you only one tip for the future, sunscreen would be it.";
+        private static final byte[] KAT_CIPHERTEXT = unhex(
+                "d31a8d34648e60db7b86afbc53ef7ec2a4aded51296e08fea9e2b5a736ee62d6"
+                        + "3dbea45e8ca9671282fafb69da92728b1a71de0a9e060b2905d6a5b67ecd3b36"
+                        + "92ddbd7f2d778b8c9803aee328091b58fab324e4fad675945585808b4831d7bc"
+                        + "3ff4def08e4b7a9de576d26586cec64b6116"
+                        + "1ae10b594f09e26a7e902ecbd0600691");
+
+        private final byte[] mNonce = new byte[AeadCipher.NONCE_LEN_BYTES];
+        private final byte[] mBuffer = new byte[AES_GCM_BENCHMARK_BYTES
+                + AeadCipher.TAG_LEN_BYTES];
+
+        ChaChaPoly() {
+            super(CHACHA20_POLY1305);
+        }
+
+        @Override
+        boolean isCorrect(Provider provider) throws GeneralSecurityException {
+            byte[] key = new byte[AeadCipher.KEY_LEN_BYTES];
+            for (int i = 0; i < key.length; i++)
+                key[i] = (byte) (0x80 + i);
+            byte[] plaintext = new byte[KAT_PLAINTEXT.length()];
+            for (int i = 0; i < plaintext.length; i++)
+                plaintext[i] = (byte) KAT_PLAINTEXT.charAt(i);
+            ChaCha20Poly1305 cipher = new ChaCha20Poly1305(key);
+            byte[] ct = cipher.encrypt(KAT_NONCE, KAT_AAD, plaintext);
+            if (!Arrays.equals(KAT_CIPHERTEXT, ct))
+                return false;
+            return Arrays.equals(plaintext, cipher.decrypt(KAT_NONCE, KAT_AAD, ct));
+        }
+
+        @Override
+        void run(Provider provider, long op) throws GeneralSecurityException {
+            // include the per message setup, like the AES-GCM benchmark
+            ChaCha20Poly1305 cipher = new ChaCha20Poly1305(new byte[AeadCipher.KEY_LEN_BYTES]);
+            mNonce[0] = (byte) op;
+            cipher.encrypt(mNonce, null, mBuffer, 0, AES_GCM_BENCHMARK_BYTES, mBuffer, 0);
+        }
+    }
+}
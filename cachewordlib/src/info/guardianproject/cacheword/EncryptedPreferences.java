@@ -0,0 +1,629 @@
+
+package info.guardianproject.cacheword;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link SharedPreferences} whose file is encrypted with a key from
+ * CacheWord, for settings too sensitive to keep next to CacheWord's own
+ * preferences in plaintext.
+ * <p>
+ * {@link #open(CacheWordHandler)} decrypts the whole file into memory once,
+ * so reads cost no more than with the platform implementation. Writes go to
+ * memory and the whole file is encrypted to a temporary file and renamed over
+ * the old one: synchronously for {@link Editor#commit()}, and on a background
+ * thread for {@link Editor#apply()}, where any number of applies made before
+ * the thread gets to them are written together. The file is in the
+ * {@link CacheWordEncryptingOutputStream} format.
+ * <p>
+ * Call {@link #open(CacheWordHandler)} from
+ * {@link ICacheWordSubscriber#onCacheWordOpened()}. When CacheWord locks,
+ * unwritten changes are written and the decrypted values are dropped; until
+ * the preferences are opened again, reads and writes throw
+ * {@link CacheWordLockedException}. Values are Java objects and can't be
+ * wiped, only released.
+ */
+public class EncryptedPreferences implements SharedPreferences, ICacheWordLockParticipant {
+    private static final String TAG = "EncryptedPreferences";
+
+    public static final String FILE_SUFFIX = ".cwprefs";
+
+    private static final int FORMAT_VERSION = 1;
+    private static final int TYPE_STRING = 1;
+    private static final int TYPE_INT = 2;
+    private static final int TYPE_LONG = 3;
+    private static final int TYPE_FLOAT = 4;
+    private static final int TYPE_BOOLEAN = 5;
+    private static final int TYPE_STRING_SET = 6;
+
+    private static final Object CONTENT = new Object();
+
+    private static ExecutorService sWriter;
+
+    private final File mFile;
+    private final int mCipherId;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    // serializes writes to the file
+    private final Object mWriteLock = new Object();
+
+    // the following are guarded by this
+    private final WeakHashMap<OnSharedPreferenceChangeListener, Object> mListeners =
+            new WeakHashMap<OnSharedPreferenceChangeListener, Object>();
+    private Map<String, Object> mMap;
+    private byte[] mKey;
+    // bumped by every change, so a writer knows whether it wrote the latest
+    private long mGeneration = 0;
+    private long mWrittenGeneration = 0;
+    private boolean mWriteScheduled = false;
+
+    /**
+     * @param name the preferences file name, stored in the app's files
+     *            directory with {@link #FILE_SUFFIX}
+     */
+    public EncryptedPreferences(Context context, String name) {
+        this(new File(context.getFilesDir(), name + FILE_SUFFIX), -1);
+    }
+
+    /**
+     * @param cipherId the {@code Constants.CIPHER_*} id the file is written
+     *            with, -1 for the preferred cipher
+     */
+    public EncryptedPreferences(File file, int cipherId) {
+        mFile = file;
+        mCipherId = cipherId;
+    }
+
+    /**
+     * Decrypt the preferences with CacheWord's current key.
+     *
+     * @throws CacheWordLockedException if CacheWord is locked
+     * @throws IOException if the file can't be read or fails authentication
+     */
+    public void open(CacheWordHandler cacheWord) throws IOException {
+        byte[] x_key = cacheWord.getEncryptionKey();
+        if (x_key == null)
+            throw new CacheWordLockedException();
+        try {
+            open(x_key);
+        } finally {
+            Wiper.wipe(x_key);
+        }
+    }
+
+    /**
+     * @param x_key a 256 bit key NOT WIPED
+     * @see #open(CacheWordHandler)
+     */
+    public void open(byte[] x_key) throws IOException {
+        synchronized (mWriteLock) {
+            synchronized (this) {
+                if (mMap != null)
+                    return;
+            }
+            Map<String, Object> map = read(x_key);
+            synchronized (this) {
+                mMap = map;
+                mKey = x_key.clone();
+                mWrittenGeneration = mGeneration;
+            }
+        }
+        CacheWordService.addLockListener(this);
+    }
+
+    public synchronized boolean isOpen() {
+        return mMap != null;
+    }
+
+    @Override
+    public synchronized Map<String, ?> getAll() {
+        checkOpen();
+        return new HashMap<String, Object>(mMap);
+    }
+
+    @Override
+    public synchronized String getString(String key, String defValue) {
+        checkOpen();
+        String v = (String) mMap.get(key);
+        return v != null ? v : defValue;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized Set<String> getStringSet(String key, Set<String> defValues) {
+        checkOpen();
+        Set<String> v = (Set<String>) mMap.get(key);
+        return v != null ? new HashSet<String>(v) : defValues;
+    }
+
+    @Override
+    public synchronized int getInt(String key, int defValue) {
+        checkOpen();
+        Integer v = (Integer) mMap.get(key);
+        return v != null ? v : defValue;
+    }
+
+    @Override
+    public synchronized long getLong(String key, long defValue) {
+        checkOpen();
+        Long v = (Long) mMap.get(key);
+        return v != null ? v : defValue;
+    }
+
+    @Override
+    public synchronized float getFloat(String key, float defValue) {
+        checkOpen();
+        Float v = (Float) mMap.get(key);
+        return v != null ? v : defValue;
+    }
+
+    @Override
+    public synchronized boolean getBoolean(String key, boolean defValue) {
+        checkOpen();
+        Boolean v = (Boolean) mMap.get(key);
+        return v != null ? v : defValue;
+    }
+
+    @Override
+    public synchronized boolean contains(String key) {
+        checkOpen();
+        return mMap.containsKey(key);
+    }
+
+    @Override
+    public Editor edit() {
+        return new EditorImpl();
+    }
+
+    @Override
+    public synchronized void registerOnSharedPreferenceChangeListener(
+            OnSharedPreferenceChangeListener listener) {
+        mListeners.put(listener, CONTENT);
+    }
+
+    @Override
+    public synchronized void unregisterOnSharedPreferenceChangeListener(
+            OnSharedPreferenceChangeListener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Write unwritten changes and drop the decrypted values. Edits committed
+     * or applied after this starts are rejected with a
+     * {@link CacheWordLockedException} rather than lost.
+     */
+    public void close() throws IOException {
+        CacheWordService.removeLockListener(this);
+        writeToFile(true);
+    }
+
+    @Override
+    public void onCacheWordLocking() {
+        try {
+            close();
+        } catch (IOException e) {
+            Log.e(TAG, "writing " + mFile.getName() + " before lock failed: "
+                    + e.getClass().getName() + " : " + e.getMessage());
+        }
+    }
+
+    @Override
+    public String getName() {
+        return TAG + " " + mFile.getName();
+    }
+
+    /**
+     * Drops the decrypted values and any unwritten changes.
+     */
+    @Override
+    public void forceWipe() {
+        wipe();
+    }
+
+    // / private methods
+    // ////////////////////////////////////
+
+    private void checkOpen() {
+        if (mMap == null)
+            throw new CacheWordLockedException("EncryptedPreferences " + mFile.getName()
+                    + " is not open");
+    }
+
+    private synchronized void wipe() {
+        if (mMap != null)
+            mMap.clear();
+        mMap = null;
+        Wiper.wipe(mKey);
+        mKey = null;
+    }
+
+    private static synchronized ExecutorService getWriter() {
+        if (sWriter == null) {
+            ThreadPoolExecutor writer = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new WriterThreadFactory());
+            writer.allowCoreThreadTimeOut(true);
+            sWriter = writer;
+        }
+        return sWriter;
+    }
+
+    private void scheduleWrite() {
+        synchronized (this) {
+            if (mWriteScheduled)
+                return;
+            mWriteScheduled = true;
+        }
+        getWriter().execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (EncryptedPreferences.this) {
+                    mWriteScheduled = false;
+                }
+                try {
+                    writeToFile(false);
+                } catch (IOException e) {
+                    Log.e(TAG, "writing " + mFile.getName() + " failed: "
+                            + e.getClass().getName() + " : " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Write the current values if they haven't been written yet.
+     *
+     * @param close also drop the values, in the same step as the snapshot so
+     *            no change can land between the two
+     */
+    private void writeToFile(boolean close) throws IOException {
+        synchronized (mWriteLock) {
+            Map<String, Object> snapshot = null;
+            byte[] x_key = null;
+            long generation;
+            synchronized (this) {
+                if (mMap == null)
+                    return;
+                generation = mGeneration;
+                if (mWrittenGeneration != mGeneration) {
+                    snapshot = new HashMap<String, Object>(mMap);
+                    x_key = mKey.clone();
+                }
+                if (close)
+                    wipe();
+            }
+            if (snapshot == null)
+                return;
+            try {
+                write(snapshot, x_key);
+            } finally {
+                Wiper.wipe(x_key);
+            }
+            synchronized (this) {
+                mWrittenGeneration = Math.max(mWrittenGeneration, generation);
+            }
+        }
+    }
+
+    private Map<String, Object> read(byte[] x_key) throws IOException {
+        Map<String, Object> map = new HashMap<String, Object>();
+        FileInputStream fis;
+        try {
+            fis = new FileInputStream(mFile);
+        } catch (FileNotFoundException e) {
+            return map;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new CacheWordDecryptingInputStream(x_key, fis)));
+        try {
+            int version = in.readInt();
+            if (version != FORMAT_VERSION)
+                throw new IOException("unsupported preferences version " + version);
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int type = in.readByte();
+                String key = in.readUTF();
+                map.put(key, readValue(in, type));
+            }
+            if (in.read() != -1)
+                throw new IOException("trailing data in " + mFile.getName());
+        } finally {
+            in.close();
+        }
+        return map;
+    }
+
+    private static Object readValue(DataInputStream in, int type) throws IOException {
+        switch (type) {
+            case TYPE_STRING:
+                return readString(in);
+            case TYPE_INT:
+                return in.readInt();
+            case TYPE_LONG:
+                return in.readLong();
+            case TYPE_FLOAT:
+                return in.readFloat();
+            case TYPE_BOOLEAN:
+                return in.readBoolean();
+            case TYPE_STRING_SET:
+                int size = in.readInt();
+                Set<String> set = new HashSet<String>();
+                for (int i = 0; i < size; i++)
+                    set.add(readString(in));
+                return set;
+            default:
+                throw new IOException("unknown value type " + type);
+        }
+    }
+
+    private void write(Map<String, Object> map, byte[] x_key) throws IOException {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        final FileOutputStream fos = new FileOutputStream(tmp);
+        // sync before the rename, so a crash leaves the old or the new file
+        FilterOutputStream synced = new FilterOutputStream(fos) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    out.flush();
+                    fos.getFD().sync();
+                } finally {
+                    out.close();
+                }
+            }
+        };
+        DataOutputStream out;
+        if (mCipherId >= 0)
+            out = new DataOutputStream(new CacheWordEncryptingOutputStream(x_key, synced,
+                    mCipherId, CacheWordEncryptingOutputStream.DEFAULT_SEGMENT_SIZE));
+        else
+            out = new DataOutputStream(new CacheWordEncryptingOutputStream(x_key, synced));
+        boolean written = false;
+        try {
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(map.size());
+            for (Map.Entry<String, Object> e : map.entrySet())
+                writeEntry(out, e.getKey(), e.getValue());
+            out.close();
+            if (!tmp.renameTo(mFile))
+                throw new IOException("could not replace " + mFile.getName());
+            written = true;
+        } finally {
+            if (!written) {
+                out.close();
+                tmp.delete();
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writeEntry(DataOutputStream out, String key, Object value)
+            throws IOException {
+        int type;
+        if (value instanceof String)
+            type = TYPE_STRING;
+        else if (value instanceof Integer)
+            type = TYPE_INT;
+        else if (value instanceof Long)
+            type = TYPE_LONG;
+        else if (value instanceof Float)
+            type = TYPE_FLOAT;
+        else if (value instanceof Boolean)
+            type = TYPE_BOOLEAN;
+        else
+            type = TYPE_STRING_SET;
+        out.writeByte(type);
+        out.writeUTF(key);
+        switch (type) {
+            case TYPE_STRING:
+                writeString(out, (String) value);
+                break;
+            case TYPE_INT:
+                out.writeInt((Integer) value);
+                break;
+            case TYPE_LONG:
+                out.writeLong((Long) value);
+                break;
+            case TYPE_FLOAT:
+                out.writeFloat((Float) value);
+                break;
+            case TYPE_BOOLEAN:
+                out.writeBoolean((Boolean) value);
+                break;
+            default:
+                Set<String> set = (Set<String>) value;
+                out.writeInt(set.size());
+                for (String s : set)
+                    writeString(out, s);
+        }
+    }
+
+    // writeUTF is limited to 64k, values aren't
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0)
+            throw new IOException("invalid string length " + length);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Apply an editor's changes to the map.
+     *
+     * @return whether anything changed
+     */
+    private boolean applyChanges(boolean clear, Map<String, Object> changes) {
+        final List<String> changed = new ArrayList<String>();
+        final List<OnSharedPreferenceChangeListener> listeners;
+        synchronized (this) {
+            checkOpen();
+            if (clear && !mMap.isEmpty()) {
+                mMap.clear();
+                mGeneration++;
+            }
+            for (Map.Entry<String, Object> e : changes.entrySet()) {
+                String key = e.getKey();
+                Object value = e.getValue();
+                Object old = value == this ? mMap.remove(key) : mMap.put(key, value);
+                if (value == this ? old != null : !value.equals(old))
+                    changed.add(key);
+            }
+            if (changed.isEmpty())
+                return clear;
+            mGeneration++;
+            listeners = new ArrayList<OnSharedPreferenceChangeListener>(mListeners.keySet());
+        }
+        if (!listeners.isEmpty()) {
+            // listeners are called on the main thread, as by the platform
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (String key : changed) {
+                        for (OnSharedPreferenceChangeListener l : listeners)
+                            l.onSharedPreferenceChanged(EncryptedPreferences.this, key);
+                    }
+                }
+            });
+        }
+        return true;
+    }
+
+    private final class EditorImpl implements Editor {
+        // removals map to EncryptedPreferences.this
+        private final Map<String, Object> mChanges = new HashMap<String, Object>();
+        private boolean mClear = false;
+
+        @Override
+        public synchronized Editor putString(String key, String value) {
+            mChanges.put(key, value != null ? value : EncryptedPreferences.this);
+            return this;
+        }
+
+        @Override
+        public synchronized Editor putStringSet(String key, Set<String> values) {
+            mChanges.put(key, values != null ? new HashSet<String>(values)
+                    : EncryptedPreferences.this);
+            return this;
+        }
+
+        @Override
+        public synchronized Editor putInt(String key, int value) {
+            mChanges.put(key, value);
+            return this;
+        }
+
+        @Override
+        public synchronized Editor putLong(String key, long value) {
+            mChanges.put(key, value);
+            return this;
+        }
+
+        @Override
+        public synchronized Editor putFloat(String key, float value) {
+            mChanges.put(key, value);
+            return this;
+        }
+
+        @Override
+        public synchronized Editor putBoolean(String key, boolean value) {
+            mChanges.put(key, value);
+            return this;
+        }
+
+        @Override
+        public synchronized Editor remove(String key) {
+            mChanges.put(key, EncryptedPreferences.this);
+            return this;
+        }
+
+        @Override
+        public synchronized Editor clear() {
+            mClear = true;
+            return this;
+        }
+
+        /**
+         * @throws CacheWordLockedException if the preferences aren't open
+         */
+        @Override
+        public boolean commit() {
+            if (!applyChanges())
+                return true;
+            try {
+                writeToFile(false);
+                return true;
+            } catch (IOException e) {
+                Log.e(TAG, "writing " + mFile.getName() + " failed: " + e.getClass().getName()
+                        + " : " + e.getMessage());
+                return false;
+            }
+        }
+
+        /**
+         * @throws CacheWordLockedException if the preferences aren't open
+         */
+        @Override
+        public void apply() {
+            if (applyChanges())
+                scheduleWrite();
+        }
+
+        private synchronized boolean applyChanges() {
+            boolean changed = EncryptedPreferences.this.applyChanges(mClear, mChanges);
+            mChanges.clear();
+            mClear = false;
+            return changed;
+        }
+    }
+
+    private static class WriterThreadFactory implements ThreadFactory {
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, TAG);
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
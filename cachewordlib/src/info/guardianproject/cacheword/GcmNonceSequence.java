@@ -0,0 +1,165 @@
+
+package info.guardianproject.cacheword;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates unique 96 bit AES-GCM nonces for one key, using the deterministic
+ * construction of NIST SP 800-38D section 8.2.1: a 32 bit random prefix
+ * chosen once per key, followed by a 64 bit counter.
+ * <p>
+ * Uniqueness across restarts comes from reserving counter values in blocks:
+ * before the first nonce of a block is handed out, the end of the block is
+ * committed to SharedPreferences as the high-water mark, and after a restart
+ * counting resumes at that mark. Only one write happens per block, and
+ * drawing a nonce inside a reserved block takes neither a lock nor an
+ * allocation (see {@link #next(byte[], int)}). A crash skips the rest of the
+ * current block, which is harmless.
+ * <p>
+ * There must be a single sequence per key, so instances are obtained from
+ * {@link #forKey(Context, String)}. The state is not shared between
+ * processes; a key must only be used for encryption by one process. When a key
+ * is retired, {@link #discard(Context, String)} its sequence.
+ * <p>
+ * Random nonces remain the right choice where a key only ever encrypts a
+ * handful of messages, as for the secrets bundle in
+ * {@link PassphraseSecretsImpl}.
+ */
+public final class GcmNonceSequence {
+    private static final String TAG = "GcmNonceSequence";
+
+    public static final int NONCE_LEN_BYTES = Constants.GCM_IV_LEN_BYTES;
+    static final int PREFIX_LEN_BYTES = 4;
+    static final long DEFAULT_BLOCK_SIZE = 1 << 16;
+
+    private static final String PREF_PREFIX = ".prefix";
+    private static final String PREF_HIGH_WATER = ".high_water";
+
+    // guarded by GcmNonceSequence.class
+    private static final Map<String, GcmNonceSequence> sSequences =
+            new HashMap<String, GcmNonceSequence>();
+
+    private final SharedPreferences mPrefs;
+    private final String mKeyId;
+    private final long mBlockSize;
+    private final int mPrefix;
+    private final AtomicLong mNext;
+    private volatile long mReserved; // counter values below this are persisted
+
+    /**
+     * Returns the process-wide nonce sequence for a key.
+     *
+     * @param keyId a stable name for the key, unique within the app
+     */
+    public static synchronized GcmNonceSequence forKey(Context ctx, String keyId) {
+        GcmNonceSequence seq = sSequences.get(keyId);
+        if (seq == null) {
+            SharedPreferences prefs = ctx.getApplicationContext().getSharedPreferences(
+                    Constants.SHARED_PREFS_NONCES, Constants.SHARED_PREFS_PRIVATE_MODE);
+            seq = new GcmNonceSequence(prefs, keyId, DEFAULT_BLOCK_SIZE);
+            sSequences.put(keyId, seq);
+        }
+        return seq;
+    }
+
+    /**
+     * Forget the sequence of a key that will not be used for encryption
+     * again. Must not be called while the key is still in use.
+     */
+    public static synchronized void discard(Context ctx, String keyId) {
+        sSequences.remove(keyId);
+        ctx.getApplicationContext()
+                .getSharedPreferences(Constants.SHARED_PREFS_NONCES,
+                        Constants.SHARED_PREFS_PRIVATE_MODE)
+                .edit()
+                .remove(keyId + PREF_PREFIX)
+                .remove(keyId + PREF_HIGH_WATER)
+                .commit();
+    }
+
+    GcmNonceSequence(SharedPreferences prefs, String keyId, long blockSize) {
+        if (blockSize < 1)
+            throw new IllegalArgumentException("invalid block size");
+        mPrefs = prefs;
+        mKeyId = keyId;
+        mBlockSize = blockSize;
+
+        if (prefs.contains(keyId + PREF_PREFIX)) {
+            mPrefix = prefs.getInt(keyId + PREF_PREFIX, 0);
+        } else {
+            mPrefix = new SecureRandom().nextInt();
+            // the high-water mark is dropped with the prefix it belongs to
+            if (!prefs.edit()
+                    .putInt(keyId + PREF_PREFIX, mPrefix)
+                    .remove(keyId + PREF_HIGH_WATER)
+                    .commit())
+                throw new IllegalStateException("could not save nonce prefix");
+        }
+        mReserved = prefs.getLong(keyId + PREF_HIGH_WATER, 0);
+        mNext = new AtomicLong(mReserved);
+    }
+
+    /**
+     * Write the next nonce into out[offset..offset+{@link #NONCE_LEN_BYTES}).
+     *
+     * @throws IllegalStateException if the counter could not be reserved
+     */
+    public void next(byte[] out, int offset) {
+        if (out.length - offset < NONCE_LEN_BYTES || offset < 0)
+            throw new IllegalArgumentException("no room for the nonce");
+        long counter = mNext.getAndIncrement();
+        if (counter >= mReserved)
+            reserve(counter);
+
+        out[offset] = (byte) (mPrefix >>> 24);
+        out[offset + 1] = (byte) (mPrefix >>> 16);
+        out[offset + 2] = (byte) (mPrefix >>> 8);
+        out[offset + 3] = (byte) mPrefix;
+        for (int i = NONCE_LEN_BYTES - 1; i >= PREFIX_LEN_BYTES; i--) {
+            out[offset + i] = (byte) counter;
+            counter >>>= 8;
+        }
+    }
+
+    /**
+     * @return a new array holding the next nonce
+     * @throws IllegalStateException if the counter could not be reserved
+     */
+    public byte[] next() {
+        byte[] nonce = new byte[NONCE_LEN_BYTES];
+        next(nonce, 0);
+        return nonce;
+    }
+
+    /**
+     * @return the persisted high-water mark, for tests
+     */
+    long getReserved() {
+        return mReserved;
+    }
+
+    // / private methods
+    // ////////////////////////////////////
+
+    private synchronized void reserve(long counter) {
+        if (counter < 0)
+            throw new IllegalStateException("nonce counter exhausted for " + mKeyId);
+        while (counter >= mReserved) {
+            long highWater = mReserved + mBlockSize;
+            if (highWater < 0)
+                highWater = Long.MAX_VALUE;
+            if (!mPrefs.edit().putLong(mKeyId + PREF_HIGH_WATER, highWater).commit()) {
+                Log.e(TAG, "could not reserve nonces for " + mKeyId);
+                throw new IllegalStateException("could not reserve nonces for " + mKeyId);
+            }
+            mReserved = highWater;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+
+package info.guardianproject.cacheword;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * HMAC_DRBG with HMAC-SHA256 as specified in NIST SP 800-90A section 10.1.2.
+ * <p>
+ * An instance is not thread safe; {@link PRNGFixes} keeps one per thread. The
+ * seeding process id is remembered so a generator copied into a child process
+ * by {@code fork()} (e.g., from the zygote) can be detected and reseeded
+ * before it repeats the parent's output.
+ */
+final class HmacDrbg {
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int OUTLEN = 32; // bytes, SHA-256
+
+    /** Generate requests allowed between reseeds (SP 800-90A allows 2^48) */
+    static final long RESEED_INTERVAL = 1L << 16;
+
+    /** Largest single generate request (SP 800-90A: 2^19 bits) */
+    static final int MAX_BYTES_PER_REQUEST = 1 << 16;
+
+    /** Security strength 256 bits, so seeds need at least 32 bytes of entropy */
+    static final int SEED_LEN_BYTES = 32;
+
+    private final Mac mMac;
+    private final byte[] mK = new byte[OUTLEN];
+    private final byte[] mV = new byte[OUTLEN];
+    private long mReseedCounter;
+    private int mSeedPid;
+
+    /**
+     * Instantiate the generator.
+     *
+     * @param entropy at least {@link #SEED_LEN_BYTES} bytes of entropy
+     * @param nonce a nonce, may be null
+     * @param personalization a personalization string, may be null
+     * @param pid the id of the current process
+     */
+    HmacDrbg(byte[] entropy, byte[] nonce, byte[] personalization, int pid)
+            throws GeneralSecurityException {
+        if (entropy == null || entropy.length < SEED_LEN_BYTES)
+            throw new IllegalArgumentException("not enough entropy");
+        mMac = Mac.getInstance(MAC_ALGORITHM);
+        Arrays.fill(mK, (byte) 0x00);
+        Arrays.fill(mV, (byte) 0x01);
+        update(entropy, nonce, personalization);
+        mReseedCounter = 1;
+        mSeedPid = pid;
+    }
+
+    /**
+     * @return true if the generator must be reseeded before the next
+     *         {@link #generate(byte[], int, int)} because the reseed interval
+     *         has passed or the process has forked since the last seeding
+     */
+    boolean needsReseed(int pid) {
+        return mReseedCounter > RESEED_INTERVAL || pid != mSeedPid;
+    }
+
+    /**
+     * Reseed the generator.
+     *
+     * @param entropy at least {@link #SEED_LEN_BYTES} bytes of entropy
+     * @param additional additional input, may be null
+     * @param pid the id of the current process
+     */
+    void reseed(byte[] entropy, byte[] additional, int pid) {
+        if (entropy == null || entropy.length < SEED_LEN_BYTES)
+            throw new IllegalArgumentException("not enough entropy");
+        update(entropy, additional, null);
+        mReseedCounter = 1;
+        mSeedPid = pid;
+    }
+
+    /**
+     * Fill out[offset..offset+length) with output. Requests larger than
+     * {@link #MAX_BYTES_PER_REQUEST} count as several requests.
+     *
+     * @throws IllegalStateException if a reseed is required first
+     */
+    void generate(byte[] out, int offset, int length) {
+        while (length > 0) {
+            if (mReseedCounter > RESEED_INTERVAL)
+                throw new IllegalStateException("HMAC_DRBG reseed required");
+            int n = Math.min(length, MAX_BYTES_PER_REQUEST);
+            generateBlock(out, offset, n);
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Zero the internal state. The generator can't be used afterwards.
+     */
+    void wipe() {
+        Wiper.wipe(mK);
+        Wiper.wipe(mV);
+        mReseedCounter = Long.MAX_VALUE;
+    }
+
+    private void generateBlock(byte[] out, int offset, int length) {
+        try {
+            mMac.init(new SecretKeySpec(mK, MAC_ALGORITHM));
+            int end = offset + length;
+            while (offset < end) {
+                mMac.update(mV);
+                mMac.doFinal(mV, 0);
+                int n = Math.min(OUTLEN, end - offset);
+                System.arraycopy(mV, 0, out, offset, n);
+                offset += n;
+            }
+        } catch (GeneralSecurityException e) {
+            throw new SecurityException("HMAC_DRBG generate failed", e);
+        }
+        update(null, null, null);
+        mReseedCounter++;
+    }
+
+    /**
+     * The HMAC_DRBG update function. The provided data is the concatenation
+     * of the non-null arguments.
+     */
+    private void update(byte[] a, byte[] b, byte[] c) {
+        boolean hasData = length(a) + length(b) + length(c) > 0;
+        try {
+            updateRound((byte) 0x00, a, b, c);
+            if (hasData)
+                updateRound((byte) 0x01, a, b, c);
+        } catch (GeneralSecurityException e) {
+            throw new SecurityException("HMAC_DRBG update failed", e);
+        }
+    }
+
+    private void updateRound(byte separator, byte[] a, byte[] b, byte[] c)
+            throws InvalidKeyException, GeneralSecurityException {
+        // K = HMAC(K, V || separator || provided_data)
+        mMac.init(new SecretKeySpec(mK, MAC_ALGORITHM));
+        mMac.update(mV);
+        mMac.update(separator);
+        if (a != null)
+            mMac.update(a);
+        if (b != null)
+            mMac.update(b);
+        if (c != null)
+            mMac.update(c);
+        mMac.doFinal(mK, 0);
+        // V = HMAC(K, V)
+        mMac.init(new SecretKeySpec(mK, MAC_ALGORITHM));
+        mMac.update(mV);
+        mMac.doFinal(mV, 0);
+    }
+
+    private static int length(byte[] b) {
+        return b == null ? 0 : b.length;
+    }
+}
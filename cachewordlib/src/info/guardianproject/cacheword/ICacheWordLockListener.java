@@ -0,0 +1,24 @@
+
+package info.guardianproject.cacheword;
+
+/**
+ * Implemented by in-process components that hold data derived from the cached
+ * secrets (decrypted caches, open databases, pending writes) and need to act
+ * before the secrets are wiped.
+ *
+ * @see CacheWordService#addLockListener(ICacheWordLockListener)
+ */
+public interface ICacheWordLockListener {
+
+    /**
+     * Called by {@link CacheWordService} when it locks. The service no longer
+     * hands out the secrets, but doesn't destroy them until the listeners
+     * have returned, so state derived from them (an open database, a copy of
+     * the key) is still usable. Listeners run in parallel on worker
+     * threads and locking waits for them up to the
+     * {@link LockOrchestrator} deadline. Implementations must not call back
+     * into {@link CacheWordService#lock()}.
+     */
+    public void onCacheWordLocking();
+
+}
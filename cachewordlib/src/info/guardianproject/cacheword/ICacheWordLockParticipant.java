@@ -0,0 +1,24 @@
+
+package info.guardianproject.cacheword;
+
+/**
+ * A lock listener that can be wiped forcibly. When CacheWord locks, each
+ * participant's {@link #onCacheWordLocking()} runs in parallel with the
+ * others. A participant that doesn't finish before the deadline set with
+ * {@link LockOrchestrator#setDeadline(long)} is interrupted and
+ * {@link #forceWipe()} is called.
+ */
+public interface ICacheWordLockParticipant extends ICacheWordLockListener {
+
+    /**
+     * @return a short name identifying the participant in teardown reports
+     */
+    public String getName();
+
+    /**
+     * Wipe all sensitive data immediately, abandoning any orderly teardown.
+     * Called on the locking thread, so this must not block.
+     */
+    public void forceWipe();
+
+}
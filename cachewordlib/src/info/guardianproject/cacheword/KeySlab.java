@@ -0,0 +1,184 @@
+
+package info.guardianproject.cacheword;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Stores many 32 byte keys in fixed slots of one direct buffer, outside the
+ * Java heap. The keys cost no garbage collection time and nothing of them is
+ * copied around by the collector, the footprint is the capacity times 32 bytes
+ * plus two ints per slot, and all of the key material can be wiped at once.
+ * <p>
+ * A key is addressed by an int handle, which combines the slot with a
+ * generation counter, so a handle kept after its key was freed is detected
+ * instead of reading another key. Allocating, reading, wiping and freeing
+ * are O(1).
+ * <p>
+ * The generation has {@value #GENERATION_BITS} bits and wraps. Freed slots
+ * queue up behind the other free slots, so a stale handle can only become
+ * valid again after its slot was reused 1024 times, which takes at least
+ * 1024 times the number of free slots allocations. Callers that keep
+ * handles for long on a nearly full slab should check them against a
+ * record of their own.
+ */
+public class KeySlab {
+
+    public static final int KEY_LEN_BYTES = 32;
+    public static final int NO_HANDLE = -1;
+
+    // the low bits of a handle are the slot, the rest the generation
+    static final int SLOT_BITS = 20;
+    static final int MAX_CAPACITY = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = MAX_CAPACITY - 1;
+    static final int GENERATION_BITS = 31 - SLOT_BITS;
+    private static final int GENERATION_MASK = (1 << GENERATION_BITS) - 1;
+
+    private final int mCapacity;
+    private final ByteBuffer mKeys;
+    // odd while the slot holds a key
+    private final int[] mGenerations;
+    // a ring of the free slots, the longest free first
+    private final int[] mFree;
+    private int mFreeHead;
+    private int mFreeCount;
+
+    /**
+     * @param capacity the number of keys the slab holds, at most
+     *            {@link #MAX_CAPACITY}
+     */
+    public KeySlab(int capacity) {
+        if (capacity < 1 || capacity > MAX_CAPACITY)
+            throw new IllegalArgumentException("invalid capacity " + capacity);
+        mCapacity = capacity;
+        mKeys = ByteBuffer.allocateDirect(capacity * KEY_LEN_BYTES);
+        mGenerations = new int[capacity];
+        mFree = new int[capacity];
+        // hand out the low slots first
+        for (int i = 0; i < capacity; i++)
+            mFree[i] = i;
+        mFreeCount = capacity;
+    }
+
+    /**
+     * Copy a key into a free slot.
+     *
+     * @param x_key NOT WIPED
+     * @return the key's handle, or {@link #NO_HANDLE} if the slab is full
+     */
+    public synchronized int allocate(byte[] x_key) {
+        if (x_key.length != KEY_LEN_BYTES)
+            throw new IllegalArgumentException("keys must be " + KEY_LEN_BYTES + " bytes");
+        if (mFreeCount == 0)
+            return NO_HANDLE;
+        int slot = mFree[mFreeHead];
+        mFreeHead = (mFreeHead + 1) % mCapacity;
+        mFreeCount--;
+        int generation = (mGenerations[slot] + 1) & GENERATION_MASK;
+        mGenerations[slot] = generation;
+        mKeys.position(slot * KEY_LEN_BYTES);
+        mKeys.put(x_key);
+        return (generation << SLOT_BITS) | slot;
+    }
+
+    /**
+     * Copy a key out of the slab.
+     *
+     * @param handle
+     * @param x_dst receives the key at offset
+     * @throws IllegalArgumentException if the handle was freed
+     */
+    public synchronized void read(int handle, byte[] x_dst, int offset) {
+        int slot = checkHandle(handle);
+        mKeys.position(slot * KEY_LEN_BYTES);
+        mKeys.get(x_dst, offset, KEY_LEN_BYTES);
+    }
+
+    /**
+     * @return a copy of the key, which the caller must wipe
+     * @throws IllegalArgumentException if the handle was freed
+     */
+    public byte[] get(int handle) {
+        byte[] x_key = new byte[KEY_LEN_BYTES];
+        read(handle, x_key, 0);
+        return x_key;
+    }
+
+    /**
+     * Zero the key but keep its slot, for example to revoke a key whose
+     * handle is still held elsewhere.
+     *
+     * @throws IllegalArgumentException if the handle was freed
+     */
+    public synchronized void wipe(int handle) {
+        zero(checkHandle(handle));
+    }
+
+    /**
+     * Wipe the key and return its slot. The handle, and every copy of it,
+     * becomes invalid.
+     *
+     * @throws IllegalArgumentException if the handle was already freed
+     */
+    public synchronized void free(int handle) {
+        int slot = checkHandle(handle);
+        zero(slot);
+        release(slot);
+    }
+
+    /**
+     * Wipe every key and free every slot, invalidating all handles.
+     */
+    public synchronized void wipeAll() {
+        Wiper.wipe(mKeys);
+        for (int slot = 0; slot < mCapacity; slot++) {
+            if ((mGenerations[slot] & 1) == 1)
+                release(slot);
+        }
+    }
+
+    /**
+     * @return true if the handle refers to a key that has not been freed
+     */
+    public synchronized boolean isValid(int handle) {
+        if (handle < 0)
+            return false;
+        int slot = handle & SLOT_MASK;
+        return slot < mCapacity && mGenerations[slot] == (handle >>> SLOT_BITS)
+                && (mGenerations[slot] & 1) == 1;
+    }
+
+    /**
+     * @return the number of keys in the slab
+     */
+    public synchronized int size() {
+        return mCapacity - mFreeCount;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    // / private methods
+    // ////////////////////////////////////
+
+    // call with the monitor held
+    private int checkHandle(int handle) {
+        if (!isValid(handle))
+            throw new IllegalArgumentException("stale or invalid key handle " + handle);
+        return handle & SLOT_MASK;
+    }
+
+    // call with the monitor held, after zeroing the slot
+    private void release(int slot) {
+        mGenerations[slot] = (mGenerations[slot] + 1) & GENERATION_MASK;
+        mFree[(mFreeHead + mFreeCount) % mCapacity] = slot;
+        mFreeCount++;
+    }
+
+    // call with the monitor held
+    private void zero(int slot) {
+        int offset = slot * KEY_LEN_BYTES;
+        for (int i = 0; i < KEY_LEN_BYTES; i += 8)
+            mKeys.putLong(offset + i, 0L);
+    }
+}
@@ -0,0 +1,273 @@
+
+package info.guardianproject.cacheword;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The process wide registry of components that must be torn down when
+ * CacheWord locks: open databases, mounted file systems, decrypted caches.
+ * When {@link CacheWordService#lock()} is called, every registered
+ * {@link ICacheWordLockListener} runs in parallel on a worker thread while the
+ * secrets are still available. The locking thread waits at most the
+ * configured deadline; listeners that are still running are then interrupted
+ * and, if they implement {@link ICacheWordLockParticipant}, force-wiped. The
+ * secrets are destroyed either way.
+ * <p>
+ * Listeners are run in stages: everything registered for
+ * {@link #STAGE_FLUSH} (e.g., write queues) finishes before the listeners of
+ * {@link #STAGE_CLOSE} (databases, file systems, caches) start. The flush
+ * stage may use at most half of the deadline, so the close stage always has
+ * at least the other half.
+ * <p>
+ * Each listener is bound to one namespace of secrets, see
+ * {@link CacheWordService}, and only runs when that namespace locks. Listeners
+ * registered without a namespace are bound to
+ * {@link Constants#DEFAULT_NAMESPACE}.
+ * <p>
+ * {@link CacheWordService} runs the teardown on a background thread, never on
+ * the main thread.
+ */
+public class LockOrchestrator {
+    private static final String TAG = "LockOrchestrator";
+
+    public static final long DEFAULT_DEADLINE_MILLIS = 2000;
+
+    /** Listeners that still need the open databases and file systems */
+    public static final int STAGE_FLUSH = 0;
+    /** Listeners that close databases, file systems and caches */
+    public static final int STAGE_CLOSE = 1;
+
+    private static LockOrchestrator sInstance;
+
+    private final List<Registration> mRegistrations = new CopyOnWriteArrayList<Registration>();
+    private final ExecutorService mExecutor;
+    private volatile long mDeadlineMillis = DEFAULT_DEADLINE_MILLIS;
+    private volatile LockTeardownReport mLastReport;
+
+    public static synchronized LockOrchestrator getInstance() {
+        if (sInstance == null)
+            sInstance = new LockOrchestrator();
+        return sInstance;
+    }
+
+    private LockOrchestrator() {
+        // idle threads die off quickly, locking is infrequent
+        mExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 5, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, TAG);
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    /**
+     * Register a listener for {@link #STAGE_CLOSE}.
+     */
+    public void register(ICacheWordLockListener listener) {
+        register(listener, STAGE_CLOSE);
+    }
+
+    /**
+     * @param listener the listener to run when CacheWord locks
+     * @param stage {@link #STAGE_FLUSH} or {@link #STAGE_CLOSE}
+     */
+    public void register(ICacheWordLockListener listener, int stage) {
+        register(listener, stage, Constants.DEFAULT_NAMESPACE);
+    }
+
+    /**
+     * @param listener the listener to run when the namespace locks
+     * @param stage {@link #STAGE_FLUSH} or {@link #STAGE_CLOSE}
+     * @param namespace the namespace whose secrets the listener uses
+     */
+    public synchronized void register(ICacheWordLockListener listener, int stage,
+            String namespace) {
+        if (stage != STAGE_FLUSH && stage != STAGE_CLOSE)
+            throw new IllegalArgumentException("unknown stage: " + stage);
+        SecretsManager.checkNamespace(namespace);
+        if (listener == null)
+            return;
+        unregister(listener);
+        mRegistrations.add(new Registration(listener, stage, namespace));
+    }
+
+    public synchronized void unregister(ICacheWordLockListener listener) {
+        for (Registration r : mRegistrations) {
+            if (r.listener == listener)
+                mRegistrations.remove(r);
+        }
+    }
+
+    /**
+     * Set how long locking waits for the listeners to finish.
+     *
+     * @param millis the deadline in milliseconds, must not be negative
+     */
+    public void setDeadline(long millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("negative deadline");
+        mDeadlineMillis = millis;
+    }
+
+    public long getDeadline() {
+        return mDeadlineMillis;
+    }
+
+    /**
+     * @return the report of the most recent teardown, or null if CacheWord
+     *         hasn't locked yet
+     */
+    public LockTeardownReport getLastReport() {
+        return mLastReport;
+    }
+
+    LockTeardownReport teardown() {
+        return teardown(Constants.DEFAULT_NAMESPACE);
+    }
+
+    /**
+     * Run the listeners bound to a namespace, stage by stage, and wait for
+     * them up to the deadline. Called by {@link CacheWordService} before it
+     * destroys the namespace's secrets.
+     */
+    LockTeardownReport teardown(String namespace) {
+        LockTeardownReport report = new LockTeardownReport();
+        long start = SystemClock.elapsedRealtime();
+        long deadlineMillis = mDeadlineMillis;
+
+        List<Registration> registrations = new ArrayList<Registration>();
+        for (Registration r : mRegistrations) {
+            if (r.namespace.equals(namespace))
+                registrations.add(r);
+        }
+        runStage(registrations, STAGE_FLUSH, start + deadlineMillis / 2, report);
+        runStage(registrations, STAGE_CLOSE, start + deadlineMillis, report);
+
+        report.setTotalMillis(SystemClock.elapsedRealtime() - start);
+        mLastReport = report;
+        return report;
+    }
+
+    private void runStage(List<Registration> registrations, int stage, long deadline,
+            LockTeardownReport report) {
+        List<Teardown> tasks = new ArrayList<Teardown>();
+        List<Future<Long>> futures = new ArrayList<Future<Long>>();
+        for (Registration r : registrations) {
+            if (r.stage != stage)
+                continue;
+            Teardown task = new Teardown(r.listener);
+            tasks.add(task);
+            futures.add(mExecutor.submit(task));
+        }
+
+        boolean interrupted = false;
+        for (int i = 0; i < tasks.size(); i++) {
+            Teardown task = tasks.get(i);
+            Future<Long> future = futures.get(i);
+            String name = getName(task.listener);
+            try {
+                long remaining = interrupted ? 0
+                        : Math.max(0, deadline - SystemClock.elapsedRealtime());
+                long millis = future.get(remaining, TimeUnit.MILLISECONDS);
+                report.add(name, millis, LockTeardownReport.Status.COMPLETED);
+            } catch (ExecutionException e) {
+                Log.e(TAG, name + " failed to tear down: " + e.getCause());
+                report.add(name, task.getMillis(), LockTeardownReport.Status.FAILED);
+                forceWipe(task.listener);
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                Log.w(TAG, name + " missed the lock deadline, force wiping");
+                report.add(name, task.getMillis(), LockTeardownReport.Status.TIMED_OUT);
+                forceWipe(task.listener);
+            } catch (InterruptedException e) {
+                // stop waiting, but still force wipe whatever is left
+                interrupted = true;
+                i--;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private static void forceWipe(ICacheWordLockListener listener) {
+        if (!(listener instanceof ICacheWordLockParticipant))
+            return;
+        try {
+            ((ICacheWordLockParticipant) listener).forceWipe();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "forceWipe failed: " + e.getClass().getName() + " : " + e.getMessage());
+        }
+    }
+
+    private static String getName(ICacheWordLockListener listener) {
+        if (listener instanceof ICacheWordLockParticipant)
+            return ((ICacheWordLockParticipant) listener).getName();
+        return listener.getClass().getName();
+    }
+
+    /**
+     * Runs one listener and times it from when it starts, not from when the
+     * teardown started.
+     */
+    private static final class Teardown implements Callable<Long> {
+        final ICacheWordLockListener listener;
+        // 0 until the listener starts
+        private volatile long mStart = 0;
+        private volatile long mEnd = 0;
+
+        Teardown(ICacheWordLockListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public Long call() {
+            mStart = SystemClock.elapsedRealtime();
+            try {
+                listener.onCacheWordLocking();
+            } finally {
+                mEnd = SystemClock.elapsedRealtime();
+            }
+            return mEnd - mStart;
+        }
+
+        /**
+         * @return how long the listener ran, or has been running so far
+         */
+        long getMillis() {
+            long start = mStart;
+            if (start == 0)
+                return 0;
+            long end = mEnd;
+            return (end == 0 ? SystemClock.elapsedRealtime() : end) - start;
+        }
+    }
+
+    private static final class Registration {
+        final ICacheWordLockListener listener;
+        final int stage;
+        final String namespace;
+
+        Registration(ICacheWordLockListener listener, int stage, String namespace) {
+            this.listener = listener;
+            this.stage = stage;
+            this.namespace = namespace;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+
+package info.guardianproject.cacheword;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Records how long each lock listener took to tear down when CacheWord last
+ * locked.
+ *
+ * @see LockOrchestrator#getLastReport()
+ */
+public class LockTeardownReport {
+
+    public enum Status {
+        COMPLETED,
+        FAILED,
+        TIMED_OUT
+    }
+
+    public static class Entry {
+        public final String name;
+        public final long millis;
+        public final Status status;
+
+        Entry(String name, long millis, Status status) {
+            this.name = name;
+            this.millis = millis;
+            this.status = status;
+        }
+
+        @Override
+        public String toString() {
+            return name + "=" + millis + "ms" + (status == Status.COMPLETED ? "" : " " + status);
+        }
+    }
+
+    private final List<Entry> mEntries = new ArrayList<Entry>();
+    private long mTotalMillis;
+
+    void add(String name, long millis, Status status) {
+        mEntries.add(new Entry(name, millis, status));
+    }
+
+    void setTotalMillis(long millis) {
+        mTotalMillis = millis;
+    }
+
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(mEntries);
+    }
+
+    /**
+     * @return the wall clock time of the whole teardown in milliseconds
+     */
+    public long getTotalMillis() {
+        return mTotalMillis;
+    }
+
+    /**
+     * @return the number of listeners that missed the deadline
+     */
+    public int getTimedOutCount() {
+        int count = 0;
+        for (Entry e : mEntries) {
+            if (e.status == Status.TIMED_OUT)
+                count++;
+        }
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return "teardown " + mTotalMillis + "ms " + mEntries;
+    }
+}
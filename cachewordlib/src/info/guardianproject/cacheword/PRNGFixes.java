@@ -13,11 +13,13 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
 import java.security.Provider;
 import java.security.SecureRandom;
 import java.security.SecureRandomSpi;
 import java.security.Security;
+import java.util.Arrays;
 
 /**
  * Fixes for the output of the default PRNG having low entropy.
@@ -131,8 +133,8 @@ public final class PRNGFixes {
     }
 
     /**
-     * {@code Provider} of {@code SecureRandom} engines which pass through
-     * all requests to the Linux PRNG.
+     * {@code Provider} of {@code SecureRandom} engines backed by the Linux
+     * PRNG.
      */
     @SuppressWarnings("serial")
     private static class LinuxPRNGSecureRandomProvider extends Provider {
@@ -141,8 +143,8 @@ public final class PRNGFixes {
             super("LinuxPRNG",
                     1.0,
                     "A Linux-specific random number provider that uses"
-                        + " /dev/urandom");
-            // Although /dev/urandom is not a SHA-1 PRNG, some apps
+                        + " per-thread HMAC_DRBGs seeded from /dev/urandom");
+            // Although this is not a SHA-1 PRNG, some apps
             // explicitly request a SHA1PRNG SecureRandom and we thus need to
             // prevent them from getting the default implementation whose output
             // may have low entropy.
@@ -152,22 +154,33 @@ public final class PRNGFixes {
     }
 
     /**
-     * {@link SecureRandomSpi} which passes all requests to the Linux PRNG
-     * ({@code /dev/urandom}).
+     * {@link SecureRandomSpi} backed by the Linux PRNG ({@code /dev/urandom}).
      */
     @SuppressWarnings("serial")
     public static class LinuxPRNGSecureRandom extends SecureRandomSpi {
 
         /*
-         * IMPLEMENTATION NOTE: Requests to generate bytes and to mix in a seed
-         * are passed through to the Linux PRNG (/dev/urandom). Instances of
-         * this class seed themselves by mixing in the current time, PID, UID,
-         * build fingerprint, and hardware serial number (where available) into
-         * Linux PRNG.
+         * IMPLEMENTATION NOTE: Every thread has its own HMAC_DRBG (see
+         * HmacDrbg), seeded from the Linux PRNG (/dev/urandom) and
+         * personalized with the current time, PID, UID, thread id, build
+         * fingerprint, and hardware serial number (where available). Output is
+         * generated a buffer at a time and handed out to small requests, so
+         * the common nextInt()/IV sized requests neither read /dev/urandom nor
+         * contend on a lock. Requests to mix in a seed are passed through to
+         * the Linux PRNG and also reseed the calling thread's generator.
+         * Instances the caller doesn't seed are served straight from the
+         * thread's generator, which is already seeded and personalized, so
+         * creating a SecureRandom per IV costs no reseed.
          *
-         * Concurrency: Read requests to the underlying Linux PRNG are
-         * serialized (on sLock) to ensure that multiple threads do not get
-         * duplicated PRNG output.
+         * The generators are reseeded from /dev/urandom every
+         * HmacDrbg.RESEED_INTERVAL requests, and whenever the PID changes, so
+         * a generator (or buffered output) inherited through fork() is never
+         * used in the child. engineGenerateSeed() always reads /dev/urandom
+         * directly.
+         *
+         * Concurrency: Only seeding reads from the Linux PRNG, and those reads
+         * are serialized (on the input stream) to ensure that multiple
+         * threads do not get duplicated PRNG output.
          */
 
         private static final File URANDOM_FILE = new File("/dev/urandom");
@@ -190,12 +203,13 @@ public final class PRNGFixes {
          */
         private static OutputStream sUrandomOut;
 
-        /**
-         * Whether this engine instance has been seeded. This is needed because
-         * each instance needs to seed itself if the client does not explicitly
-         * seed it.
-         */
-        private boolean mSeeded;
+        private static final ThreadLocal<BufferedDrbg> sThreadDrbg =
+                new ThreadLocal<BufferedDrbg>() {
+                    @Override
+                    protected BufferedDrbg initialValue() {
+                        return BufferedDrbg.create(Process.myPid());
+                    }
+                };
 
         @Override
         protected void engineSetSeed(byte[] bytes) {
@@ -211,23 +225,34 @@ public final class PRNGFixes {
                 // Log and ignore.
                 Log.w(PRNGFixes.class.getSimpleName(),
                         "Failed to mix seed into " + URANDOM_FILE);
-            } finally {
-                mSeeded = true;
             }
+            sThreadDrbg.get().reseed(bytes, Process.myPid());
         }
 
         @Override
         protected void engineNextBytes(byte[] bytes) {
-            if (!mSeeded) {
-                // Mix in the device- and invocation-specific seed.
-                engineSetSeed(generateSeed());
-            }
+            sThreadDrbg.get().nextBytes(bytes, Process.myPid());
+        }
 
+        @Override
+        protected byte[] engineGenerateSeed(int size) {
+            return readUrandom(size);
+        }
+
+        /**
+         * @return the calling thread's generator
+         */
+        static BufferedDrbg getThreadDrbg() {
+            return sThreadDrbg.get();
+        }
+
+        /**
+         * Reads bytes straight from the Linux PRNG.
+         */
+        static byte[] readUrandom(int size) {
+            byte[] bytes = new byte[size];
             try {
-                DataInputStream in;
-                synchronized (sLock) {
-                    in = getUrandomInputStream();
-                }
+                DataInputStream in = getUrandomInputStream();
                 synchronized (in) {
                     in.readFully(bytes);
                 }
@@ -235,22 +260,15 @@ public final class PRNGFixes {
                 throw new SecurityException(
                         "Failed to read from " + URANDOM_FILE, e);
             }
+            return bytes;
         }
 
-        @Override
-        protected byte[] engineGenerateSeed(int size) {
-            byte[] seed = new byte[size];
-            engineNextBytes(seed);
-            return seed;
-        }
-
-        private DataInputStream getUrandomInputStream() {
+        private static DataInputStream getUrandomInputStream() {
             synchronized (sLock) {
                 if (sUrandomIn == null) {
-                    // NOTE: Consider inserting a BufferedInputStream between
-                    // DataInputStream and FileInputStream if you need higher
-                    // PRNG output performance and can live with future PRNG
-                    // output being pulled into this process prematurely.
+                    // Only seeding reads from here, so no BufferedInputStream:
+                    // PRNG output must not be pulled into this process (and
+                    // inherited by forked children) prematurely.
                     try {
                         sUrandomIn = new DataInputStream(
                                 new FileInputStream(URANDOM_FILE));
@@ -263,7 +281,7 @@ public final class PRNGFixes {
             }
         }
 
-        private OutputStream getUrandomOutputStream() throws IOException {
+        private static OutputStream getUrandomOutputStream() throws IOException {
             synchronized (sLock) {
                 if (sUrandomOut == null) {
                         sUrandomOut = new FileOutputStream(URANDOM_FILE);
@@ -271,6 +289,101 @@ public final class PRNGFixes {
                 return sUrandomOut;
             }
         }
+
+        /**
+         * A thread's {@link HmacDrbg} and its buffered output. Not thread
+         * safe.
+         */
+        static final class BufferedDrbg {
+
+            static final int BUFFER_SIZE = 512;
+
+            /** Larger requests bypass the buffer */
+            static final int MAX_BUFFERED_REQUEST = BUFFER_SIZE / 4;
+
+            private static final int NONCE_LEN_BYTES = 16;
+
+            private final HmacDrbg mDrbg;
+            private final byte[] mBuffer = new byte[BUFFER_SIZE];
+            private int mPosition = BUFFER_SIZE; // start of unused output
+
+            BufferedDrbg(HmacDrbg drbg) {
+                mDrbg = drbg;
+            }
+
+            static BufferedDrbg create(int pid) {
+                byte[] entropy = readUrandom(HmacDrbg.SEED_LEN_BYTES);
+                byte[] nonce = readUrandom(NONCE_LEN_BYTES);
+                byte[] personalization = generateSeed();
+                try {
+                    return new BufferedDrbg(new HmacDrbg(entropy, nonce, personalization, pid));
+                } catch (GeneralSecurityException e) {
+                    throw new SecurityException("Failed to instantiate HMAC_DRBG", e);
+                } finally {
+                    Wiper.wipe(entropy);
+                    Wiper.wipe(nonce);
+                }
+            }
+
+            /**
+             * @param pid the id of the calling process, a change since the
+             *            last seeding forces a reseed
+             */
+            void nextBytes(byte[] out, int pid) {
+                if (mDrbg.needsReseed(pid))
+                    reseed(null, pid);
+
+                if (out.length > MAX_BUFFERED_REQUEST) {
+                    int offset = 0;
+                    while (offset < out.length) {
+                        if (mDrbg.needsReseed(pid))
+                            reseed(null, pid);
+                        int n = Math.min(out.length - offset, HmacDrbg.MAX_BYTES_PER_REQUEST);
+                        mDrbg.generate(out, offset, n);
+                        offset += n;
+                    }
+                    return;
+                }
+
+                if (BUFFER_SIZE - mPosition < out.length) {
+                    if (mDrbg.needsReseed(pid))
+                        reseed(null, pid);
+                    mDrbg.generate(mBuffer, 0, BUFFER_SIZE);
+                    mPosition = 0;
+                }
+                System.arraycopy(mBuffer, mPosition, out, 0, out.length);
+                // handed out bytes must not stay in memory
+                Arrays.fill(mBuffer, mPosition, mPosition + out.length, (byte) 0);
+                mPosition += out.length;
+            }
+
+            /**
+             * Discard buffered output and reseed from the Linux PRNG.
+             *
+             * @param additional caller supplied seed material, may be null
+             */
+            void reseed(byte[] additional, int pid) {
+                discardBuffer();
+                byte[] entropy = readUrandom(HmacDrbg.SEED_LEN_BYTES);
+                try {
+                    mDrbg.reseed(entropy, additional, pid);
+                } finally {
+                    Wiper.wipe(entropy);
+                }
+            }
+
+            /**
+             * @return the number of buffered output bytes not yet handed out
+             */
+            int getBufferedCount() {
+                return BUFFER_SIZE - mPosition;
+            }
+
+            private void discardBuffer() {
+                Wiper.wipe(mBuffer);
+                mPosition = BUFFER_SIZE;
+            }
+        }
     }
 
     /**
@@ -286,6 +399,7 @@ public final class PRNGFixes {
             seedBufferOut.writeLong(System.nanoTime());
             seedBufferOut.writeInt(Process.myPid());
             seedBufferOut.writeInt(Process.myUid());
+            seedBufferOut.writeLong(Thread.currentThread().getId());
             seedBufferOut.write(BUILD_FINGERPRINT_AND_DEVICE_SERIAL);
             seedBufferOut.close();
             return seedBuffer.toByteArray();
@@ -8,6 +8,8 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -25,15 +27,18 @@ import javax.crypto.spec.SecretKeySpec;
  * <ol>
  * <li>1. Run the password through PBKDF2 with a random salt
  * <li>2. Generate a random 256 bit AES key with a random IV
- * <li>3. Use the derived key to encrypt the AES key in GCM mode
- * <li>4. Write the ciphertext, iv, and salt to disk
+ * <li>3. Use the derived key to encrypt the AES key with AES-GCM or
+ * ChaCha20-Poly1305, whichever {@link CryptoProviders} found faster
+ * <li>4. Write the ciphertext, cipher id, iv, and salt to disk
  * </ol>
- * The exact data written to disk is represented by the SerializedSecretsV1
+ * The exact data written to disk is represented by the SerializedSecretsV2
  * class.
  */
 public class PassphraseSecrets implements ICachedSecrets {
 
     private static final String TAG = "PassphraseSecrets";
+    // one per namespace, held while a namespace is being initialized
+    private static final Map<String, Object> sInitLocks = new HashMap<String, Object>();
     private final SecretKey mSecretKey;
 
     private PassphraseSecrets(byte[] key) throws GeneralSecurityException {
@@ -62,11 +67,31 @@ public class PassphraseSecrets implements ICachedSecrets {
      * @return instance of {@link PassphraseSecrets}
      */
     public static PassphraseSecrets initializeSecrets(Context ctx, char[] x_passphrase) {
+        return initializeSecrets(ctx, Constants.DEFAULT_NAMESPACE, x_passphrase);
+    }
+
+    /**
+     * Same as {@link #initializeSecrets(Context, char[])}, for the secrets of
+     * the given namespace. Only the default namespace gets an inbox key pair.
+     *
+     * @param ctx
+     * @param namespace see {@link SecretsManager}
+     * @param x_passphrase WIPED
+     * @return instance of {@link PassphraseSecrets}
+     */
+    public static PassphraseSecrets initializeSecrets(Context ctx, String namespace,
+            char[] x_passphrase) {
+        CacheWord.awaitBootstrap(ctx);
         PassphraseSecretsImpl crypto = new PassphraseSecretsImpl();
         try {
             SecretKeySpec secretKey = (SecretKeySpec) crypto.generateSecretKey();
-            boolean saved = encryptAndSave(ctx, x_passphrase, secretKey.getEncoded());
-            SecretsManager.setInitialized(ctx, saved);
+            byte[] x_rawSecretKey = secretKey.getEncoded();
+            boolean saved = encryptAndSave(ctx, namespace, x_passphrase, x_rawSecretKey);
+            if (saved && namespace.equals(Constants.DEFAULT_NAMESPACE)
+                    && !CacheWordInbox.generateKeyPair(ctx, x_rawSecretKey))
+                Log.e(TAG, "initializeSecrets could not save the inbox key pair");
+            Wiper.wipe(x_rawSecretKey);
+            SecretsManager.setInitialized(ctx, namespace, saved);
 
             if (saved)
                 return new PassphraseSecrets(secretKey);
@@ -92,7 +117,24 @@ public class PassphraseSecrets implements ICachedSecrets {
      */
     public static PassphraseSecrets fetchSecrets(Context ctx, char[] x_passphrase)
             throws GeneralSecurityException {
-        byte[] preparedSecret = SecretsManager.getBytes(ctx, Constants.SHARED_PREFS_SECRETS);
+        return fetchSecrets(ctx, Constants.DEFAULT_NAMESPACE, x_passphrase);
+    }
+
+    /**
+     * Same as {@link #fetchSecrets(Context, char[])}, for the secrets of the
+     * given namespace.
+     *
+     * @param ctx
+     * @param namespace see {@link SecretsManager}
+     * @param x_passphrase WIPED
+     * @return instance of {@link PassphraseSecrets}
+     * @throws GeneralSecurityException
+     */
+    public static PassphraseSecrets fetchSecrets(Context ctx, String namespace,
+            char[] x_passphrase) throws GeneralSecurityException {
+        CacheWord.awaitBootstrap(ctx);
+        byte[] preparedSecret = SecretsManager.getBytes(ctx, namespace,
+                Constants.SHARED_PREFS_SECRETS);
         SerializedSecretsV1 ss = new SerializedSecretsLoader().loadSecrets(preparedSecret);
         byte[] x_rawSecretKey = null;
 
@@ -105,7 +147,7 @@ public class PassphraseSecrets implements ICachedSecrets {
             // we do this by "changing" the passphrase to the same passphrase
             // since changePassphrase calls calibrateKDF()
             if (ss.pbkdf_iter_count < Constants.PBKDF2_MINIMUM_ITERATION_COUNT) {
-                ps = changePassphrase(ctx, ps, x_passphrase);
+                ps = changePassphrase(ctx, namespace, ps, x_passphrase);
                 if (ps == null)
                     throw new GeneralSecurityException(
                             "Upgrading iteration count failed during save");
@@ -117,6 +159,35 @@ public class PassphraseSecrets implements ICachedSecrets {
         }
     }
 
+    /**
+     * Fetches the secrets of the namespace, or initializes them if the
+     * namespace has none yet. Initializations of the same namespace are
+     * serialized, so of two first unlocks racing, the second fetches the
+     * secrets the first saved instead of replacing them.
+     *
+     * @param ctx
+     * @param namespace see {@link SecretsManager}
+     * @param x_passphrase WIPED
+     * @return instance of {@link PassphraseSecrets}
+     * @throws GeneralSecurityException on an invalid passphrase, or if the new
+     *             secrets could not be saved
+     */
+    static PassphraseSecrets initializeOrFetchSecrets(Context ctx, String namespace,
+            char[] x_passphrase) throws GeneralSecurityException {
+        if (SecretsManager.isInitialized(ctx, namespace))
+            return fetchSecrets(ctx, namespace, x_passphrase);
+        synchronized (getInitLock(namespace)) {
+            if (!SecretsManager.isInitialized(ctx, namespace)) {
+                PassphraseSecrets ps = initializeSecrets(ctx, namespace, x_passphrase);
+                if (ps == null)
+                    throw new GeneralSecurityException(
+                            "initializeSecrets could not save the secrets.");
+                return ps;
+            }
+        }
+        return fetchSecrets(ctx, namespace, x_passphrase);
+    }
+
     /**
      * Re-encrypts the secret key in current_secrets with a new derived key from
      * x_new_passphrase. The resulting ciphertext is saved to disk.
@@ -128,10 +199,27 @@ public class PassphraseSecrets implements ICachedSecrets {
      */
     public static PassphraseSecrets changePassphrase(Context ctx,
             PassphraseSecrets current_secrets, char[] x_new_passphrase) {
+        return changePassphrase(ctx, Constants.DEFAULT_NAMESPACE, current_secrets,
+                x_new_passphrase);
+    }
+
+    /**
+     * Same as {@link #changePassphrase(Context, PassphraseSecrets, char[])},
+     * for the secrets of the given namespace.
+     *
+     * @param ctx
+     * @param namespace see {@link SecretsManager}
+     * @param current_secrets NOT WIPED
+     * @param x_new_passphrase WIPED
+     * @return instance of {@link PassphraseSecrets}
+     */
+    public static PassphraseSecrets changePassphrase(Context ctx, String namespace,
+            PassphraseSecrets current_secrets, char[] x_new_passphrase) {
+        CacheWord.awaitBootstrap(ctx);
         byte[] x_rawSecretKey = null;
         try {
             x_rawSecretKey = current_secrets.getSecretKey().getEncoded();
-            boolean saved = encryptAndSave(ctx, x_new_passphrase, x_rawSecretKey);
+            boolean saved = encryptAndSave(ctx, namespace, x_new_passphrase, x_rawSecretKey);
 
             if (saved)
                 return current_secrets;
@@ -147,24 +235,74 @@ public class PassphraseSecrets implements ICachedSecrets {
         }
     }
 
+    /**
+     * Encrypts a new secret key with a key derived from x_passphrase and
+     * returns the serialized bundle without saving it. Used to prepare a key
+     * rotation, which only replaces the saved secrets with
+     * {@link #commitPreparedSecrets(Context, byte[], byte[], byte[])} once the data
+     * encrypted with the old key has been converted.
+     *
+     * @param ctx
+     * @param x_passphrase NOT WIPED
+     * @param x_rawSecretKey the new secret key NOT WIPED
+     * @return the serialized secrets bundle
+     * @throws GeneralSecurityException
+     */
+    static byte[] prepareSecrets(Context ctx, char[] x_passphrase, byte[] x_rawSecretKey)
+            throws GeneralSecurityException {
+        PassphraseSecretsImpl crypto = new PassphraseSecretsImpl();
+        int pbkdf2_iter_count = calibrateKDF(ctx);
+        SerializedSecretsV1 ss = crypto.encryptWithPassphrase(ctx, x_passphrase,
+                x_rawSecretKey, pbkdf2_iter_count);
+        return ss.getBytes();
+    }
+
+    /**
+     * Saves a bundle created by {@link #prepareSecrets(Context, char[], byte[])}
+     * as the current secrets. The inbox private key is re-wrapped under the
+     * new key in the same commit.
+     *
+     * @param ctx
+     * @param preparedSecret the serialized secrets bundle
+     * @param x_oldKey the secret key being replaced NOT WIPED
+     * @param x_rawSecretKey the secret key inside the bundle NOT WIPED
+     * @return instance of {@link PassphraseSecrets}, or null if saving failed
+     */
+    static PassphraseSecrets commitPreparedSecrets(Context ctx, byte[] preparedSecret,
+            byte[] x_oldKey, byte[] x_rawSecretKey) throws GeneralSecurityException {
+        Map<String, byte[]> prefs = CacheWordInbox.rewrapKeyPair(ctx, x_oldKey, x_rawSecretKey);
+        prefs.put(Constants.SHARED_PREFS_SECRETS, preparedSecret);
+        if (!SecretsManager.saveBytes(ctx, Constants.DEFAULT_NAMESPACE, prefs))
+            return null;
+        return new PassphraseSecrets(x_rawSecretKey);
+    }
+
+    private static Object getInitLock(String namespace) {
+        synchronized (sInitLocks) {
+            Object lock = sInitLocks.get(namespace);
+            if (lock == null) {
+                lock = new Object();
+                sInitLocks.put(namespace, lock);
+            }
+            return lock;
+        }
+    }
+
     /**
      * Encrypts the plaintext with the passphrase and saves the ciphertext
      * bundle to disk.
      *
      * @param ctx
+     * @param namespace the namespace to save the bundle in
      * @param x_passphrase the passphrase used to PBE on plaintext to NOT WIPED
      * @param x_plaintext the plaintext to encrypt NOT WIPED
      * @return instance of {@link PassphraseSecrets}
      * @throws GeneralSecurityException
      */
-    private static boolean encryptAndSave(Context ctx, char[] x_passphrase, byte[] x_plaintext)
-            throws GeneralSecurityException {
-        PassphraseSecretsImpl crypto = new PassphraseSecretsImpl();
-        int pbkdf2_iter_count = calibrateKDF(ctx);
-        SerializedSecretsV1 ss = crypto.encryptWithPassphrase(ctx, x_passphrase, x_plaintext,
-                pbkdf2_iter_count);
-        byte[] preparedSecret = ss.getBytes();
-        boolean saved = SecretsManager.saveBytes(ctx, Constants.SHARED_PREFS_SECRETS,
+    private static boolean encryptAndSave(Context ctx, String namespace, char[] x_passphrase,
+            byte[] x_plaintext) throws GeneralSecurityException {
+        byte[] preparedSecret = prepareSecrets(ctx, x_passphrase, x_plaintext);
+        boolean saved = SecretsManager.saveBytes(ctx, namespace, Constants.SHARED_PREFS_SECRETS,
                 preparedSecret);
 
         return saved;
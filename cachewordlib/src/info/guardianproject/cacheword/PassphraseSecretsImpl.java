@@ -21,29 +21,55 @@ public class PassphraseSecretsImpl {
     @SuppressWarnings("unused")
     private static final String TAG = "PassphraseSecretsImpl";
 
+    private static final byte[] HKDF_INFO = {
+            'c', 'a', 'c', 'h', 'e', 'w', 'o', 'r', 'd', ' ', 'p', 'b', 'k', 'd', 'f', '2'
+    };
+
+    // shared, rather than a provider lookup for every IV and salt
+    private static SecureRandom sRandom;
+
     // used by initialization and change password routines
 
     /**
      * Derives an encryption key from x_passphrase, then uses this derived key
-     * to encrypt x_plaintext. The resulting cipher text, plus meta data
-     * (version, salt, iv, @see SerializedSecretsV1) is serialized and returned.
+     * to encrypt x_plaintext with the AEAD cipher chosen by
+     * {@link CryptoProviders#getPreferredAead()}. The resulting cipher text,
+     * plus meta data (version, cipher, salt, iv, @see SerializedSecretsV2) is
+     * serialized and returned.
      *
      * @param ctx
      * @param x_passphrase the passphrase used to PBE on plaintext to NOT WIPED
      * @param x_plaintext the plaintext to encrypt NOT WIPED
-     * @return instance of {@link SerializedSecretsV1}
+     * @return instance of {@link SerializedSecretsV2}
      * @throws GeneralSecurityException
      */
-    public SerializedSecretsV1 encryptWithPassphrase(Context ctx, char[] x_passphrase,
+    public SerializedSecretsV2 encryptWithPassphrase(Context ctx, char[] x_passphrase,
             byte[] x_plaintext, int pbkdf2_iter_count) throws GeneralSecurityException {
+        return encryptWithPassphrase(ctx, x_passphrase, x_plaintext, pbkdf2_iter_count,
+                CryptoProviders.getPreferredAead());
+    }
+
+    /**
+     * Like {@link #encryptWithPassphrase(Context, char[], byte[], int)}, with
+     * an explicit cipher.
+     *
+     * @param cipher one of the {@code Constants.CIPHER_*} ids
+     */
+    public SerializedSecretsV2 encryptWithPassphrase(Context ctx, char[] x_passphrase,
+            byte[] x_plaintext, int pbkdf2_iter_count, int cipher)
+            throws GeneralSecurityException {
         SecretKeySpec x_passphraseKey = null;
         try {
             byte[] salt = generateSalt(Constants.PBKDF2_SALT_LEN_BYTES);
             byte[] iv = generateIv(Constants.GCM_IV_LEN_BYTES);
-            x_passphraseKey = hashPassphrase(x_passphrase, salt, pbkdf2_iter_count);
-            byte[] encryptedSecretKey = encryptSecretKey(x_passphraseKey, iv, x_plaintext);
-            SerializedSecretsV1 ss = new SerializedSecretsV1(Constants.VERSION_ONE,
-                    pbkdf2_iter_count, salt, iv, encryptedSecretKey);
+            x_passphraseKey = derivePassphraseKey(x_passphrase, salt, pbkdf2_iter_count, cipher);
+            byte[] encryptedSecretKey;
+            if (cipher == Constants.CIPHER_AES_GCM)
+                encryptedSecretKey = encryptSecretKey(x_passphraseKey, iv, x_plaintext);
+            else
+                encryptedSecretKey = aead(true, cipher, x_passphraseKey, iv, x_plaintext);
+            SerializedSecretsV2 ss = new SerializedSecretsV2(Constants.VERSION_TWO,
+                    pbkdf2_iter_count, cipher, salt, iv, encryptedSecretKey);
             return ss;
         } finally {
             Wiper.wipe(x_passphraseKey);
@@ -67,8 +93,12 @@ public class PassphraseSecretsImpl {
             byte[] iv = ss.iv;
             byte[] ciphertext = ss.ciphertext;
             int iterations = ss.pbkdf_iter_count;
-            x_passphraseKey = hashPassphrase(x_passphrase, salt, iterations);
-            x_plaintext = decryptWithKey(x_passphraseKey, iv, ciphertext);
+            int cipher = ss.getCipher();
+            x_passphraseKey = derivePassphraseKey(x_passphrase, salt, iterations, cipher);
+            if (cipher == Constants.CIPHER_AES_GCM)
+                x_plaintext = decryptWithKey(x_passphraseKey, iv, ciphertext);
+            else
+                x_plaintext = aead(false, cipher, x_passphraseKey, iv, ciphertext);
 
             return x_plaintext;
         } finally {
@@ -93,7 +123,7 @@ public class PassphraseSecretsImpl {
         try {
             x_spec = new PBEKeySpec(x_password, salt, pbkdf2_iter_count,
                     Constants.PBKDF2_KEY_LEN_BITS);
-            SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+            SecretKeyFactory factory = CryptoProviders.getPbkdf2(x_password);
 
             return new SecretKeySpec(factory.generateSecret(x_spec).getEncoded(), "AES");
         } finally {
@@ -114,7 +144,7 @@ public class PassphraseSecretsImpl {
      */
     public byte[] decryptWithKey(SecretKey x_passphraseKey, byte[] iv, byte[] ciphertext)
             throws GeneralSecurityException {
-        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        Cipher cipher = CryptoProviders.getCipher(CryptoProviders.AES_GCM);
         cipher.init(Cipher.DECRYPT_MODE, x_passphraseKey, new IvParameterSpec(iv));
 
         return cipher.doFinal(ciphertext);
@@ -133,7 +163,7 @@ public class PassphraseSecretsImpl {
      */
     public byte[] encryptSecretKey(SecretKey x_passphraseKey, byte[] iv, byte[] data)
             throws GeneralSecurityException {
-        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        Cipher cipher = CryptoProviders.getCipher(CryptoProviders.AES_GCM);
 
         // TODO(abel) follow this rabbit hole down and wipe it!
         cipher.init(Cipher.ENCRYPT_MODE, x_passphraseKey, new IvParameterSpec(iv));
@@ -141,16 +171,65 @@ public class PassphraseSecretsImpl {
         return cipher.doFinal(data);
     }
 
+    /**
+     * AES-GCM bundles keep the historical 128 bit wrapping key, the other
+     * ciphers take 256 bit keys. Those are expanded from the same 128 bit
+     * PBKDF2 output with HKDF: asking PBKDF2-HMAC-SHA1 for 256 bits would run
+     * it twice and double the time calibrateKDF() measured.
+     */
+    private SecretKeySpec derivePassphraseKey(char[] x_passphrase, byte[] salt,
+            int pbkdf2_iter_count, int cipher) throws GeneralSecurityException {
+        SecretKeySpec x_pbkdf2Key = hashPassphrase(x_passphrase, salt, pbkdf2_iter_count);
+        if (cipher == Constants.CIPHER_AES_GCM)
+            return x_pbkdf2Key;
+        byte[] x_pbkdf2 = x_pbkdf2Key.getEncoded();
+        byte[] x_key = null;
+        try {
+            x_key = SegmentedAead.hkdf(x_pbkdf2, salt, HKDF_INFO, new byte[] {
+                    (byte) cipher
+            });
+            return new SecretKeySpec(x_key, "AES");
+        } finally {
+            Wiper.wipe(x_pbkdf2);
+            Wiper.wipe(x_key);
+            Wiper.wipe(x_pbkdf2Key);
+        }
+    }
+
+    private static synchronized SecureRandom getRandom() throws NoSuchAlgorithmException {
+        if (sRandom != null)
+            return sRandom;
+        SecureRandom random = SecureRandom.getInstance("SHA1PRNG");
+        // kept only once the PRNG fixes are in place, not a platform instance
+        if (CacheWord.isReady())
+            sRandom = random;
+        return random;
+    }
+
+    private static byte[] aead(boolean encrypt, int cipher, SecretKeySpec x_key, byte[] iv,
+            byte[] data) throws GeneralSecurityException {
+        byte[] x_rawKey = x_key.getEncoded();
+        AeadCipher aead = null;
+        try {
+            aead = AeadCipher.getInstance(cipher, x_rawKey);
+            return encrypt ? aead.encrypt(iv, null, data) : aead.decrypt(iv, null, data);
+        } finally {
+            Wiper.wipe(x_rawKey);
+            if (aead != null)
+                aead.wipe();
+        }
+    }
+
     @SuppressLint("TrulyRandom")
     public byte[] generateIv(int length) throws NoSuchAlgorithmException {
         byte[] iv = new byte[length];
-        SecureRandom.getInstance("SHA1PRNG").nextBytes(iv);
+        getRandom().nextBytes(iv);
         return iv;
     }
 
     public byte[] generateSalt(int length) throws NoSuchAlgorithmException {
         byte[] salt = new byte[length];
-        SecureRandom.getInstance("SHA1PRNG").nextBytes(salt);
+        getRandom().nextBytes(salt);
         return salt;
     }
 
@@ -6,44 +6,95 @@ import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
 import android.util.Base64;
 
-public class SecretsManager {
-    private static boolean prngFixesApplied = false;
+import java.util.Map;
 
+/**
+ * Stores the encrypted secrets. Each namespace has its own preferences file;
+ * {@link Constants#DEFAULT_NAMESPACE} uses {@link Constants#SHARED_PREFS}, so
+ * existing installations keep their secrets.
+ */
+public class SecretsManager {
     public static boolean isInitialized(Context ctx) {
-        possiblyApplyPRNGFixes(ctx);
-        return getPrefs(ctx).getBoolean(Constants.SHARED_PREFS_INITIALIZED, false);
+        return isInitialized(ctx, Constants.DEFAULT_NAMESPACE);
+    }
+
+    public static boolean isInitialized(Context ctx, String namespace) {
+        return getPrefs(ctx, namespace).getBoolean(Constants.SHARED_PREFS_INITIALIZED, false);
     }
 
     public static boolean saveBytes(Context ctx, String key, byte[] value) {
+        return saveBytes(ctx, Constants.DEFAULT_NAMESPACE, key, value);
+    }
+
+    public static boolean saveBytes(Context ctx, String namespace, String key, byte[] value) {
         String encoded = Base64.encodeToString(value, Base64.DEFAULT);
-        Editor e = getPrefs(ctx).edit();
+        Editor e = getPrefs(ctx, namespace).edit();
         e.putString(key, encoded);
         return e.commit();
     }
 
+    /**
+     * Save several values in one commit, so either all or none of them are
+     * written.
+     */
+    public static boolean saveBytes(Context ctx, String namespace, Map<String, byte[]> values) {
+        Editor e = getPrefs(ctx, namespace).edit();
+        for (Map.Entry<String, byte[]> value : values.entrySet())
+            e.putString(value.getKey(), Base64.encodeToString(value.getValue(), Base64.DEFAULT));
+        return e.commit();
+    }
+
     public static byte[] getBytes(Context ctx, String key) {
-        String encoded = getPrefs(ctx).getString(key, null);
+        return getBytes(ctx, Constants.DEFAULT_NAMESPACE, key);
+    }
+
+    public static byte[] getBytes(Context ctx, String namespace, String key) {
+        String encoded = getPrefs(ctx, namespace).getString(key, null);
         if (encoded == null)
             return null;
         return Base64.decode(encoded, Base64.DEFAULT);
     }
 
     public static boolean setInitialized(Context ctx, boolean initialized) {
-        Editor e = getPrefs(ctx).edit();
+        return setInitialized(ctx, Constants.DEFAULT_NAMESPACE, initialized);
+    }
+
+    public static boolean setInitialized(Context ctx, String namespace, boolean initialized) {
+        Editor e = getPrefs(ctx, namespace).edit();
         e.putBoolean(Constants.SHARED_PREFS_INITIALIZED, initialized);
         return e.commit();
     }
 
-    private static void possiblyApplyPRNGFixes(Context ctx) {
-        if (!prngFixesApplied) {
-            PRNGFixes.apply();
-            prngFixesApplied = true;
+    /**
+     * @return the name of the preferences file holding the namespace's secrets
+     */
+    static String getPrefsName(String namespace) {
+        checkNamespace(namespace);
+        if (namespace.equals(Constants.DEFAULT_NAMESPACE))
+            return Constants.SHARED_PREFS;
+        return Constants.SHARED_PREFS_NAMESPACE_PREFIX + namespace;
+    }
+
+    /**
+     * Namespaces become part of a file name, so they are limited to letters,
+     * digits, '.', '_' and '-'.
+     *
+     * @throws IllegalArgumentException if the namespace is not valid
+     */
+    static void checkNamespace(String namespace) {
+        if (namespace == null)
+            throw new IllegalArgumentException("namespace is null");
+        for (int i = 0; i < namespace.length(); i++) {
+            char c = namespace.charAt(i);
+            if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '.' || c == '_' || c == '-'))
+                throw new IllegalArgumentException("invalid namespace " + namespace);
         }
     }
 
-    private static SharedPreferences getPrefs(Context ctx) {
-        return ctx
-                .getSharedPreferences(Constants.SHARED_PREFS, Constants.SHARED_PREFS_PRIVATE_MODE);
+    private static SharedPreferences getPrefs(Context ctx, String namespace) {
+        return ctx.getSharedPreferences(getPrefsName(namespace),
+                Constants.SHARED_PREFS_PRIVATE_MODE);
     }
 
 }
@@ -0,0 +1,160 @@
+
+package info.guardianproject.cacheword;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The format shared by {@link CacheWordEncryptingOutputStream} and
+ * {@link CacheWordDecryptingInputStream}, a variant of the STREAM
+ * construction (Hoang, Reyhanitabar, Rogaway, Vizar 2015):
+ *
+ * <pre>
+ * header  = magic "CWSA" | version (1) | cipher id (1) | segment size (4) | salt (16)
+ * segment = AEAD(stream key, nonce, plaintext) , plaintext is segment size
+ *           bytes except in the last segment, which holds 0 to segment size
+ * nonce   = segment index (8) | 0 0 0 | 1 for the last segment, else 0
+ * </pre>
+ *
+ * Every stream is encrypted with its own key, derived with HKDF-SHA256 from
+ * the master key, the random salt and the whole header, so modifying the
+ * header makes the first segment fail. Reordering, dropping or appending
+ * segments changes an index or the last segment flag, and fails as well.
+ * <p>
+ * {@link CacheWordEncryptedFile} uses the same header with the magic "CWEF"
+ * and the block size in place of the segment size, and
+ * {@link CacheWordExportOutputStream} with the magic "CWEX".
+ */
+final class SegmentedAead {
+
+    static final byte[] MAGIC = {
+            'C', 'W', 'S', 'A'
+    };
+    static final byte[] FILE_MAGIC = {
+            'C', 'W', 'E', 'F'
+    };
+    static final byte[] EXPORT_MAGIC = {
+            'C', 'W', 'E', 'X'
+    };
+    static final int VERSION = 1;
+    static final int SALT_LEN_BYTES = 16;
+    static final int HEADER_LEN = MAGIC.length + 1 + 1 + Constants.INT_LENGTH + SALT_LEN_BYTES;
+    static final int MIN_SEGMENT_SIZE = 256;
+    static final int MAX_SEGMENT_SIZE = 1 << 24;
+
+    private static final byte[] HKDF_INFO = {
+            'c', 'a', 'c', 'h', 'e', 'w', 'o', 'r', 'd', ' ', 's', 't', 'r', 'e', 'a', 'm'
+    };
+
+    private SegmentedAead() {
+    }
+
+    static byte[] newHeader(int cipherId, int segmentSize) {
+        return newHeader(MAGIC, cipherId, segmentSize);
+    }
+
+    static byte[] newHeader(byte[] magic, int cipherId, int segmentSize) {
+        if (segmentSize < MIN_SEGMENT_SIZE || segmentSize > MAX_SEGMENT_SIZE)
+            throw new IllegalArgumentException("segment size out of range: " + segmentSize);
+        byte[] header = new byte[HEADER_LEN];
+        System.arraycopy(magic, 0, header, 0, MAGIC.length);
+        header[4] = (byte) VERSION;
+        header[5] = (byte) cipherId;
+        header[6] = (byte) (segmentSize >>> 24);
+        header[7] = (byte) (segmentSize >>> 16);
+        header[8] = (byte) (segmentSize >>> 8);
+        header[9] = (byte) segmentSize;
+        byte[] salt = new byte[SALT_LEN_BYTES];
+        new SecureRandom().nextBytes(salt);
+        System.arraycopy(salt, 0, header, 10, SALT_LEN_BYTES);
+        return header;
+    }
+
+    /**
+     * @throws IOException if the header is not one this version can read
+     */
+    static void checkHeader(byte[] header) throws IOException {
+        checkHeader(header, MAGIC);
+    }
+
+    static void checkHeader(byte[] header, byte[] magic) throws IOException {
+        if (!Arrays.equals(magic, Arrays.copyOf(header, MAGIC.length)))
+            throw new IOException("not a CacheWord encrypted "
+                    + (magic == MAGIC ? "stream" : magic == EXPORT_MAGIC ? "export" : "file"));
+        if (header[4] != VERSION)
+            throw new IOException("unsupported stream version " + header[4]);
+        int segmentSize = getSegmentSize(header);
+        if (segmentSize < MIN_SEGMENT_SIZE || segmentSize > MAX_SEGMENT_SIZE)
+            throw new IOException("invalid segment size " + segmentSize);
+    }
+
+    static int getCipherId(byte[] header) {
+        return header[5];
+    }
+
+    static int getSegmentSize(byte[] header) {
+        return ((header[6] & 0xff) << 24) | ((header[7] & 0xff) << 16)
+                | ((header[8] & 0xff) << 8) | (header[9] & 0xff);
+    }
+
+    /**
+     * @param x_key the master key NOT WIPED
+     * @return a cipher keyed with the stream key
+     */
+    static AeadCipher newCipher(byte[] x_key, byte[] header) throws GeneralSecurityException {
+        byte[] x_streamKey = deriveKey(x_key, header);
+        try {
+            return AeadCipher.getInstance(getCipherId(header), x_streamKey);
+        } finally {
+            Wiper.wipe(x_streamKey);
+        }
+    }
+
+    /**
+     * @param x_key the master key NOT WIPED
+     * @return the stream key, for callers that need a cipher per thread
+     */
+    static byte[] deriveKey(byte[] x_key, byte[] header) throws GeneralSecurityException {
+        return hkdf(x_key, Arrays.copyOfRange(header, 10, HEADER_LEN), HKDF_INFO, header);
+    }
+
+    static void segmentNonce(byte[] nonce, long index, boolean last) {
+        for (int i = 7; i >= 0; i--) {
+            nonce[i] = (byte) index;
+            index >>>= 8;
+        }
+        nonce[8] = 0;
+        nonce[9] = 0;
+        nonce[10] = 0;
+        nonce[11] = (byte) (last ? 1 : 0);
+    }
+
+    /**
+     * HKDF-SHA256 (RFC 5869) with one block of output, the info being info
+     * followed by context.
+     *
+     * @param x_ikm the input key material NOT WIPED
+     */
+    static byte[] hkdf(byte[] x_ikm, byte[] salt, byte[] info, byte[] context)
+            throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(salt, "HmacSHA256"));
+        byte[] x_prk = mac.doFinal(x_ikm);
+        SecretKeySpec x_prkKey = new SecretKeySpec(x_prk, "HmacSHA256");
+        try {
+            mac.init(x_prkKey);
+            mac.update(info);
+            mac.update(context);
+            mac.update((byte) 1);
+            return mac.doFinal();
+        } finally {
+            Wiper.wipe(x_prk);
+            Wiper.wipe(x_prkKey);
+        }
+    }
+}
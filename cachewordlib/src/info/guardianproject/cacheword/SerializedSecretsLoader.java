@@ -8,6 +8,10 @@ import java.nio.ByteBuffer;
  */
 public class SerializedSecretsLoader {
 
+    /**
+     * @return the secrets, a {@link SerializedSecretsV2} for version 2 bundles,
+     *         or null if the bundle can't be read
+     */
     public SerializedSecretsV1 loadSecrets(byte[] secrets) {
 
         try {
@@ -18,6 +22,8 @@ public class SerializedSecretsLoader {
                     return migrateV0toV1(new SerializedSecretsV0(secrets));
                 case Constants.VERSION_ONE:
                     return new SerializedSecretsV1(secrets);
+                case Constants.VERSION_TWO:
+                    return new SerializedSecretsV2(secrets);
                 default:
                     return null;
             }
@@ -25,6 +25,12 @@ public class SerializedSecretsV1 {
         this.ciphertext = ciphertext;
     }
 
+    /**
+     * For subclasses that parse a different layout
+     */
+    protected SerializedSecretsV1() {
+    }
+
     public SerializedSecretsV1(byte[] serialized) {
         this.serialized = serialized;
         salt = new byte[Constants.PBKDF2_SALT_LEN_BYTES];
@@ -39,6 +45,14 @@ public class SerializedSecretsV1 {
         bb.get(ciphertext);
     }
 
+    /**
+     * @return the AEAD cipher id, always {@link Constants#CIPHER_AES_GCM} for
+     *         V1 bundles
+     */
+    public int getCipher() {
+        return Constants.CIPHER_AES_GCM;
+    }
+
     public byte[] getBytes() {
         serialized = new byte[constants_length() + ciphertext.length];
         ByteBuffer bb = ByteBuffer.wrap(serialized);
@@ -0,0 +1,59 @@
+package info.guardianproject.cacheword;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A ciphertext bundle that also records which AEAD cipher encrypted it (one
+ * of the {@code Constants.CIPHER_*} ids). Otherwise the same as
+ * {@link SerializedSecretsV1}; V1 bundles are always AES-GCM. This class does
+ * not handle sensitive data.
+ */
+public class SerializedSecretsV2 extends SerializedSecretsV1 {
+    public int cipher;
+
+    public SerializedSecretsV2(int version, int iterations, int cipher, byte[] salt, byte[] iv,
+            byte[] ciphertext) {
+        super(version, iterations, salt, iv, ciphertext);
+        this.cipher = cipher;
+    }
+
+    public SerializedSecretsV2(byte[] serialized) {
+        super();
+        this.serialized = serialized;
+        salt = new byte[Constants.PBKDF2_SALT_LEN_BYTES];
+        iv = new byte[Constants.GCM_IV_LEN_BYTES];
+        ciphertext = new byte[serialized.length - constants_length()];
+        ByteBuffer bb = ByteBuffer.wrap(serialized);
+
+        version = bb.getInt();
+        pbkdf_iter_count = bb.getInt();
+        cipher = bb.getInt();
+        bb.get(salt);
+        bb.get(iv);
+        bb.get(ciphertext);
+    }
+
+    @Override
+    public int getCipher() {
+        return cipher;
+    }
+
+    @Override
+    public byte[] getBytes() {
+        serialized = new byte[constants_length() + ciphertext.length];
+        ByteBuffer bb = ByteBuffer.wrap(serialized);
+        bb.putInt(version);
+        bb.putInt(pbkdf_iter_count);
+        bb.putInt(cipher);
+        bb.put(salt);
+        bb.put(iv);
+        bb.put(ciphertext);
+        serialized = bb.array();
+        return serialized;
+    }
+
+    public static int constants_length() {
+        return SerializedSecretsV1.constants_length() + Constants.INT_LENGTH;
+    }
+
+}
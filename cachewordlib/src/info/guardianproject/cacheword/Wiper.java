@@ -38,12 +38,23 @@ public class Wiper {
     }
 
     /**
-     * Fills the underlying array with 0s
+     * Fills the underlying array with 0s. Direct buffers have no accessible
+     * array and are zeroed in place up to their capacity. Read-only buffers
+     * are left alone, wipe the writable buffer they view instead.
      */
     public static void wipe(ByteBuffer bb) {
-        if (bb == null)
+        if (bb == null || bb.isReadOnly())
+            return;
+        if (bb.hasArray()) {
+            wipe(bb.array());
             return;
-        wipe(bb.array());
+        }
+        ByteBuffer dup = bb.duplicate();
+        dup.clear();
+        while (dup.remaining() >= 8)
+            dup.putLong(0L);
+        while (dup.hasRemaining())
+            dup.put((byte) 0);
     }
 
     /**
@@ -0,0 +1,205 @@
+
+package info.guardianproject.cacheword;
+
+import java.security.SecureRandom;
+
+/**
+ * X25519 Diffie-Hellman (RFC 7748) in plain Java, since the platform has no
+ * implementation before API 28. Field elements are 16 limbs of 16 bits held
+ * in longs, after TweetNaCl; the ladder swaps without branching on secret
+ * bits.
+ */
+final class X25519 {
+
+    static final int KEY_LEN_BYTES = 32;
+
+    private static final long[] A24 = {
+            0xDB41, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0
+    };
+    private static final byte[] BASE_POINT = new byte[KEY_LEN_BYTES];
+
+    static {
+        BASE_POINT[0] = 9;
+    }
+
+    private X25519() {
+    }
+
+    /**
+     * @return a new clamped private key
+     */
+    static byte[] generatePrivateKey(SecureRandom random) {
+        byte[] key = new byte[KEY_LEN_BYTES];
+        random.nextBytes(key);
+        key[0] &= 248;
+        key[31] &= 127;
+        key[31] |= 64;
+        return key;
+    }
+
+    /**
+     * @param x_privateKey NOT WIPED
+     */
+    static byte[] publicKey(byte[] x_privateKey) {
+        return scalarMult(x_privateKey, BASE_POINT);
+    }
+
+    /**
+     * @param x_privateKey NOT WIPED
+     * @return the shared secret, all zeros if the peer's key is of small order
+     */
+    static byte[] scalarMult(byte[] x_privateKey, byte[] publicKey) {
+        if (x_privateKey.length != KEY_LEN_BYTES || publicKey.length != KEY_LEN_BYTES)
+            throw new IllegalArgumentException("X25519 keys are " + KEY_LEN_BYTES + " bytes");
+        byte[] z = x_privateKey.clone();
+        z[31] = (byte) ((z[31] & 127) | 64);
+        z[0] &= 248;
+        long[] x = new long[16];
+        long[] a = new long[16];
+        long[] b = new long[16];
+        long[] c = new long[16];
+        long[] d = new long[16];
+        long[] e = new long[16];
+        long[] f = new long[16];
+        unpack(x, publicKey);
+        System.arraycopy(x, 0, b, 0, 16);
+        a[0] = 1;
+        d[0] = 1;
+        for (int i = 254; i >= 0; i--) {
+            int r = (z[i >>> 3] >>> (i & 7)) & 1;
+            swap(a, b, r);
+            swap(c, d, r);
+            add(e, a, c);
+            sub(a, a, c);
+            add(c, b, d);
+            sub(b, b, d);
+            mul(d, e, e);
+            mul(f, a, a);
+            mul(a, c, a);
+            mul(c, b, e);
+            add(e, a, c);
+            sub(a, a, c);
+            mul(b, a, a);
+            sub(c, d, f);
+            mul(a, c, A24);
+            add(a, a, d);
+            mul(c, c, a);
+            mul(a, d, f);
+            mul(d, b, x);
+            mul(b, e, e);
+            swap(a, b, r);
+            swap(c, d, r);
+        }
+        invert(c, c);
+        mul(a, a, c);
+        byte[] out = new byte[KEY_LEN_BYTES];
+        pack(out, a);
+        Wiper.wipe(z);
+        wipe(a, b, c, d, e, f, x);
+        return out;
+    }
+
+    /**
+     * @return whether a shared secret is all zeros, in constant time
+     */
+    static boolean isZero(byte[] sharedSecret) {
+        int acc = 0;
+        for (byte s : sharedSecret)
+            acc |= s;
+        return acc == 0;
+    }
+
+    // / private methods
+    // ////////////////////////////////////
+
+    private static void unpack(long[] o, byte[] n) {
+        for (int i = 0; i < 16; i++)
+            o[i] = (n[2 * i] & 0xff) + ((long) (n[2 * i + 1] & 0xff) << 8);
+        o[15] &= 0x7fff;
+    }
+
+    private static void pack(byte[] o, long[] n) {
+        long[] m = new long[16];
+        long[] t = n.clone();
+        carry(t);
+        carry(t);
+        carry(t);
+        for (int j = 0; j < 2; j++) {
+            m[0] = t[0] - 0xffed;
+            for (int i = 1; i < 15; i++) {
+                m[i] = t[i] - 0xffff - ((m[i - 1] >> 16) & 1);
+                m[i - 1] &= 0xffff;
+            }
+            m[15] = t[15] - 0x7fff - ((m[14] >> 16) & 1);
+            int b = (int) ((m[15] >> 16) & 1);
+            m[14] &= 0xffff;
+            swap(t, m, 1 - b);
+        }
+        for (int i = 0; i < 16; i++) {
+            o[2 * i] = (byte) t[i];
+            o[2 * i + 1] = (byte) (t[i] >> 8);
+        }
+        wipe(m, t);
+    }
+
+    private static void carry(long[] o) {
+        for (int i = 0; i < 16; i++) {
+            o[i] += 1 << 16;
+            long c = o[i] >> 16;
+            if (i < 15)
+                o[i + 1] += c - 1;
+            else
+                o[0] += 38 * (c - 1);
+            o[i] -= c << 16;
+        }
+    }
+
+    private static void swap(long[] p, long[] q, int bit) {
+        long mask = ~((long) bit - 1);
+        for (int i = 0; i < 16; i++) {
+            long t = mask & (p[i] ^ q[i]);
+            p[i] ^= t;
+            q[i] ^= t;
+        }
+    }
+
+    private static void add(long[] o, long[] a, long[] b) {
+        for (int i = 0; i < 16; i++)
+            o[i] = a[i] + b[i];
+    }
+
+    private static void sub(long[] o, long[] a, long[] b) {
+        for (int i = 0; i < 16; i++)
+            o[i] = a[i] - b[i];
+    }
+
+    private static void mul(long[] o, long[] a, long[] b) {
+        long[] t = new long[31];
+        for (int i = 0; i < 16; i++) {
+            for (int j = 0; j < 16; j++)
+                t[i + j] += a[i] * b[j];
+        }
+        for (int i = 0; i < 15; i++)
+            t[i] += 38 * t[i + 16];
+        System.arraycopy(t, 0, o, 0, 16);
+        carry(o);
+        carry(o);
+    }
+
+    private static void invert(long[] o, long[] in) {
+        long[] c = in.clone();
+        for (int a = 253; a >= 0; a--) {
+            mul(c, c, c);
+            if (a != 2 && a != 4)
+                mul(c, c, in);
+        }
+        System.arraycopy(c, 0, o, 0, 16);
+    }
+
+    private static void wipe(long[]... limbs) {
+        for (long[] l : limbs) {
+            for (int i = 0; i < l.length; i++)
+                l[i] = 0;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package info.guardianproject.cacheword;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+public class AeadBatchTest extends TestCase {
+    private static final String TAG = "AeadBatchTest";
+
+    private byte[] mKey;
+    private AeadBatch mBatch;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mKey = new byte[AeadCipher.KEY_LEN_BYTES];
+        new SecureRandom().nextBytes(mKey);
+        mBatch = new AeadBatch(mKey, Constants.CIPHER_CHACHA20_POLY1305, null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mBatch.wipe();
+        super.tearDown();
+    }
+
+    private static List<byte[]> records(int count) {
+        Random random = new Random(count);
+        List<byte[]> records = new ArrayList<byte[]>();
+        for (int i = 0; i < count; i++) {
+            byte[] record = new byte[random.nextInt(200)];
+            random.nextBytes(record);
+            records.add(record);
+        }
+        return records;
+    }
+
+    private static int[] lengths(List<byte[]> records) {
+        int[] lengths = new int[records.size()];
+        for (int i = 0; i < lengths.length; i++)
+            lengths[i] = records.get(i).length;
+        return lengths;
+    }
+
+    private static ByteBuffer pack(List<byte[]> records, boolean direct) {
+        int size = 0;
+        for (byte[] r : records)
+            size += r.length;
+        ByteBuffer b = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        for (byte[] r : records)
+            b.put(r);
+        b.flip();
+        return b;
+    }
+
+    private void assertSameRecords(List<byte[]> expected, List<byte[]> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++)
+            assertTrue("record " + i, Arrays.equals(expected.get(i), actual.get(i)));
+    }
+
+    public void testListRoundTrip() throws GeneralSecurityException {
+        for (boolean parallel : new boolean[] {
+                false, true
+        }) {
+            List<byte[]> records = records(2000);
+            List<byte[]> encrypted = mBatch.encryptAll(records, parallel);
+            assertEquals(records.get(5).length + AeadBatch.RECORD_OVERHEAD,
+                    encrypted.get(5).length);
+            assertSameRecords(records, mBatch.decryptAll(encrypted, parallel));
+        }
+    }
+
+    public void testSlabRoundTrip() throws GeneralSecurityException {
+        for (boolean direct : new boolean[] {
+                false, true
+        }) {
+            for (boolean parallel : new boolean[] {
+                    false, true
+            }) {
+                List<byte[]> records = records(1000);
+                int[] lengths = lengths(records);
+                ByteBuffer in = pack(records, direct);
+                ByteBuffer encrypted = direct
+                        ? ByteBuffer.allocateDirect(AeadBatch.getEncryptedSize(lengths))
+                        : ByteBuffer.allocate(AeadBatch.getEncryptedSize(lengths));
+                mBatch.encryptAll(in, lengths, encrypted, parallel);
+                assertFalse(in.hasRemaining());
+                assertFalse(encrypted.hasRemaining());
+                encrypted.flip();
+
+                int[] encryptedLengths = new int[lengths.length];
+                for (int i = 0; i < lengths.length; i++)
+                    encryptedLengths[i] = lengths[i] + AeadBatch.RECORD_OVERHEAD;
+                ByteBuffer decrypted = ByteBuffer.allocate(AeadBatch
+                        .getDecryptedSize(encryptedLengths));
+                mBatch.decryptAll(encrypted, encryptedLengths, decrypted, parallel);
+                in.rewind();
+                decrypted.flip();
+                assertEquals(in, decrypted);
+            }
+        }
+    }
+
+    public void testSlabMatchesList() throws GeneralSecurityException {
+        List<byte[]> records = records(10);
+        int[] lengths = lengths(records);
+        ByteBuffer encrypted = ByteBuffer.allocate(AeadBatch.getEncryptedSize(lengths));
+        mBatch.encryptAll(pack(records, false), lengths, encrypted, false);
+        List<byte[]> split = new ArrayList<byte[]>();
+        encrypted.flip();
+        for (int length : lengths) {
+            byte[] r = new byte[length + AeadBatch.RECORD_OVERHEAD];
+            encrypted.get(r);
+            split.add(r);
+        }
+        assertSameRecords(records, mBatch.decryptAll(split, false));
+    }
+
+    public void testTamperedRecord() throws GeneralSecurityException {
+        List<byte[]> encrypted = mBatch.encryptAll(records(1000), true);
+        encrypted.get(777)[3] ^= 1;
+        try {
+            mBatch.decryptAll(encrypted, true);
+            fail("tampered record was accepted");
+        } catch (GeneralSecurityException e) {
+            assertTrue(e.getMessage().contains("777"));
+        }
+    }
+
+    public void testDecryptKeepsNonceSequence() throws GeneralSecurityException {
+        AeadBatch other = new AeadBatch(mKey, mBatch.getCipherId(), null);
+        List<byte[]> encrypted = new ArrayList<byte[]>();
+        try {
+            encrypted.addAll(mBatch.encryptAll(records(10), false));
+            List<byte[]> foreign = other.encryptAll(records(100), false);
+            encrypted.addAll(foreign);
+            // the same thread decrypts records that carry the other prefix
+            mBatch.decryptAll(foreign, false);
+            encrypted.addAll(mBatch.encryptAll(records(10), false));
+        } finally {
+            other.wipe();
+        }
+        Set<ByteBuffer> nonces = new HashSet<ByteBuffer>();
+        for (byte[] record : encrypted)
+            assertTrue("nonce reused", nonces.add(ByteBuffer.wrap(record, 0,
+                    AeadCipher.NONCE_LEN_BYTES).slice()));
+    }
+
+    public void testWipe() throws GeneralSecurityException {
+        mBatch.encryptAll(records(10), false);
+        mBatch.wipe();
+        try {
+            mBatch.encryptAll(records(10), false);
+            fail("wiped batch was used");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Not a rigorous benchmark, compare the numbers in the log on a device.
+     */
+    public void testThroughput() throws GeneralSecurityException {
+        List<byte[]> records = records(20000);
+        int[] lengths = lengths(records);
+        ByteBuffer in = pack(records, false);
+        ByteBuffer out = ByteBuffer.allocate(AeadBatch.getEncryptedSize(lengths));
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            SecureRandom random = new SecureRandom();
+            byte[] nonce = new byte[AeadCipher.NONCE_LEN_BYTES];
+            for (byte[] record : records) {
+                random.nextBytes(nonce);
+                AeadCipher cipher = AeadCipher.getInstance(mBatch.getCipherId(), mKey);
+                cipher.encrypt(nonce, null, record);
+                cipher.wipe();
+            }
+            long naive = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            in.rewind();
+            out.clear();
+            mBatch.encryptAll(in, lengths, out, false);
+            long batch = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            in.rewind();
+            out.clear();
+            mBatch.encryptAll(in, lengths, out, true);
+            long parallel = System.nanoTime() - start;
+
+            Log.d(TAG, records.size() + " records: per record " + naive / 1000 + " us, batch "
+                    + batch / 1000 + " us, parallel batch " + parallel / 1000 + " us");
+        }
+    }
+}
@@ -0,0 +1,68 @@
+
+package info.guardianproject.cacheword;
+
+import android.os.Process;
+import android.test.AndroidTestCase;
+
+import java.io.IOException;
+
+public class CacheWordAgentSocketTest extends AndroidTestCase {
+
+    private static final String SOCKET = "cacheword-agent-socket-test";
+
+    private CacheWordAgent mAgent;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mAgent = new CacheWordAgent(SOCKET, Constants.CIPHER_CHACHA20_POLY1305);
+        mAgent.unlock(TestUtils.key(7));
+        mAgent.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mAgent.close();
+        super.tearDown();
+    }
+
+    public void testAcceptsOwnUid() throws Exception {
+        CacheWordAgentClient client = new CacheWordAgentClient(SOCKET);
+        assertFalse(client.isLocked());
+        int handle = client.openKey("mail".getBytes("UTF-8"));
+        byte[] sealed = client.encrypt(handle, "attack at dawn".getBytes("UTF-8"));
+        assertEquals("attack at dawn", new String(client.decrypt(handle, sealed), "UTF-8"));
+        client.close();
+    }
+
+    public void testRefusesDisallowedUid() throws Exception {
+        mAgent.disallowUid(Process.myUid());
+        CacheWordAgentClient client = new CacheWordAgentClient(SOCKET);
+        try {
+            client.isLocked();
+            fail("the agent served a disallowed uid");
+        } catch (IOException e) {
+            // the agent closed the connection
+        }
+        client.close();
+    }
+
+    public void testClientChecksAgentUid() throws Exception {
+        try {
+            new CacheWordAgentClient(SOCKET, Process.myUid() + 1);
+            fail("talked to an agent running as another uid");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testCloseStopsListening() throws Exception {
+        mAgent.close();
+        try {
+            new CacheWordAgentClient(SOCKET);
+            fail("connected to a closed agent");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,193 @@
+
+package info.guardianproject.cacheword;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+public class CacheWordAgentTest extends TestCase {
+
+    private CacheWordAgent mAgent;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mAgent = new CacheWordAgent("cacheword-agent-test", Constants.CIPHER_CHACHA20_POLY1305);
+        mAgent.unlock(TestUtils.key(7));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mAgent.close();
+        super.tearDown();
+    }
+
+    /**
+     * Connects a client to the agent through pipes instead of a socket.
+     */
+    private CacheWordAgentClient connect() throws IOException {
+        final PipedInputStream agentIn = new PipedInputStream(1 << 16);
+        PipedOutputStream clientOut = new PipedOutputStream(agentIn);
+        PipedInputStream clientIn = new PipedInputStream(1 << 16);
+        final PipedOutputStream agentOut = new PipedOutputStream(clientIn);
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mAgent.serve(agentIn, agentOut);
+                    agentOut.close();
+                } catch (IOException e) {
+                    // the client went away
+                }
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        return new CacheWordAgentClient(clientIn, clientOut);
+    }
+
+    public void testEncryptDecrypt() throws Exception {
+        CacheWordAgentClient client = connect();
+        assertFalse(client.isLocked());
+        int handle = client.openKey("mail".getBytes("UTF-8"));
+        byte[] plaintext = "attack at dawn".getBytes("UTF-8");
+        byte[] sealed = client.encrypt(handle, plaintext);
+        assertFalse(Arrays.equals(plaintext, Arrays.copyOfRange(sealed,
+                CacheWordAgent.HEADER_LEN, CacheWordAgent.HEADER_LEN + plaintext.length)));
+        assertTrue(Arrays.equals(plaintext, client.decrypt(handle, sealed)));
+
+        // the same context gives the same key
+        int again = client.openKey("mail".getBytes("UTF-8"));
+        assertTrue(Arrays.equals(plaintext, client.decrypt(again, sealed)));
+
+        int other = client.openKey("photos".getBytes("UTF-8"));
+        try {
+            client.decrypt(other, sealed);
+            fail("decrypted with another context's key");
+        } catch (GeneralSecurityException e) {
+            // expected
+        }
+        sealed[sealed.length - 1] ^= 1;
+        try {
+            client.decrypt(handle, sealed);
+            fail("decrypted a modified ciphertext");
+        } catch (GeneralSecurityException e) {
+            // expected
+        }
+        client.close();
+    }
+
+    public void testDerive() throws Exception {
+        CacheWordAgentClient client = connect();
+        int handle = client.openKey("db".getBytes("UTF-8"));
+        byte[] a = client.derive(handle, "table a".getBytes("UTF-8"));
+        assertEquals(32, a.length);
+        assertTrue(Arrays.equals(a, client.derive(handle, "table a".getBytes("UTF-8"))));
+        assertFalse(Arrays.equals(a, client.derive(handle, "table b".getBytes("UTF-8"))));
+        client.close();
+    }
+
+    public void testLockInvalidatesHandles() throws Exception {
+        CacheWordAgentClient client = connect();
+        int handle = client.openKey("mail".getBytes("UTF-8"));
+        client.lock();
+        assertTrue(mAgent.isLocked());
+        assertTrue(client.isLocked());
+        try {
+            client.encrypt(handle, new byte[1]);
+            fail("used a key while locked");
+        } catch (CacheWordLockedException e) {
+            // expected
+        }
+        try {
+            client.openKey("mail".getBytes("UTF-8"));
+            fail("opened a key while locked");
+        } catch (CacheWordLockedException e) {
+            // expected
+        }
+
+        mAgent.unlock(new byte[32]);
+        try {
+            client.encrypt(handle, new byte[1]);
+            fail("used a handle from before the lock");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        client.close();
+    }
+
+    public void testHandlesBelongToTheirConnection() throws Exception {
+        CacheWordAgentClient first = connect();
+        CacheWordAgentClient second = connect();
+        int handle = first.openKey("mail".getBytes("UTF-8"));
+        try {
+            second.encrypt(handle, new byte[1]);
+            fail("used another connection's handle");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        first.closeKey(handle);
+        try {
+            first.encrypt(handle, new byte[1]);
+            fail("used a closed handle");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        first.close();
+        second.close();
+    }
+
+    public void testTimeoutAfterLastConnection() throws Exception {
+        mAgent.setTimeout(1);
+        CacheWordAgentClient client = connect();
+        assertFalse(client.isLocked());
+        Thread.sleep(1500);
+        // an open connection keeps the agent unlocked
+        assertFalse(client.isLocked());
+        client.close();
+        for (int i = 0; i < 40 && !mAgent.isLocked(); i++)
+            Thread.sleep(100);
+        assertTrue(mAgent.isLocked());
+    }
+
+    public void testSameContextReusesHandle() throws Exception {
+        CacheWordAgentClient client = connect();
+        int handle = client.openKey("mail".getBytes("UTF-8"));
+        for (int i = 0; i < 2 * CacheWordAgent.MAX_SESSION_HANDLES; i++)
+            assertEquals(handle, client.openKey("mail".getBytes("UTF-8")));
+
+        // a handle from before a lock is replaced
+        mAgent.lock();
+        mAgent.unlock(TestUtils.key(7));
+        int reopened = client.openKey("mail".getBytes("UTF-8"));
+        assertTrue(reopened != handle);
+        client.encrypt(reopened, new byte[1]);
+        client.close();
+    }
+
+    public void testHandlesPerConnectionAreCapped() throws Exception {
+        CacheWordAgentClient client = connect();
+        for (int i = 0; i < CacheWordAgent.MAX_SESSION_HANDLES; i++)
+            client.openKey(("context " + i).getBytes("UTF-8"));
+        try {
+            client.openKey("one too many".getBytes("UTF-8"));
+            fail("opened more handles than a connection may hold");
+        } catch (IOException e) {
+            // expected
+        }
+        // another connection is not affected
+        CacheWordAgentClient other = connect();
+        other.encrypt(other.openKey("mail".getBytes("UTF-8")), new byte[1]);
+        other.close();
+
+        // nor are handles invalidated by a lock counted
+        mAgent.lock();
+        mAgent.unlock(TestUtils.key(7));
+        client.openKey("one too many".getBytes("UTF-8"));
+        client.close();
+    }
+}
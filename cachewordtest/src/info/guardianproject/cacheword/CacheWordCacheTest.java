@@ -0,0 +1,149 @@
+package info.guardianproject.cacheword;
+
+import android.content.ComponentCallbacks2;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+public class CacheWordCacheTest extends TestCase {
+
+    private CacheWordCache<String, byte[]> mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCache = new CacheWordCache<String, byte[]>(100) {
+            @Override
+            protected int sizeOf(String key, byte[] value) {
+                return value.length;
+            }
+        };
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCache.close();
+        super.tearDown();
+    }
+
+    private static byte[] filled(int length) {
+        byte[] b = new byte[length];
+        Arrays.fill(b, (byte) 0x5a);
+        return b;
+    }
+
+    private static boolean isWiped(byte[] b) {
+        for (byte x : b) {
+            if (x != 0)
+                return false;
+        }
+        return true;
+    }
+
+    public void testGetPut() {
+        assertNull(mCache.get("a"));
+        byte[] a = filled(10);
+        assertTrue(mCache.put("a", a));
+        assertSame(a, mCache.get("a"));
+        assertEquals(1, mCache.size());
+        assertEquals(10, mCache.getWeight());
+        assertEquals(1, mCache.getHitCount());
+        assertEquals(1, mCache.getMissCount());
+        assertEquals(0.5f, mCache.getHitRate());
+    }
+
+    public void testReplaceWipesPrevious() {
+        byte[] first = filled(10);
+        byte[] second = filled(20);
+        mCache.put("a", first);
+        mCache.put("a", second);
+        assertTrue(isWiped(first));
+        assertFalse(isWiped(second));
+        assertEquals(20, mCache.getWeight());
+        // putting the same value again doesn't wipe it
+        mCache.put("a", second);
+        assertFalse(isWiped(second));
+        assertEquals(20, mCache.getWeight());
+    }
+
+    public void testEvictsLeastRecentlyUsed() {
+        byte[] a = filled(40);
+        byte[] b = filled(40);
+        byte[] c = filled(40);
+        mCache.put("a", a);
+        mCache.put("b", b);
+        // a is now more recently used than b
+        mCache.get("a");
+        mCache.put("c", c);
+        assertNull(mCache.get("b"));
+        assertTrue(isWiped(b));
+        assertSame(a, mCache.get("a"));
+        assertSame(c, mCache.get("c"));
+        assertEquals(80, mCache.getWeight());
+        assertEquals(1, mCache.getEvictionCount());
+    }
+
+    public void testTooLargeIsNotCached() {
+        byte[] big = filled(101);
+        assertFalse(mCache.put("big", big));
+        assertNull(mCache.get("big"));
+        assertFalse(isWiped(big));
+    }
+
+    public void testRemove() {
+        byte[] a = filled(10);
+        mCache.put("a", a);
+        mCache.remove("a");
+        mCache.remove("missing");
+        assertNull(mCache.get("a"));
+        assertTrue(isWiped(a));
+        assertEquals(0, mCache.getWeight());
+    }
+
+    public void testLockWipesEverything() {
+        byte[] a = filled(10);
+        byte[] b = filled(10);
+        mCache.put("a", a);
+        mCache.put("b", b);
+        mCache.onCacheWordLocking();
+        assertEquals(0, mCache.size());
+        assertEquals(0, mCache.getWeight());
+        assertTrue(isWiped(a));
+        assertTrue(isWiped(b));
+        assertNull(mCache.get("a"));
+    }
+
+    public void testRefusesPutsUntilUnlocked() {
+        mCache.onCacheWordLocking();
+        byte[] a = filled(10);
+        assertFalse(mCache.put("a", a));
+        assertFalse(isWiped(a));
+        assertEquals(0, mCache.size());
+        CacheWordService.countUnlock();
+        assertTrue(mCache.put("a", a));
+        assertSame(a, mCache.get("a"));
+    }
+
+    public void testTrimMemory() {
+        for (int i = 0; i < 10; i++)
+            mCache.put("k" + i, filled(10));
+        mCache.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        assertEquals(50, mCache.getMemoryBudget());
+        assertEquals(50, mCache.getWeight());
+        // the most recently used entries survive
+        assertNotNull(mCache.get("k9"));
+        assertNull(mCache.get("k0"));
+        mCache.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_MODERATE);
+        assertEquals(0, mCache.size());
+        assertFalse(mCache.put("a", filled(1)));
+        mCache.resetMemoryBudget();
+        assertTrue(mCache.put("a", filled(1)));
+    }
+
+    public void testClosedCacheRejectsPuts() {
+        mCache.close();
+        assertFalse(mCache.put("a", filled(1)));
+        assertNull(mCache.get("a"));
+    }
+}
@@ -0,0 +1,154 @@
+
+package info.guardianproject.cacheword;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.ServiceTestCase;
+
+import net.sqlcipher.SQLException;
+import net.sqlcipher.database.SQLiteDatabase;
+
+public class CacheWordContentProviderTest extends ServiceTestCase<CacheWordService> {
+
+    private static final String PASSPHRASE = "hunter2";
+    private static final String DB_NAME = "content-provider-test.db";
+    private static final Uri PEOPLE = Uri
+            .parse("content://info.guardianproject.cacheword.test/people");
+
+    private CacheWordHandler mHandler;
+    private PeopleProvider mProvider;
+
+    public CacheWordContentProviderTest() {
+        super(CacheWordService.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        SecretsManager.setInitialized(getContext(), false);
+        SQLiteDatabase.loadLibs(getContext());
+        getContext().getDatabasePath(DB_NAME).delete();
+        mHandler = TestUtils.openCacheWord(getContext(), PASSPHRASE);
+        mProvider = new PeopleProvider();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mProvider.shutdown();
+        mHandler.disconnectFromService();
+        getContext().getDatabasePath(DB_NAME).delete();
+        super.tearDown();
+    }
+
+    private static ContentValues row(String name) {
+        ContentValues values = new ContentValues();
+        values.put("name", name);
+        return values;
+    }
+
+    private int count() {
+        Cursor cursor = mProvider.query(PEOPLE, null, null, null, null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    public void testQueryRightAfterCreateWaitsForConnection() {
+        // the provider's own connection to the service hasn't completed yet
+        mProvider.attachInfo(getContext(), null);
+        assertEquals(0, count());
+        assertTrue(mProvider.isUnlocked());
+    }
+
+    public void testLockedProviderRejectsCalls() throws Exception {
+        mProvider.attachInfo(getContext(), null);
+        mProvider.insert(PEOPLE, row("alice"));
+        TestUtils.lockCacheWord(mHandler);
+        try {
+            count();
+            fail("queried while locked");
+        } catch (CacheWordLockedException e) {
+            // expected
+        }
+        try {
+            mProvider.bulkInsert(PEOPLE, new ContentValues[] {
+                row("bob")
+            });
+            fail("inserted while locked");
+        } catch (CacheWordLockedException e) {
+            // expected
+        }
+        assertFalse(mProvider.isUnlocked());
+    }
+
+    public void testBulkInsertIsAllOrNothing() {
+        mProvider.attachInfo(getContext(), null);
+        assertEquals(2, mProvider.bulkInsert(PEOPLE, new ContentValues[] {
+                row("alice"), row("bob")
+        }));
+        try {
+            // violates NOT NULL
+            mProvider.bulkInsert(PEOPLE, new ContentValues[] {
+                    row("carol"), new ContentValues()
+            });
+            fail("inserted a row without a name");
+        } catch (SQLException e) {
+            // expected
+        }
+        assertEquals(2, count());
+    }
+
+    public static class PeopleProvider extends CacheWordContentProvider {
+
+        @Override
+        protected SQLCipherOpenHelper createOpenHelper(CacheWordHandler cacheWord) {
+            return new DatabaseHelper(cacheWord, getContext());
+        }
+
+        @Override
+        protected Cursor query(SQLiteDatabase db, Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            return db.query("people", projection, selection, selectionArgs, null, null, sortOrder);
+        }
+
+        @Override
+        protected Uri insert(SQLiteDatabase db, Uri uri, ContentValues values) {
+            long id = db.insertOrThrow("people", null, values);
+            return Uri.withAppendedPath(uri, Long.toString(id));
+        }
+
+        @Override
+        protected int update(SQLiteDatabase db, Uri uri, ContentValues values, String selection,
+                String[] selectionArgs) {
+            return db.update("people", values, selection, selectionArgs);
+        }
+
+        @Override
+        protected int delete(SQLiteDatabase db, Uri uri, String selection, String[] selectionArgs) {
+            return db.delete("people", selection, selectionArgs);
+        }
+
+        @Override
+        public String getType(Uri uri) {
+            return null;
+        }
+    }
+
+    public static class DatabaseHelper extends SQLCipherOpenHelper {
+
+        public DatabaseHelper(CacheWordHandler cacheWord, Context context) {
+            super(cacheWord, context, DB_NAME, null, 1);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE people (id INTEGER PRIMARY KEY, name TEXT NOT NULL);");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        }
+    }
+}
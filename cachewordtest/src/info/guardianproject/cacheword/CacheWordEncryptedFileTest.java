@@ -0,0 +1,222 @@
+package info.guardianproject.cacheword;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Random;
+
+public class CacheWordEncryptedFileTest extends TestCase {
+
+    private static final int BLOCK = 1024;
+    private static final int PHYSICAL_BLOCK = BLOCK + 36;
+
+    private byte[] mKey;
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mKey = new byte[AeadCipher.KEY_LEN_BYTES];
+        new SecureRandom().nextBytes(mKey);
+        mFile = File.createTempFile("encrypted", ".bin");
+        mFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    private CacheWordEncryptedFile open(String mode) throws IOException {
+        return new CacheWordEncryptedFile(mKey, mFile, mode, Constants.CIPHER_CHACHA20_POLY1305,
+                BLOCK);
+    }
+
+    private static byte[] readAll(CacheWordEncryptedFile file) throws IOException {
+        ByteBuffer dst = ByteBuffer.allocate((int) file.size());
+        while (dst.hasRemaining())
+            assertTrue(file.read(dst, dst.position()) > 0);
+        return dst.array();
+    }
+
+    private void writeFile(byte[] data) throws IOException {
+        CacheWordEncryptedFile file = open("rw");
+        file.write(ByteBuffer.wrap(data));
+        file.close();
+    }
+
+    private void assertUnreadable() {
+        try {
+            CacheWordEncryptedFile file = open("r");
+            readAll(file);
+            file.close();
+            fail("modified file was accepted");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private void patch(long position, byte[] bytes) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        raf.seek(position);
+        raf.write(bytes);
+        raf.close();
+    }
+
+    public void testRandomWritesMatchModel() throws IOException {
+        Random random = new Random(42);
+        byte[] model = new byte[0];
+        CacheWordEncryptedFile file = open("rw");
+        for (int i = 0; i < 300; i++) {
+            int position = random.nextInt(model.length + 2 * BLOCK);
+            byte[] data = new byte[random.nextInt(3 * BLOCK)];
+            random.nextBytes(data);
+            file.write(ByteBuffer.wrap(data), position);
+            if (position + data.length > model.length)
+                model = Arrays.copyOf(model, position + data.length);
+            System.arraycopy(data, 0, model, position, data.length);
+            if (i % 50 == 49) {
+                file.close();
+                file = open("rw");
+            }
+            assertEquals(model.length, file.size());
+        }
+        assertTrue(Arrays.equals(model, readAll(file)));
+        file.close();
+
+        file = open("r");
+        assertTrue(Arrays.equals(model, readAll(file)));
+        ByteBuffer dst = ByteBuffer.allocate(100);
+        assertEquals(100, file.read(dst, 1000));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(model, 1000, 1100), dst.array()));
+        file.close();
+    }
+
+    public void testGapIsZeroFilled() throws IOException {
+        CacheWordEncryptedFile file = open("rw");
+        file.write(ByteBuffer.wrap(new byte[] {
+                7
+        }), 3 * BLOCK + 5);
+        assertEquals(3 * BLOCK + 6, file.size());
+        file.close();
+
+        file = open("r");
+        byte[] data = readAll(file);
+        for (int i = 0; i < data.length - 1; i++)
+            assertEquals(0, data[i]);
+        assertEquals(7, data[data.length - 1]);
+        file.close();
+    }
+
+    public void testChannelPosition() throws IOException {
+        CacheWordEncryptedFile file = open("rw");
+        file.write(ByteBuffer.wrap("hello ".getBytes()));
+        file.write(ByteBuffer.wrap("world".getBytes()));
+        assertEquals(11, file.position());
+        file.position(6);
+        ByteBuffer dst = ByteBuffer.allocate(20);
+        assertEquals(5, file.read(dst));
+        assertEquals(-1, file.read(dst));
+        assertEquals("world", new String(dst.array(), 0, 5));
+        file.close();
+    }
+
+    public void testTruncate() throws IOException {
+        byte[] data = new byte[5 * BLOCK];
+        new Random(1).nextBytes(data);
+        writeFile(data);
+        CacheWordEncryptedFile file = open("rw");
+        file.truncate(2 * BLOCK + 10);
+        assertEquals(2 * BLOCK + 10, file.size());
+        file.close();
+
+        file = open("r");
+        assertTrue(Arrays.equals(Arrays.copyOf(data, 2 * BLOCK + 10), readAll(file)));
+        file.close();
+    }
+
+    public void testReadOnly() throws IOException {
+        writeFile(new byte[10]);
+        CacheWordEncryptedFile file = open("r");
+        try {
+            file.write(ByteBuffer.allocate(1), 0);
+            fail("read only file was written");
+        } catch (NonWritableChannelException e) {
+            // expected
+        }
+        file.close();
+    }
+
+    public void testWrongKey() throws IOException {
+        writeFile(new byte[100]);
+        mKey[0] ^= 1;
+        assertUnreadable();
+    }
+
+    public void testTamperedBlock() throws IOException {
+        writeFile(new byte[3 * BLOCK]);
+        patch(SegmentedAead.HEADER_LEN + PHYSICAL_BLOCK + 50, new byte[] {
+                1
+        });
+        assertUnreadable();
+    }
+
+    public void testSwappedBlocks() throws IOException {
+        byte[] data = new byte[3 * BLOCK];
+        new Random(2).nextBytes(data);
+        writeFile(data);
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        byte[] first = new byte[PHYSICAL_BLOCK];
+        byte[] second = new byte[PHYSICAL_BLOCK];
+        raf.seek(SegmentedAead.HEADER_LEN);
+        raf.readFully(first);
+        raf.readFully(second);
+        raf.close();
+        patch(SegmentedAead.HEADER_LEN, second);
+        patch(SegmentedAead.HEADER_LEN + PHYSICAL_BLOCK, first);
+        assertUnreadable();
+    }
+
+    public void testTruncatedAtBlockBoundary() throws IOException {
+        writeFile(new byte[3 * BLOCK]);
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        raf.setLength(SegmentedAead.HEADER_LEN + 2 * PHYSICAL_BLOCK);
+        raf.close();
+        assertUnreadable();
+    }
+
+    public void testForceWipeClosesFile() throws IOException {
+        CacheWordEncryptedFile file = open("rw");
+        file.write(ByteBuffer.allocate(10), 0);
+        file.forceWipe();
+        assertFalse(file.isOpen());
+        try {
+            file.read(ByteBuffer.allocate(1), 0);
+            fail("read after forceWipe");
+        } catch (ClosedChannelException e) {
+            // expected
+        }
+    }
+
+    public void testLockFlushesAndCloses() throws IOException {
+        CacheWordEncryptedFile file = open("rw");
+        file.write(ByteBuffer.wrap(new byte[] {
+                1, 2, 3
+        }), 0);
+        file.onCacheWordLocking();
+        assertFalse(file.isOpen());
+        file = open("r");
+        assertTrue(Arrays.equals(new byte[] {
+                1, 2, 3
+        }, readAll(file)));
+        file.close();
+    }
+}
@@ -0,0 +1,180 @@
+package info.guardianproject.cacheword;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class CacheWordExecutorTest extends TestCase {
+
+    private CacheWordExecutor mExecutor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mExecutor = new CacheWordExecutor(1);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mExecutor.shutdownNow();
+        assertTrue(mExecutor.awaitTermination(5, TimeUnit.SECONDS));
+        super.tearDown();
+    }
+
+    public void testPausedUntilResumed() throws Exception {
+        Future<String> f = mExecutor.submit(new Callable<String>() {
+            @Override
+            public String call() {
+                return "done";
+            }
+        });
+        try {
+            f.get(100, TimeUnit.MILLISECONDS);
+            fail("ran while paused");
+        } catch (TimeoutException e) {
+            // expected
+        }
+        assertEquals(1, mExecutor.getQueueLength());
+        assertTrue(mExecutor.getOldestWaitMillis() >= 100);
+        mExecutor.resume();
+        assertEquals("done", f.get(5, TimeUnit.SECONDS));
+        assertEquals(0, mExecutor.getQueueLength());
+        assertTrue(mExecutor.getMaxWaitMillis() >= 100);
+        assertTrue(mExecutor.getAverageWaitMillis() >= 100);
+    }
+
+    public void testPriorityOrder() throws Exception {
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        String[] names = {
+                "low", "normal 1", "high", "normal 2"
+        };
+        int[] priorities = {
+                CacheWordExecutor.PRIORITY_LOW, CacheWordExecutor.PRIORITY_NORMAL,
+                CacheWordExecutor.PRIORITY_HIGH, CacheWordExecutor.PRIORITY_NORMAL
+        };
+        Future<?> last = null;
+        for (int i = 0; i < names.length; i++) {
+            final String name = names[i];
+            last = mExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    order.add(name);
+                }
+            }, priorities[i]);
+        }
+        mExecutor.resume();
+        last.get(5, TimeUnit.SECONDS);
+        mExecutor.shutdown();
+        assertTrue(mExecutor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(4, order.size());
+        assertEquals("high", order.get(0));
+        assertEquals("normal 1", order.get(1));
+        assertEquals("normal 2", order.get(2));
+        assertEquals("low", order.get(3));
+    }
+
+    public void testLockCancelsRunningAndParksQueued() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        Future<?> running = mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                while (!Thread.currentThread().isInterrupted()) {
+                    // busy with encrypted data
+                }
+            }
+        });
+        Future<String> queued = mExecutor.submit(new Callable<String>() {
+            @Override
+            public String call() {
+                return "later";
+            }
+        });
+        mExecutor.resume();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        mExecutor.onCacheWordLocking();
+        assertEquals(0, mExecutor.getRunningCount());
+        assertTrue(mExecutor.isPaused());
+        assertTrue(running.isCancelled());
+        try {
+            running.get();
+            fail("cancelled task has a result");
+        } catch (CancellationException e) {
+            // expected
+        }
+        assertEquals(1, mExecutor.getCancelledOnLockCount());
+        assertEquals(1, mExecutor.getQueueLength());
+        assertFalse(queued.isDone());
+
+        mExecutor.resume();
+        assertEquals("later", queued.get(5, TimeUnit.SECONDS));
+    }
+
+    public void testForceWipeDoesNotWait() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Future<?> running = mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                // ignores interrupts
+                while (release.getCount() > 0) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        // keep going
+                    }
+                }
+            }
+        });
+        mExecutor.resume();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        mExecutor.forceWipe();
+        assertTrue(running.isCancelled());
+        assertEquals(1, mExecutor.getRunningCount());
+        release.countDown();
+    }
+
+    public void testShutdown() throws Exception {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        mExecutor.shutdown();
+        assertFalse(mExecutor.isTerminated());
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+            fail("accepted a task after shutdown");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        // the queued task still runs at the next unlock
+        mExecutor.resume();
+        assertTrue(mExecutor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    public void testShutdownNowReturnsQueued() throws Exception {
+        mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        assertEquals(1, mExecutor.shutdownNow().size());
+        assertTrue(mExecutor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,195 @@
+package info.guardianproject.cacheword;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class CacheWordExportTest extends TestCase {
+
+    private static final int CHUNK = 4096;
+
+    private byte[] mKey;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mKey = new byte[AeadCipher.KEY_LEN_BYTES];
+        new SecureRandom().nextBytes(mKey);
+    }
+
+    private static byte[] compressible(int length) {
+        byte[] b = new byte[length];
+        for (int i = 0; i < length; i++)
+            b[i] = (byte) ("abcdefgh".charAt(i % 8) + (i / 1000) % 3);
+        return b;
+    }
+
+    private byte[] export(byte[] data, ExecutorService executor) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CacheWordExportOutputStream out = new CacheWordExportOutputStream(mKey, bytes,
+                Constants.CIPHER_CHACHA20_POLY1305, CHUNK, executor);
+        int off = 0;
+        int step = 1;
+        while (off < data.length) {
+            int n = Math.min(step, data.length - off);
+            out.write(data, off, n);
+            off += n;
+            step = step * 5 + 3;
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private byte[] restore(byte[] export) throws IOException {
+        InputStream in = new CacheWordExportInputStream(mKey, new ByteArrayInputStream(export));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buf = new byte[1000];
+        int n;
+        while ((n = in.read(buf)) != -1)
+            bytes.write(buf, 0, n);
+        in.close();
+        return bytes.toByteArray();
+    }
+
+    private void assertRejected(byte[] export) {
+        try {
+            restore(export);
+            fail("modified export was accepted");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testRoundTrip() throws IOException {
+        int[] sizes = {
+                0, 1, CHUNK - 1, CHUNK, CHUNK + 1, 100 * CHUNK + 7
+        };
+        for (int size : sizes) {
+            byte[] data = TestUtils.random(size);
+            assertTrue("size " + size, Arrays.equals(data, restore(export(data, null))));
+            data = compressible(size);
+            assertTrue("size " + size, Arrays.equals(data, restore(export(data, null))));
+        }
+    }
+
+    public void testSingleThreadExecutor() throws IOException {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            byte[] data = TestUtils.random(20 * CHUNK + 3);
+            assertTrue(Arrays.equals(data, restore(export(data, executor))));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testCompresses() throws IOException {
+        byte[] data = compressible(50 * CHUNK);
+        assertTrue(export(data, null).length < data.length / 4);
+        // random data is stored, only the framing is added
+        data = TestUtils.random(50 * CHUNK);
+        assertTrue(export(data, null).length < data.length + 51 * 32);
+    }
+
+    public void testTruncation() throws IOException {
+        byte[] export = export(TestUtils.random(10 * CHUNK), null);
+        assertRejected(Arrays.copyOf(export, 10));
+        assertRejected(Arrays.copyOf(export, SegmentedAead.HEADER_LEN));
+        assertRejected(Arrays.copyOf(export, export.length - 1));
+        // at a chunk boundary: random data is stored, so every chunk is the
+        // same size
+        int chunk = Constants.INT_LENGTH + 1 + CHUNK + AeadCipher.TAG_LEN_BYTES;
+        assertEquals(SegmentedAead.HEADER_LEN + 10 * chunk, export.length);
+        assertRejected(Arrays.copyOf(export, export.length - chunk));
+    }
+
+    public void testTampered() throws IOException {
+        byte[] export = export(compressible(10 * CHUNK), null);
+        for (int i = 0; i < export.length; i += 37) {
+            byte[] bad = export.clone();
+            bad[i] ^= 0x10;
+            assertRejected(bad);
+        }
+    }
+
+    public void testWrongKey() throws IOException {
+        byte[] export = export(TestUtils.random(100), null);
+        mKey[0] ^= 1;
+        assertRejected(export);
+    }
+
+    public void testNegativeLengthRejected() throws IOException {
+        byte[] export = export(TestUtils.random(10 * CHUNK), null);
+        int chunk = Constants.INT_LENGTH + 1 + CHUNK + AeadCipher.TAG_LEN_BYTES;
+        // the length prefix of chunk 1, it must not read as the end
+        export[SegmentedAead.HEADER_LEN + chunk] |= 0x80;
+        try {
+            restore(export);
+            fail("negative chunk length was accepted");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("invalid length"));
+        }
+    }
+
+    public void testCloseAfterFailedWrite() throws IOException {
+        OutputStream failing = new OutputStream() {
+            private int mWritten = 0;
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {
+                    (byte) b
+                }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                mWritten += len;
+                if (mWritten > SegmentedAead.HEADER_LEN + CHUNK)
+                    throw new IOException("disk full");
+            }
+        };
+        CacheWordExportOutputStream out = new CacheWordExportOutputStream(mKey, failing,
+                Constants.CIPHER_CHACHA20_POLY1305, CHUNK, null);
+        byte[] data = TestUtils.random(100 * CHUNK);
+        try {
+            out.write(data);
+            out.close();
+            fail("export to a failing stream succeeded");
+        } catch (IOException e) {
+            // expected
+        }
+        // abandons the chunks in flight
+        try {
+            out.close();
+        } catch (IOException e) {
+            // expected if the first close didn't run
+        }
+        try {
+            out.write(1);
+            fail("wrote to a closed export");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testCloseWhileReadingAhead() throws IOException {
+        byte[] export = export(TestUtils.random(100 * CHUNK), null);
+        InputStream in = new CacheWordExportInputStream(mKey, new ByteArrayInputStream(export));
+        assertTrue(in.read() >= 0);
+        in.close();
+        try {
+            in.read();
+            fail("read from a closed export");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package info.guardianproject.cacheword;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class CacheWordInboxTest extends TestCase {
+
+    private File mDirectory;
+    private byte[] mPrivateKey;
+    private CacheWordInbox mInbox;
+
+    private static class ListSink implements CacheWordInbox.Sink {
+        final List<String> records = new ArrayList<String>();
+
+        @Override
+        public void onRecord(byte[] x_record) throws IOException {
+            records.add(new String(x_record, "UTF-8"));
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = File.createTempFile("inbox", "");
+        mDirectory.delete();
+        mPrivateKey = X25519.generatePrivateKey(new SecureRandom());
+        mInbox = new CacheWordInbox(mDirectory, X25519.publicKey(mPrivateKey),
+                Constants.CIPHER_CHACHA20_POLY1305);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File f : files)
+                f.delete();
+        }
+        mDirectory.delete();
+        super.tearDown();
+    }
+
+    private static List<byte[]> records(String... values) throws IOException {
+        List<byte[]> records = new ArrayList<byte[]>();
+        for (String v : values)
+            records.add(v.getBytes("UTF-8"));
+        return records;
+    }
+
+    private File onlyBatch() {
+        File[] files = mDirectory.listFiles();
+        assertEquals(1, files.length);
+        return files[0];
+    }
+
+    public void testDeliverAndIngestInOrder() throws Exception {
+        mInbox.deliver("first".getBytes("UTF-8"));
+        mInbox.deliver(records("second", "", "third"));
+        mInbox.deliver(records());
+        assertEquals(2, mInbox.getPendingBatches());
+        assertEquals(4, mInbox.getDeliveredRecords());
+
+        ListSink sink = new ListSink();
+        assertEquals(4, mInbox.ingest(mPrivateKey, sink));
+        assertEquals(Arrays.asList("first", "second", "", "third"), sink.records);
+        assertEquals(0, mInbox.getPendingBatches());
+        assertEquals(0, mDirectory.listFiles().length);
+        assertEquals(4, mInbox.getIngestedRecords());
+        assertEquals(16, mInbox.getIngestedBytes());
+        assertTrue(mInbox.getIngestRecordsPerSecond() > 0);
+
+        assertEquals(0, mInbox.ingest(mPrivateKey, new ListSink()));
+    }
+
+    public void testManyBatches() throws Exception {
+        for (int i = 0; i < 50; i++)
+            mInbox.deliver(records("batch " + i, "record"));
+        ListSink sink = new ListSink();
+        assertEquals(100, mInbox.ingest(mPrivateKey, sink));
+        for (int i = 0; i < 50; i++)
+            assertEquals("batch " + i, sink.records.get(2 * i));
+    }
+
+    public void testWrongKeySetsBatchAside() throws Exception {
+        mInbox.deliver(records("secret"));
+        byte[] other = X25519.generatePrivateKey(new SecureRandom());
+        ListSink sink = new ListSink();
+        assertEquals(0, mInbox.ingest(other, sink));
+        assertTrue(sink.records.isEmpty());
+        assertEquals(1, mInbox.getFailedBatches());
+        assertEquals(0, mInbox.getPendingBatches());
+        assertTrue(onlyBatch().getName().endsWith(".failed"));
+    }
+
+    public void testTamperedBatchSetAside() throws Exception {
+        mInbox.deliver(records("one", "two"));
+        File batch = onlyBatch();
+        RandomAccessFile raf = new RandomAccessFile(batch, "rw");
+        raf.seek(raf.length() - 1);
+        int b = raf.read();
+        raf.seek(raf.length() - 1);
+        raf.write(b ^ 1);
+        raf.close();
+        mInbox.deliver(records("three"));
+        ListSink sink = new ListSink();
+        assertEquals(1, mInbox.ingest(mPrivateKey, sink));
+        assertEquals(Arrays.asList("three"), sink.records);
+        assertEquals(1, mInbox.getFailedBatches());
+    }
+
+    public void testTruncatedBatchSetAside() throws Exception {
+        mInbox.deliver(records("one", "two"));
+        File batch = onlyBatch();
+        RandomAccessFile raf = new RandomAccessFile(batch, "rw");
+        // drop the last record entirely, the first one must not pass as last
+        raf.setLength(CacheWordInbox.HEADER_LEN + 4 + 3 + AeadCipher.TAG_LEN_BYTES);
+        raf.close();
+        ListSink sink = new ListSink();
+        assertEquals(0, mInbox.ingest(mPrivateKey, sink));
+        assertTrue(sink.records.isEmpty());
+        assertEquals(1, mInbox.getFailedBatches());
+    }
+
+    public void testSinkFailureKeepsBatch() throws Exception {
+        mInbox.deliver(records("one"));
+        mInbox.deliver(records("two"));
+        CacheWordInbox.Sink failing = new CacheWordInbox.Sink() {
+            @Override
+            public void onRecord(byte[] x_record) throws IOException {
+                if (new String(x_record, "UTF-8").equals("two"))
+                    throw new IOException("store full");
+            }
+        };
+        try {
+            mInbox.ingest(mPrivateKey, failing);
+            fail("sink failure not reported");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(1, mInbox.getPendingBatches());
+        ListSink sink = new ListSink();
+        assertEquals(1, mInbox.ingest(mPrivateKey, sink));
+        assertEquals(Arrays.asList("two"), sink.records);
+    }
+}
@@ -0,0 +1,225 @@
+package info.guardianproject.cacheword;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class CacheWordJobQueueTest extends TestCase {
+
+    private File mDirectory;
+    private byte[] mPrivateKey;
+    private CacheWordJobQueue mQueue;
+
+    /**
+     * Records the batches it is given and counts down once per job.
+     */
+    private static class RecordingHandler implements CacheWordJobQueue.JobHandler {
+        final List<List<String>> batches = Collections
+                .synchronizedList(new ArrayList<List<String>>());
+        final List<String> payloads = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done;
+
+        RecordingHandler(int jobs) {
+            done = new CountDownLatch(jobs);
+        }
+
+        @Override
+        public void onJobs(List<CacheWordJobQueue.Job> jobs) throws Exception {
+            List<String> keys = new ArrayList<String>();
+            for (CacheWordJobQueue.Job job : jobs) {
+                keys.add(job.getKey());
+                if (job.getPayload() != null)
+                    payloads.add(new String(job.getPayload(), "UTF-8"));
+            }
+            batches.add(keys);
+            for (int i = 0; i < jobs.size(); i++)
+                done.countDown();
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = File.createTempFile("jobs", "");
+        mDirectory.delete();
+        mPrivateKey = X25519.generatePrivateKey(new SecureRandom());
+        CacheWordInbox inbox = new CacheWordInbox(new File(mDirectory, "inbox"),
+                X25519.publicKey(mPrivateKey), Constants.CIPHER_CHACHA20_POLY1305);
+        mQueue = new CacheWordJobQueue(null, mDirectory, inbox, 1);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mQueue.close();
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File f : files)
+                f.delete();
+        }
+        mDirectory.delete();
+        super.tearDown();
+    }
+
+    private void waitForEmpty() throws InterruptedException {
+        for (int i = 0; i < 100 && mQueue.getPendingCount() > 0; i++)
+            Thread.sleep(50);
+        assertEquals(0, mQueue.getPendingCount());
+    }
+
+    public void testRunsAfterUnlock() throws Exception {
+        RecordingHandler handler = new RecordingHandler(2);
+        mQueue.registerHandler("index", handler);
+        assertTrue(mQueue.schedule("index", "a", "secret payload".getBytes("UTF-8")));
+        assertTrue(mQueue.schedule("index", "b"));
+        Thread.sleep(100);
+        assertTrue(handler.batches.isEmpty());
+        assertEquals(2, mQueue.getPendingCount());
+
+        mQueue.unlockWithPrivateKey(mPrivateKey);
+        assertTrue(handler.done.await(5, TimeUnit.SECONDS));
+        waitForEmpty();
+        assertEquals(1, handler.batches.size());
+        assertEquals(2, handler.batches.get(0).size());
+        assertEquals(Collections.singletonList("secret payload"), handler.payloads);
+        assertEquals(2, mQueue.getCompletedCount());
+    }
+
+    public void testPayloadNotStoredInPlaintext() throws Exception {
+        mQueue.schedule("upload", "x", "very secret".getBytes("UTF-8"));
+        File[] files = mDirectory.listFiles();
+        assertEquals(1, files.length);
+        byte[] stored = new byte[(int) files[0].length()];
+        FileInputStream in = new FileInputStream(files[0]);
+        try {
+            assertEquals(stored.length, in.read(stored));
+        } finally {
+            in.close();
+        }
+        assertFalse(new String(stored, "ISO-8859-1").contains("very secret"));
+    }
+
+    public void testDeduplicates() throws Exception {
+        assertTrue(mQueue.schedule("index", "a"));
+        assertFalse(mQueue.schedule("index", "a"));
+        assertTrue(mQueue.schedule("other", "a"));
+        assertTrue(mQueue.schedule("index", null));
+        assertTrue(mQueue.schedule("index", null));
+        assertEquals(4, mQueue.getPendingCount());
+    }
+
+    public void testBatchesAreBounded() throws Exception {
+        for (int i = 0; i < 7; i++) {
+            mQueue.schedule("index", "k" + i);
+            // distinct creation times, so the order is defined
+            Thread.sleep(2);
+        }
+        RecordingHandler handler = new RecordingHandler(7);
+        mQueue.registerHandler("index", handler, 3);
+        mQueue.unlockWithPrivateKey(mPrivateKey);
+        assertTrue(handler.done.await(5, TimeUnit.SECONDS));
+        waitForEmpty();
+        assertEquals(3, handler.batches.size());
+        List<String> all = new ArrayList<String>();
+        for (List<String> batch : handler.batches) {
+            assertTrue(batch.size() <= 3);
+            all.addAll(batch);
+        }
+        assertEquals(7, all.size());
+        assertEquals("k0", all.get(0));
+    }
+
+    public void testFailureRetriedWithBackoff() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        final List<Integer> attempts = Collections.synchronizedList(new ArrayList<Integer>());
+        mQueue.registerHandler("flaky", new CacheWordJobQueue.JobHandler() {
+            @Override
+            public void onJobs(List<CacheWordJobQueue.Job> jobs) throws Exception {
+                attempts.add(jobs.get(0).getAttempts());
+                if (attempts.size() == 1)
+                    throw new IOException("server unavailable");
+                done.countDown();
+            }
+        });
+        mQueue.schedule("flaky", "a");
+        long start = System.currentTimeMillis();
+        mQueue.unlockWithPrivateKey(mPrivateKey);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - start >= CacheWordJobQueue.MIN_BACKOFF_MILLIS);
+        assertEquals(0, (int) attempts.get(0));
+        assertEquals(1, (int) attempts.get(1));
+        waitForEmpty();
+        assertEquals(1, mQueue.getFailedCount());
+    }
+
+    public void testLockStopsDraining() throws Exception {
+        RecordingHandler handler = new RecordingHandler(1);
+        mQueue.registerHandler("index", handler);
+        mQueue.unlockWithPrivateKey(mPrivateKey);
+        mQueue.onCacheWordLocking();
+        mQueue.schedule("index", "a");
+        Thread.sleep(200);
+        assertTrue(handler.batches.isEmpty());
+        assertEquals(1, mQueue.getPendingCount());
+    }
+
+    public void testRescheduleWhileRunningRunsAgain() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> payloads = Collections.synchronizedList(new ArrayList<String>());
+        mQueue.registerHandler("upload", new CacheWordJobQueue.JobHandler() {
+            @Override
+            public void onJobs(List<CacheWordJobQueue.Job> jobs) throws Exception {
+                payloads.add(new String(jobs.get(0).getPayload(), "UTF-8"));
+                started.countDown();
+                release.await();
+            }
+        });
+        mQueue.schedule("upload", "doc", "v1".getBytes("UTF-8"));
+        mQueue.unlockWithPrivateKey(mPrivateKey);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        // the running job has read v1, v2 must not be lost
+        assertTrue(mQueue.schedule("upload", "doc", "v2".getBytes("UTF-8")));
+        assertFalse(mQueue.schedule("upload", "doc", "v3".getBytes("UTF-8")));
+        release.countDown();
+        waitForEmpty();
+        assertEquals(2, payloads.size());
+        assertEquals("v1", payloads.get(0));
+        assertEquals("v2", payloads.get(1));
+        assertEquals(2, mQueue.getCompletedCount());
+    }
+
+    public void testLockInterruptsRunningBatch() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        mQueue.registerHandler("slow", new CacheWordJobQueue.JobHandler() {
+            @Override
+            public void onJobs(List<CacheWordJobQueue.Job> jobs) throws Exception {
+                started.countDown();
+                Thread.sleep(60 * 1000);
+            }
+        });
+        mQueue.schedule("slow", "a");
+        mQueue.unlockWithPrivateKey(mPrivateKey);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        long start = System.currentTimeMillis();
+        mQueue.onCacheWordLocking();
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        // cut short by the lock: kept, and not counted as an attempt
+        assertEquals(1, mQueue.getPendingCount());
+        assertEquals(0, mQueue.getFailedCount());
+    }
+
+    public void testBackoff() {
+        assertEquals(CacheWordJobQueue.MIN_BACKOFF_MILLIS, CacheWordJobQueue.backoffMillis(1));
+        assertEquals(2 * CacheWordJobQueue.MIN_BACKOFF_MILLIS,
+                CacheWordJobQueue.backoffMillis(2));
+        assertEquals(CacheWordJobQueue.MAX_BACKOFF_MILLIS, CacheWordJobQueue.backoffMillis(30));
+    }
+}
@@ -0,0 +1,273 @@
+package info.guardianproject.cacheword;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class CacheWordKeyValueStoreTest extends TestCase {
+
+    private byte[] mKey;
+    private File mFile;
+    private CacheWordKeyValueStore mStore;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mKey = new byte[AeadCipher.KEY_LEN_BYTES];
+        new SecureRandom().nextBytes(mKey);
+        mFile = File.createTempFile("store", ".log");
+        mFile.delete();
+        mStore = new CacheWordKeyValueStore(mFile, Constants.CIPHER_CHACHA20_POLY1305);
+        mStore.open(mKey);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mStore.close();
+        mFile.delete();
+        new File(mFile.getPath() + ".compact").delete();
+        super.tearDown();
+    }
+
+    private void reopen() throws IOException {
+        mStore.close();
+        mStore = new CacheWordKeyValueStore(mFile, Constants.CIPHER_CHACHA20_POLY1305);
+        mStore.open(mKey);
+    }
+
+    public void testPutGetRemove() throws IOException {
+        assertNull(mStore.get("missing"));
+        mStore.put("a", new byte[] {
+                1
+        });
+        mStore.put("b", new byte[0]);
+        assertTrue(Arrays.equals(new byte[] {
+                1
+        }, mStore.get("a")));
+        assertTrue(Arrays.equals(new byte[0], mStore.get("b")));
+        mStore.put("a", new byte[] {
+                2
+        });
+        assertTrue(Arrays.equals(new byte[] {
+                2
+        }, mStore.get("a")));
+        assertTrue(mStore.remove("a"));
+        assertFalse(mStore.remove("a"));
+        assertNull(mStore.get("a"));
+        assertEquals(1, mStore.size());
+    }
+
+    public void testIndexRebuiltOnOpen() throws IOException {
+        Random random = new Random(3);
+        Map<String, byte[]> model = new HashMap<String, byte[]>();
+        for (int i = 0; i < 500; i++) {
+            String key = "key" + random.nextInt(100);
+            if (random.nextInt(5) == 0) {
+                assertEquals(model.remove(key) != null, mStore.remove(key));
+            } else {
+                byte[] value = new byte[random.nextInt(300)];
+                random.nextBytes(value);
+                mStore.put(key, value);
+                model.put(key, value);
+            }
+        }
+        reopen();
+        assertEquals(model.size(), mStore.size());
+        for (Map.Entry<String, byte[]> e : model.entrySet())
+            assertTrue(Arrays.equals(e.getValue(), mStore.get(e.getKey())));
+    }
+
+    public void testConcurrentWriters() throws Exception {
+        List<Thread> threads = new ArrayList<Thread>();
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        for (int t = 0; t < 8; t++) {
+            final int id = t;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 50; i++)
+                            mStore.put(id + "/" + i, new byte[] {
+                                    (byte) id, (byte) i
+                            });
+                    } catch (Throwable e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertTrue(failures.toString(), failures.isEmpty());
+        reopen();
+        assertEquals(400, mStore.size());
+        assertTrue(Arrays.equals(new byte[] {
+                7, 49
+        }, mStore.get("7/49")));
+    }
+
+    public void testCompaction() throws IOException {
+        byte[] value = new byte[1000];
+        for (int i = 0; i < 1000; i++)
+            mStore.put("key" + (i % 10), value);
+        mStore.compact();
+        // background compactions may have run already, so compare with the
+        // live data: ten records and their overhead
+        assertTrue(mStore.getLogSize() < 10 * (value.length + 100));
+        assertEquals(10, mStore.size());
+        assertTrue(Arrays.equals(value, mStore.get("key3")));
+        mStore.put("key3", new byte[] {
+                9
+        });
+        reopen();
+        assertTrue(Arrays.equals(new byte[] {
+                9
+        }, mStore.get("key3")));
+        assertTrue(Arrays.equals(value, mStore.get("key4")));
+    }
+
+    public void testTornTailIsDropped() throws IOException {
+        mStore.put("a", new byte[] {
+                1
+        });
+        mStore.put("b", new byte[] {
+                2
+        });
+        mStore.close();
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+        mStore.open(mKey);
+        assertTrue(Arrays.equals(new byte[] {
+                1
+        }, mStore.get("a")));
+        assertNull(mStore.get("b"));
+        mStore.put("c", new byte[] {
+                3
+        });
+        reopen();
+        assertEquals(2, mStore.size());
+    }
+
+    public void testTamperedRecordFailsOpen() throws IOException {
+        mStore.put("a", new byte[] {
+                1
+        });
+        mStore.put("b", new byte[] {
+                2
+        });
+        mStore.close();
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        raf.seek(SegmentedAead.HEADER_LEN + 20);
+        int b = raf.read();
+        raf.seek(SegmentedAead.HEADER_LEN + 20);
+        raf.write(b ^ 1);
+        raf.close();
+        try {
+            mStore.open(mKey);
+            fail("tampered log was accepted");
+        } catch (IOException e) {
+            // expected
+        }
+        assertFalse(mStore.isOpen());
+    }
+
+    public void testCorruptLengthMidLogFailsOpen() throws IOException {
+        mStore.put("a", new byte[] {
+                1
+        });
+        mStore.put("b", new byte[] {
+                2
+        });
+        mStore.close();
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        // the length prefix of the first record
+        raf.seek(SegmentedAead.HEADER_LEN);
+        raf.writeInt(1);
+        raf.close();
+        long length = mFile.length();
+        try {
+            mStore.open(mKey);
+            fail("corrupt log was accepted");
+        } catch (IOException e) {
+            // expected
+        }
+        assertFalse(mStore.isOpen());
+        // nothing was truncated
+        assertEquals(length, mFile.length());
+    }
+
+    public void testZeroedTailIsDropped() throws IOException {
+        mStore.put("a", new byte[] {
+                1
+        });
+        mStore.close();
+        long end = mFile.length();
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        // space allocated by a write that never landed
+        raf.setLength(end + 100);
+        raf.close();
+        mStore.open(mKey);
+        assertEquals(1, mStore.size());
+        assertEquals(end, mStore.getLogSize());
+    }
+
+    public void testOversizedPutRejected() throws IOException {
+        try {
+            mStore.put("big", new byte[CacheWordKeyValueStore.MAX_RECORD_SIZE]);
+            fail("oversized record was accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        mStore.put("a", new byte[] {
+                1
+        });
+        reopen();
+        assertEquals(1, mStore.size());
+    }
+
+    public void testLockClosesStore() throws IOException {
+        mStore.put("a", new byte[] {
+                1
+        });
+        mStore.onCacheWordLocking();
+        assertFalse(mStore.isOpen());
+        try {
+            mStore.get("a");
+            fail("read from a locked store");
+        } catch (CacheWordLockedException e) {
+            // expected
+        }
+        mStore.open(mKey);
+        assertTrue(Arrays.equals(new byte[] {
+                1
+        }, mStore.get("a")));
+    }
+
+    public void testForceWipe() throws IOException {
+        mStore.put("a", new byte[] {
+                1
+        });
+        mStore.forceWipe();
+        assertFalse(mStore.isOpen());
+        try {
+            mStore.put("b", new byte[0]);
+            fail("wrote to a wiped store");
+        } catch (CacheWordLockedException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,221 @@
+
+package info.guardianproject.cacheword;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+public class CacheWordRewrapEngineTest extends TestCase {
+
+    private static final int OLD_ITERATIONS = 100;
+    private static final int NEW_ITERATIONS = 1000;
+
+    private File mCheckpoint;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCheckpoint = File.createTempFile("rewrap", ".checkpoint");
+        mCheckpoint.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCheckpoint.delete();
+        super.tearDown();
+    }
+
+    /**
+     * Records the results; fails once on the given id.
+     */
+    private static class RecordingSink implements CacheWordRewrapEngine.Sink {
+        final List<String> ids = new ArrayList<String>();
+        final List<byte[]> secrets = new ArrayList<byte[]>();
+        final List<String> failed = new ArrayList<String>();
+        String failOn;
+
+        @Override
+        public void onRewrapped(String id, byte[] s) throws IOException {
+            if (id.equals(failOn)) {
+                failOn = null;
+                throw new IOException("disk full");
+            }
+            ids.add(id);
+            secrets.add(s);
+        }
+
+        @Override
+        public void onFailed(String id, Exception e) {
+            failed.add(id);
+        }
+    }
+
+    private static List<CacheWordRewrapEngine.Bundle> bundles(int count)
+            throws GeneralSecurityException {
+        List<CacheWordRewrapEngine.Bundle> bundles = new ArrayList<CacheWordRewrapEngine.Bundle>();
+        for (int i = 0; i < count; i++) {
+            byte[] secrets = new PassphraseSecretsImpl().encryptWithPassphrase(null,
+                    ("pass" + i).toCharArray(), TestUtils.key(i), OLD_ITERATIONS,
+                    Constants.CIPHER_CHACHA20_POLY1305).getBytes();
+            bundles.add(new CacheWordRewrapEngine.Bundle("b" + i, secrets,
+                    ("pass" + i).toCharArray(), ("new" + i).toCharArray()));
+        }
+        return bundles;
+    }
+
+    private static List<String> ids(int from, int to) {
+        List<String> ids = new ArrayList<String>();
+        for (int i = from; i < to; i++)
+            ids.add("b" + i);
+        return ids;
+    }
+
+    public void testRewrapInInputOrder() throws Exception {
+        CacheWordRewrapEngine engine = new CacheWordRewrapEngine(NEW_ITERATIONS,
+                Constants.CIPHER_CHACHA20_POLY1305, CacheWordRewrapEngine.ORDER_INPUT);
+        engine.setThreads(3);
+        engine.setExpectedTotal(20);
+        RecordingSink sink = new RecordingSink();
+        assertEquals(20, engine.run(bundles(20).iterator(), sink));
+        assertEquals(ids(0, 20), sink.ids);
+        assertTrue(sink.failed.isEmpty());
+        assertEquals(0, engine.getEtaMillis());
+        assertTrue(engine.getThroughput() > 0);
+
+        for (int i = 0; i < 20; i++) {
+            SerializedSecretsV1 ss = new SerializedSecretsLoader().loadSecrets(sink.secrets.get(i));
+            assertEquals(NEW_ITERATIONS, ss.pbkdf_iter_count);
+            byte[] key = new PassphraseSecretsImpl().decryptWithPassphrase(
+                    ("new" + i).toCharArray(), ss);
+            assertTrue(Arrays.equals(TestUtils.key(i), key));
+        }
+    }
+
+    public void testCompletionOrderDeliversAll() throws Exception {
+        CacheWordRewrapEngine engine = new CacheWordRewrapEngine(NEW_ITERATIONS,
+                Constants.CIPHER_CHACHA20_POLY1305, CacheWordRewrapEngine.ORDER_COMPLETION);
+        engine.setThreads(2);
+        RecordingSink sink = new RecordingSink();
+        engine.run(bundles(12).iterator(), sink);
+        List<String> sorted = new ArrayList<String>(sink.ids);
+        Collections.sort(sorted);
+        List<String> expected = ids(0, 12);
+        Collections.sort(expected);
+        assertEquals(expected, sorted);
+    }
+
+    public void testWrongPassphraseFails() throws Exception {
+        List<CacheWordRewrapEngine.Bundle> bundles = bundles(3);
+        CacheWordRewrapEngine.Bundle b = bundles.get(1);
+        bundles.set(1, new CacheWordRewrapEngine.Bundle(b.id, b.secrets, "wrong".toCharArray(),
+                null));
+        CacheWordRewrapEngine engine = new CacheWordRewrapEngine(NEW_ITERATIONS,
+                Constants.CIPHER_CHACHA20_POLY1305, CacheWordRewrapEngine.ORDER_INPUT);
+        engine.setVerifyOnly(true);
+        RecordingSink sink = new RecordingSink();
+        engine.run(bundles.iterator(), sink);
+        assertEquals(Arrays.asList("b0", "b2"), sink.ids);
+        assertNull(sink.secrets.get(0));
+        assertEquals(Collections.singletonList("b1"), sink.failed);
+        assertEquals(1, engine.getFailedCount());
+    }
+
+    public void testManyBundlesWithoutCheckpointFile() throws Exception {
+        byte[] secrets = bundles(1).get(0).secrets;
+        int count = (int) CacheWordRewrapEngine.CHECKPOINT_INTERVAL + 10;
+        List<CacheWordRewrapEngine.Bundle> bundles = new ArrayList<CacheWordRewrapEngine.Bundle>();
+        for (int i = 0; i < count; i++)
+            bundles.add(new CacheWordRewrapEngine.Bundle("b" + i, secrets,
+                    "pass0".toCharArray(), null));
+        CacheWordRewrapEngine engine = new CacheWordRewrapEngine(NEW_ITERATIONS,
+                Constants.CIPHER_CHACHA20_POLY1305, CacheWordRewrapEngine.ORDER_INPUT);
+        engine.setVerifyOnly(true);
+        RecordingSink sink = new RecordingSink();
+        assertEquals(count, engine.run(bundles.iterator(), sink));
+        assertEquals(ids(0, count), sink.ids);
+    }
+
+    public void testResumeFromCheckpoint() throws Exception {
+        CacheWordRewrapEngine engine = new CacheWordRewrapEngine(NEW_ITERATIONS,
+                Constants.CIPHER_CHACHA20_POLY1305, CacheWordRewrapEngine.ORDER_INPUT);
+        engine.setCheckpointFile(mCheckpoint);
+        RecordingSink sink = new RecordingSink();
+        sink.failOn = "b7";
+        try {
+            engine.run(bundles(10).iterator(), sink);
+            fail("the sink's exception was swallowed");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(ids(0, 7), sink.ids);
+        assertTrue(mCheckpoint.exists());
+
+        RecordingSink resumed = new RecordingSink();
+        assertEquals(3, engine.run(bundles(10).iterator(), resumed));
+        assertEquals(7, engine.getSkippedCount());
+        assertEquals(ids(7, 10), resumed.ids);
+        assertFalse(mCheckpoint.exists());
+    }
+
+    public void testSlowBundleBoundsWhatIsHeldBack() throws Exception {
+        final List<CacheWordRewrapEngine.Bundle> bundles = bundles(40);
+        // far more iterations, so every later bundle finishes first
+        byte[] slow = new PassphraseSecretsImpl().encryptWithPassphrase(null,
+                "pass0".toCharArray(), TestUtils.key(0), 200 * 1000,
+                Constants.CIPHER_CHACHA20_POLY1305).getBytes();
+        bundles.set(0, new CacheWordRewrapEngine.Bundle("b0", slow, "pass0".toCharArray(),
+                "new0".toCharArray()));
+        final RecordingSink sink = new RecordingSink();
+        final int[] maxOutstanding = new int[1];
+        Iterator<CacheWordRewrapEngine.Bundle> source;
+        source = new Iterator<CacheWordRewrapEngine.Bundle>() {
+            int mNext = 0;
+
+            @Override
+            public boolean hasNext() {
+                return mNext < bundles.size();
+            }
+
+            @Override
+            public CacheWordRewrapEngine.Bundle next() {
+                mNext++;
+                maxOutstanding[0] = Math.max(maxOutstanding[0], mNext - sink.ids.size());
+                return bundles.get(mNext - 1);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+        CacheWordRewrapEngine engine = new CacheWordRewrapEngine(NEW_ITERATIONS,
+                Constants.CIPHER_CHACHA20_POLY1305, CacheWordRewrapEngine.ORDER_INPUT);
+        engine.setThreads(2);
+        engine.run(source, sink);
+        assertEquals(ids(0, 40), sink.ids);
+        assertTrue("outstanding " + maxOutstanding[0],
+                maxOutstanding[0] <= 2 * CacheWordRewrapEngine.IN_FLIGHT_PER_THREAD);
+    }
+
+    public void testCheckpointFailureDoesNotMaskTheError() throws Exception {
+        CacheWordRewrapEngine engine = new CacheWordRewrapEngine(NEW_ITERATIONS,
+                Constants.CIPHER_CHACHA20_POLY1305, CacheWordRewrapEngine.ORDER_INPUT);
+        // can't be written, its directory doesn't exist
+        engine.setCheckpointFile(new File(mCheckpoint, "checkpoint"));
+        RecordingSink sink = new RecordingSink();
+        sink.failOn = "b3";
+        try {
+            engine.run(bundles(5).iterator(), sink);
+            fail("the sink's exception was swallowed");
+        } catch (IOException e) {
+            assertEquals("disk full", e.getMessage());
+        }
+    }
+}
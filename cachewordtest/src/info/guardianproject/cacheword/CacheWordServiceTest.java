@@ -0,0 +1,73 @@
+
+package info.guardianproject.cacheword;
+
+import android.test.ServiceTestCase;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class CacheWordServiceTest extends ServiceTestCase<CacheWordService> {
+
+    private static final String PASSPHRASE = "hunter2";
+
+    private CacheWordHandler mHandler;
+    private final CountDownLatch mRelease = new CountDownLatch(1);
+    private final CountDownLatch mLocking = new CountDownLatch(1);
+
+    // holds up the teardown until released
+    private final ICacheWordLockListener mListener = new ICacheWordLockListener() {
+        @Override
+        public void onCacheWordLocking() {
+            mLocking.countDown();
+            try {
+                mRelease.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                // past the deadline
+            }
+        }
+    };
+
+    public CacheWordServiceTest() {
+        super(CacheWordService.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        SecretsManager.setInitialized(getContext(), false);
+        mHandler = TestUtils.openCacheWord(getContext(), PASSPHRASE);
+        CacheWordService.addLockListener(mListener);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mRelease.countDown();
+        CacheWordService.removeLockListener(mListener);
+        CacheWordService.awaitLocks();
+        mHandler.disconnectFromService();
+        super.tearDown();
+    }
+
+    public void testLockedWhenLockReturns() throws Exception {
+        mHandler.lock();
+        assertTrue(mHandler.isLocked());
+        assertNull(mHandler.getCachedSecrets());
+        assertNull(mHandler.getEncryptionKey());
+        // the listeners are still running
+        assertTrue(mLocking.await(10, TimeUnit.SECONDS));
+        assertTrue(mHandler.isLocked());
+    }
+
+    public void testUnlockDuringTeardownIsKept() throws Exception {
+        byte[] key = mHandler.getEncryptionKey();
+        mHandler.lock();
+        assertTrue(mLocking.await(10, TimeUnit.SECONDS));
+        mHandler.setPassphrase(PASSPHRASE.toCharArray());
+
+        mRelease.countDown();
+        CacheWordService.awaitLocks();
+        assertFalse(mHandler.isLocked());
+        assertTrue(Arrays.equals(key, mHandler.getEncryptionKey()));
+    }
+}
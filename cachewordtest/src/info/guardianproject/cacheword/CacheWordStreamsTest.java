@@ -0,0 +1,167 @@
+package info.guardianproject.cacheword;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+public class CacheWordStreamsTest extends TestCase {
+
+    private static final int SEGMENT = 1024;
+    private static final int SEGMENT_CT = SEGMENT + AeadCipher.TAG_LEN_BYTES;
+
+    private byte[] mKey;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mKey = new byte[AeadCipher.KEY_LEN_BYTES];
+        new SecureRandom().nextBytes(mKey);
+    }
+
+    private byte[] encrypt(byte[] plaintext, int cipherId) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CacheWordEncryptingOutputStream out = new CacheWordEncryptingOutputStream(mKey, bytes,
+                cipherId, SEGMENT);
+        // uneven writes so segment boundaries fall mid-write
+        int off = 0;
+        int step = 1;
+        while (off < plaintext.length) {
+            int n = Math.min(step, plaintext.length - off);
+            out.write(plaintext, off, n);
+            off += n;
+            step = step * 3 + 1;
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private byte[] decrypt(byte[] ciphertext) throws IOException {
+        InputStream in = new CacheWordDecryptingInputStream(mKey,
+                new ByteArrayInputStream(ciphertext));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buf = new byte[777];
+        int n;
+        while ((n = in.read(buf)) != -1)
+            bytes.write(buf, 0, n);
+        in.close();
+        return bytes.toByteArray();
+    }
+
+    private void assertRejected(byte[] ciphertext) {
+        try {
+            decrypt(ciphertext);
+            fail("modified stream was accepted");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testRoundTrip() throws IOException {
+        int[] sizes = {
+                0, 1, SEGMENT - 1, SEGMENT, SEGMENT + 1, 3 * SEGMENT, 5 * SEGMENT + 17
+        };
+        for (int size : sizes) {
+            byte[] plaintext = TestUtils.random(size);
+            byte[] ct = encrypt(plaintext, Constants.CIPHER_CHACHA20_POLY1305);
+            assertEquals(CacheWordEncryptingOutputStream.getCiphertextLength(size, SEGMENT),
+                    ct.length);
+            assertTrue("size " + size, Arrays.equals(plaintext, decrypt(ct)));
+        }
+    }
+
+    public void testRoundTripAesGcm() throws IOException {
+        byte[] plaintext = TestUtils.random(2 * SEGMENT + 5);
+        byte[] ct = encrypt(plaintext, Constants.CIPHER_AES_GCM);
+        assertTrue(Arrays.equals(plaintext, decrypt(ct)));
+    }
+
+    public void testSingleByteReadsAndWrites() throws IOException {
+        byte[] plaintext = TestUtils.random(SEGMENT + 3);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CacheWordEncryptingOutputStream out = new CacheWordEncryptingOutputStream(mKey, bytes,
+                Constants.CIPHER_CHACHA20_POLY1305, SEGMENT);
+        for (byte b : plaintext)
+            out.write(b);
+        out.close();
+
+        InputStream in = new CacheWordDecryptingInputStream(mKey,
+                new ByteArrayInputStream(bytes.toByteArray()));
+        for (byte b : plaintext)
+            assertEquals(b & 0xff, in.read());
+        assertEquals(-1, in.read());
+        in.close();
+    }
+
+    public void testWrongKey() throws IOException {
+        byte[] ct = encrypt(TestUtils.random(100), Constants.CIPHER_CHACHA20_POLY1305);
+        mKey[0] ^= 1;
+        assertRejected(ct);
+    }
+
+    public void testTruncation() throws IOException {
+        byte[] ct = encrypt(TestUtils.random(3 * SEGMENT), Constants.CIPHER_CHACHA20_POLY1305);
+        // inside the header, inside a segment, and exactly at a segment boundary
+        assertRejected(Arrays.copyOf(ct, 10));
+        assertRejected(Arrays.copyOf(ct, ct.length - 1));
+        assertRejected(Arrays.copyOf(ct, SegmentedAead.HEADER_LEN + SEGMENT_CT));
+        assertRejected(Arrays.copyOf(ct, SegmentedAead.HEADER_LEN + 2 * SEGMENT_CT));
+    }
+
+    public void testTruncationFailsBeforeLaterData() throws IOException {
+        byte[] plaintext = TestUtils.random(3 * SEGMENT);
+        byte[] ct = encrypt(plaintext, Constants.CIPHER_CHACHA20_POLY1305);
+        InputStream in = new CacheWordDecryptingInputStream(mKey, new ByteArrayInputStream(
+                Arrays.copyOf(ct, SegmentedAead.HEADER_LEN + 2 * SEGMENT_CT)));
+        byte[] buf = new byte[SEGMENT];
+        assertEquals(SEGMENT, in.read(buf));
+        assertTrue(Arrays.equals(Arrays.copyOf(plaintext, SEGMENT), buf));
+        try {
+            in.read(buf);
+            fail("truncated stream was accepted");
+        } catch (IOException e) {
+            // expected
+        }
+        in.close();
+    }
+
+    public void testTamperedHeader() throws IOException {
+        byte[] ct = encrypt(TestUtils.random(100), Constants.CIPHER_CHACHA20_POLY1305);
+        for (int i = 0; i < SegmentedAead.HEADER_LEN; i++) {
+            byte[] bad = ct.clone();
+            bad[i] ^= 0x01;
+            assertRejected(bad);
+        }
+    }
+
+    public void testTamperedBody() throws IOException {
+        byte[] ct = encrypt(TestUtils.random(2 * SEGMENT), Constants.CIPHER_CHACHA20_POLY1305);
+        byte[] bad = ct.clone();
+        bad[SegmentedAead.HEADER_LEN + SEGMENT_CT + 7] ^= 0x40;
+        assertRejected(bad);
+    }
+
+    public void testSwappedSegments() throws IOException {
+        byte[] ct = encrypt(TestUtils.random(3 * SEGMENT), Constants.CIPHER_CHACHA20_POLY1305);
+        byte[] bad = ct.clone();
+        int first = SegmentedAead.HEADER_LEN;
+        int second = first + SEGMENT_CT;
+        System.arraycopy(ct, first, bad, second, SEGMENT_CT);
+        System.arraycopy(ct, second, bad, first, SEGMENT_CT);
+        assertRejected(bad);
+    }
+
+    public void testBadSegmentSize() throws IOException {
+        try {
+            new CacheWordEncryptingOutputStream(mKey, new ByteArrayOutputStream(),
+                    Constants.CIPHER_CHACHA20_POLY1305, SegmentedAead.MIN_SEGMENT_SIZE - 1);
+            fail("accepted a segment size below the minimum");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,86 @@
+
+package info.guardianproject.cacheword;
+
+import android.test.AndroidTestCase;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+public class CacheWordTest extends AndroidTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        SecretsManager.setInitialized(getContext(), false);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        SecretsManager.setInitialized(getContext(), false);
+        super.tearDown();
+    }
+
+    public void testBootstrapRunsOnce() throws Exception {
+        Future<Void> bootstrap = CacheWord.bootstrap(getContext());
+        assertSame(bootstrap, CacheWord.bootstrap(getContext()));
+        bootstrap.get();
+        assertTrue(CacheWord.isReady());
+    }
+
+    public void testUnlockWaitsForBootstrap() throws Exception {
+        // no explicit bootstrap, initializing the secrets must run it first
+        PassphraseSecrets secrets = PassphraseSecrets.initializeSecrets(getContext(),
+                "hunter2".toCharArray());
+        assertNotNull(secrets);
+        assertTrue(CacheWord.isReady());
+        // the providers were chosen before the key was derived
+        assertNotNull(CryptoProviders.getSelectedProvider(CryptoProviders.PBKDF2));
+    }
+
+    public void testInterruptedWaitGivesUp() throws Exception {
+        FutureTask<Void> stuck = new FutureTask<Void>(new Callable<Void>() {
+            @Override
+            public Void call() {
+                return null;
+            }
+        });
+        Thread.currentThread().interrupt();
+        try {
+            CacheWord.awaitBootstrap(stuck, CacheWord.BOOTSTRAP_TIMEOUT_MILLIS);
+            fail("waited through an interrupt");
+        } catch (SecurityException e) {
+            // expected
+        }
+        assertTrue(Thread.interrupted());
+
+        try {
+            CacheWord.awaitBootstrap(stuck, 10);
+            fail("waited past the timeout");
+        } catch (SecurityException e) {
+            // expected
+        }
+
+        stuck.run();
+        CacheWord.awaitBootstrap(stuck, 10);
+    }
+
+    public void testBootstrapFromManyThreads() throws Exception {
+        final Future<?>[] seen = new Future<?>[8];
+        Thread[] threads = new Thread[seen.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int n = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    seen[n] = CacheWord.bootstrap(getContext());
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        for (Future<?> f : seen)
+            assertSame(seen[0], f);
+    }
+}
@@ -0,0 +1,118 @@
+
+package info.guardianproject.cacheword;
+
+import junit.framework.TestCase;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class CacheWordVaultTest extends TestCase {
+
+    private static final long TTL_MILLIS = 200;
+
+    private CacheWordVault mVault;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mVault = new CacheWordVault(64, TTL_MILLIS, 2, 10);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mVault.close();
+        super.tearDown();
+    }
+
+    private static byte[] secretsFor(String passphrase, byte[] key)
+            throws GeneralSecurityException {
+        return new PassphraseSecretsImpl().encryptWithPassphrase(null,
+                passphrase.toCharArray(), key, 1000, Constants.CIPHER_CHACHA20_POLY1305)
+                .getBytes();
+    }
+
+    public void testUnlockAndGetKey() throws Exception {
+        char[] pass = "alice pass".toCharArray();
+        mVault.unlock("alice", secretsFor("alice pass", TestUtils.key(1)), pass, null)
+                .get(10, TimeUnit.SECONDS);
+        assertFalse(Arrays.equals("alice pass".toCharArray(), pass));
+        assertTrue(mVault.isUnlocked("alice"));
+
+        byte[] copy = mVault.getKey("alice");
+        assertTrue(Arrays.equals(TestUtils.key(1), copy));
+        Wiper.wipe(copy);
+        assertTrue(Arrays.equals(TestUtils.key(1), mVault.getKey("alice")));
+        assertNull(mVault.getKey("bob"));
+        assertEquals(2, mVault.getHitCount());
+        assertEquals(1, mVault.getMissCount());
+        assertEquals(1, mVault.getUnlockCount());
+    }
+
+    public void testWrongPassphrase() throws Exception {
+        final CountDownLatch failed = new CountDownLatch(1);
+        final AtomicReference<Throwable> cause = new AtomicReference<Throwable>();
+        try {
+            mVault.unlock("alice", secretsFor("alice pass", TestUtils.key(1)),
+                    "wrong".toCharArray(), new CacheWordVault.Callback() {
+                        @Override
+                        public void onUnlocked(String tenant) {
+                        }
+
+                        @Override
+                        public void onUnlockFailed(String tenant, Throwable t) {
+                            cause.set(t);
+                            failed.countDown();
+                        }
+                    }).get(10, TimeUnit.SECONDS);
+            fail("unlocked with a wrong passphrase");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof GeneralSecurityException);
+        }
+        assertTrue(failed.await(5, TimeUnit.SECONDS));
+        assertTrue(cause.get() instanceof GeneralSecurityException);
+        assertFalse(mVault.isUnlocked("alice"));
+        assertEquals(1, mVault.getFailedUnlockCount());
+    }
+
+    public void testIdleKeysExpire() throws Exception {
+        mVault.put("busy", TestUtils.key(1));
+        mVault.put("idle", TestUtils.key(2));
+        long end = System.currentTimeMillis() + 3 * TTL_MILLIS;
+        while (System.currentTimeMillis() < end) {
+            assertNotNull(mVault.getKey("busy"));
+            Thread.sleep(TTL_MILLIS / 4);
+        }
+        assertTrue(mVault.isUnlocked("busy"));
+        assertFalse(mVault.isUnlocked("idle"));
+
+        Thread.sleep(3 * TTL_MILLIS);
+        assertFalse(mVault.isUnlocked("busy"));
+        assertEquals(2, mVault.getIdleEvictionCount());
+        assertEquals(0, mVault.size());
+    }
+
+    public void testSizeBound() {
+        for (int i = 0; i < 1000; i++)
+            mVault.put("tenant" + i, TestUtils.key(i));
+        assertEquals(64, mVault.size());
+        assertEquals(1000 - 64, mVault.getSizeEvictionCount());
+        // the most recent tenant of each segment survives
+        assertTrue(mVault.isUnlocked("tenant999"));
+    }
+
+    public void testReplaceAndLock() {
+        mVault.put("alice", TestUtils.key(1));
+        mVault.put("alice", TestUtils.key(2));
+        assertEquals(1, mVault.size());
+        assertTrue(Arrays.equals(TestUtils.key(2), mVault.getKey("alice")));
+        mVault.lock("alice");
+        assertNull(mVault.getKey("alice"));
+        mVault.put("bob", TestUtils.key(3));
+        mVault.lockAll();
+        assertEquals(0, mVault.size());
+    }
+}
@@ -0,0 +1,98 @@
+package info.guardianproject.cacheword;
+
+import junit.framework.TestCase;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+public class ChaCha20Poly1305Test extends TestCase {
+
+    private static byte[] rfcKey() {
+        byte[] key = new byte[32];
+        for (int i = 0; i < key.length; i++)
+            key[i] = (byte) (0x80 + i);
+        return key;
+    }
+
+    // RFC 8439 section 2.8.2
+    private static final byte[] NONCE = TestUtils.unhex("070000004041424344454647");
+    private static final byte[] AAD = TestUtils.unhex("50515253c0c1c2c3c4c5c6c7");
+    private static final String PLAINTEXT = "Ladies and Gentlemen of the class of '99: "
+            + "If I could offer you only one tip for the future, sunscreen would be it.";
+    private static final byte[] CIPHERTEXT = TestUtils.unhex(
+            "d31a8d34648e60db7b86afbc53ef7ec2a4aded51296e08fea9e2b5a736ee62d6"
+                    + "3dbea45e8ca9671282fafb69da92728b1a71de0a9e060b2905d6a5b67ecd3b36"
+                    + "92ddbd7f2d778b8c9803aee328091b58fab324e4fad675945585808b4831d7bc"
+                    + "3ff4def08e4b7a9de576d26586cec64b6116"
+                    + "1ae10b594f09e26a7e902ecbd0600691");
+
+    public void testKnownAnswer() throws Exception {
+        ChaCha20Poly1305 cipher = new ChaCha20Poly1305(rfcKey());
+        byte[] ct = cipher.encrypt(NONCE, AAD, PLAINTEXT.getBytes("US-ASCII"));
+        assertTrue(Arrays.equals(CIPHERTEXT, ct));
+        assertEquals(PLAINTEXT, new String(cipher.decrypt(NONCE, AAD, ct), "US-ASCII"));
+    }
+
+    public void testInPlace() throws Exception {
+        ChaCha20Poly1305 cipher = new ChaCha20Poly1305(rfcKey());
+        byte[] pt = PLAINTEXT.getBytes("US-ASCII");
+        byte[] buf = Arrays.copyOf(pt, pt.length + AeadCipher.TAG_LEN_BYTES);
+        assertEquals(buf.length, cipher.encrypt(NONCE, AAD, buf, 0, pt.length, buf, 0));
+        assertTrue(Arrays.equals(CIPHERTEXT, buf));
+        assertEquals(pt.length, cipher.decrypt(NONCE, AAD, buf, 0, buf.length, buf, 0));
+        assertTrue(Arrays.equals(pt, Arrays.copyOf(buf, pt.length)));
+    }
+
+    public void testRejectsTampering() throws Exception {
+        ChaCha20Poly1305 cipher = new ChaCha20Poly1305(rfcKey());
+        for (int i = 0; i < CIPHERTEXT.length; i += 7) {
+            byte[] ct = CIPHERTEXT.clone();
+            ct[i] ^= 0x01;
+            try {
+                cipher.decrypt(NONCE, AAD, ct);
+                fail("accepted a modified byte at " + i);
+            } catch (GeneralSecurityException e) {
+                // expected
+            }
+        }
+        try {
+            cipher.decrypt(NONCE, new byte[AAD.length], CIPHERTEXT);
+            fail("accepted the wrong associated data");
+        } catch (GeneralSecurityException e) {
+            // expected
+        }
+    }
+
+    public void testWipe() throws Exception {
+        ChaCha20Poly1305 cipher = new ChaCha20Poly1305(rfcKey());
+        cipher.wipe();
+        try {
+            cipher.encrypt(NONCE, null, new byte[1]);
+            fail("encrypted after wipe");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    public void testVersion2Bundle() throws Exception {
+        byte[] secret = rfcKey();
+        char[] pass = "hunter2".toCharArray();
+        PassphraseSecretsImpl crypto = new PassphraseSecretsImpl();
+        SerializedSecretsV2 ss = crypto.encryptWithPassphrase(null, pass, secret,
+                Constants.PBKDF2_MINIMUM_ITERATION_COUNT, Constants.CIPHER_CHACHA20_POLY1305);
+
+        SerializedSecretsLoader loader = new SerializedSecretsLoader();
+        byte[] serialized = ss.getBytes();
+        assertEquals(Constants.VERSION_TWO, loader.getVersion(serialized));
+        SerializedSecretsV1 loaded = loader.loadSecrets(serialized);
+        assertEquals(Constants.CIPHER_CHACHA20_POLY1305, loaded.getCipher());
+        assertTrue(Arrays.equals(secret, crypto.decryptWithPassphrase(pass, loaded)));
+
+        try {
+            crypto.decryptWithPassphrase("hunter3".toCharArray(), loaded);
+            fail("decrypted with the wrong passphrase");
+        } catch (GeneralSecurityException e) {
+            // expected
+        }
+    }
+}
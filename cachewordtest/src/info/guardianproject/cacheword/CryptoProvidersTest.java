@@ -0,0 +1,141 @@
+
+package info.guardianproject.cacheword;
+
+import android.test.AndroidTestCase;
+
+import java.security.Provider;
+import java.security.Security;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.KeySpec;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.SecretKeyFactorySpi;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+public class CryptoProvidersTest extends AndroidTestCase {
+
+    public void testPbkdf2KnownAnswer() throws Exception {
+        // RFC 6070 test vectors 1 and 2
+        SecretKeyFactory factory = SecretKeyFactory.getInstance(CryptoProviders.PBKDF2);
+        assertTrue(Arrays.equals(TestUtils.unhex("0c60c80f961f0e71f3a9b524af6012062fe037a6"),
+                pbkdf2(factory, 1)));
+        assertTrue(Arrays.equals(TestUtils.unhex("ea6c014dc72d6f8ccd1ed92ace1d41f0d8de8957"),
+                pbkdf2(factory, 2)));
+        assertTrue(CryptoProviders.passesKnownAnswerTest(CryptoProviders.PBKDF2,
+                factory.getProvider()));
+    }
+
+    public void testAesGcmKnownAnswer() throws Exception {
+        // NIST GCM test case 14
+        Cipher cipher = Cipher.getInstance(CryptoProviders.AES_GCM);
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(new byte[32], "AES"),
+                new IvParameterSpec(new byte[Constants.GCM_IV_LEN_BYTES]));
+        assertTrue(Arrays.equals(TestUtils.unhex(
+                "cea7403d4d606b6e074ec5d3baf39d18d0d1c8a799996bf0265b98b5d48ab919"),
+                cipher.doFinal(new byte[16])));
+        assertTrue(CryptoProviders.passesKnownAnswerTest(CryptoProviders.AES_GCM,
+                cipher.getProvider()));
+    }
+
+    public void testWrongProviderFailsKnownAnswer() throws Exception {
+        assertFalse(CryptoProviders.passesKnownAnswerTest(CryptoProviders.PBKDF2,
+                new BrokenProvider()));
+    }
+
+    public void testChaChaKnownAnswer() throws Exception {
+        assertTrue(CryptoProviders.passesKnownAnswerTest(CryptoProviders.CHACHA20_POLY1305,
+                null));
+    }
+
+    public void testNonAsciiPassphraseIgnoresSelection() throws Exception {
+        BrokenProvider broken = new BrokenProvider();
+        Security.addProvider(broken);
+        CryptoProviders.setOverride(getContext(), CryptoProviders.PBKDF2, broken.getName());
+        try {
+            CryptoProviders.invalidate(getContext());
+            CryptoProviders.select(getContext());
+            assertEquals(broken, CryptoProviders.getSelectedProvider(CryptoProviders.PBKDF2));
+
+            PassphraseSecretsImpl crypto = new PassphraseSecretsImpl();
+            byte[] salt = new byte[Constants.PBKDF2_SALT_LEN_BYTES];
+            assertTrue(Arrays.equals(new byte[20],
+                    crypto.hashPassphrase("hunter2".toCharArray(), salt, 100).getEncoded()));
+
+            char[] passphrase = "h\u00fcnter2".toCharArray();
+            byte[] expected = SecretKeyFactory.getInstance(CryptoProviders.PBKDF2)
+                    .generateSecret(new PBEKeySpec(passphrase, salt, 100,
+                            Constants.PBKDF2_KEY_LEN_BITS)).getEncoded();
+            assertTrue(Arrays.equals(expected,
+                    crypto.hashPassphrase(passphrase, salt, 100).getEncoded()));
+        } finally {
+            CryptoProviders.setOverride(getContext(), CryptoProviders.PBKDF2, null);
+            Security.removeProvider(broken.getName());
+            CryptoProviders.invalidate(getContext());
+            CryptoProviders.select(getContext());
+        }
+    }
+
+    public void testSelectionUsesCorrectProviders() throws Exception {
+        CryptoProviders.invalidate(getContext());
+        CryptoProviders.select(getContext());
+        Provider provider = CryptoProviders.getSelectedProvider(CryptoProviders.PBKDF2);
+        assertNotNull(provider);
+        assertTrue(CryptoProviders.passesKnownAnswerTest(CryptoProviders.PBKDF2, provider));
+        assertTrue(CryptoProviders.getBenchmarkNanos(CryptoProviders.PBKDF2) > 0);
+    }
+
+    public void testPinnedAesGcmSelectsAesGcm() throws Exception {
+        String name = Cipher.getInstance(CryptoProviders.AES_GCM).getProvider().getName();
+        CryptoProviders.setOverride(getContext(), CryptoProviders.AES_GCM, name);
+        try {
+            CryptoProviders.invalidate(getContext());
+            CryptoProviders.select(getContext());
+            assertEquals(name,
+                    CryptoProviders.getSelectedProvider(CryptoProviders.AES_GCM).getName());
+            assertEquals(Constants.CIPHER_AES_GCM, CryptoProviders.getPreferredAead());
+        } finally {
+            CryptoProviders.setOverride(getContext(), CryptoProviders.AES_GCM, null);
+        }
+    }
+
+    private static byte[] pbkdf2(SecretKeyFactory factory, int iterations) throws Exception {
+        return factory.generateSecret(
+                new PBEKeySpec("password".toCharArray(), "salt".getBytes("US-ASCII"),
+                        iterations, 160)).getEncoded();
+    }
+
+    /**
+     * A provider whose PBKDF2 returns zeros.
+     */
+    @SuppressWarnings("serial")
+    private static class BrokenProvider extends Provider {
+        BrokenProvider() {
+            super("CacheWordTestBroken", 1.0, "returns wrong keys");
+            put("SecretKeyFactory." + CryptoProviders.PBKDF2, ZeroKeyFactory.class.getName());
+        }
+    }
+
+    public static class ZeroKeyFactory extends SecretKeyFactorySpi {
+        @Override
+        protected SecretKey engineGenerateSecret(KeySpec keySpec) {
+            return new SecretKeySpec(new byte[20], CryptoProviders.PBKDF2);
+        }
+
+        @Override
+        @SuppressWarnings("rawtypes")
+        protected KeySpec engineGetKeySpec(SecretKey key, Class keySpec)
+                throws InvalidKeySpecException {
+            throw new InvalidKeySpecException();
+        }
+
+        @Override
+        protected SecretKey engineTranslateKey(SecretKey key) {
+            return key;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package info.guardianproject.cacheword;
+
+import android.content.SharedPreferences;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class EncryptedPreferencesTest extends TestCase {
+
+    private byte[] mKey;
+    private File mFile;
+    private EncryptedPreferences mPrefs;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mKey = new byte[AeadCipher.KEY_LEN_BYTES];
+        new SecureRandom().nextBytes(mKey);
+        mFile = File.createTempFile("prefs", EncryptedPreferences.FILE_SUFFIX);
+        mFile.delete();
+        mPrefs = new EncryptedPreferences(mFile, Constants.CIPHER_CHACHA20_POLY1305);
+        mPrefs.open(mKey);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mPrefs.close();
+        mFile.delete();
+        super.tearDown();
+    }
+
+    private void reopen() throws IOException {
+        mPrefs.close();
+        mPrefs = new EncryptedPreferences(mFile, Constants.CIPHER_CHACHA20_POLY1305);
+        mPrefs.open(mKey);
+    }
+
+    public void testAllTypesRoundTrip() throws IOException {
+        Set<String> set = new HashSet<String>();
+        set.add("one");
+        set.add("two");
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 10000; i++)
+            large.append("\u00e9\u4e2d");
+        assertTrue(mPrefs.edit()
+                .putString("string", "value")
+                .putString("large", large.toString())
+                .putInt("int", -7)
+                .putLong("long", Long.MAX_VALUE)
+                .putFloat("float", 1.5f)
+                .putBoolean("boolean", true)
+                .putStringSet("set", set)
+                .commit());
+        reopen();
+        assertEquals("value", mPrefs.getString("string", null));
+        assertEquals(large.toString(), mPrefs.getString("large", null));
+        assertEquals(-7, mPrefs.getInt("int", 0));
+        assertEquals(Long.MAX_VALUE, mPrefs.getLong("long", 0));
+        assertEquals(1.5f, mPrefs.getFloat("float", 0));
+        assertTrue(mPrefs.getBoolean("boolean", false));
+        assertEquals(set, mPrefs.getStringSet("set", null));
+        assertEquals(7, mPrefs.getAll().size());
+        assertEquals("default", mPrefs.getString("missing", "default"));
+    }
+
+    public void testRemoveAndClear() throws IOException {
+        mPrefs.edit().putInt("a", 1).putInt("b", 2).putInt("c", 3).commit();
+        mPrefs.edit().remove("a").putString("b", null).commit();
+        assertFalse(mPrefs.contains("a"));
+        assertFalse(mPrefs.contains("b"));
+        assertTrue(mPrefs.contains("c"));
+        // clear is applied before the puts of the same editor
+        mPrefs.edit().putInt("d", 4).clear().commit();
+        reopen();
+        assertFalse(mPrefs.contains("c"));
+        assertEquals(4, mPrefs.getInt("d", 0));
+    }
+
+    public void testApplyIsVisibleAndPersisted() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            mPrefs.edit().putInt("counter", i).apply();
+            assertEquals(i, mPrefs.getInt("counter", -1));
+        }
+        // close waits for a write in progress and writes anything left
+        reopen();
+        assertEquals(99, mPrefs.getInt("counter", -1));
+    }
+
+    public void testNothingWrittenWithoutChanges() throws IOException {
+        mPrefs.edit().commit();
+        assertFalse(mFile.exists());
+        mPrefs.edit().putInt("a", 1).commit();
+        long modified = mFile.lastModified();
+        long length = mFile.length();
+        mPrefs.edit().putInt("a", 1).commit();
+        assertEquals(modified, mFile.lastModified());
+        assertEquals(length, mFile.length());
+    }
+
+    public void testLockDropsValues() throws IOException {
+        mPrefs.edit().putString("secret", "value").apply();
+        mPrefs.onCacheWordLocking();
+        assertFalse(mPrefs.isOpen());
+        try {
+            mPrefs.getString("secret", null);
+            fail("read while locked");
+        } catch (CacheWordLockedException e) {
+            // expected
+        }
+        try {
+            mPrefs.edit().putString("secret", "other").commit();
+            fail("write while locked");
+        } catch (CacheWordLockedException e) {
+            // expected
+        }
+        mPrefs.open(mKey);
+        assertEquals("value", mPrefs.getString("secret", null));
+    }
+
+    public void testEditsDuringCloseAreWrittenOrRejected() throws Exception {
+        final List<String> applied = Collections.synchronizedList(new ArrayList<String>());
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 100000; i++) {
+                    try {
+                        mPrefs.edit().putInt("k" + i, i).apply();
+                    } catch (CacheWordLockedException e) {
+                        return;
+                    }
+                    applied.add("k" + i);
+                }
+            }
+        };
+        writer.start();
+        while (applied.size() < 100)
+            Thread.sleep(1);
+        mPrefs.close();
+        writer.join();
+        mPrefs.open(mKey);
+        // every edit that didn't throw made it to the file
+        for (String key : applied)
+            assertTrue(key, mPrefs.contains(key));
+    }
+
+    public void testForceWipeDiscardsUnwritten() throws IOException {
+        mPrefs.edit().putString("written", "yes").commit();
+        mPrefs.forceWipe();
+        assertFalse(mPrefs.isOpen());
+        mPrefs.open(mKey);
+        assertEquals("yes", mPrefs.getString("written", null));
+    }
+
+    public void testWrongKeyFails() throws IOException {
+        mPrefs.edit().putString("a", "b").commit();
+        byte[] other = new byte[AeadCipher.KEY_LEN_BYTES];
+        EncryptedPreferences prefs = new EncryptedPreferences(mFile,
+                Constants.CIPHER_CHACHA20_POLY1305);
+        try {
+            prefs.open(other);
+            fail("opened with the wrong key");
+        } catch (IOException e) {
+            // expected
+        }
+        assertFalse(prefs.isOpen());
+    }
+
+    public void testTamperedFileFails() throws IOException {
+        mPrefs.edit().putString("a", "b").commit();
+        mPrefs.close();
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        raf.seek(raf.length() - 1);
+        int b = raf.read();
+        raf.seek(raf.length() - 1);
+        raf.write(b ^ 1);
+        raf.close();
+        mPrefs = new EncryptedPreferences(mFile, Constants.CIPHER_CHACHA20_POLY1305);
+        try {
+            mPrefs.open(mKey);
+            fail("opened a tampered file");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testListenerNotified() {
+        final List<String> changed = new ArrayList<String>();
+        SharedPreferences.OnSharedPreferenceChangeListener listener =
+                new SharedPreferences.OnSharedPreferenceChangeListener() {
+                    @Override
+                    public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+                        changed.add(key);
+                    }
+                };
+        mPrefs.registerOnSharedPreferenceChangeListener(listener);
+        mPrefs.edit().putInt("a", 1).commit();
+        // unchanged values aren't reported
+        mPrefs.edit().putInt("a", 1).commit();
+        mPrefs.edit().remove("a").apply();
+        mPrefs.unregisterOnSharedPreferenceChangeListener(listener);
+        mPrefs.edit().putInt("b", 1).commit();
+        assertEquals(2, changed.size());
+        assertEquals("a", changed.get(0));
+        assertEquals("a", changed.get(1));
+    }
+}
@@ -0,0 +1,91 @@
+
+package info.guardianproject.cacheword;
+
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+public class GcmNonceSequenceTest extends AndroidTestCase {
+
+    private static final String KEY_ID = "test_key";
+    private static final long BLOCK_SIZE = 8;
+
+    private SharedPreferences mPrefs;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPrefs = getContext().getSharedPreferences("GcmNonceSequenceTest",
+                Constants.SHARED_PREFS_PRIVATE_MODE);
+        mPrefs.edit().clear().commit();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mPrefs.edit().clear().commit();
+        super.tearDown();
+    }
+
+    public void testNoncesAreUnique() {
+        GcmNonceSequence seq = new GcmNonceSequence(mPrefs, KEY_ID, BLOCK_SIZE);
+        Set<BigInteger> seen = new HashSet<BigInteger>();
+        byte[] nonce = new byte[GcmNonceSequence.NONCE_LEN_BYTES + 2];
+        for (int i = 0; i < 100; i++) {
+            seq.next(nonce, 2);
+            assertTrue(seen.add(new BigInteger(1, Arrays.copyOfRange(nonce, 2, nonce.length))));
+        }
+    }
+
+    public void testReservesInBlocks() {
+        GcmNonceSequence seq = new GcmNonceSequence(mPrefs, KEY_ID, BLOCK_SIZE);
+        assertEquals(0, seq.getReserved());
+        seq.next();
+        assertEquals(BLOCK_SIZE, seq.getReserved());
+        for (int i = 1; i < BLOCK_SIZE; i++)
+            seq.next();
+        assertEquals(BLOCK_SIZE, seq.getReserved());
+        seq.next();
+        assertEquals(2 * BLOCK_SIZE, seq.getReserved());
+    }
+
+    public void testUniqueAcrossRestarts() {
+        Set<BigInteger> seen = new HashSet<BigInteger>();
+        byte[] prefix = null;
+        for (int restart = 0; restart < 5; restart++) {
+            GcmNonceSequence seq = new GcmNonceSequence(mPrefs, KEY_ID, BLOCK_SIZE);
+            for (int i = 0; i < 3; i++) {
+                byte[] nonce = seq.next();
+                assertTrue(seen.add(new BigInteger(1, nonce)));
+                byte[] p = Arrays.copyOf(nonce, GcmNonceSequence.PREFIX_LEN_BYTES);
+                if (prefix == null)
+                    prefix = p;
+                assertTrue(Arrays.equals(prefix, p));
+            }
+        }
+    }
+
+    public void testConcurrentNoncesAreUnique() throws InterruptedException {
+        final GcmNonceSequence seq = new GcmNonceSequence(mPrefs, KEY_ID, BLOCK_SIZE);
+        final Set<BigInteger> seen = Collections.synchronizedSet(new HashSet<BigInteger>());
+        final int perThread = 200;
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++)
+                        seen.add(new BigInteger(1, seq.next()));
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        assertEquals(threads.length * perThread, seen.size());
+    }
+}
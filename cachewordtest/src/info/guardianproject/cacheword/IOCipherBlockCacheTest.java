@@ -0,0 +1,115 @@
+
+package info.guardianproject.cacheword;
+
+import android.test.ServiceTestCase;
+
+import info.guardianproject.iocipher.File;
+import info.guardianproject.iocipher.FileOutputStream;
+import info.guardianproject.iocipher.VirtualFileSystem;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+public class IOCipherBlockCacheTest extends ServiceTestCase<CacheWordService> {
+
+    private static final String PASSPHRASE = "hunter2";
+    private static final int BLOCK = 4096;
+    private static final String PATH = "/cached.bin";
+
+    private CacheWordHandler mHandler;
+    private IOCipherBlockCache mCache;
+    private java.io.File mContainer;
+
+    public IOCipherBlockCacheTest() {
+        super(CacheWordService.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        SecretsManager.setInitialized(getContext(), false);
+        mHandler = TestUtils.openCacheWord(getContext(), PASSPHRASE);
+        mContainer = new java.io.File(getContext().getDir("vfs", 0), "cache-test.db");
+        mContainer.delete();
+        VirtualFileSystem.get().mount(mContainer.getAbsolutePath(), mHandler.getEncryptionKey());
+        mCache = new IOCipherBlockCache(mHandler, BLOCK, 16 * BLOCK);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCache.close();
+        VirtualFileSystem.get().unmount();
+        mContainer.delete();
+        mHandler.disconnectFromService();
+        super.tearDown();
+    }
+
+    private byte[] readAll() throws IOException {
+        IOCipherCachedInputStream in = mCache.open(PATH);
+        try {
+            byte[] data = new byte[(int) in.size()];
+            int off = 0;
+            while (off < data.length) {
+                int n = in.read(data, off, data.length - off);
+                if (n < 0)
+                    break;
+                off += n;
+            }
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    private void writeFile(byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(new File(PATH));
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    public void testReadsAreCached() throws Exception {
+        byte[] data = TestUtils.random(3 * BLOCK + 100);
+        writeFile(data);
+        assertTrue(Arrays.equals(data, readAll()));
+        assertTrue(mCache.getCachedBytes() > 0);
+        assertTrue(Arrays.equals(data, readAll()));
+        assertTrue(mCache.getHitRate() > 0);
+    }
+
+    public void testWriteThroughCacheInvalidates() throws Exception {
+        byte[] data = TestUtils.random(3 * BLOCK);
+        writeFile(data);
+        assertTrue(Arrays.equals(data, readAll()));
+
+        byte[] patch = new byte[100];
+        Arrays.fill(patch, (byte) 0x42);
+        IOCipherCachedOutputStream out = mCache.openForWrite(PATH, true);
+        out.write(patch, 0, patch.length, BLOCK + 10);
+        out.close();
+        System.arraycopy(patch, 0, data, BLOCK + 10, patch.length);
+        assertTrue(Arrays.equals(data, readAll()));
+    }
+
+    public void testTruncatingWriteInvalidates() throws Exception {
+        writeFile(TestUtils.random(2 * BLOCK));
+        readAll();
+        byte[] data = TestUtils.random(BLOCK + 1);
+        IOCipherCachedOutputStream out = mCache.openForWrite(PATH, false);
+        out.write(data);
+        out.close();
+        assertTrue(Arrays.equals(data, readAll()));
+    }
+
+    public void testInvalidateAfterOutsideWrite() throws Exception {
+        writeFile(TestUtils.random(2 * BLOCK));
+        readAll();
+        byte[] data = TestUtils.random(2 * BLOCK + 7);
+        writeFile(data);
+        mCache.invalidate(PATH);
+        assertEquals(0, mCache.getCachedBytes());
+        assertTrue(Arrays.equals(data, readAll()));
+    }
+}
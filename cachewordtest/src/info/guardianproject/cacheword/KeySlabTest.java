@@ -0,0 +1,111 @@
+
+package info.guardianproject.cacheword;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+public class KeySlabTest extends TestCase {
+
+    public void testAllocateAndRead() {
+        KeySlab slab = new KeySlab(4);
+        int a = slab.allocate(TestUtils.key(1));
+        int b = slab.allocate(TestUtils.key(2));
+        assertTrue(Arrays.equals(TestUtils.key(1), slab.get(a)));
+        assertTrue(Arrays.equals(TestUtils.key(2), slab.get(b)));
+        byte[] dst = new byte[KeySlab.KEY_LEN_BYTES + 3];
+        slab.read(b, dst, 3);
+        assertEquals(2, dst[3]);
+        assertEquals(0, dst[2]);
+        assertEquals(2, slab.size());
+    }
+
+    public void testFull() {
+        KeySlab slab = new KeySlab(2);
+        assertTrue(slab.allocate(TestUtils.key(1)) >= 0);
+        int b = slab.allocate(TestUtils.key(2));
+        assertEquals(KeySlab.NO_HANDLE, slab.allocate(TestUtils.key(3)));
+        slab.free(b);
+        assertTrue(slab.allocate(TestUtils.key(3)) >= 0);
+    }
+
+    public void testStaleHandle() {
+        KeySlab slab = new KeySlab(1);
+        int a = slab.allocate(TestUtils.key(1));
+        slab.free(a);
+        int b = slab.allocate(TestUtils.key(2));
+        // the same slot, a new generation
+        assertTrue(a != b);
+        assertFalse(slab.isValid(a));
+        assertTrue(slab.isValid(b));
+        try {
+            slab.get(a);
+            fail("read a freed key");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            slab.free(a);
+            fail("freed a key twice");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertFalse(slab.isValid(KeySlab.NO_HANDLE));
+    }
+
+    public void testGenerationWraps() {
+        KeySlab slab = new KeySlab(1);
+        int first = slab.allocate(TestUtils.key(1));
+        slab.free(first);
+        for (int i = 0; i < 5000; i++) {
+            int h = slab.allocate(TestUtils.key(i));
+            assertTrue(h >= 0);
+            assertTrue(Arrays.equals(TestUtils.key(i), slab.get(h)));
+            slab.free(h);
+        }
+    }
+
+    public void testHotSlotKeepsStaleHandleInvalid() {
+        KeySlab slab = new KeySlab(64);
+        int stale = slab.allocate(TestUtils.key(1));
+        slab.free(stale);
+        // more than a full turn of the generation if the slot came back first
+        for (int i = 0; i < 4 << KeySlab.GENERATION_BITS; i++) {
+            int h = slab.allocate(TestUtils.key(i));
+            assertFalse("handle valid again after " + i, slab.isValid(stale));
+            slab.free(h);
+        }
+    }
+
+    public void testWipe() {
+        KeySlab slab = new KeySlab(2);
+        int a = slab.allocate(TestUtils.key(1));
+        slab.wipe(a);
+        assertTrue(slab.isValid(a));
+        assertTrue(Arrays.equals(new byte[KeySlab.KEY_LEN_BYTES], slab.get(a)));
+    }
+
+    public void testWipeAll() {
+        KeySlab slab = new KeySlab(3);
+        int a = slab.allocate(TestUtils.key(1));
+        int b = slab.allocate(TestUtils.key(2));
+        slab.wipeAll();
+        assertEquals(0, slab.size());
+        assertFalse(slab.isValid(a));
+        assertFalse(slab.isValid(b));
+        for (int i = 0; i < 3; i++) {
+            int h = slab.allocate(TestUtils.key(9));
+            assertTrue(h >= 0);
+        }
+        assertEquals(3, slab.size());
+    }
+
+    public void testRejectsWrongLength() {
+        try {
+            new KeySlab(1).allocate(new byte[16]);
+            fail("accepted a short key");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
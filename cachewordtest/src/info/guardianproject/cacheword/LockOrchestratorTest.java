@@ -0,0 +1,158 @@
+
+package info.guardianproject.cacheword;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class LockOrchestratorTest extends TestCase {
+
+    private final List<ICacheWordLockListener> mRegistered = new ArrayList<ICacheWordLockListener>();
+    private long mSavedDeadline;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSavedDeadline = LockOrchestrator.getInstance().getDeadline();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (ICacheWordLockListener listener : mRegistered)
+            LockOrchestrator.getInstance().unregister(listener);
+        LockOrchestrator.getInstance().setDeadline(mSavedDeadline);
+        super.tearDown();
+    }
+
+    /**
+     * Sleeps for a while when locking, or throws if the sleep is negative.
+     */
+    private class Participant implements ICacheWordLockParticipant {
+        final String name;
+        final long sleepMillis;
+        volatile boolean finished = false;
+        volatile boolean wiped = false;
+
+        Participant(String name, long sleepMillis, int stage) {
+            this.name = name;
+            this.sleepMillis = sleepMillis;
+            LockOrchestrator.getInstance().register(this, stage);
+            mRegistered.add(this);
+        }
+
+        @Override
+        public void onCacheWordLocking() {
+            if (sleepMillis < 0)
+                throw new IllegalStateException("teardown failed");
+            try {
+                Thread.sleep(sleepMillis);
+                finished = true;
+            } catch (InterruptedException e) {
+                // stop, as asked
+            }
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public void forceWipe() {
+            wiped = true;
+        }
+    }
+
+    private static LockTeardownReport.Entry entry(LockTeardownReport report, String name) {
+        for (LockTeardownReport.Entry e : report.getEntries()) {
+            if (e.name.equals(name))
+                return e;
+        }
+        fail("no report entry for " + name);
+        return null;
+    }
+
+    public void testStagesRunInOrder() {
+        LockOrchestrator.getInstance().setDeadline(5000);
+        final Participant flush = new Participant("flush", 100, LockOrchestrator.STAGE_FLUSH);
+        final boolean[] flushedFirst = new boolean[1];
+        ICacheWordLockListener close = new ICacheWordLockListener() {
+            @Override
+            public void onCacheWordLocking() {
+                flushedFirst[0] = flush.finished;
+            }
+        };
+        LockOrchestrator.getInstance().register(close, LockOrchestrator.STAGE_CLOSE);
+        mRegistered.add(close);
+
+        LockTeardownReport report = LockOrchestrator.getInstance().teardown();
+        assertTrue(flushedFirst[0]);
+        assertEquals(LockTeardownReport.Status.COMPLETED, entry(report, "flush").status);
+    }
+
+    public void testCloseStageHasReservedTime() {
+        LockOrchestrator.getInstance().setDeadline(1000);
+        Participant flush = new Participant("flush", 60 * 1000, LockOrchestrator.STAGE_FLUSH);
+        Participant close = new Participant("close", 100, LockOrchestrator.STAGE_CLOSE);
+
+        LockTeardownReport report = LockOrchestrator.getInstance().teardown();
+        assertEquals(LockTeardownReport.Status.TIMED_OUT, entry(report, "flush").status);
+        assertTrue(flush.wiped);
+        assertEquals(LockTeardownReport.Status.COMPLETED, entry(report, "close").status);
+        assertTrue(close.finished);
+        assertFalse(close.wiped);
+        assertTrue(report.getTotalMillis() < 2000);
+    }
+
+    public void testParticipantsAreTimedFromTheirStart() {
+        LockOrchestrator.getInstance().setDeadline(5000);
+        new Participant("flush", 500, LockOrchestrator.STAGE_FLUSH);
+        Participant failing = new Participant("failing", -1, LockOrchestrator.STAGE_CLOSE);
+
+        LockTeardownReport report = LockOrchestrator.getInstance().teardown();
+        LockTeardownReport.Entry e = entry(report, "failing");
+        assertEquals(LockTeardownReport.Status.FAILED, e.status);
+        // the failure came right away, after the flush stage's 500ms
+        assertTrue("failing took " + e.millis + "ms", e.millis < 250);
+        assertTrue(failing.wiped);
+    }
+
+    public void testTimedOutParticipantIsTimedFromItsStart() {
+        LockOrchestrator.getInstance().setDeadline(1000);
+        new Participant("flush", 300, LockOrchestrator.STAGE_FLUSH);
+        new Participant("slow", 60 * 1000, LockOrchestrator.STAGE_CLOSE);
+
+        LockTeardownReport report = LockOrchestrator.getInstance().teardown();
+        LockTeardownReport.Entry e = entry(report, "slow");
+        assertEquals(LockTeardownReport.Status.TIMED_OUT, e.status);
+        // it ran from the end of the flush stage to the deadline
+        assertTrue("slow took " + e.millis + "ms", e.millis < 900);
+    }
+
+    public void testTeardownOnlyRunsTheNamespacesListeners() {
+        final List<String> locked = new ArrayList<String>();
+        for (final String namespace : new String[] {
+                Constants.DEFAULT_NAMESPACE, "alice", "bob"
+        }) {
+            ICacheWordLockListener listener = new ICacheWordLockListener() {
+                @Override
+                public void onCacheWordLocking() {
+                    synchronized (locked) {
+                        locked.add(namespace);
+                    }
+                }
+            };
+            LockOrchestrator.getInstance().register(listener, LockOrchestrator.STAGE_CLOSE,
+                    namespace);
+            mRegistered.add(listener);
+        }
+
+        LockOrchestrator.getInstance().teardown("alice");
+        assertEquals(1, locked.size());
+        assertEquals("alice", locked.get(0));
+        LockOrchestrator.getInstance().teardown();
+        assertEquals(2, locked.size());
+        assertEquals(Constants.DEFAULT_NAMESPACE, locked.get(1));
+    }
+}
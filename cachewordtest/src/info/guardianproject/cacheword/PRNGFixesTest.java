@@ -0,0 +1,195 @@
+package info.guardianproject.cacheword;
+
+import android.os.Process;
+import android.util.Log;
+
+import info.guardianproject.cacheword.PRNGFixes.LinuxPRNGSecureRandom;
+import info.guardianproject.cacheword.PRNGFixes.LinuxPRNGSecureRandom.BufferedDrbg;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+public class PRNGFixesTest extends TestCase {
+    private static final String TAG = "PRNGFixesTest";
+
+    private static final int PID = 1000;
+    private static final int CHILD_PID = 1001;
+
+    private static byte[] sequence(int start, int length) {
+        byte[] b = new byte[length];
+        for (int i = 0; i < length; i++)
+            b[i] = (byte) (start + i);
+        return b;
+    }
+
+    private static HmacDrbg fixedDrbg(int pid) throws Exception {
+        return new HmacDrbg(sequence(0x00, 32), sequence(0x20, 16), null, pid);
+    }
+
+    public void testKnownAnswer() throws Exception {
+        // expected output computed with an independent SP 800-90A
+        // HMAC_DRBG-SHA256 implementation
+        HmacDrbg drbg = fixedDrbg(PID);
+        byte[] out = new byte[80];
+        drbg.generate(out, 0, out.length);
+        assertTrue(Arrays.equals(TestUtils.unhex(
+                "0ffb80875a3e9022a4941a3fa1b0d3611df14e1cf651a73ce9229b9f3ad56887"
+                        + "680428845710288ea4391ca6f21df8cd88b7b27a8dfc16559540739759480c16"
+                        + "a41de895f781ff8a100369a78eeb2a5b"), out));
+
+        drbg.reseed(sequence(0x80, 32), "add".getBytes("UTF-8"), PID);
+        out = new byte[40];
+        drbg.generate(out, 0, out.length);
+        assertTrue(Arrays.equals(TestUtils.unhex(
+                "44925c0bd414001652322b51191f2c6bfe242b736009fed5e666495b06dc092b"
+                        + "3719bc7a0021979d"), out));
+    }
+
+    public void testRejectsShortEntropy() throws Exception {
+        try {
+            new HmacDrbg(new byte[HmacDrbg.SEED_LEN_BYTES - 1], null, null, PID);
+            fail("instantiated with too little entropy");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testPidChangeRequiresReseed() throws Exception {
+        HmacDrbg drbg = fixedDrbg(PID);
+        assertFalse(drbg.needsReseed(PID));
+        assertTrue(drbg.needsReseed(CHILD_PID));
+
+        drbg.reseed(sequence(0x80, 32), null, CHILD_PID);
+        assertFalse(drbg.needsReseed(CHILD_PID));
+    }
+
+    public void testReseedInterval() throws Exception {
+        HmacDrbg drbg = fixedDrbg(PID);
+        byte[] out = new byte[1];
+        for (long i = 0; i < HmacDrbg.RESEED_INTERVAL; i++)
+            drbg.generate(out, 0, out.length);
+        assertTrue(drbg.needsReseed(PID));
+        try {
+            drbg.generate(out, 0, out.length);
+            fail("generated past the reseed interval");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        drbg.reseed(sequence(0x80, 32), null, PID);
+        assertFalse(drbg.needsReseed(PID));
+        drbg.generate(out, 0, out.length);
+    }
+
+    public void testForkedCopiesDiverge() throws Exception {
+        // two identical generators stand in for the parent's and the child's
+        // copy of the same memory after fork()
+        BufferedDrbg parent = new BufferedDrbg(fixedDrbg(PID));
+        BufferedDrbg child = new BufferedDrbg(fixedDrbg(PID));
+
+        byte[] p = new byte[16];
+        byte[] c = new byte[16];
+        parent.nextBytes(p, PID);
+        child.nextBytes(c, PID);
+        assertTrue(Arrays.equals(p, c));
+        assertTrue(child.getBufferedCount() > 0);
+
+        // the child notices the new pid and must not hand out the buffered
+        // bytes it shares with the parent
+        parent.nextBytes(p, PID);
+        child.nextBytes(c, CHILD_PID);
+        assertFalse(Arrays.equals(p, c));
+
+        // same for requests that bypass the buffer
+        parent = new BufferedDrbg(fixedDrbg(PID));
+        child = new BufferedDrbg(fixedDrbg(PID));
+        p = new byte[BufferedDrbg.MAX_BUFFERED_REQUEST + 1];
+        c = new byte[BufferedDrbg.MAX_BUFFERED_REQUEST + 1];
+        parent.nextBytes(p, PID);
+        child.nextBytes(c, CHILD_PID);
+        assertFalse(Arrays.equals(p, c));
+    }
+
+    public void testReseedDiscardsBuffer() throws Exception {
+        BufferedDrbg drbg = new BufferedDrbg(fixedDrbg(PID));
+        drbg.nextBytes(new byte[8], PID);
+        assertEquals(BufferedDrbg.BUFFER_SIZE - 8, drbg.getBufferedCount());
+
+        drbg.reseed("seed".getBytes("UTF-8"), PID);
+        assertEquals(0, drbg.getBufferedCount());
+    }
+
+    public void testLargeRequest() throws Exception {
+        BufferedDrbg drbg = BufferedDrbg.create(PID);
+        byte[] out = new byte[HmacDrbg.MAX_BYTES_PER_REQUEST * 2 + 7];
+        drbg.nextBytes(out, PID);
+        byte[] tail = Arrays.copyOfRange(out, out.length - 64, out.length);
+        assertFalse(Arrays.equals(new byte[64], tail));
+    }
+
+    public void testThreadsGetDistinctOutput() throws Exception {
+        final byte[][] results = new byte[4][];
+        Thread[] threads = new Thread[results.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    byte[] out = new byte[32];
+                    new PRNGFixes.LinuxPRNGSecureRandom().engineNextBytes(out);
+                    results[index] = out;
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        for (int i = 0; i < results.length; i++) {
+            assertNotNull(results[i]);
+            for (int j = i + 1; j < results.length; j++)
+                assertFalse(Arrays.equals(results[i], results[j]));
+        }
+    }
+
+    public void testNewInstanceDoesNotReseed() throws Exception {
+        BufferedDrbg drbg = LinuxPRNGSecureRandom.getThreadDrbg();
+        drbg.reseed(null, Process.myPid());
+        new LinuxPRNGSecureRandom().engineNextBytes(new byte[8]);
+        assertEquals(BufferedDrbg.BUFFER_SIZE - 8, drbg.getBufferedCount());
+
+        // a reseed would have discarded the rest of the buffer
+        new LinuxPRNGSecureRandom().engineNextBytes(new byte[Constants.GCM_IV_LEN_BYTES]);
+        assertEquals(BufferedDrbg.BUFFER_SIZE - 8 - Constants.GCM_IV_LEN_BYTES,
+                drbg.getBufferedCount());
+    }
+
+    /**
+     * Not a rigorous benchmark, compare the numbers in the log on a device.
+     */
+    public void testPerIvLatency() throws Exception {
+        PassphraseSecretsImpl crypto = new PassphraseSecretsImpl();
+        LinuxPRNGSecureRandom shared = new LinuxPRNGSecureRandom();
+        byte[] iv = new byte[Constants.GCM_IV_LEN_BYTES];
+        int count = 10000;
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++)
+                new LinuxPRNGSecureRandom().engineNextBytes(iv);
+            long perInstance = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < count; i++)
+                shared.engineNextBytes(iv);
+            long reused = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < count; i++)
+                crypto.generateIv(Constants.GCM_IV_LEN_BYTES);
+            long generateIv = System.nanoTime() - start;
+
+            Log.d(TAG, "per IV: new instance " + perInstance / count + " ns, reused instance "
+                    + reused / count + " ns, generateIv " + generateIv / count + " ns");
+        }
+    }
+}
@@ -22,6 +22,8 @@ public class PassphraseSecretsTest extends AndroidTestCase {
     protected void setUp() throws Exception {
         super.setUp();
         SecretsManager.setInitialized(getContext(), false);
+        SecretsManager.setInitialized(getContext(), "alice", false);
+        SecretsManager.setInitialized(getContext(), "bob", false);
     }
 
     @Override
@@ -152,4 +154,132 @@ public class PassphraseSecretsTest extends AndroidTestCase {
         }
     }
 
-}
+    public void testNamespacesAreIndependent() throws GeneralSecurityException {
+        PassphraseSecrets alice = PassphraseSecrets.initializeSecrets(getContext(), "alice",
+                "alice pass".toCharArray());
+        PassphraseSecrets bob = PassphraseSecrets.initializeSecrets(getContext(), "bob",
+                "bob pass".toCharArray());
+        assertNotNull(alice);
+        assertNotNull(bob);
+        assertTrue(SecretsManager.isInitialized(getContext(), "alice"));
+        assertTrue(SecretsManager.isInitialized(getContext(), "bob"));
+        assertFalse(SecretsManager.isInitialized(getContext()));
+        assertFalse(Arrays.equals(alice.getSecretKey().getEncoded(),
+                bob.getSecretKey().getEncoded()));
+
+        PassphraseSecrets fetched = PassphraseSecrets.fetchSecrets(getContext(), "alice",
+                "alice pass".toCharArray());
+        assertTrue(Arrays.equals(alice.getSecretKey().getEncoded(),
+                fetched.getSecretKey().getEncoded()));
+        try {
+            PassphraseSecrets.fetchSecrets(getContext(), "alice", "bob pass".toCharArray());
+            fail("fetchSecrets should fail with another namespace's passphrase");
+        } catch (GeneralSecurityException e) {
+            // pass
+        }
+
+        // changing one namespace's passphrase leaves the others alone
+        assertNotNull(PassphraseSecrets.changePassphrase(getContext(), "bob", bob,
+                "new bob pass".toCharArray()));
+        assertNotNull(PassphraseSecrets.fetchSecrets(getContext(), "alice",
+                "alice pass".toCharArray()));
+    }
+
+    public void testInvalidNamespace() {
+        try {
+            SecretsManager.isInitialized(getContext(), "../alice");
+            fail("accepted a namespace with a path separator");
+        } catch (IllegalArgumentException e) {
+            // pass
+        }
+        assertEquals(Constants.SHARED_PREFS,
+                SecretsManager.getPrefsName(Constants.DEFAULT_NAMESPACE));
+    }
+
+    public void testChaChaBundleRoundTrip() throws GeneralSecurityException {
+        PassphraseSecretsImpl crypto = new PassphraseSecretsImpl();
+        byte[] secret = TestUtils.random(32);
+        SerializedSecretsV2 ss = crypto.encryptWithPassphrase(getContext(),
+                "hunter2".toCharArray(), secret, 100, Constants.CIPHER_CHACHA20_POLY1305);
+        assertEquals(Constants.CIPHER_CHACHA20_POLY1305, ss.getCipher());
+        assertTrue(Arrays.equals(secret,
+                crypto.decryptWithPassphrase("hunter2".toCharArray(), ss)));
+        try {
+            crypto.decryptWithPassphrase("hunter3".toCharArray(), ss);
+            fail("decrypted with the wrong passphrase");
+        } catch (GeneralSecurityException e) {
+            // pass
+        }
+    }
+
+    public void testCommittedRotationRewrapsInboxKey() throws Exception {
+        PassphraseSecrets original = PassphraseSecrets.initializeSecrets(getContext(),
+                "hunter2".toCharArray());
+        assertNotNull(original);
+        byte[] oldKey = original.getSecretKey().getEncoded();
+        byte[] publicKey = SecretsManager.getBytes(getContext(),
+                Constants.SHARED_PREFS_INBOX_PUBLIC_KEY);
+        byte[] privateKey = CacheWordInbox.unwrapPrivateKey(getContext(), oldKey, publicKey);
+
+        byte[] newKey = TestUtils.random(32);
+        byte[] prepared = PassphraseSecrets.prepareSecrets(getContext(),
+                "hunter2".toCharArray(), newKey);
+        assertNotNull(PassphraseSecrets.commitPreparedSecrets(getContext(), prepared, oldKey,
+                newKey));
+
+        // same key pair, so deliveries made before the rotation stay readable
+        assertTrue(Arrays.equals(publicKey, SecretsManager.getBytes(getContext(),
+                Constants.SHARED_PREFS_INBOX_PUBLIC_KEY)));
+        assertTrue(Arrays.equals(privateKey,
+                CacheWordInbox.unwrapPrivateKey(getContext(), newKey, publicKey)));
+        assertTrue(Arrays.equals(newKey, PassphraseSecrets.fetchSecrets(getContext(),
+                "hunter2".toCharArray()).getSecretKey().getEncoded()));
+    }
+
+    public void testRotationReplacesUnreadableInboxKey() throws Exception {
+        PassphraseSecrets.initializeSecrets(getContext(), "hunter2".toCharArray());
+        byte[] publicKey = SecretsManager.getBytes(getContext(),
+                Constants.SHARED_PREFS_INBOX_PUBLIC_KEY);
+        byte[] newKey = TestUtils.random(32);
+        byte[] prepared = PassphraseSecrets.prepareSecrets(getContext(),
+                "hunter2".toCharArray(), newKey);
+        // not the key the inbox key is wrapped under
+        assertNotNull(PassphraseSecrets.commitPreparedSecrets(getContext(), prepared,
+                TestUtils.random(32), newKey));
+
+        byte[] newPublicKey = SecretsManager.getBytes(getContext(),
+                Constants.SHARED_PREFS_INBOX_PUBLIC_KEY);
+        assertFalse(Arrays.equals(publicKey, newPublicKey));
+        byte[] privateKey = CacheWordInbox.unwrapPrivateKey(getContext(), newKey, newPublicKey);
+        assertTrue(Arrays.equals(newPublicKey, X25519.publicKey(privateKey)));
+    }
+
+    public void testConcurrentFirstUnlocksShareOneKey() throws Exception {
+        final PassphraseSecrets[] secrets = new PassphraseSecrets[4];
+        Thread[] threads = new Thread[secrets.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        secrets[index] = PassphraseSecrets.initializeOrFetchSecrets(getContext(),
+                                "alice", "alice pass".toCharArray());
+                    } catch (GeneralSecurityException e) {
+                        // leaves a null, which fails below
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        byte[] saved = PassphraseSecrets.fetchSecrets(getContext(), "alice",
+                "alice pass".toCharArray()).getSecretKey().getEncoded();
+        for (PassphraseSecrets s : secrets) {
+            assertNotNull(s);
+            assertTrue(Arrays.equals(saved, s.getSecretKey().getEncoded()));
+        }
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,279 @@
+
+package info.guardianproject.cacheword;
+
+import android.content.Context;
+import android.test.ServiceTestCase;
+
+import net.sqlcipher.Cursor;
+import net.sqlcipher.database.SQLiteDatabase;
+
+import java.io.File;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class SQLCipherRekeyEngineTest extends ServiceTestCase<CacheWordService> {
+
+    private static final String PASSPHRASE = "hunter2";
+    private static final String DB_NAME = "rekey-test.db";
+
+    private CacheWordHandler mHandler;
+    private DatabaseHelper mHelper;
+
+    public SQLCipherRekeyEngineTest() {
+        super(CacheWordService.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        SecretsManager.setInitialized(getContext(), false);
+        SQLiteDatabase.loadLibs(getContext());
+        deleteDatabase();
+        getContext().getSharedPreferences(Constants.SHARED_PREFS_REKEY,
+                Constants.SHARED_PREFS_PRIVATE_MODE).edit().clear().commit();
+        mHandler = TestUtils.openCacheWord(getContext(), PASSPHRASE);
+        mHelper = new DatabaseHelper(mHandler, getContext());
+        Rows.insert(mHelper, "before");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mHelper.close();
+        mHandler.disconnectFromService();
+        deleteDatabase();
+        super.tearDown();
+    }
+
+    private void deleteDatabase() {
+        File db = getContext().getDatabasePath(DB_NAME);
+        db.delete();
+        new File(db.getPath() + "-rekey").delete();
+        new File(db.getPath() + "-journal").delete();
+    }
+
+    /**
+     * Dies at one step of the rotation, as if the process was killed there.
+     */
+    private class CrashingEngine extends SQLCipherRekeyEngine {
+        final int mCrashAt;
+
+        CrashingEngine(int crashAt) {
+            super(getContext(), mHandler);
+            mCrashAt = crashAt;
+        }
+
+        @Override
+        void checkpoint(int step) {
+            if (step == mCrashAt)
+                throw new IllegalStateException("crashed at step " + step);
+        }
+    }
+
+    private static class Result implements SQLCipherRekeyEngine.Listener {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile Exception error;
+
+        @Override
+        public void onProgress(int databasesDone, int databasesTotal) {
+        }
+
+        @Override
+        public void onComplete() {
+            done.countDown();
+        }
+
+        @Override
+        public void onError(Exception e) {
+            error = e;
+            done.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue("rotation did not finish", done.await(60, TimeUnit.SECONDS));
+        }
+    }
+
+    /**
+     * Lock and unlock CacheWord with the saved secrets, like a new process.
+     */
+    private void restart() throws InterruptedException {
+        mHelper.close();
+        TestUtils.lockCacheWord(mHandler);
+        mHandler.disconnectFromService();
+        mHandler = TestUtils.openCacheWord(getContext(), PASSPHRASE);
+        mHelper = new DatabaseHelper(mHandler, getContext());
+    }
+
+    public void testRotate() throws Exception {
+        byte[] oldKey = mHandler.getEncryptionKey();
+        SQLCipherRekeyEngine engine = new SQLCipherRekeyEngine(getContext(), mHandler);
+        engine.register(mHelper);
+        Result result = new Result();
+        engine.start(PASSPHRASE.toCharArray(), result);
+        result.await();
+        assertNull(result.error);
+        assertFalse(engine.isRotationPending());
+
+        byte[] newKey = mHandler.getEncryptionKey();
+        assertFalse(Arrays.equals(oldKey, newKey));
+        assertEquals("before", Rows.first(mHelper));
+
+        restart();
+        assertTrue(Arrays.equals(newKey, mHandler.getEncryptionKey()));
+        assertEquals("before", Rows.first(mHelper));
+    }
+
+    public void testWrongPassphraseIsRejected() throws Exception {
+        SQLCipherRekeyEngine engine = new SQLCipherRekeyEngine(getContext(), mHandler);
+        engine.register(mHelper);
+        try {
+            engine.start("hunter3".toCharArray(), null);
+            fail("started a rotation with the wrong passphrase");
+        } catch (GeneralSecurityException e) {
+            // expected
+        }
+        assertFalse(engine.isRotationPending());
+        restart();
+        assertEquals("before", Rows.first(mHelper));
+    }
+
+    private void crashAndResume(int step) throws Exception {
+        byte[] oldKey = mHandler.getEncryptionKey();
+        CrashingEngine crashing = new CrashingEngine(step);
+        crashing.register(mHelper);
+        Result crashed = new Result();
+        crashing.start(PASSPHRASE.toCharArray(), crashed);
+        crashed.await();
+        assertNotNull(crashed.error);
+        assertTrue(crashing.isRotationPending());
+
+        restart();
+        SQLCipherRekeyEngine engine = new SQLCipherRekeyEngine(getContext(), mHandler);
+        engine.register(mHelper);
+        Result resumed = new Result();
+        engine.resume(resumed);
+        resumed.await();
+        assertNull(resumed.error);
+        assertFalse(engine.isRotationPending());
+        assertFalse(Arrays.equals(oldKey, mHandler.getEncryptionKey()));
+        assertEquals("before", Rows.first(mHelper));
+
+        restart();
+        assertFalse(Arrays.equals(oldKey, mHandler.getEncryptionKey()));
+        assertEquals("before", Rows.first(mHelper));
+    }
+
+    public void testCrashAfterCopy() throws Exception {
+        crashAndResume(SQLCipherRekeyEngine.STEP_COPIED);
+    }
+
+    public void testCrashAfterCommitStarted() throws Exception {
+        crashAndResume(SQLCipherRekeyEngine.STEP_COMMITTING);
+    }
+
+    public void testCrashAfterRename() throws Exception {
+        crashAndResume(SQLCipherRekeyEngine.STEP_RENAMED);
+    }
+
+    public void testCrashAfterSecretsSaved() throws Exception {
+        crashAndResume(SQLCipherRekeyEngine.STEP_SECRETS_SAVED);
+    }
+
+    public void testWriteAfterCopyIsKept() throws Exception {
+        SQLCipherRekeyEngine engine = new SQLCipherRekeyEngine(getContext(), mHandler) {
+            @Override
+            void checkpoint(int step) {
+                // rewrites a page: same length, likely the same mtime second
+                if (step == STEP_COPIED)
+                    mHelper.getWritableDatabase().execSQL("UPDATE rows SET name = 'behind';");
+            }
+        };
+        engine.register(mHelper);
+        Result result = new Result();
+        engine.start(PASSPHRASE.toCharArray(), result);
+        result.await();
+        assertNull(result.error);
+
+        restart();
+        assertEquals("behind", Rows.first(mHelper));
+    }
+
+    public void testLockDuringCommitIsNotUndone() throws Exception {
+        byte[] oldKey = mHandler.getEncryptionKey();
+        SQLCipherRekeyEngine engine = new SQLCipherRekeyEngine(getContext(), mHandler) {
+            @Override
+            void checkpoint(int step) {
+                if (step == STEP_SECRETS_SAVED)
+                    mHandler.lock();
+            }
+        };
+        engine.register(mHelper);
+        Result result = new Result();
+        engine.start(PASSPHRASE.toCharArray(), result);
+        result.await();
+        assertNull(result.error);
+        CacheWordService.awaitLocks();
+        assertTrue(mHandler.isLocked());
+
+        mHandler.setPassphrase(PASSPHRASE.toCharArray());
+        assertFalse(Arrays.equals(oldKey, mHandler.getEncryptionKey()));
+        assertEquals("before", Rows.first(mHelper));
+    }
+
+    public void testAbortAfterCopy() throws Exception {
+        byte[] oldKey = mHandler.getEncryptionKey();
+        CrashingEngine crashing = new CrashingEngine(SQLCipherRekeyEngine.STEP_COPIED);
+        crashing.register(mHelper);
+        Result crashed = new Result();
+        crashing.start(PASSPHRASE.toCharArray(), crashed);
+        crashed.await();
+
+        restart();
+        SQLCipherRekeyEngine engine = new SQLCipherRekeyEngine(getContext(), mHandler);
+        engine.register(mHelper);
+        engine.abort();
+        assertFalse(engine.isRotationPending());
+        assertFalse(new File(getContext().getDatabasePath(DB_NAME).getPath() + "-rekey")
+                .exists());
+        assertTrue(Arrays.equals(oldKey, mHandler.getEncryptionKey()));
+        assertEquals("before", Rows.first(mHelper));
+    }
+
+    private static class Rows {
+        static void insert(SQLCipherOpenHelper helper, String name) {
+            helper.getWritableDatabase().execSQL("INSERT INTO rows (name) VALUES (?);",
+                    new Object[] {
+                        name
+                    });
+        }
+
+        static String first(SQLCipherOpenHelper helper) {
+            Cursor cursor = helper.getReadableDatabase().rawQuery("SELECT name FROM rows", null);
+            List<String> names = new ArrayList<String>();
+            while (cursor.moveToNext())
+                names.add(cursor.getString(0));
+            cursor.close();
+            return names.isEmpty() ? null : names.get(0);
+        }
+    }
+
+    public static class DatabaseHelper extends SQLCipherOpenHelper {
+
+        public DatabaseHelper(CacheWordHandler cacheWord, Context context) {
+            super(cacheWord, context, DB_NAME, null, 1);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE rows (name TEXT);");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        }
+    }
+}
@@ -0,0 +1,170 @@
+
+package info.guardianproject.cacheword;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.test.ServiceTestCase;
+
+import net.sqlcipher.Cursor;
+import net.sqlcipher.SQLException;
+import net.sqlcipher.database.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class SQLCipherWriteQueueTest extends ServiceTestCase<CacheWordService> {
+
+    private static final String PASSPHRASE = "hunter2";
+    private static final String DB_NAME = "write-queue-test.db";
+
+    private CacheWordHandler mHandler;
+    private DatabaseHelper mHelper;
+    private SQLCipherWriteQueue mQueue;
+
+    public SQLCipherWriteQueueTest() {
+        super(CacheWordService.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        SecretsManager.setInitialized(getContext(), false);
+        SQLiteDatabase.loadLibs(getContext());
+        getContext().getDatabasePath(DB_NAME).delete();
+        mHandler = TestUtils.openCacheWord(getContext(), PASSPHRASE);
+        mHelper = new DatabaseHelper(mHandler, getContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mQueue != null)
+            mQueue.close();
+        mHelper.close();
+        mHandler.disconnectFromService();
+        getContext().getDatabasePath(DB_NAME).delete();
+        super.tearDown();
+    }
+
+    private static ContentValues row(String name) {
+        ContentValues values = new ContentValues();
+        values.put("name", name);
+        return values;
+    }
+
+    private List<String> names() {
+        Cursor cursor = mHelper.getReadableDatabase().rawQuery(
+                "SELECT name FROM people ORDER BY id", null);
+        List<String> names = new ArrayList<String>();
+        while (cursor.moveToNext())
+            names.add(cursor.getString(0));
+        cursor.close();
+        return names;
+    }
+
+    public void testBatchIsWritten() {
+        mQueue = new SQLCipherWriteQueue(mHelper, 100, 60 * 1000);
+        mQueue.insert("people", null, row("alice"));
+        mQueue.insert("people", null, row("bob"));
+        assertEquals(2, mQueue.getQueueDepth());
+        mQueue.flush();
+        assertEquals(0, mQueue.getQueueDepth());
+        assertEquals(2, names().size());
+    }
+
+    public void testFailingWriteIsDroppedAfterRetries() {
+        mQueue = new SQLCipherWriteQueue(mHelper, 100, 60 * 1000);
+        final List<String> dropped = new ArrayList<String>();
+        mQueue.setOnWriteDroppedListener(new SQLCipherWriteQueue.OnWriteDroppedListener() {
+            @Override
+            public void onWriteDropped(String table, ContentValues values, SQLException e) {
+                dropped.add(table);
+            }
+        });
+        mQueue.insert("people", null, row("alice"));
+        // violates NOT NULL
+        mQueue.insert("people", null, new ContentValues());
+        mQueue.insert("people", null, row("bob"));
+
+        for (int i = 0; i < SQLCipherWriteQueue.MAX_ATTEMPTS; i++) {
+            try {
+                mQueue.flush();
+                fail("flush with a failing write succeeded");
+            } catch (SQLException e) {
+                // expected, the batch was rolled back
+            }
+            assertEquals(0, names().size());
+        }
+        assertEquals(1, dropped.size());
+        assertEquals(1, mQueue.getDroppedCount());
+        assertEquals(2, mQueue.getQueueDepth());
+
+        mQueue.flush();
+        List<String> names = names();
+        assertEquals(2, names.size());
+        assertEquals("alice", names.get(0));
+        assertEquals("bob", names.get(1));
+    }
+
+    public void testBackgroundFlushRetries() throws Exception {
+        mQueue = new SQLCipherWriteQueue(mHelper, 100, 10);
+        mQueue.insert("people", null, new ContentValues());
+        mQueue.insert("people", null, row("carol"));
+        // 10ms, 20ms and then the write is dropped
+        for (int i = 0; i < 100 && mQueue.getQueueDepth() > 0; i++)
+            Thread.sleep(50);
+        assertEquals(0, mQueue.getQueueDepth());
+        assertEquals(1, mQueue.getDroppedCount());
+        assertEquals(1, names().size());
+    }
+
+    public void testWritesRejectedWhileLocked() throws Exception {
+        mQueue = new SQLCipherWriteQueue(mHelper, 100, 60 * 1000);
+        TestUtils.lockCacheWord(mHandler);
+        try {
+            mQueue.insert("people", null, row("dave"));
+            fail("queued a write while locked");
+        } catch (CacheWordLockedException e) {
+            // expected
+        }
+        assertEquals(0, mQueue.getQueueDepth());
+    }
+
+    public void testLockFlushesPendingWrites() throws Exception {
+        mQueue = new SQLCipherWriteQueue(mHelper, 100, 60 * 1000);
+        assertEquals(0, names().size());
+        mQueue.insert("people", null, row("erin"));
+        mQueue.insert("people", null, row("frank"));
+        TestUtils.lockCacheWord(mHandler);
+        assertEquals(0, mQueue.getQueueDepth());
+
+        mHandler.setPassphrase(PASSPHRASE.toCharArray());
+        assertEquals(2, names().size());
+    }
+
+    public void testLockDropsWritesItCannotFlush() throws Exception {
+        mQueue = new SQLCipherWriteQueue(mHelper, 100, 60 * 1000);
+        // the database was never opened, so the lock can't write the row
+        mQueue.insert("people", null, row("grace"));
+        TestUtils.lockCacheWord(mHandler);
+        assertEquals(0, mQueue.getQueueDepth());
+
+        mHandler.setPassphrase(PASSPHRASE.toCharArray());
+        assertEquals(0, names().size());
+    }
+
+    public static class DatabaseHelper extends SQLCipherOpenHelper {
+
+        public DatabaseHelper(CacheWordHandler cacheWord, Context context) {
+            super(cacheWord, context, DB_NAME, null, 1);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE people (id INTEGER PRIMARY KEY, name TEXT NOT NULL);");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        }
+    }
+}
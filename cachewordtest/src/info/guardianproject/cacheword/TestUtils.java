@@ -0,0 +1,99 @@
+
+package info.guardianproject.cacheword;
+
+import android.content.Context;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Helpers shared by the tests.
+ */
+public final class TestUtils {
+
+    private TestUtils() {
+    }
+
+    /**
+     * @return the bytes of a hex string
+     */
+    public static byte[] unhex(String s) {
+        byte[] b = new byte[s.length() / 2];
+        for (int i = 0; i < b.length; i++)
+            b[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+        return b;
+    }
+
+    /**
+     * @return a 32 byte key with every byte set to b
+     */
+    public static byte[] key(int b) {
+        byte[] key = new byte[32];
+        Arrays.fill(key, (byte) b);
+        return key;
+    }
+
+    /**
+     * @return length bytes of random data, the same for the same length
+     */
+    public static byte[] random(int length) {
+        byte[] b = new byte[length];
+        new Random(length).nextBytes(b);
+        return b;
+    }
+
+    /**
+     * Connect to the CacheWord service and unlock it with passphrase,
+     * initializing it first if needed.
+     *
+     * @return the connected handler, call disconnectFromService() when done
+     */
+    public static CacheWordHandler openCacheWord(Context context, final String passphrase)
+            throws InterruptedException {
+        final CountDownLatch opened = new CountDownLatch(1);
+        final CacheWordHandler[] handler = new CacheWordHandler[1];
+        ICacheWordSubscriber subscriber = new ICacheWordSubscriber() {
+            @Override
+            public void onCacheWordUninitialized() {
+                unlock();
+            }
+
+            @Override
+            public void onCacheWordLocked() {
+                unlock();
+            }
+
+            @Override
+            public void onCacheWordOpened() {
+                opened.countDown();
+            }
+
+            private void unlock() {
+                try {
+                    handler[0].setPassphrase(passphrase.toCharArray());
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        handler[0] = new CacheWordHandler(context, subscriber);
+        handler[0].connectToService();
+        if (!opened.await(60, TimeUnit.SECONDS))
+            throw new IllegalStateException("CacheWord did not open");
+        return handler[0];
+    }
+
+    /**
+     * Lock CacheWord and wait for the lock listeners to finish, as they run
+     * in the background.
+     */
+    public static void lockCacheWord(CacheWordHandler handler) throws InterruptedException {
+        handler.lock();
+        CacheWordService.awaitLocks();
+        if (!handler.isLocked())
+            throw new IllegalStateException("CacheWord did not lock");
+    }
+}
@@ -66,6 +66,15 @@ public class WiperTest extends TestCase {
         }
     }
 
+    public void testWipeReadOnlyByteBuffer() {
+        ByteBuffer bb = ByteBuffer.allocate(16);
+        bb.put(1, (byte) 1);
+        Wiper.wipe(bb.asReadOnlyBuffer());
+        Wiper.wipe(ByteBuffer.allocateDirect(16).asReadOnlyBuffer());
+        Wiper.wipe(bb);
+        assertEquals(0, bb.get(1));
+    }
+
     public void testWipeSecretKeySpec() {
         byte[] buf = new byte[256];
         random.nextBytes(buf);
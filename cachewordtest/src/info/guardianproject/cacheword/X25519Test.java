@@ -0,0 +1,53 @@
+package info.guardianproject.cacheword;
+
+import junit.framework.TestCase;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+public class X25519Test extends TestCase {
+
+    // RFC 7748 section 5.2
+    public void testScalarMultVector() {
+        byte[] scalar = TestUtils.unhex("a546e36bf0527c9d3b16154b82465edd62144c0ac1fc5a18506a2244ba449ac4");
+        byte[] u = TestUtils.unhex("e6db6867583030db3594c1a424b15f7c726624ec26b3353b10a903a6d0ab1c4c");
+        byte[] expected = TestUtils.unhex(
+                "c3da55379de9c6908e94ea4df28d084f32eccf03491c71f754b4075577a28552");
+        assertTrue(Arrays.equals(expected, X25519.scalarMult(scalar, u)));
+    }
+
+    // RFC 7748 section 6.1
+    public void testDiffieHellmanVector() {
+        byte[] alicePrivate = TestUtils.unhex(
+                "77076d0a7318a57d3c16c17251b26645df4c2f87ebc0992ab177fba51db92c2a");
+        byte[] bobPrivate = TestUtils.unhex(
+                "5dab087e624a8a4b79e17f8b83800ee66f3bb1292618b6fd1c2f8b27ff88e0eb");
+        byte[] alicePublic = X25519.publicKey(alicePrivate);
+        byte[] bobPublic = X25519.publicKey(bobPrivate);
+        assertTrue(Arrays.equals(TestUtils.unhex(
+                "8520f0098930a754748b7ddcb43ef75a0dbf3a0d26381af4eba4a98eaa9b4e6a"),
+                alicePublic));
+        assertTrue(Arrays.equals(TestUtils.unhex(
+                "de9edb7d7b7dc1b4d35b61c2ece435373f8343c85b78674dadfc7e146f882b4f"),
+                bobPublic));
+        byte[] shared = TestUtils.unhex("4a5d9d5ba4ce2de1728e3bf480350f25e07e21c947d19e3376f09b3c1e161742");
+        assertTrue(Arrays.equals(shared, X25519.scalarMult(alicePrivate, bobPublic)));
+        assertTrue(Arrays.equals(shared, X25519.scalarMult(bobPrivate, alicePublic)));
+    }
+
+    public void testRandomAgreement() {
+        SecureRandom random = new SecureRandom();
+        for (int i = 0; i < 10; i++) {
+            byte[] a = X25519.generatePrivateKey(random);
+            byte[] b = X25519.generatePrivateKey(random);
+            byte[] ab = X25519.scalarMult(a, X25519.publicKey(b));
+            assertTrue(Arrays.equals(ab, X25519.scalarMult(b, X25519.publicKey(a))));
+            assertFalse(X25519.isZero(ab));
+        }
+    }
+
+    public void testSmallOrderPointGivesZero() {
+        byte[] key = X25519.generatePrivateKey(new SecureRandom());
+        assertTrue(X25519.isZero(X25519.scalarMult(key, new byte[32])));
+    }
+}